@@ -0,0 +1,88 @@
+package kv.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Deterministic keys and values shared by the benchmarks, so every run works on the same data.
+ */
+final class BenchmarkData {
+
+    static final long SEED = 42;
+
+    private BenchmarkData() {
+    }
+
+    //zero padded so string order matches numeric order, the same shape as real sequential keys
+    static String key(int i) {
+        return String.format("key-%010d", i);
+    }
+
+    static byte[] keyBytes(int i) {
+        return key(i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] value(Random random, int size) {
+        byte[] value = new byte[size];
+        random.nextBytes(value);
+        return value;
+    }
+
+    /**
+     * A json document padded to {@code size} bytes, compressible like real values.
+     */
+    static byte[] documentValue(Random random, int size) {
+        StringBuilder document = new StringBuilder(size + 64);
+        while (document.length() < size) {
+            document.append("{\"merchant\":\"m-").append(random.nextInt(1000))
+                    .append("\",\"amount\":").append(random.nextInt(1_000_000))
+                    .append(",\"currency\":\"NGN\",\"status\":\"settled\"}");
+        }
+        document.setLength(size);
+        return document.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static int[] shuffledIndexes(int count) {
+        int[] indexes = new int[count];
+        for (int i = 0; i < count; i++) {
+            indexes[i] = i;
+        }
+        Random random = new Random(SEED);
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = indexes[i];
+            indexes[i] = indexes[j];
+            indexes[j] = swap;
+        }
+        return indexes;
+    }
+
+    /**
+     * Creates a scratch directory under {@code -Dbench.dir} when set, so fsync benchmarks can target
+     * a real disk rather than a tmpfs /tmp.
+     */
+    static File tempDir(String prefix) throws IOException {
+        String base = System.getProperty("bench.dir");
+        if (base == null || base.isBlank()) {
+            return Files.createTempDirectory(prefix).toFile();
+        }
+        File baseDir = new File(base);
+        if (!baseDir.exists() && !baseDir.mkdirs()) {
+            throw new IOException("Could not create benchmark directory " + baseDir.getAbsolutePath());
+        }
+        return Files.createTempDirectory(baseDir.toPath(), prefix).toFile();
+    }
+
+    static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteRecursively(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,92 @@
+package kv.benchmark;
+
+import kv.storage.MemTable;
+import kv.storage.SsTableHandler;
+import kv.storage.SsTableOptions;
+import kv.storage.SsTableWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to merge five overlapping tables, the point at which the engine compacts.
+ *
+ * Each table overwrites half the keys of the previous one and deletes a few, so the merge has
+ * versions to drop and tombstones to purge. A compaction consumes its input, so the tables are
+ * rebuilt before every invocation and each invocation is timed on its own. With values separated
+ * the tables hold pointers into the value log and the merge copies those instead of the values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-XX:+AlwaysPreTouch"})
+public class CompactionBenchmark {
+
+    private static final int TABLES = 5;
+
+    @Param({"1000", "50000"})
+    int keysPerTable;
+
+    @Param({"16", "1024"})
+    int valueSize;
+
+    //0 keeps values in the tables
+    @Param({"0", "512"})
+    int valueSeparationBytes;
+
+    private File dir;
+    private SsTableHandler ssTableHandler;
+
+    @Setup(Level.Invocation)
+    public void setup() throws IOException {
+        dir = BenchmarkData.tempDir("bench-compaction");
+        ssTableHandler = new SsTableHandler(dir, SsTableOptions.DEFAULT.withValueSeparationBytes(valueSeparationBytes));
+        Random random = new Random(BenchmarkData.SEED);
+
+        for (int table = 0; table < TABLES; table++) {
+            MemTable memTable = new MemTable();
+            int first = table * keysPerTable / 2;
+            for (int i = first; i < first + keysPerTable; i++) {
+                if (i % 50 == 0) {
+                    memTable.delete(BenchmarkData.key(i));
+                } else {
+                    memTable.put(BenchmarkData.key(i), BenchmarkData.value(random, valueSize));
+                }
+            }
+            SsTableWriter writer = ssTableHandler.newSsTableWriter();
+            try (writer) {
+                writer.writeFromMemTable(memTable);
+            }
+            ssTableHandler.registerSsTable(writer.getFile(), writer.getOffsetIndex());
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        ssTableHandler.close();
+        BenchmarkData.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public int compactAllTables() throws IOException {
+        ssTableHandler.compact();
+        return ssTableHandler.getSsTableFile().size();
+    }
+}
@@ -0,0 +1,79 @@
+package kv.benchmark;
+
+import kv.storage.Entry;
+import kv.storage.MemTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memtable insert and lookup cost as the table grows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+public class MemTableBenchmark {
+
+    @Param({"1000", "100000"})
+    int entries;
+
+    @Param({"16", "256", "4096"})
+    int valueSize;
+
+    private MemTable memTable;
+    private String[] keys;
+    private int[] order;
+    private byte[] value;
+    private int cursor;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        Random random = new Random(BenchmarkData.SEED);
+        value = BenchmarkData.value(random, valueSize);
+        keys = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            keys[i] = BenchmarkData.key(i);
+        }
+        order = BenchmarkData.shuffledIndexes(entries);
+
+        memTable = new MemTable();
+        for (int i = 0; i < entries; i++) {
+            memTable.put(keys[i], value);
+        }
+        cursor = 0;
+    }
+
+    @Benchmark
+    public void put() {
+        //overwrites keep the table at the configured size
+        memTable.put(keys[order[cursor]], value);
+        cursor = (cursor + 1) % entries;
+    }
+
+    @Benchmark
+    public Entry getHit() {
+        Entry entry = memTable.get(keys[order[cursor]]);
+        cursor = (cursor + 1) % entries;
+        return entry;
+    }
+
+    @Benchmark
+    public Entry getMiss() {
+        return memTable.get("missing-key");
+    }
+}
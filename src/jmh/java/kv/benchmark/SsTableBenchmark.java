@@ -0,0 +1,128 @@
+package kv.benchmark;
+
+import kv.storage.CompressionCodec;
+import kv.storage.Entry;
+import kv.storage.MemTable;
+import kv.storage.SsTableHandler;
+import kv.storage.SsTableOptions;
+import kv.storage.SsTableWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SSTable point and range reads across several tables, plus the cost of flushing a full memtable.
+ *
+ * Keys are spread round robin over the tables, so a hit in table 0 has to miss in every newer one
+ * first, the worst case of the newest-to-oldest lookup. Values are json documents so the codecs have
+ * something to compress; the block cache is off so every read decodes its block.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+public class SsTableBenchmark {
+
+    @Param({"1", "4"})
+    int tables;
+
+    @Param({"1000", "100000"})
+    int keysPerTable;
+
+    @Param({"16", "1024"})
+    int valueSize;
+
+    @Param({"none", "lz", "deflate"})
+    String compression;
+
+    private File dir;
+    private SsTableOptions options;
+    private SsTableHandler ssTableHandler;
+    private MemTable fullMemTable;
+    private int[] order;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = BenchmarkData.tempDir("bench-sstable");
+        options = new SsTableOptions(CompressionCodec.parse(compression), SsTableOptions.DEFAULT.blockSize(), 0);
+        ssTableHandler = new SsTableHandler(dir, options);
+        Random random = new Random(BenchmarkData.SEED);
+        int totalKeys = tables * keysPerTable;
+
+        for (int table = 0; table < tables; table++) {
+            MemTable memTable = new MemTable();
+            for (int i = table; i < totalKeys; i += tables) {
+                memTable.put(BenchmarkData.key(i), BenchmarkData.documentValue(random, valueSize));
+            }
+            File file = ssTableHandler.newSsTableFile();
+            SsTableWriter writer = new SsTableWriter(file, options);
+            try (writer) {
+                writer.writeFromMemTable(memTable);
+            }
+            ssTableHandler.registerSsTable(file, writer.getOffsetIndex());
+        }
+
+        //the engine flushes at 1000 entries
+        fullMemTable = new MemTable();
+        for (int i = 0; i < 1000; i++) {
+            fullMemTable.put(BenchmarkData.key(i), BenchmarkData.documentValue(random, valueSize));
+        }
+        order = BenchmarkData.shuffledIndexes(totalKeys);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ssTableHandler.close();
+        BenchmarkData.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public Entry getHit() throws IOException {
+        Entry entry = ssTableHandler.get(BenchmarkData.key(order[cursor]));
+        cursor = (cursor + 1) % order.length;
+        return entry;
+    }
+
+    @Benchmark
+    public Entry getMiss() throws IOException {
+        //sorts after every key, so each table is searched from its last index entry
+        return ssTableHandler.get("key-9999999999-missing");
+    }
+
+    @Benchmark
+    public NavigableMap<String, Entry> rangeScan100() throws IOException {
+        int start = order[cursor] % Math.max(1, order.length - 100);
+        cursor = (cursor + 1) % order.length;
+        return ssTableHandler.getRange(BenchmarkData.key(start), BenchmarkData.key(start + 99));
+    }
+
+    @Benchmark
+    public long flushMemTable() throws IOException {
+        File file = new File(dir, "flush.dat");
+        try (SsTableWriter writer = new SsTableWriter(file, options)) {
+            writer.writeFromMemTable(fullMemTable);
+        }
+        long length = file.length();
+        file.delete();
+        return length;
+    }
+}
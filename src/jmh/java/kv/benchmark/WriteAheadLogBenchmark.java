@@ -0,0 +1,69 @@
+package kv.benchmark;
+
+import kv.storage.WriteAheadLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write ahead log append cost under each sync policy: fsync every record, every 100 records (the
+ * engine default) and never (page cache only).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+public class WriteAheadLogBenchmark {
+
+    @Param({"1", "100", "2147483647"})
+    int syncPeriod;
+
+    @Param({"16", "256", "4096"})
+    int valueSize;
+
+    private File dir;
+    private WriteAheadLog writeAheadLog;
+    private byte[] key;
+    private byte[] value;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        dir = BenchmarkData.tempDir("bench-wal");
+        writeAheadLog = new WriteAheadLog(new File(dir, "writeAheadLog.log"), syncPeriod);
+        key = BenchmarkData.keyBytes(1);
+        value = BenchmarkData.value(new Random(BenchmarkData.SEED), valueSize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        writeAheadLog.close();
+        BenchmarkData.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void appendPut() throws IOException {
+        writeAheadLog.appendPut(key, value);
+    }
+
+    @Benchmark
+    public void appendDelete() throws IOException {
+        writeAheadLog.appendDelete(key);
+    }
+}
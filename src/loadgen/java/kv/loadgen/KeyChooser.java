@@ -0,0 +1,53 @@
+package kv.loadgen;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks which existing record an operation touches.
+ */
+public interface KeyChooser {
+
+    /**
+     * @return a record index in [0, number of records inserted so far)
+     */
+    long next();
+
+    /**
+     * @param insertedRecords records written so far, grown by inserts during the run
+     */
+    static KeyChooser named(String distribution, long initialRecords, AtomicLong insertedRecords) {
+        return switch (distribution.trim().toLowerCase(Locale.ROOT)) {
+            case "uniform" -> () -> ThreadLocalRandom.current().nextLong(Math.max(1, insertedRecords.get()));
+            case "zipfian" -> scrambledZipfian(initialRecords);
+            case "latest" -> latest(initialRecords, insertedRecords);
+            default -> throw new IllegalArgumentException("Unknown distribution " + distribution + ", expected zipfian, uniform or latest");
+        };
+    }
+
+    /**
+     * Zipfian popularity with the popular records spread over the key space rather than bunched at
+     * the start, as YCSB does, so the hot keys do not all land in one sstable or partition.
+     */
+    private static KeyChooser scrambledZipfian(long records) {
+        ZipfianGenerator zipfian = new ZipfianGenerator(records);
+        return () -> Math.floorMod(fnvHash(zipfian.next()), records);
+    }
+
+    //the most recently inserted records are the most popular
+    private static KeyChooser latest(long initialRecords, AtomicLong insertedRecords) {
+        ZipfianGenerator zipfian = new ZipfianGenerator(initialRecords);
+        return () -> Math.max(0, insertedRecords.get() - 1 - zipfian.next());
+    }
+
+    private static long fnvHash(long value) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < 8; i++) {
+            hash ^= value & 0xff;
+            hash *= 0x100000001B3L;
+            value >>>= 8;
+        }
+        return hash;
+    }
+}
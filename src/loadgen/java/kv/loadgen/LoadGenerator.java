@@ -0,0 +1,307 @@
+package kv.loadgen;
+
+import kv.core.facade.DefaultKeyValueFacade;
+import kv.core.facade.KeyValueApi;
+import kv.routing.RemoteKeyValueApi;
+import kv.storage.LsmStorageEngine;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a running node over http, or an embedded engine, with a YCSB style workload and reports
+ * throughput and latency percentiles per operation.
+ *
+ * With a target rate every operation has an intended start time on a fixed schedule. The reported
+ * response time is measured from that intended start, so when the store stalls the operations that
+ * should have been sent during the stall are charged for the wait instead of silently disappearing
+ * (coordinated omission). Service time, measured from the actual send, is reported next to it.
+ *
+ * Configured with system properties:
+ * <pre>
+ * -Dtarget=http://localhost:8080 | embedded:/tmp/kv-bench   (default http://localhost:8080)
+ * -Dworkload=a..f | read-heavy | write-heavy | scan-heavy     (default b)
+ * -Ddistribution=zipfian | uniform | latest                   (default: the workload's)
+ * -Drecords=100000 -Doperations=1000000 -Dthreads=8 -DvalueSize=100
+ * -Drate=20000       target operations per second across all threads, 0 = as fast as possible
+ * -Dload=true        insert the records before the run, false when they already exist
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final String KEY_PREFIX = "user";
+    private static final int LOAD_BATCH_SIZE = 500;
+
+    private final KeyValueApi target;
+    private final Workload workload;
+    private final String distribution;
+    private final long records;
+    private final long operations;
+    private final int threads;
+    private final int valueSize;
+    private final double rate;
+    private final AtomicLong insertedRecords;
+
+    LoadGenerator(KeyValueApi target, Workload workload, String distribution, long records, long operations,
+                  int threads, int valueSize, double rate) {
+        if (records <= 0 || operations < 0 || threads <= 0 || valueSize < 0 || rate < 0) {
+            throw new IllegalArgumentException("records and threads must be positive, operations, valueSize and rate not negative");
+        }
+        this.target = target;
+        this.workload = workload;
+        this.distribution = distribution;
+        this.records = records;
+        this.operations = operations;
+        this.threads = threads;
+        this.valueSize = valueSize;
+        this.rate = rate;
+        this.insertedRecords = new AtomicLong(records);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Workload workload = Workload.named(System.getProperty("workload", "b"));
+        String distribution = System.getProperty("distribution", workload.distribution());
+        String targetSpec = System.getProperty("target", "http://localhost:8080");
+
+        KeyValueApi target;
+        LsmStorageEngine embedded = null;
+        if (targetSpec.startsWith("embedded:")) {
+            embedded = new LsmStorageEngine(new File(targetSpec.substring("embedded:".length())));
+            target = new DefaultKeyValueFacade(embedded);
+        } else {
+            target = new RemoteKeyValueApi(targetSpec);
+        }
+
+        LoadGenerator generator = new LoadGenerator(target, workload, distribution,
+                Long.parseLong(System.getProperty("records", "100000")),
+                Long.parseLong(System.getProperty("operations", "1000000")),
+                Integer.parseInt(System.getProperty("threads", "8")),
+                Integer.parseInt(System.getProperty("valueSize", "100")),
+                Double.parseDouble(System.getProperty("rate", "0")));
+        try {
+            System.out.printf("Workload %s (%s keys) against %s: %d records, %d operations, %d threads, %s%n",
+                    workload.name(), distribution, targetSpec, generator.records, generator.operations, generator.threads,
+                    generator.rate > 0 ? String.format("target %.0f ops/s", generator.rate) : "unthrottled");
+            if (Boolean.parseBoolean(System.getProperty("load", "true"))) {
+                generator.load();
+            }
+            generator.run().print(System.out);
+        } finally {
+            if (embedded != null) {
+                embedded.close();
+            }
+        }
+    }
+
+    /**
+     * Inserts the initial records in batches, split over the worker threads.
+     */
+    void load() throws Exception {
+        long start = System.nanoTime();
+        List<Thread> loaders = new ArrayList<>();
+        List<Exception> failures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long from = records * t / threads;
+            long to = records * (t + 1) / threads;
+            Thread loader = new Thread(() -> {
+                String value = randomValue(new Random(seed(from)));
+                try {
+                    Map<String, String> batch = new LinkedHashMap<>();
+                    for (long i = from; i < to; i++) {
+                        batch.put(key(i), value);
+                        if (batch.size() == LOAD_BATCH_SIZE) {
+                            target.batchPut(batch);
+                            batch.clear();
+                        }
+                    }
+                    target.batchPut(batch);
+                } catch (Exception e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }, "loadgen-load-" + t);
+            loaders.add(loader);
+            loader.start();
+        }
+        for (Thread loader : loaders) {
+            loader.join();
+        }
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Loaded %d records in %.1f s (%.0f records/s)%n", records, seconds, records / seconds);
+    }
+
+    Report run() throws InterruptedException {
+        List<Worker> workers = new ArrayList<>();
+        List<Thread> workerThreads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            long share = operations * (t + 1) / threads - operations * t / threads;
+            Worker worker = new Worker(t, share, start);
+            workers.add(worker);
+            Thread thread = new Thread(worker, "loadgen-worker-" + t);
+            workerThreads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : workerThreads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Report report = new Report(elapsed, rate > 0);
+        for (Worker worker : workers) {
+            report.merge(worker);
+        }
+        return report;
+    }
+
+    static String key(long index) {
+        return String.format("%s%012d", KEY_PREFIX, index);
+    }
+
+    //values differ per thread but are the same on every run
+    private static long seed(long index) {
+        return 42 + index * 0x9E3779B97F4A7C15L;
+    }
+
+    private String randomValue(Random random) {
+        StringBuilder value = new StringBuilder(valueSize);
+        for (int i = 0; i < valueSize; i++) {
+            value.append((char) ('a' + random.nextInt(26)));
+        }
+        return value.toString();
+    }
+
+    private final class Worker implements Runnable {
+        private final long operations;
+        private final long start;
+        //nanoseconds between this worker's intended starts, 0 when unthrottled
+        private final long intervalNanos;
+        private final KeyChooser keyChooser;
+        private final String value;
+        private final Map<Workload.Operation, ResponseTimeHistogram> serviceTimes = new EnumMap<>(Workload.Operation.class);
+        private final Map<Workload.Operation, ResponseTimeHistogram> responseTimes = new EnumMap<>(Workload.Operation.class);
+        private long errors;
+
+        Worker(int index, long operations, long start) {
+            this.operations = operations;
+            this.start = start;
+            this.intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * threads / rate) : 0;
+            this.keyChooser = KeyChooser.named(distribution, records, insertedRecords);
+            this.value = randomValue(new Random(seed(index)));
+            for (Workload.Operation operation : Workload.Operation.values()) {
+                serviceTimes.put(operation, new ResponseTimeHistogram());
+                responseTimes.put(operation, new ResponseTimeHistogram());
+            }
+        }
+
+        @Override
+        public void run() {
+            for (long i = 0; i < operations; i++) {
+                long intended = start + i * intervalNanos;
+                if (intervalNanos > 0) {
+                    long wait;
+                    while ((wait = intended - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+
+                Workload.Operation operation = workload.choose(ThreadLocalRandom.current().nextDouble());
+                long sent = System.nanoTime();
+                try {
+                    execute(operation);
+                } catch (Exception e) {
+                    errors++;
+                }
+                long done = System.nanoTime();
+                serviceTimes.get(operation).record(done - sent);
+                responseTimes.get(operation).record(done - (intervalNanos > 0 ? intended : sent));
+            }
+        }
+
+        private void execute(Workload.Operation operation) throws Exception {
+            switch (operation) {
+                case READ -> target.read(key(keyChooser.next()));
+                case UPDATE -> target.put(key(keyChooser.next()), value);
+                case INSERT -> {
+                    long index = insertedRecords.getAndIncrement();
+                    target.put(key(index), value);
+                }
+                case SCAN -> {
+                    long first = keyChooser.next();
+                    int length = 1 + ThreadLocalRandom.current().nextInt(workload.maxScanLength());
+                    target.readKeyRange(key(first), key(first + length - 1));
+                }
+            }
+        }
+    }
+
+    static final class Report {
+        private final long elapsedNanos;
+        private final boolean scheduled;
+        private final Map<Workload.Operation, ResponseTimeHistogram> serviceTimes = new EnumMap<>(Workload.Operation.class);
+        private final Map<Workload.Operation, ResponseTimeHistogram> responseTimes = new EnumMap<>(Workload.Operation.class);
+        private long errors;
+
+        Report(long elapsedNanos, boolean scheduled) {
+            this.elapsedNanos = elapsedNanos;
+            this.scheduled = scheduled;
+            for (Workload.Operation operation : Workload.Operation.values()) {
+                serviceTimes.put(operation, new ResponseTimeHistogram());
+                responseTimes.put(operation, new ResponseTimeHistogram());
+            }
+        }
+
+        void merge(Worker worker) {
+            for (Workload.Operation operation : Workload.Operation.values()) {
+                serviceTimes.get(operation).merge(worker.serviceTimes.get(operation));
+                responseTimes.get(operation).merge(worker.responseTimes.get(operation));
+            }
+            errors += worker.errors;
+        }
+
+        long operations() {
+            long total = 0;
+            for (ResponseTimeHistogram histogram : serviceTimes.values()) {
+                total += histogram.count();
+            }
+            return total;
+        }
+
+        void print(PrintStream out) {
+            double seconds = elapsedNanos / 1e9;
+            out.printf("%nRan %d operations in %.1f s: %.0f ops/s, %d errors%n", operations(), seconds, operations() / seconds, errors);
+            out.printf("%-8s %-9s %10s %10s %10s %10s %10s %10s%n", "op", "latency", "count", "p50 us", "p95 us", "p99 us", "p99.9 us", "max us");
+            for (Workload.Operation operation : Workload.Operation.values()) {
+                if (serviceTimes.get(operation).count() == 0) continue;
+                printRow(out, operation, "service", serviceTimes.get(operation));
+                if (scheduled) {
+                    printRow(out, operation, "response", responseTimes.get(operation));
+                }
+            }
+            if (scheduled) {
+                out.println("response = from the scheduled start, corrected for coordinated omission; service = from the actual send");
+            }
+        }
+
+        private static void printRow(PrintStream out, Workload.Operation operation, String kind, ResponseTimeHistogram histogram) {
+            out.printf("%-8s %-9s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", operation, kind, histogram.count(),
+                    histogram.percentileNanos(50) / 1000.0, histogram.percentileNanos(95) / 1000.0,
+                    histogram.percentileNanos(99) / 1000.0, histogram.percentileNanos(99.9) / 1000.0,
+                    histogram.maxNanos() / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package kv.loadgen;
+
+/**
+ * Latency histogram with HDR style log-linear buckets: each power of two from 1 microsecond up is
+ * split into 64 linear steps, which keeps every percentile within about 1.6% of the true value in
+ * constant memory. Not thread safe; each worker records into its own and they are merged at the end.
+ */
+final class ResponseTimeHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //values below 2^MIN_EXPONENT ns share the first linear range
+    private static final int MIN_EXPONENT = 10;
+    private static final int MAX_EXPONENT = 40;
+
+    private final long[] counts = new long[(MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS];
+    private long count;
+    private long maxNanos;
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts[index(nanos)]++;
+        count++;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    void merge(ResponseTimeHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        maxNanos = Math.max(maxNanos, other.maxNanos);
+    }
+
+    long count() {
+        return count;
+    }
+
+    long maxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound in nanoseconds of the bucket holding that percentile, 0 if empty
+     */
+    long percentileNanos(double percentile) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(maxNanos, upperBound(i));
+            }
+        }
+        return maxNanos;
+    }
+
+    private static int index(long nanos) {
+        int exponent = 63 - Long.numberOfLeadingZeros(Math.max(1, nanos));
+        if (exponent < MIN_EXPONENT) {
+            //linear steps of 2^(MIN_EXPONENT - SUB_BUCKET_BITS) ns below the first power
+            return (int) (nanos >>> (MIN_EXPONENT - SUB_BUCKET_BITS));
+        }
+        if (exponent > MAX_EXPONENT - 1) {
+            return (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS - 1;
+        }
+        int subBucket = (int) ((nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - MIN_EXPONENT + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int index) {
+        int group = index / SUB_BUCKETS;
+        int subBucket = index % SUB_BUCKETS;
+        if (group == 0) {
+            return (long) (subBucket + 1) << (MIN_EXPONENT - SUB_BUCKET_BITS);
+        }
+        int exponent = group - 1 + MIN_EXPONENT;
+        return (1L << exponent) + ((long) (subBucket + 1) << (exponent - SUB_BUCKET_BITS));
+    }
+}
@@ -0,0 +1,56 @@
+package kv.loadgen;
+
+import java.util.Locale;
+
+/**
+ * Operation mix of a run, modelled on the YCSB core workloads.
+ *
+ * @param readProportion   share of single key reads
+ * @param updateProportion share of overwrites of existing keys
+ * @param insertProportion share of writes of new keys
+ * @param scanProportion   share of range reads
+ * @param maxScanLength    range reads cover 1 to this many keys
+ * @param distribution     how existing keys are picked when the run does not override it
+ */
+public record Workload(String name, double readProportion, double updateProportion, double insertProportion,
+                       double scanProportion, int maxScanLength, String distribution) {
+
+    public enum Operation { READ, UPDATE, INSERT, SCAN }
+
+    public Workload {
+        double total = readProportion + updateProportion + insertProportion + scanProportion;
+        if (readProportion < 0 || updateProportion < 0 || insertProportion < 0 || scanProportion < 0 || Math.abs(total - 1.0) > 1e-9) {
+            throw new IllegalArgumentException("Workload " + name + " proportions must be non negative and add up to 1, got " + total);
+        }
+        if (scanProportion > 0 && maxScanLength <= 0) {
+            throw new IllegalArgumentException("Workload " + name + " scans but has no maxScanLength");
+        }
+    }
+
+    /**
+     * YCSB workloads a to f, plus read-heavy, write-heavy and scan-heavy aliases.
+     */
+    public static Workload named(String name) {
+        return switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "a", "update-heavy" -> new Workload("a", 0.5, 0.5, 0, 0, 0, "zipfian");
+            case "b", "read-heavy" -> new Workload("b", 0.95, 0.05, 0, 0, 0, "zipfian");
+            case "c", "read-only" -> new Workload("c", 1.0, 0, 0, 0, 0, "zipfian");
+            case "d", "read-latest" -> new Workload("d", 0.95, 0, 0.05, 0, 0, "latest");
+            case "e", "scan-heavy" -> new Workload("e", 0, 0, 0.05, 0.95, 100, "zipfian");
+            //ycsb f is read-modify-write, here the write half is a plain update
+            case "f" -> new Workload("f", 0.5, 0.5, 0, 0, 0, "zipfian");
+            case "write-heavy" -> new Workload("write-heavy", 0.1, 0.45, 0.45, 0, 0, "uniform");
+            default -> throw new IllegalArgumentException("Unknown workload " + name
+                    + ", expected a-f, read-heavy, write-heavy, update-heavy, read-latest or scan-heavy");
+        };
+    }
+
+    Operation choose(double random) {
+        if (random < readProportion) return Operation.READ;
+        random -= readProportion;
+        if (random < updateProportion) return Operation.UPDATE;
+        random -= updateProportion;
+        if (random < insertProportion) return Operation.INSERT;
+        return Operation.SCAN;
+    }
+}
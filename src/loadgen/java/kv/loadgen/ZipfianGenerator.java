@@ -0,0 +1,51 @@
+package kv.loadgen;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Zipfian ranks in [0, items) with rank 0 the most popular, using the method of Gray et al.,
+ * "Quickly Generating Billion-Record Synthetic Databases", the one YCSB uses.
+ */
+final class ZipfianGenerator {
+
+    static final double DEFAULT_THETA = 0.99;
+
+    private final long items;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+
+    ZipfianGenerator(long items) {
+        this(items, DEFAULT_THETA);
+    }
+
+    ZipfianGenerator(long items, double theta) {
+        if (items <= 0) {
+            throw new IllegalArgumentException("A zipfian distribution needs at least one item");
+        }
+        this.items = items;
+        this.theta = theta;
+        this.zetaN = zeta(items, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        double zeta2 = zeta(2, theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetaN);
+    }
+
+    long next() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1.0) return 0;
+        if (uz < 1.0 + Math.pow(0.5, theta)) return Math.min(1, items - 1);
+        return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    //O(items), computed once per generator
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
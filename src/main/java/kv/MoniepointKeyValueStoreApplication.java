@@ -1,12 +1,15 @@
 package kv;
 
 import kv.api.http.KeyValueHttpServerApp;
+import kv.cluster.ClusterConfig;
+import kv.cluster.NodeConfig;
 
 public class MoniepointKeyValueStoreApplication {
     public static void main(String[] args) throws Exception {
+        ClusterConfig cluster = ClusterConfig.fromSystemProperties();
         int port = Integer.parseInt(System.getProperty("port", "8080"));
-        String dir = System.getProperty("dir", "./data-8080");
-        System.out.printf("Moniepoint Key Value Storage Server starting on port %d, dir=%s%n", port, dir);
-        KeyValueHttpServerApp.start(port, dir);
+        NodeConfig node = cluster.resolveLocalNode(System.getProperty("nodeId"), port, System.getProperty("dir"));
+        System.out.printf("Moniepoint Key Value Storage Server %s starting on port %d, dir=%s%n", node.id(), node.httpPort(), node.dir());
+        KeyValueHttpServerApp.start(cluster, node);
     }
 }
@@ -0,0 +1,159 @@
+package kv.api.http;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs maintenance operations one at a time on a background thread and remembers the most recent
+ * ones, so an admin request returns at once and the operation's state can be polled.
+ *
+ * Only finished tasks are forgotten, so an id handed out stays valid while its work is queued or running.
+ * A request for an operation that is already queued with the same target gets that queued task.
+ */
+class AdminTaskRunner implements AutoCloseable {
+
+    private static final int RETAINED_TASKS = 50;
+
+    enum State { QUEUED, RUNNING, SUCCEEDED, FAILED }
+
+    @FunctionalInterface
+    interface Work {
+        /**
+         * @return a short description of the outcome
+         */
+        String run(Task task) throws Exception;
+    }
+
+    static final class Task {
+        final long id;
+        final String type;
+        final String target;
+        final long submittedAtMillis = System.currentTimeMillis();
+        volatile State state = State.QUEUED;
+        volatile long startedAtMillis;
+        volatile long finishedAtMillis;
+        private volatile Supplier<String> progress = () -> "";
+        volatile String result;
+        volatile String error;
+
+        private Task(long id, String type, String target) {
+            this.id = id;
+            this.type = type;
+            this.target = target;
+        }
+
+        void progress(String progress) {
+            this.progress = () -> progress;
+        }
+
+        /**
+         * Reports progress computed whenever the task is polled, until it finishes.
+         */
+        void progress(Supplier<String> progress) {
+            this.progress = progress;
+        }
+
+        String progress() {
+            try {
+                return progress.get();
+            } catch (RuntimeException e) {
+                return "progress unavailable: " + e.getMessage();
+            }
+        }
+
+        boolean finished() {
+            return state == State.SUCCEEDED || state == State.FAILED;
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "admin-tasks");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong nextId = new AtomicLong(1);
+    //oldest first
+    private final Deque<Task> tasks = new ArrayDeque<>();
+
+    /**
+     * @return the new task, or the queued task of the same {@code type} and {@code target}, which does the same work
+     */
+    Task submit(String type, String target, Work work) {
+        Task task;
+        synchronized (tasks) {
+            for (Task queued : tasks) {
+                if (queued.state == State.QUEUED && queued.type.equals(type) && queued.target.equals(target)) {
+                    System.out.printf("Admin task %d: %s %s is already queued%n", queued.id, type, target);
+                    return queued;
+                }
+            }
+            task = new Task(nextId.getAndIncrement(), type, target);
+            if (tasks.size() >= RETAINED_TASKS) {
+                tasks.stream().filter(Task::finished).findFirst().ifPresent(tasks::remove);
+            }
+            tasks.addLast(task);
+        }
+        task.progress(() -> "waiting for " + unfinishedBefore(task) + " task(s)");
+
+        executor.execute(() -> {
+            //under the lock, so a duplicate request is not folded into a task that already started
+            synchronized (tasks) {
+                task.startedAtMillis = System.currentTimeMillis();
+                task.state = State.RUNNING;
+            }
+            task.progress("running");
+            System.out.printf("Admin task %d: %s %s started%n", task.id, task.type, task.target);
+            try {
+                task.result = work.run(task);
+                task.state = State.SUCCEEDED;
+            } catch (Exception e) {
+                task.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+                task.state = State.FAILED;
+            } finally {
+                //whatever the work reported last, no longer recomputed
+                task.progress(task.progress());
+                task.finishedAtMillis = System.currentTimeMillis();
+                System.out.printf("Admin task %d: %s %s %s in %d ms%s%n", task.id, task.type, task.target,
+                        task.state.name().toLowerCase(), task.finishedAtMillis - task.startedAtMillis,
+                        task.error == null ? "" : " (" + task.error + ")");
+            }
+        });
+        return task;
+    }
+
+    private int unfinishedBefore(Task task) {
+        synchronized (tasks) {
+            int count = 0;
+            for (Task other : tasks) {
+                if (other.id < task.id && !other.finished()) count++;
+            }
+            return count;
+        }
+    }
+
+    Task get(long id) {
+        synchronized (tasks) {
+            for (Task task : tasks) {
+                if (task.id == id) return task;
+            }
+        }
+        return null;
+    }
+
+    List<Task> recent() {
+        synchronized (tasks) {
+            return new ArrayList<>(tasks);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
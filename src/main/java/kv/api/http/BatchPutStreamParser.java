@@ -0,0 +1,141 @@
+package kv.api.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parses batch put bodies straight off the request stream and hands them over in
+ * fixed-size sub-batches, so a large upload never has to be held in memory as a whole.
+ *
+ * Two body formats are supported:
+ * - text: one {@code key=value} pair per line (the original format)
+ * - binary: repeated {@code [int keyLength][int valueLength][key bytes][value bytes]} records,
+ *   the same layout used by the write ahead log and the sstables
+ */
+public class BatchPutStreamParser {
+
+    public static final int DEFAULT_SUB_BATCH_SIZE = 512;
+    //guards against allocating huge arrays from a corrupt length prefix
+    private static final int MAX_RECORD_PART_LENGTH = 64 * 1024 * 1024;
+
+    @FunctionalInterface
+    public interface SubBatchConsumer {
+        void accept(Map<String, String> subBatch) throws IOException;
+    }
+
+    private final int subBatchSize;
+
+    public BatchPutStreamParser() {
+        this(DEFAULT_SUB_BATCH_SIZE);
+    }
+
+    public BatchPutStreamParser(int subBatchSize) {
+        this.subBatchSize = Math.max(1, subBatchSize);
+    }
+
+    /**
+     * Reads {@code key=value} lines; blank lines are skipped.
+     * @return number of entries handed to the consumer
+     * @throws MalformedBatchException on a line without a key, after the sub-batches before it were handed over
+     */
+    public long parseLines(InputStream inputStream, SubBatchConsumer consumer) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        Map<String, String> subBatch = new LinkedHashMap<>();
+        long total = 0;
+
+        String line;
+        long lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) continue;
+            int index = line.indexOf('=');
+            if (index <= 0) {
+                throw new MalformedBatchException("Line " + lineNumber + " is not a key=value pair");
+            }
+            subBatch.put(line.substring(0, index), line.substring(index + 1));
+            total++;
+
+            if (subBatch.size() >= subBatchSize) {
+                consumer.accept(subBatch);
+                subBatch = new LinkedHashMap<>();
+            }
+        }
+
+        if (!subBatch.isEmpty()) {
+            consumer.accept(subBatch);
+        }
+        return total;
+    }
+
+    /**
+     * Reads length-prefixed binary records until the end of the stream.
+     * @return number of entries handed to the consumer
+     */
+    public long parseLengthPrefixed(InputStream inputStream, SubBatchConsumer consumer) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(inputStream));
+        Map<String, String> subBatch = new LinkedHashMap<>();
+        long total = 0;
+
+        while (true) {
+            //only a stream ending between records is a clean end
+            int firstByte = dataInputStream.read();
+            if (firstByte < 0) {
+                break;
+            }
+            int keyLength;
+            int valueLength;
+            try {
+                keyLength = firstByte << 24 | dataInputStream.readUnsignedByte() << 16
+                        | dataInputStream.readUnsignedByte() << 8 | dataInputStream.readUnsignedByte();
+                valueLength = dataInputStream.readInt();
+            } catch (EOFException eof) {
+                throw new MalformedBatchException("Truncated record header after " + total + " entries");
+            }
+
+            if (keyLength <= 0 || keyLength > MAX_RECORD_PART_LENGTH) {
+                throw new MalformedBatchException("Invalid key length: " + keyLength);
+            }
+            if (valueLength < 0 || valueLength > MAX_RECORD_PART_LENGTH) {
+                throw new MalformedBatchException("Invalid value length: " + valueLength);
+            }
+
+            byte[] keyBytes = new byte[keyLength];
+            byte[] valueBytes = new byte[valueLength];
+            try {
+                dataInputStream.readFully(keyBytes);
+                dataInputStream.readFully(valueBytes);
+            } catch (EOFException eof) {
+                throw new MalformedBatchException("Truncated record after " + total + " entries");
+            }
+
+            subBatch.put(new String(keyBytes, StandardCharsets.UTF_8), new String(valueBytes, StandardCharsets.UTF_8));
+            total++;
+
+            if (subBatch.size() >= subBatchSize) {
+                consumer.accept(subBatch);
+                subBatch = new LinkedHashMap<>();
+            }
+        }
+
+        if (!subBatch.isEmpty()) {
+            consumer.accept(subBatch);
+        }
+        return total;
+    }
+
+    public static class MalformedBatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedBatchException(String message) {
+            super(message);
+        }
+    }
+}
@@ -1,27 +1,93 @@
 package kv.api.http;
 
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import kv.api.KeyValueServer;
 import kv.core.facade.KeyValueApi;
+import kv.metrics.ReadTrace;
+import kv.replication.ReplicationStatus;
+import kv.replication.WriteConcernException;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 public class KeyValueHttpServer implements KeyValueServer {
     private final KeyValueApi facade;
     private final int port;
+    private final ReplicationStatus replicationStatus;
+    private final BatchPutStreamParser batchPutStreamParser = new BatchPutStreamParser();
     private HttpServer server;
+    //extra endpoints registered before start, e.g. admin operations
+    private final Map<String, HttpHandler> additionalContexts = new LinkedHashMap<>();
+
+    private static final String BINARY_BATCH_CONTENT_TYPE = "application/octet-stream";
+    //replication sequence this node has applied, usable as minSequence for read-your-writes on followers
+    private static final String SEQUENCE_HEADER = "X-Replication-Sequence";
+    //"X-Trace: true" on a GET asks for the read's trace in X-Read-Trace
+    private static final String TRACE_REQUEST_HEADER = "X-Trace";
+    private static final String TRACE_RESPONSE_HEADER = "X-Read-Trace";
+
+    //writes the responses of writes that complete later, off the replication ack readers and the timeout thread
+    private ExecutorService responseExecutor;
+
+    //share of reads traced without being asked, and reads slower than this are logged with their trace
+    private double traceSampleRate = 0;
+    private long slowReadNanos = 0;
 
     public KeyValueHttpServer(KeyValueApi facade, int port) {
+        this(facade, port, null);
+    }
+
+    /**
+     * @param replicationStatus position of this node in the replication log, null for a standalone node
+     */
+    public KeyValueHttpServer(KeyValueApi facade, int port, ReplicationStatus replicationStatus) {
         this.facade = facade;
         this.port = port;
+        this.replicationStatus = replicationStatus;
+    }
+
+    /**
+     * Registers an additional endpoint. Must be called before {@link #start()}.
+     */
+    public void addContext(String path, HttpHandler handler) {
+        additionalContexts.put(path, handler);
+    }
+
+    /**
+     * Traces a {@code sampleRate} share of reads on top of those that ask for it, and logs every traced
+     * read slower than {@code slowReadMillis}. A slow read threshold traces every read. Must be called
+     * before {@link #start()}.
+     */
+    public void configureReadTracing(double sampleRate, long slowReadMillis) {
+        if (sampleRate < 0 || sampleRate > 1 || slowReadMillis < 0) {
+            throw new IllegalArgumentException("Trace sample rate must be in [0, 1] and the slow read threshold not negative");
+        }
+        this.traceSampleRate = sampleRate;
+        this.slowReadNanos = TimeUnit.MILLISECONDS.toNanos(slowReadMillis);
     }
 
     @Override
@@ -41,9 +107,24 @@ public class KeyValueHttpServer implements KeyValueServer {
             }
         });
 
-        server.createContext("/keyvalue/range", this::handleReadKeyRange);
+        server.createContext("/keyvalue/range", exchange -> {
+            if ("DELETE".equalsIgnoreCase(exchange.getRequestMethod())) {
+                handleDeleteRange(exchange);
+            } else {
+                handleReadKeyRange(exchange);
+            }
+        });
         server.createContext("/keyvalue/batch", this::handleBatchPut);
+        server.createContext("/replication/status", this::handleReplicationStatus);
+        for (Map.Entry<String, HttpHandler> context : additionalContexts.entrySet()) {
+            server.createContext(context.getKey(), context.getValue());
+        }
         server.setExecutor(null);
+        responseExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "http-responses-" + port);
+            thread.setDaemon(true);
+            return thread;
+        });
         server.start();
         System.out.println("KeyValueHttpServer started on port " + port);
     }
@@ -54,6 +135,9 @@ public class KeyValueHttpServer implements KeyValueServer {
             System.out.println("Stopping KeyValueHttpServer");
             server.stop(0);
         }
+        if (responseExecutor != null) {
+            responseExecutor.shutdownNow();
+        }
     }
 
     private void handlePut(HttpExchange exchange) throws IOException {
@@ -69,9 +153,23 @@ public class KeyValueHttpServer implements KeyValueServer {
             return;
         }
 
+        //optional, the value never expires without it
+        String ttlMs = query.get("ttlMs");
+        long ttlMillis = 0;
+        if (ttlMs != null) {
+            try {
+                ttlMillis = Long.parseLong(ttlMs);
+            } catch (NumberFormatException e) {
+                ttlMillis = -1;
+            }
+            if (ttlMillis <= 0) {
+                sendResponse(exchange, 400, "Invalid ttlMs parameter, expected a positive number of milliseconds");
+                return;
+            }
+        }
+
         String value = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-        facade.put(key, value);
-        sendResponse(exchange, 200, "OK");
+        respondWhenDurable(exchange, ttlMs == null ? facade.putAsync(key, value) : facade.putAsync(key, value, ttlMillis));
     }
 
     private void handleRead(HttpExchange exchange) throws IOException {
@@ -86,8 +184,33 @@ public class KeyValueHttpServer implements KeyValueServer {
             sendResponse(exchange, 400, "Missing key parameter");
             return;
         }
+        if (!isFreshEnough(exchange, query)) {
+            return;
+        }
+
+        boolean traceRequested = "true".equalsIgnoreCase(exchange.getRequestHeaders().getFirst(TRACE_REQUEST_HEADER));
+        boolean sampled = traceSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < traceSampleRate;
+        ReadTrace trace = traceRequested || sampled || slowReadNanos > 0 ? ReadTrace.start() : null;
+        String value;
+        try {
+            value = facade.read(key);
+        } finally {
+            if (trace != null) {
+                trace.finish();
+            }
+        }
+
+        if (trace != null) {
+            if (traceRequested) {
+                exchange.getResponseHeaders().add(TRACE_RESPONSE_HEADER, trace.toString());
+            }
+            if (slowReadNanos > 0 && trace.totalNanos() >= slowReadNanos) {
+                System.out.printf("Slow read of '%s': %s%n", key, trace);
+            } else if (sampled) {
+                System.out.printf("Sampled read of '%s': %s%n", key, trace);
+            }
+        }
 
-        String value = facade.read(key);
         if (value == null) {
             sendResponse(exchange, 404, "Not found");
         } else {
@@ -108,33 +231,77 @@ public class KeyValueHttpServer implements KeyValueServer {
             sendResponse(exchange, 400, "Missing start or end key parameter");
             return;
         }
+        if (!isFreshEnough(exchange, query)) {
+            return;
+        }
 
         Map<String, String> rangeResult = facade.readKeyRange(startKey, endKey);
+        sendEntries(exchange, startKey, endKey, rangeResult);
+    }
+
+    /**
+     * Streams a multi-entry response, negotiating the body format from {@code Accept} (json or
+     * length-prefixed binary) and the compression from {@code Accept-Encoding}.
+     * The body is sent chunked and compressed while it is written, so the encoded body is never buffered whole.
+     * The entries themselves are not streamed: readKeyRange returns them as a map, so a large range is held in
+     * memory once before the first byte goes out.
+     */
+    private void sendEntries(HttpExchange exchange, String startKey, String endKey, Map<String, String> entries) throws IOException {
+        boolean binary = ResponseEncoding.acceptsBinary(exchange.getRequestHeaders().getFirst("Accept"));
+        String encoding = ResponseEncoding.negotiateEncoding(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+
+        exchange.getResponseHeaders().add("Content-Type", binary ? ResponseEncoding.BINARY_CONTENT_TYPE : ResponseEncoding.JSON_CONTENT_TYPE);
+        exchange.getResponseHeaders().add("Vary", "Accept, Accept-Encoding");
+        if (!ResponseEncoding.IDENTITY.equals(encoding)) {
+            exchange.getResponseHeaders().add("Content-Encoding", encoding);
+        }
+        exchange.sendResponseHeaders(200, 0);
+
+        try (OutputStream os = ResponseEncoding.wrap(exchange.getResponseBody(), encoding)) {
+            if (binary) {
+                writeBinaryEntries(os, entries);
+            } else {
+                writeJsonEntries(os, startKey, endKey, entries);
+            }
+        }
+    }
 
-        StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append("{");
-        stringBuilder.append("\"startKey\":\"").append(escapeJson(startKey)).append("\",");
-        stringBuilder.append("\"endKey\":\"").append(escapeJson(endKey)).append("\",");
-        stringBuilder.append("\"entries\":[");
+    private static void writeJsonEntries(OutputStream os, String startKey, String endKey, Map<String, String> entries) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        writer.write("{");
+        writer.write("\"startKey\":\"");
+        writer.write(escapeJson(startKey));
+        writer.write("\",\"endKey\":\"");
+        writer.write(escapeJson(endKey));
+        writer.write("\",\"entries\":[");
         boolean first = true;
-        for (Map.Entry<String, String> entry : rangeResult.entrySet()) {
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
             if (!first) {
-                stringBuilder.append(",");
+                writer.write(",");
             }
             first = false;
-            stringBuilder.append("{")
-            .append("\"key\":\"").append(escapeJson(entry.getKey())).append("\",")
-            .append("\"value\":\"").append(escapeJson(entry.getValue())).append("\"")
-            .append("}");
+            writer.write("{\"key\":\"");
+            writer.write(escapeJson(entry.getKey()));
+            writer.write("\",\"value\":\"");
+            writer.write(escapeJson(entry.getValue()));
+            writer.write("\"}");
         }
-        stringBuilder.append("]}");
+        writer.write("]}");
+        writer.flush();
+    }
 
-        byte[] body = stringBuilder.toString().getBytes(StandardCharsets.UTF_8);
-        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
-        exchange.sendResponseHeaders(200, body.length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(body);
+    //same [int keyLength][int valueLength][key][value] layout accepted by the binary batch put
+    private static void writeBinaryEntries(OutputStream os, Map<String, String> entries) throws IOException {
+        DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(os));
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = entry.getValue() == null ? new byte[0] : entry.getValue().getBytes(StandardCharsets.UTF_8);
+            dataOutputStream.writeInt(keyBytes.length);
+            dataOutputStream.writeInt(valueBytes.length);
+            dataOutputStream.write(keyBytes);
+            dataOutputStream.write(valueBytes);
         }
+        dataOutputStream.flush();
     }
 
     private void handleDelete(HttpExchange exchange) throws IOException {
@@ -146,8 +313,24 @@ public class KeyValueHttpServer implements KeyValueServer {
             return;
         }
 
-        facade.delete(key);
-        sendResponse(exchange, 200, "OK");
+        respondWhenDurable(exchange, facade.deleteAsync(key));
+    }
+
+    //deletes [startKey, endKey), the end key itself is kept
+    private void handleDeleteRange(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI());
+        String startKey = query.get("startKey");
+        String endKey = query.get("endKey");
+        if (startKey == null || endKey == null) {
+            sendResponse(exchange, 400, "Missing start or end key parameter");
+            return;
+        }
+        if (startKey.compareTo(endKey) >= 0) {
+            sendResponse(exchange, 400, "Start key must come before the end key");
+            return;
+        }
+
+        respondWhenDurable(exchange, facade.deleteRangeAsync(startKey, endKey));
     }
 
     private void handleBatchPut(HttpExchange exchange) throws IOException {
@@ -157,42 +340,122 @@ public class KeyValueHttpServer implements KeyValueServer {
                 return;
             }
 
-            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-
-            Map<String, String> entries = getEntries(body);
+            //entries are applied in sub-batches as they are parsed, so the body is never fully buffered
+            List<CompletableFuture<Void>> pending = new ArrayList<>();
+            BatchPutStreamParser.SubBatchConsumer consumer = subBatch -> pending.add(facade.batchPutAsync(subBatch));
+            InputStream body = exchange.getRequestBody();
+            long applied = isBinaryBatch(exchange)
+                    ? batchPutStreamParser.parseLengthPrefixed(body, consumer)
+                    : batchPutStreamParser.parseLines(body, consumer);
 
-            if (entries.isEmpty()) {
-                sendResponse(exchange, 400, "No valid key=value pairs found in request body");
+            if (applied == 0) {
+                sendResponse(exchange, 400, "No key=value pairs found in request body");
                 return;
             }
 
-            facade.batchPut(entries);
-
-            sendResponse(exchange, 200, "OK");
+            respondWhenDurable(exchange, CompletableFuture.allOf(pending.toArray(CompletableFuture<?>[]::new)));
+        } catch (BatchPutStreamParser.MalformedBatchException e) {
+            sendResponse(exchange, 400, "Malformed batch body: " + e.getMessage());
         } catch (Exception e) {
             sendResponse(exchange, 500, "Internal Server Error: " + e.getMessage());
         }
     }
 
-    private static Map<String, String> getEntries(String body) {
-        Map<String, String> entries = new LinkedHashMap<>();
+    private static boolean isBinaryBatch(HttpExchange exchange) {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        return contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith(BINARY_BATCH_CONTENT_TYPE);
+    }
+
+    /**
+     * Answers a write once its future completes, without holding the request thread while
+     * replicas acknowledge it.
+     */
+    /**
+     * Answers once {@code durable} completes. A write concern completes it on a replication acknowledgement reader
+     * or on the shared timeout thread, so the response is written from {@link #responseExecutor} to keep a slow
+     * client from holding those up; a write that is already durable is answered straight away.
+     */
+    private void respondWhenDurable(HttpExchange exchange, CompletableFuture<Void> durable) {
+        BiConsumer<Void, Throwable> respond = (ignored, error) -> {
+            try {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                addSequenceHeader(exchange);
+                if (cause == null) {
+                    sendResponse(exchange, 200, "OK");
+                } else if (cause instanceof WriteConcernException) {
+                    sendResponse(exchange, 504, cause.getMessage());
+                } else {
+                    sendResponse(exchange, 500, "Internal Server Error: " + cause.getMessage());
+                }
+            } catch (IOException e) {
+                exchange.close();
+            }
+        };
+        if (durable.isDone()) {
+            durable.whenComplete(respond);
+        } else {
+            durable.whenCompleteAsync(respond, responseExecutor);
+        }
+    }
+
+    /**
+     * Bounded staleness for reads served by followers. A read may ask for
+     * {@code minSequence} (e.g. the sequence returned by its own write) and/or {@code maxStalenessMs};
+     * if this node cannot satisfy them the read is rejected with 503 so the client can retry elsewhere.
+     */
+    private boolean isFreshEnough(HttpExchange exchange, Map<String, String> query) throws IOException {
+        addSequenceHeader(exchange);
+        if (replicationStatus == null) return true;
+
+        try {
+            String minSequence = query.get("minSequence");
+            if (minSequence != null && replicationStatus.appliedSequence() < Long.parseLong(minSequence)) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                sendResponse(exchange, 503, "Replica is behind: applied sequence " + replicationStatus.appliedSequence()
+                        + " < " + minSequence);
+                return false;
+            }
 
-        String[] lines = body.split("\\r?\\n");
-        for (String eachLine : lines) {
-            if (eachLine.isBlank()) continue;
-            int index = eachLine.indexOf('=');
-            if (index <= 0) {
-                //todo maybe return 400 since input is malformed
-                continue;
+            String maxStalenessMs = query.get("maxStalenessMs");
+            if (maxStalenessMs != null && replicationStatus.stalenessMillis() > Long.parseLong(maxStalenessMs)) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                sendResponse(exchange, 503, "Replica is stale by more than " + maxStalenessMs + " ms");
+                return false;
             }
-            String key = eachLine.substring(0, index);
-            String value = eachLine.substring(index + 1);
-            entries.put(key, value);
+        } catch (NumberFormatException e) {
+            sendResponse(exchange, 400, "Invalid minSequence or maxStalenessMs parameter");
+            return false;
+        }
+        return true;
+    }
+
+    private void addSequenceHeader(HttpExchange exchange) {
+        if (replicationStatus != null) {
+            exchange.getResponseHeaders().set(SEQUENCE_HEADER, Long.toString(replicationStatus.appliedSequence()));
         }
-        return entries;
     }
 
-    private Map<String, String> parseQuery(URI uri) {
+    private void handleReplicationStatus(HttpExchange exchange) throws IOException {
+        if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+        if (replicationStatus == null) {
+            sendResponse(exchange, 404, "Replication is not enabled on this node");
+            return;
+        }
+
+        long staleness = replicationStatus.stalenessMillis();
+        String body = "{"
+                + "\"role\":\"" + replicationStatus.role() + "\","
+                + "\"appliedSequence\":" + replicationStatus.appliedSequence() + ","
+                + "\"stalenessMs\":" + (staleness == Long.MAX_VALUE ? "null" : Long.toString(staleness))
+                + "}";
+        exchange.getResponseHeaders().add("Content-Type", ResponseEncoding.JSON_CONTENT_TYPE);
+        sendResponse(exchange, 200, body);
+    }
+
+    static Map<String, String> parseQuery(URI uri) {
         Map<String, String> map = new HashMap<>();
         String query = uri.getQuery();
         if (query == null || query.isBlank()) return map;
@@ -207,7 +470,7 @@ public class KeyValueHttpServer implements KeyValueServer {
         return map;
     }
 
-    private void sendResponse(HttpExchange exchange, int statusCode, String body) throws IOException {
+    static void sendResponse(HttpExchange exchange, int statusCode, String body) throws IOException {
         byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
         exchange.sendResponseHeaders(statusCode, bytes.length);
         try (OutputStream os = exchange.getResponseBody()) {
@@ -215,7 +478,7 @@ public class KeyValueHttpServer implements KeyValueServer {
         }
     }
 
-    private static String escapeJson(String s) {
+    static String escapeJson(String s) {
         if (s == null) return "";
         return s.replace("\\", "\\\\")
                 .replace("\"", "\\\"")
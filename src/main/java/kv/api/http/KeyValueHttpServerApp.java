@@ -1,46 +1,223 @@
 package kv.api.http;
 
-import kv.api.KeyValueServer;
+import kv.cache.CachingStorageEngine;
+import kv.cache.SegmentedLruCache;
+import kv.cluster.ClusterConfig;
+import kv.cluster.NodeConfig;
+import kv.cluster.NodeRole;
+import kv.cluster.PartitionMap;
+import kv.core.StorageEngine;
 import kv.core.facade.DefaultKeyValueFacade;
 import kv.core.facade.KeyValueApi;
-import kv.replication.ReplicationClient;
+import kv.metrics.MetricsRegistry;
+import kv.replication.LogShippingReplicator;
+import kv.replication.ReplicationBatchSettings;
 import kv.replication.ReplicationKeyValueApi;
+import kv.replication.ReplicationLog;
+import kv.replication.ReplicationServer;
+import kv.replication.ReplicationStatus;
+import kv.replication.WriteConcern;
+import kv.routing.RemoteKeyValueApi;
+import kv.routing.RoutingKeyValueApi;
+import kv.storage.CompressionCodec;
 import kv.storage.LsmStorageEngine;
+import kv.storage.ShardedStorageEngine;
+import kv.storage.SsTableOptions;
 
 import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public class KeyValueHttpServerApp {
 
-    public static void start(int port, String dirPath) throws Exception {
-        File dir = new File(dirPath);
+    /**
+     * Starts {@code node} with the replication stack its role in {@code cluster} calls for.
+     */
+    public static void start(ClusterConfig cluster, NodeConfig node) throws Exception {
+        if (node.role() == NodeRole.ROUTER) {
+            startRouter(cluster, node);
+            return;
+        }
+
+        File dir = new File(node.dir());
+        int port = node.httpPort();
 
-        LsmStorageEngine lsmStorageEngine = new LsmStorageEngine(dir);
-        KeyValueApi facade = new DefaultKeyValueFacade(lsmStorageEngine);
+        StorageEngine storageEngine = openStorageEngine(dir);
+        KeyValueApi facade = new DefaultKeyValueFacade(storageEngine);
 
         KeyValueApi api;
-        //hardcoded for this task and to ensure replication is only for the leader node
-        if (port == 8080) {
-            List<String> replicaUrls = List.of(
-                    "http://localhost:8081",
-                    "http://localhost:8082"
-            );
-            System.out.printf("Starting the Leader node on port %d, dir=%s, replicas=%s%n", port, dirPath, replicaUrls);
-
-            ReplicationClient replicator = new ReplicationClient(replicaUrls);
-            api = new ReplicationKeyValueApi(facade, replicator);
+        AutoCloseable replication;
+        ReplicationStatus replicationStatus;
+        //tables of a split partition arrive here; followers get them through replication instead
+        RangeTransferHandler rangeTransfer = null;
+        if (node.role() == NodeRole.LEADER) {
+            List<String> replicaAddresses = new ArrayList<>();
+            for (NodeConfig follower : cluster.followersOf(node.id())) {
+                replicaAddresses.add(follower.replicationAddress());
+            }
+            System.out.printf("Starting leader node %s on port %d, dir=%s, replicas=%s%n", node.id(), port, node.dir(), replicaAddresses);
+
+            WriteConcern writeConcern = WriteConcern.parse(System.getProperty("writeConcern", "leader_only"));
+            Duration writeConcernTimeout = Duration.ofMillis(Long.parseLong(System.getProperty("writeConcernTimeoutMs", "1000")));
+
+            ReplicationLog replicationLog = new ReplicationLog(new File(dir, "replication"), ReplicationLog.DEFAULT_SEGMENT_MAX_BYTES,
+                    ReplicationLog.DEFAULT_SYNC_PERIOD, ReplicationLog.DEFAULT_MAX_RETAINED_SEGMENTS);
+            LogShippingReplicator replicator = new LogShippingReplicator(replicationLog, replicaAddresses,
+                    ReplicationBatchSettings.DEFAULT, storageEngine, new File(dir, "checkpoints"));
+            replicator.start();
+            api = new ReplicationKeyValueApi(facade, replicationLog, replicator, writeConcern, writeConcernTimeout);
+            replicationStatus = ReplicationStatus.leader(replicationLog);
+            MetricsRegistry.global().gauge("kv_replication_lag_records", "Records the slowest follower has yet to acknowledge",
+                    () -> replicationLag(replicationLog, replicator));
+            rangeTransfer = new RangeTransferHandler(storageEngine, new File(dir, "transfers"),
+                    replicaAddresses.isEmpty() ? null : replicator::resyncFollowers);
+            replication = () -> {
+                replicator.close();
+                replicationLog.close();
+            };
+        } else if (node.role() == NodeRole.FOLLOWER) {
+            System.out.printf("Starting follower node %s of %s on port %d, dir=%s, replication port=%d%n",
+                    node.id(), node.leaderId(), port, node.dir(), node.replicationPort());
+            ReplicationServer replicationServer = new ReplicationServer(storageEngine, node.replicationPort(), new File(dir, "replication.position"));
+            replicationServer.start();
+            api = facade;
+            replication = replicationServer;
+            replicationStatus = replicationServer;
+            MetricsRegistry.global().gauge("kv_replication_staleness_seconds", "Seconds since this follower last held every write of its leader",
+                    () -> replicationServer.stalenessMillis() == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : replicationServer.stalenessMillis() / 1000.0);
         } else {
-            System.out.printf("Starting replica/standalone node on port %d, dir=%s%n", port, dirPath);
+            System.out.printf("Starting standalone node %s on port %d, dir=%s%n", node.id(), port, node.dir());
             api = facade;
+            replication = () -> { };
+            replicationStatus = null;
+            rangeTransfer = new RangeTransferHandler(storageEngine, new File(dir, "transfers"), null);
+        }
+        if (replicationStatus != null) {
+            MetricsRegistry.global().gauge("kv_replication_applied_sequence", "Last replication sequence applied on this node",
+                    replicationStatus::appliedSequence);
+        }
+        KeyValueHttpServer server = new KeyValueHttpServer(api, port, replicationStatus);
+        server.addContext(MetricsHandler.PATH, new MetricsHandler(MetricsRegistry.global()));
+        StorageAdminHandler storageAdmin = new StorageAdminHandler(storageEngine, new File(dir, "backups"));
+        for (String adminPath : StorageAdminHandler.PATHS) {
+            server.addContext(adminPath, storageAdmin);
+        }
+        //-DtraceSampleRate=0.01 logs the trace of 1% of reads, -DslowReadMillis=50 logs every read slower than 50 ms
+        server.configureReadTracing(Double.parseDouble(System.getProperty("traceSampleRate", "0")),
+                Long.parseLong(System.getProperty("slowReadMillis", "0")));
+        if (rangeTransfer != null) {
+            server.addContext(RangeTransferHandler.EXPORT_PATH, rangeTransfer);
+            server.addContext(RangeTransferHandler.IMPORT_PATH, rangeTransfer);
+        }
+        if (storageEngine instanceof CachingStorageEngine cachingStorageEngine) {
+            MetricsRegistry metrics = MetricsRegistry.global();
+            metrics.gauge("kv_cache_hits", "Reads of existing keys served from the cache", () -> cachingStorageEngine.cacheStats().hits());
+            metrics.gauge("kv_cache_negative_hits", "Reads of missing keys served from the cache", () -> cachingStorageEngine.cacheStats().negativeHits());
+            metrics.gauge("kv_cache_misses", "Reads that went to the storage engine", () -> cachingStorageEngine.cacheStats().misses());
+            metrics.gauge("kv_cache_hit_ratio", "Share of reads served from the cache", () -> cachingStorageEngine.cacheStats().hitRatio());
+            metrics.gauge("kv_cache_evictions", "Entries evicted from the cache", () -> cachingStorageEngine.cacheStats().evictions());
+            metrics.gauge("kv_cache_entries", "Entries held in the cache", () -> cachingStorageEngine.cacheStats().entries());
+            metrics.gauge("kv_cache_bytes", "Approximate bytes held in the cache", () -> cachingStorageEngine.cacheStats().bytes());
+            server.addContext("/cache/stats", exchange -> {
+                SegmentedLruCache.Stats stats = cachingStorageEngine.cacheStats();
+                String body = String.format(Locale.ROOT,
+                        "{\"hits\":%d,\"negativeHits\":%d,\"misses\":%d,\"hitRatio\":%.4f,\"evictions\":%d,\"entries\":%d,\"bytes\":%d,\"maxBytes\":%d}",
+                        stats.hits(), stats.negativeHits(), stats.misses(), stats.hitRatio(), stats.evictions(),
+                        stats.entries(), stats.bytes(), stats.maxBytes());
+                exchange.getResponseHeaders().add("Content-Type", ResponseEncoding.JSON_CONTENT_TYPE);
+                KeyValueHttpServer.sendResponse(exchange, 200, body);
+            });
         }
-        KeyValueServer server = new KeyValueHttpServer(api, port);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try{
                 server.stop();
-                lsmStorageEngine.close();
+                storageAdmin.close();
+                replication.close();
+                storageEngine.close();
             } catch (Exception ignored) { }
         }));
         server.start();
     }
+
+    /**
+     * A router holds no data: it forwards requests to the leaders owning each key range. The partition
+     * map comes from the cluster configuration until a split persists a newer one in its dir.
+     */
+    private static void startRouter(ClusterConfig cluster, NodeConfig node) throws Exception {
+        File dir = new File(node.dir());
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create router directory " + dir.getAbsolutePath());
+        }
+        File partitionMapFile = new File(dir, "partitions.properties");
+        PartitionMap partitionMap = partitionMapFile.exists() ? PartitionMap.load(partitionMapFile) : cluster.partitionMap();
+
+        Map<String, RemoteKeyValueApi> leaders = new LinkedHashMap<>();
+        for (NodeConfig candidate : cluster.nodes()) {
+            if (candidate.role() == NodeRole.LEADER) {
+                leaders.put(candidate.id(), new RemoteKeyValueApi(candidate.httpAddress()));
+            }
+        }
+        System.out.printf("Starting router node %s on port %d, partitions=%s%n", node.id(), node.httpPort(), partitionMap.partitions());
+
+        RoutingKeyValueApi router = new RoutingKeyValueApi(partitionMap, leaders, partitionMapFile);
+        KeyValueHttpServer server = new KeyValueHttpServer(router, node.httpPort());
+        server.addContext(PartitionAdminHandler.PATH, new PartitionAdminHandler(router));
+        server.addContext(MetricsHandler.PATH, new MetricsHandler(MetricsRegistry.global()));
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            router.close();
+        }));
+        server.start();
+    }
+
+    private static double replicationLag(ReplicationLog replicationLog, LogShippingReplicator replicator) {
+        long lastSequence = replicationLog.lastSequence();
+        long lag = 0;
+        for (long acknowledged : replicator.acknowledgedSequences().values()) {
+            lag = Math.max(lag, lastSequence - Math.max(0, acknowledged));
+        }
+        return lag;
+    }
+
+    //-Dshards=N spreads keys over N engines; 1 keeps the single engine layout of existing data dirs
+    //-Dcompression=none|deflate|lz picks the codec of new sstable blocks, -DblockCacheBytes=N how many
+    //decompressed blocks are kept in memory, -DvalueSeparationBytes=N moves values of N bytes or more to a value log
+    //-DcacheBytes=N puts a read-through cache of N bytes in front of them; 0 disables it
+    private static StorageEngine openStorageEngine(File dir) throws IOException {
+        int shards = Integer.parseInt(System.getProperty("shards", "1"));
+        SsTableOptions defaults = SsTableOptions.DEFAULT;
+        SsTableOptions options = new SsTableOptions(
+                CompressionCodec.parse(System.getProperty("compression", defaults.compression().name())),
+                defaults.blockSize(),
+                Long.parseLong(System.getProperty("blockCacheBytes", Long.toString(defaults.blockCacheBytes()))),
+                Integer.parseInt(System.getProperty("valueSeparationBytes", Integer.toString(defaults.valueSeparationBytes()))));
+        if (options.compression() != CompressionCodec.NONE) {
+            System.out.printf("Compressing sstable blocks with %s%n", options.compression().name().toLowerCase());
+        }
+        if (options.valueSeparationBytes() > 0) {
+            System.out.printf("Keeping values of %d bytes or more in a value log%n", options.valueSeparationBytes());
+        }
+
+        StorageEngine storageEngine;
+        if (shards <= 1) {
+            storageEngine = new LsmStorageEngine(dir, options);
+        } else {
+            System.out.printf("Using %d storage shards in %s%n", shards, dir);
+            storageEngine = new ShardedStorageEngine(dir, shards, options);
+        }
+
+        long cacheBytes = Long.parseLong(System.getProperty("cacheBytes", "0"));
+        if (cacheBytes > 0) {
+            System.out.printf("Caching hot keys in up to %.1f MB%n", cacheBytes / (1024.0 * 1024.0));
+            storageEngine = new CachingStorageEngine(storageEngine, cacheBytes);
+        }
+        return storageEngine;
+    }
 }
@@ -0,0 +1,32 @@
+package kv.api.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import kv.metrics.MetricsRegistry;
+
+import java.io.IOException;
+
+/**
+ * GET /metrics serves the registry in the Prometheus text exposition format.
+ */
+public class MetricsHandler implements HttpHandler {
+
+    public static final String PATH = "/metrics";
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final MetricsRegistry registry;
+
+    public MetricsHandler(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            KeyValueHttpServer.sendResponse(exchange, 405, "Method not allowed");
+            return;
+        }
+        exchange.getResponseHeaders().add("Content-Type", PROMETHEUS_CONTENT_TYPE);
+        KeyValueHttpServer.sendResponse(exchange, 200, registry.scrape());
+    }
+}
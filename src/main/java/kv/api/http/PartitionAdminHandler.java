@@ -0,0 +1,73 @@
+package kv.api.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import kv.cluster.PartitionMap;
+import kv.routing.RoutingKeyValueApi;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Partition administration on a router node.
+ *
+ * GET  /admin/partitions lists the partitions and their owners
+ * POST /admin/partitions/split?splitKey=..&owner=.. moves [splitKey, end of its partition) to owner
+ */
+public class PartitionAdminHandler implements HttpHandler {
+
+    public static final String PATH = "/admin/partitions";
+
+    private final RoutingKeyValueApi router;
+
+    public PartitionAdminHandler(RoutingKeyValueApi router) {
+        this.router = router;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (PATH.equals(path) && "GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            handleList(exchange);
+        } else if ((PATH + "/split").equals(path) && "POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            handleSplit(exchange);
+        } else {
+            KeyValueHttpServer.sendResponse(exchange, 405, "Method not allowed");
+        }
+    }
+
+    private void handleList(HttpExchange exchange) throws IOException {
+        StringBuilder body = new StringBuilder("{\"partitions\":[");
+        boolean first = true;
+        for (PartitionMap.Partition partition : router.partitionMap().partitions()) {
+            if (!first) body.append(',');
+            first = false;
+            body.append("{\"startKey\":\"").append(KeyValueHttpServer.escapeJson(partition.startKey())).append("\",")
+                    .append("\"endKey\":").append(partition.endKey() == null ? "null" : "\"" + KeyValueHttpServer.escapeJson(partition.endKey()) + "\"").append(',')
+                    .append("\"owner\":\"").append(KeyValueHttpServer.escapeJson(partition.ownerId())).append("\"}");
+        }
+        body.append("]}");
+
+        exchange.getResponseHeaders().add("Content-Type", ResponseEncoding.JSON_CONTENT_TYPE);
+        KeyValueHttpServer.sendResponse(exchange, 200, body.toString());
+    }
+
+    private void handleSplit(HttpExchange exchange) throws IOException {
+        Map<String, String> query = KeyValueHttpServer.parseQuery(exchange.getRequestURI());
+        String splitKey = query.get("splitKey");
+        String owner = query.get("owner");
+        if (splitKey == null || splitKey.isEmpty() || owner == null) {
+            KeyValueHttpServer.sendResponse(exchange, 400, "Missing splitKey or owner parameter");
+            return;
+        }
+
+        try {
+            router.split(splitKey, owner);
+            KeyValueHttpServer.sendResponse(exchange, 200, "OK");
+        } catch (IllegalArgumentException e) {
+            KeyValueHttpServer.sendResponse(exchange, 400, e.getMessage());
+        } catch (IOException e) {
+            KeyValueHttpServer.sendResponse(exchange, 500, "Split failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package kv.api.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import kv.core.StorageEngine;
+import kv.storage.CheckpointFiles;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Moves the tables of a key range between nodes when a partition is split.
+ *
+ * GET  /admin/range/export?startKey=..[&endKey=..] streams the tables holding [startKey, endKey)
+ * POST /admin/range/import adds the streamed tables as the node's newest data
+ *
+ * Both bodies use the {@link CheckpointFiles} layout. Files are staged under {@code stagingDir},
+ * which should be on the same file system as the engine so tables can be linked and moved.
+ */
+public class RangeTransferHandler implements HttpHandler {
+
+    public static final String EXPORT_PATH = "/admin/range/export";
+    public static final String IMPORT_PATH = "/admin/range/import";
+
+    private final StorageEngine storageEngine;
+    private final File stagingDir;
+    private final Runnable onImported;
+
+    /**
+     * @param onImported called after an import, e.g. to resynchronise followers that did not see the
+     *                   imported tables through the replication log
+     */
+    public RangeTransferHandler(StorageEngine storageEngine, File stagingDir, Runnable onImported) {
+        this.storageEngine = storageEngine;
+        this.stagingDir = stagingDir;
+        this.onImported = onImported;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        try {
+            if (EXPORT_PATH.equals(path) && "GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                handleExport(exchange);
+            } else if (IMPORT_PATH.equals(path) && "POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                handleImport(exchange);
+            } else {
+                KeyValueHttpServer.sendResponse(exchange, 405, "Method not allowed");
+            }
+        } catch (IOException e) {
+            System.err.println("Range transfer failed: " + e.getMessage());
+            exchange.close();
+        }
+    }
+
+    private void handleExport(HttpExchange exchange) throws IOException {
+        Map<String, String> query = KeyValueHttpServer.parseQuery(exchange.getRequestURI());
+        String startKey = query.get("startKey");
+        if (startKey == null) {
+            KeyValueHttpServer.sendResponse(exchange, 400, "Missing startKey parameter");
+            return;
+        }
+        String endKey = query.get("endKey");
+
+        File exportDir = new File(stagingDir, "export-" + System.nanoTime());
+        try {
+            storageEngine.exportRange(startKey.getBytes(StandardCharsets.UTF_8),
+                    endKey == null ? null : endKey.getBytes(StandardCharsets.UTF_8), exportDir);
+
+            exchange.getResponseHeaders().add("Content-Type", ResponseEncoding.BINARY_CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, 0);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024))) {
+                CheckpointFiles.write(out, exportDir);
+            }
+        } finally {
+            CheckpointFiles.deleteRecursively(exportDir);
+        }
+    }
+
+    private void handleImport(HttpExchange exchange) throws IOException {
+        File importDir = new File(stagingDir, "import-" + System.nanoTime());
+        try {
+            CheckpointFiles.read(new DataInputStream(new BufferedInputStream(exchange.getRequestBody(), 64 * 1024)), importDir);
+            storageEngine.importRange(importDir);
+        } finally {
+            CheckpointFiles.deleteRecursively(importDir);
+        }
+        if (onImported != null) {
+            onImported.run();
+        }
+        KeyValueHttpServer.sendResponse(exchange, 200, "OK");
+    }
+}
@@ -0,0 +1,106 @@
+package kv.api.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content negotiation for multi-entry responses.
+ * Picks a content coding from {@code Accept-Encoding} (gzip, deflate or identity) and wraps the
+ * response stream so entries are compressed as they are written instead of after the body is built.
+ */
+public final class ResponseEncoding {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String IDENTITY = "identity";
+
+    public static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+    public static final String BINARY_CONTENT_TYPE = "application/octet-stream";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private ResponseEncoding() {
+    }
+
+    /**
+     * Returns the preferred supported coding, honouring q-values. gzip wins ties with deflate, and
+     * {@code *} only stands for the codings that are not listed, so {@code gzip;q=0} excludes gzip.
+     */
+    public static String negotiateEncoding(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) return IDENTITY;
+
+        //-1 until listed
+        double gzipQuality = -1;
+        double deflateQuality = -1;
+        double wildcardQuality = 0;
+
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.trim().split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            double quality = parseQuality(params);
+
+            switch (coding) {
+                case GZIP, "x-gzip" -> gzipQuality = Math.max(gzipQuality, quality);
+                case DEFLATE -> deflateQuality = Math.max(deflateQuality, quality);
+                case "*" -> wildcardQuality = quality;
+                default -> { }
+            }
+        }
+
+        if (gzipQuality < 0) gzipQuality = wildcardQuality;
+        if (deflateQuality < 0) deflateQuality = wildcardQuality;
+        if (gzipQuality <= 0 && deflateQuality <= 0) {
+            return IDENTITY;
+        }
+        return gzipQuality >= deflateQuality ? GZIP : DEFLATE;
+    }
+
+    /**
+     * True when the client asked for the compact binary entry encoding instead of JSON: it is listed with a
+     * non-zero q-value at least as high as {@code application/json}'s. Wildcards keep the JSON default.
+     */
+    public static boolean acceptsBinary(String accept) {
+        if (accept == null || accept.isBlank()) return false;
+
+        double binaryQuality = 0;
+        double jsonQuality = 0;
+
+        for (String part : accept.split(",")) {
+            String[] params = part.trim().split(";");
+            String mediaType = params[0].trim().toLowerCase(Locale.ROOT);
+            double quality = parseQuality(params);
+
+            switch (mediaType) {
+                case BINARY_CONTENT_TYPE -> binaryQuality = Math.max(binaryQuality, quality);
+                case "application/json" -> jsonQuality = Math.max(jsonQuality, quality);
+                default -> { }
+            }
+        }
+        return binaryQuality > 0 && binaryQuality >= jsonQuality;
+    }
+
+    public static OutputStream wrap(OutputStream outputStream, String encoding) throws IOException {
+        return switch (encoding) {
+            case GZIP -> new GZIPOutputStream(outputStream, BUFFER_SIZE);
+            case DEFLATE -> new DeflaterOutputStream(outputStream);
+            default -> outputStream;
+        };
+    }
+
+    private static double parseQuality(String[] params) {
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,261 @@
+package kv.api.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import kv.core.EngineStats;
+import kv.core.StorageEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage engine introspection and maintenance for operators.
+ *
+ * GET  /admin/stats describes every engine (one per shard): memtable, write ahead log, live tables
+ *      and recent compactions
+ * POST /admin/flush writes the memtables out
+ * POST /admin/compact[?startKey=..&endKey=..] compacts the tables overlapping [startKey, endKey), or everything
+ * POST /admin/checkpoint writes a checkpoint into the backup directory
+ * GET  /admin/tasks[?id=..] reports the maintenance operations above
+ *
+ * Maintenance runs in the background one operation at a time; the POSTs answer 202 with the task to poll.
+ * Repeating a POST whose task has not started yet answers with that task instead of queuing another one.
+ */
+public class StorageAdminHandler implements HttpHandler, AutoCloseable {
+
+    public static final String STATS_PATH = "/admin/stats";
+    public static final String FLUSH_PATH = "/admin/flush";
+    public static final String COMPACT_PATH = "/admin/compact";
+    public static final String CHECKPOINT_PATH = "/admin/checkpoint";
+    public static final String TASKS_PATH = "/admin/tasks";
+    public static final List<String> PATHS = List.of(STATS_PATH, FLUSH_PATH, COMPACT_PATH, CHECKPOINT_PATH, TASKS_PATH);
+
+    private static final DateTimeFormatter CHECKPOINT_NAME = DateTimeFormatter.ofPattern("'checkpoint-'yyyyMMdd-HHmmss-SSS");
+
+    private final StorageEngine storageEngine;
+    private final File backupDir;
+    private final AdminTaskRunner taskRunner = new AdminTaskRunner();
+
+    /**
+     * @param backupDir where {@code /admin/checkpoint} writes its checkpoints
+     */
+    public StorageAdminHandler(StorageEngine storageEngine, File backupDir) {
+        this.storageEngine = storageEngine;
+        this.backupDir = backupDir;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        boolean get = "GET".equalsIgnoreCase(exchange.getRequestMethod());
+        boolean post = "POST".equalsIgnoreCase(exchange.getRequestMethod());
+
+        if (STATS_PATH.equals(path) && get) {
+            handleStats(exchange);
+        } else if (TASKS_PATH.equals(path) && get) {
+            handleTasks(exchange);
+        } else if (FLUSH_PATH.equals(path) && post) {
+            accepted(exchange, taskRunner.submit("flush", "all", this::flush));
+        } else if (COMPACT_PATH.equals(path) && post) {
+            Map<String, String> query = KeyValueHttpServer.parseQuery(exchange.getRequestURI());
+            String startKey = emptyToNull(query.get("startKey"));
+            String endKey = emptyToNull(query.get("endKey"));
+            String target = startKey == null && endKey == null ? "all"
+                    : "[" + (startKey == null ? "" : startKey) + ", " + (endKey == null ? "" : endKey) + ")";
+            accepted(exchange, taskRunner.submit("compact", target, task -> compact(task, startKey, endKey)));
+        } else if (CHECKPOINT_PATH.equals(path) && post) {
+            //named when it runs, so repeated requests for a checkpoint that has not started share it
+            accepted(exchange, taskRunner.submit("checkpoint", backupDir.getAbsolutePath(), this::checkpoint));
+        } else {
+            KeyValueHttpServer.sendResponse(exchange, 405, "Method not allowed");
+        }
+    }
+
+    @Override
+    public void close() {
+        taskRunner.close();
+    }
+
+    private String flush(AdminTaskRunner.Task task) throws IOException {
+        int entries = 0;
+        for (EngineStats engine : storageEngine.stats()) {
+            entries += engine.memTableEntries();
+        }
+        task.progress("flushing " + entries + " memtable entries");
+        storageEngine.flush();
+        return "flushed " + entries + " memtable entries";
+    }
+
+    private String compact(AdminTaskRunner.Task task, String startKey, String endKey) throws IOException {
+        List<EngineStats> before = storageEngine.stats();
+        long started = System.currentTimeMillis();
+        //recomputed on every poll; reads and writes go on during a compaction, and so can the stats
+        task.progress(() -> {
+            List<EngineStats> now;
+            try {
+                now = storageEngine.stats();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            int compacted = 0;
+            for (EngineStats engine : now) {
+                for (EngineStats.CompactionStats compaction : engine.recentCompactions()) {
+                    if (compaction.finishedAtMillis() >= started) {
+                        compacted++;
+                        break;
+                    }
+                }
+            }
+            return String.format("%d of %d engine(s) compacted, %d tables (%.1f kb) before, %d tables (%.1f kb) now",
+                    compacted, now.size(), tableCount(before), tableBytes(before) / 1024.0, tableCount(now), tableBytes(now) / 1024.0);
+        });
+
+        storageEngine.compact(startKey == null ? null : startKey.getBytes(StandardCharsets.UTF_8),
+                endKey == null ? null : endKey.getBytes(StandardCharsets.UTF_8));
+
+        List<EngineStats> after = storageEngine.stats();
+        return String.format("%d tables (%.1f kb) -> %d tables (%.1f kb)", tableCount(before), tableBytes(before) / 1024.0,
+                tableCount(after), tableBytes(after) / 1024.0);
+    }
+
+    private String checkpoint(AdminTaskRunner.Task task) throws IOException {
+        if (!backupDir.exists() && !backupDir.mkdirs()) {
+            throw new IOException("Could not create backup directory " + backupDir.getAbsolutePath());
+        }
+        File target = new File(backupDir, LocalDateTime.now().format(CHECKPOINT_NAME));
+        task.progress("writing checkpoint to " + target.getAbsolutePath());
+        storageEngine.createCheckpoint(target);
+        return "checkpoint written to " + target.getAbsolutePath();
+    }
+
+    private void accepted(HttpExchange exchange, AdminTaskRunner.Task task) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", ResponseEncoding.JSON_CONTENT_TYPE);
+        exchange.getResponseHeaders().add("Location", TASKS_PATH + "?id=" + task.id);
+        KeyValueHttpServer.sendResponse(exchange, 202, taskJson(task));
+    }
+
+    private void handleTasks(HttpExchange exchange) throws IOException {
+        String id = KeyValueHttpServer.parseQuery(exchange.getRequestURI()).get("id");
+        String body;
+        if (id != null) {
+            AdminTaskRunner.Task task;
+            try {
+                task = taskRunner.get(Long.parseLong(id));
+            } catch (NumberFormatException e) {
+                task = null;
+            }
+            if (task == null) {
+                KeyValueHttpServer.sendResponse(exchange, 404, "Unknown task " + id);
+                return;
+            }
+            body = taskJson(task);
+        } else {
+            StringBuilder tasks = new StringBuilder("{\"tasks\":[");
+            List<AdminTaskRunner.Task> recent = taskRunner.recent();
+            for (int i = 0; i < recent.size(); i++) {
+                if (i > 0) tasks.append(',');
+                tasks.append(taskJson(recent.get(i)));
+            }
+            body = tasks.append("]}").toString();
+        }
+        exchange.getResponseHeaders().add("Content-Type", ResponseEncoding.JSON_CONTENT_TYPE);
+        KeyValueHttpServer.sendResponse(exchange, 200, body);
+    }
+
+    private static String taskJson(AdminTaskRunner.Task task) {
+        long finished = task.finishedAtMillis;
+        long started = task.startedAtMillis;
+        long elapsed = started == 0 ? 0 : (finished == 0 ? System.currentTimeMillis() : finished) - started;
+        return "{\"id\":" + task.id
+                + ",\"type\":" + quote(task.type)
+                + ",\"target\":" + quote(task.target)
+                + ",\"state\":" + quote(task.state.name().toLowerCase())
+                + ",\"submittedAt\":" + task.submittedAtMillis
+                + ",\"elapsedMillis\":" + elapsed
+                + ",\"progress\":" + quote(task.progress())
+                + ",\"result\":" + quote(task.result)
+                + ",\"error\":" + quote(task.error) + "}";
+    }
+
+    private static int tableCount(List<EngineStats> engines) {
+        int count = 0;
+        for (EngineStats engine : engines) {
+            count += engine.tables().size();
+        }
+        return count;
+    }
+
+    private static long tableBytes(List<EngineStats> engines) {
+        long bytes = 0;
+        for (EngineStats engine : engines) {
+            bytes += engine.totalTableBytes();
+        }
+        return bytes;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        List<EngineStats> engines = storageEngine.stats();
+
+        StringBuilder body = new StringBuilder("{\"engines\":[");
+        for (int i = 0; i < engines.size(); i++) {
+            if (i > 0) body.append(',');
+            appendEngine(body, engines.get(i));
+        }
+        body.append("]}");
+
+        exchange.getResponseHeaders().add("Content-Type", ResponseEncoding.JSON_CONTENT_TYPE);
+        KeyValueHttpServer.sendResponse(exchange, 200, body.toString());
+    }
+
+    private static void appendEngine(StringBuilder body, EngineStats engine) {
+        body.append("{\"name\":").append(quote(engine.name()))
+                .append(",\"memTable\":{\"entries\":").append(engine.memTableEntries())
+                .append(",\"bytes\":").append(engine.memTableBytes()).append('}')
+                .append(",\"writeAheadLog\":{\"bytes\":").append(engine.walBytes())
+                .append(",\"pendingSyncs\":").append(engine.walPendingSyncs()).append('}')
+                .append(",\"tableCount\":").append(engine.tables().size())
+                .append(",\"tableBytes\":").append(engine.totalTableBytes())
+                .append(",\"tables\":[");
+        for (int i = 0; i < engine.tables().size(); i++) {
+            EngineStats.TableStats table = engine.tables().get(i);
+            if (i > 0) body.append(',');
+            body.append("{\"file\":").append(quote(table.file()))
+                    .append(",\"level\":").append(table.level())
+                    .append(",\"bytes\":").append(table.sizeBytes())
+                    .append(",\"entries\":").append(table.entries())
+                    .append(",\"tombstones\":").append(table.tombstones())
+                    .append(",\"rangeTombstones\":").append(table.rangeTombstones())
+                    .append(",\"indexEntries\":").append(table.indexEntries())
+                    .append(",\"firstKey\":").append(quote(table.firstKey()))
+                    .append(",\"lastKey\":").append(quote(table.lastKey())).append('}');
+        }
+        body.append("],\"recentCompactions\":[");
+        for (int i = 0; i < engine.recentCompactions().size(); i++) {
+            EngineStats.CompactionStats compaction = engine.recentCompactions().get(i);
+            if (i > 0) body.append(',');
+            body.append("{\"finishedAt\":").append(compaction.finishedAtMillis())
+                    .append(",\"durationMillis\":").append(compaction.durationMillis())
+                    .append(",\"inputTables\":").append(compaction.inputTables())
+                    .append(",\"inputBytes\":").append(compaction.inputBytes())
+                    .append(",\"outputBytes\":").append(compaction.outputBytes())
+                    .append(",\"outputEntries\":").append(compaction.outputEntries())
+                    .append(",\"droppedTombstones\":").append(compaction.droppedTombstones())
+                    .append(",\"droppedExpired\":").append(compaction.droppedExpired()).append('}');
+        }
+        body.append("]}");
+    }
+
+    private static String quote(String value) {
+        return value == null ? "null" : "\"" + KeyValueHttpServer.escapeJson(value) + "\"";
+    }
+}
@@ -0,0 +1,181 @@
+package kv.cache;
+
+import kv.core.EngineStats;
+import kv.core.ExpiringValue;
+import kv.core.StorageEngine;
+import kv.metrics.ReadTrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Read-through cache of point reads in front of another {@link StorageEngine}.
+ *
+ * Hot keys are served from a {@link SegmentedLruCache}, including keys known not to exist. Every write
+ * through this engine invalidates the key before returning, and since replication applies its records
+ * through the same engine, replicated writes invalidate it too. Range reads bypass the cache, and so do values
+ * with an expiry, which the cache could otherwise serve past it.
+ */
+public class CachingStorageEngine implements StorageEngine {
+
+    private final StorageEngine delegate;
+    private final SegmentedLruCache cache;
+
+    public CachingStorageEngine(StorageEngine delegate, long maxCacheBytes) {
+        this.delegate = delegate;
+        this.cache = new SegmentedLruCache(maxCacheBytes);
+    }
+
+    public SegmentedLruCache.Stats cacheStats() {
+        return cache.stats();
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws IOException {
+        Objects.requireNonNull(key, "key must not be null");
+        try {
+            delegate.put(key, value);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, long expiresAtMillis) throws IOException {
+        Objects.requireNonNull(key, "key must not be null");
+        try {
+            delegate.put(key, value, expiresAtMillis);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    @Override
+    public byte[] read(byte[] key) throws IOException {
+        ExpiringValue value = readExpiring(key);
+        return value == null ? null : value.value();
+    }
+
+    @Override
+    public ExpiringValue readExpiring(byte[] key) throws IOException {
+        Objects.requireNonNull(key, "key must not be null");
+
+        SegmentedLruCache.Lookup lookup = cache.get(key);
+        ReadTrace trace = ReadTrace.current();
+        if (trace != null) {
+            trace.cacheLookup(lookup.cached());
+        }
+        if (lookup.cached()) {
+            //only values that never expire are cached
+            return lookup.value() == null ? null : new ExpiringValue(lookup.value(), 0);
+        }
+
+        long generation = cache.generation(key);
+        ExpiringValue value = delegate.readExpiring(key);
+        if (value == null) {
+            cache.putIfUnchanged(key, null, generation);
+        } else if (!value.expires()) {
+            cache.putIfUnchanged(key, value.value(), generation);
+        }
+        return value;
+    }
+
+    @Override
+    public Map<byte[], byte[]> readRange(byte[] startKey, byte[] endKey) throws IOException {
+        return delegate.readRange(startKey, endKey);
+    }
+
+    @Override
+    public void batchPut(Map<byte[], byte[]> entries) throws IOException {
+        if (entries == null || entries.isEmpty()) return;
+        try {
+            delegate.batchPut(entries);
+        } finally {
+            for (byte[] key : entries.keySet()) {
+                if (key != null) cache.invalidate(key);
+            }
+        }
+    }
+
+    @Override
+    public void delete(byte[] key) throws IOException {
+        Objects.requireNonNull(key, "key must not be null");
+        try {
+            delegate.delete(key);
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    //the cache is not ordered by key, so the covered keys cannot be found in it
+    @Override
+    public void deleteRange(byte[] startKey, byte[] endKey) throws IOException {
+        try {
+            delegate.deleteRange(startKey, endKey);
+        } finally {
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public void createCheckpoint(File targetDir) throws IOException {
+        delegate.createCheckpoint(targetDir);
+    }
+
+    @Override
+    public void restoreCheckpoint(File sourceDir) throws IOException {
+        try {
+            delegate.restoreCheckpoint(sourceDir);
+        } finally {
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public void exportRange(byte[] startKey, byte[] endKey, File targetDir) throws IOException {
+        delegate.exportRange(startKey, endKey, targetDir);
+    }
+
+    @Override
+    public void importRange(File sourceDir) throws IOException {
+        try {
+            delegate.importRange(sourceDir);
+        } finally {
+            cache.invalidateAll();
+        }
+    }
+
+    //neither changes what a key reads, so the cache stays valid
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+    }
+
+    @Override
+    public void compact(byte[] startKey, byte[] endKey) throws IOException {
+        delegate.compact(startKey, endKey);
+    }
+
+    @Override
+    public List<EngineStats> stats() throws IOException {
+        return delegate.stats();
+    }
+
+    //narrowed like the engines it wraps, so try-with-resources callers are not handed an InterruptedException
+    @Override
+    public void close() throws IOException {
+        try {
+            delegate.close();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Could not close the cached engine", e);
+        }
+    }
+}
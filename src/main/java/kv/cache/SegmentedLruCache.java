@@ -0,0 +1,218 @@
+package kv.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte-bounded segmented LRU cache of values by key, including "known missing" entries.
+ *
+ * New entries go to a probation segment; an entry read again while on probation is promoted to the
+ * protected segment, so one-off reads (e.g. a scan of cold keys) only churn probation and cannot push
+ * out keys that are read repeatedly. The cache is striped by key hash, each stripe with its own lock
+ * and an equal share of the byte budget.
+ *
+ * Every stripe keeps a generation that each invalidation bumps. A read-through caller captures it
+ * before reading the backing store and passes it to {@link #putIfUnchanged}, so a value read before
+ * a concurrent write can never be cached after that write invalidated the key.
+ */
+public class SegmentedLruCache {
+
+    //bytes charged per entry on top of key and value, roughly the map node and wrappers
+    static final int ENTRY_OVERHEAD_BYTES = 64;
+    private static final int STRIPES = 16;
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long maxBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Result of a lookup: absent from the cache, cached as missing, or cached with a value.
+     */
+    public record Lookup(boolean cached, byte[] value) {
+        static final Lookup ABSENT = new Lookup(false, null);
+        static final Lookup MISSING = new Lookup(true, null);
+    }
+
+    public record Stats(long hits, long negativeHits, long misses, long evictions, long entries, long bytes, long maxBytes) {
+
+        public double hitRatio() {
+            long lookups = hits + negativeHits + misses;
+            return lookups == 0 ? 0.0 : (double) (hits + negativeHits) / lookups;
+        }
+    }
+
+    public SegmentedLruCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive but was " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(1, maxBytes / STRIPES));
+        }
+    }
+
+    public Lookup get(byte[] key) {
+        Lookup lookup = stripeFor(key).get(ByteBuffer.wrap(key));
+        if (!lookup.cached()) {
+            misses.increment();
+        } else if (lookup.value() == null) {
+            negativeHits.increment();
+        } else {
+            hits.increment();
+        }
+        return lookup;
+    }
+
+    /**
+     * @return the generation to pass to {@link #putIfUnchanged} after reading {@code key} from the backing store
+     */
+    public long generation(byte[] key) {
+        return stripeFor(key).generation();
+    }
+
+    /**
+     * Caches {@code value} (null meaning the key does not exist) unless {@code key}'s stripe was
+     * invalidated since {@code generation} was read.
+     */
+    public void putIfUnchanged(byte[] key, byte[] value, long generation) {
+        stripeFor(key).putIfUnchanged(ByteBuffer.wrap(key.clone()), value, generation);
+    }
+
+    public void invalidate(byte[] key) {
+        stripeFor(key).invalidate(ByteBuffer.wrap(key));
+    }
+
+    public void invalidateAll() {
+        for (Stripe stripe : stripes) {
+            stripe.invalidateAll();
+        }
+    }
+
+    public Stats stats() {
+        long entries = 0;
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                entries += stripe.probation.size() + stripe.protectedEntries.size();
+                bytes += stripe.probationBytes + stripe.protectedBytes;
+            }
+        }
+        return new Stats(hits.sum(), negativeHits.sum(), misses.sum(), evictions.sum(), entries, bytes, maxBytes);
+    }
+
+    private Stripe stripeFor(byte[] key) {
+        int hash = ByteBuffer.wrap(key).hashCode();
+        return stripes[Math.floorMod(hash ^ (hash >>> 16), STRIPES)];
+    }
+
+    private static long cost(ByteBuffer key, byte[] value) {
+        return key.remaining() + (value == null ? 0 : value.length) + ENTRY_OVERHEAD_BYTES;
+    }
+
+    private final class Stripe {
+        private final long protectedCapacity;
+        private final long probationCapacity;
+        //access ordered, so iteration starts at the least recently used entry
+        private final LinkedHashMap<ByteBuffer, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<ByteBuffer, byte[]> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+        //marks cached negative lookups, values are never this instance
+        private final byte[] missingMarker = new byte[0];
+        private long probationBytes = 0;
+        private long protectedBytes = 0;
+        private long generation = 0;
+
+        private Stripe(long capacity) {
+            this.protectedCapacity = (long) (capacity * PROTECTED_SHARE);
+            this.probationCapacity = capacity - protectedCapacity;
+        }
+
+        synchronized long generation() {
+            return generation;
+        }
+
+        synchronized Lookup get(ByteBuffer key) {
+            byte[] value = protectedEntries.get(key);
+            if (value == null) {
+                value = probation.remove(key);
+                if (value == null) {
+                    return Lookup.ABSENT;
+                }
+                //second hit while on probation, the key has earned a protected slot
+                probationBytes -= cost(key, value);
+                protectedEntries.put(key, value);
+                protectedBytes += cost(key, value);
+                demoteProtectedOverflow();
+            }
+            return value == missingMarker ? Lookup.MISSING : new Lookup(true, value);
+        }
+
+        synchronized void putIfUnchanged(ByteBuffer key, byte[] value, long expectedGeneration) {
+            if (generation != expectedGeneration) return;
+
+            byte[] stored = value == null ? missingMarker : value;
+            long cost = cost(key, stored);
+            //an entry that would flush the whole probation segment is not worth caching
+            if (cost > probationCapacity) return;
+
+            remove(key);
+            probation.put(key, stored);
+            probationBytes += cost;
+            evictProbationOverflow();
+        }
+
+        synchronized void invalidate(ByteBuffer key) {
+            generation++;
+            remove(key);
+        }
+
+        synchronized void invalidateAll() {
+            generation++;
+            probation.clear();
+            protectedEntries.clear();
+            probationBytes = 0;
+            protectedBytes = 0;
+        }
+
+        private void remove(ByteBuffer key) {
+            byte[] value = probation.remove(key);
+            if (value != null) {
+                probationBytes -= cost(key, value);
+            }
+            value = protectedEntries.remove(key);
+            if (value != null) {
+                protectedBytes -= cost(key, value);
+            }
+        }
+
+        //least recently used protected entries get another chance on probation
+        private void demoteProtectedOverflow() {
+            Iterator<Map.Entry<ByteBuffer, byte[]>> iterator = protectedEntries.entrySet().iterator();
+            while (protectedBytes > protectedCapacity && iterator.hasNext()) {
+                Map.Entry<ByteBuffer, byte[]> eldest = iterator.next();
+                iterator.remove();
+                long cost = cost(eldest.getKey(), eldest.getValue());
+                protectedBytes -= cost;
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationBytes += cost;
+            }
+            evictProbationOverflow();
+        }
+
+        private void evictProbationOverflow() {
+            Iterator<Map.Entry<ByteBuffer, byte[]>> iterator = probation.entrySet().iterator();
+            while (probationBytes > probationCapacity && iterator.hasNext()) {
+                Map.Entry<ByteBuffer, byte[]> eldest = iterator.next();
+                iterator.remove();
+                probationBytes -= cost(eldest.getKey(), eldest.getValue());
+                evictions.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package kv.cluster;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Cluster topology: the nodes, their roles and which leader each follower replicates from.
+ *
+ * Read from a properties file ({@code -Dcluster=cluster.properties}) or from system properties
+ * with the same keys:
+ * <pre>
+ * cluster.nodes=a1,a2,b1
+ * node.a1.role=leader
+ * node.a1.httpPort=8080
+ * node.a2.role=follower
+ * node.a2.leader=a1
+ * node.a2.httpPort=8081
+ * node.a2.replicationPort=9081   # optional, defaults to httpPort + 1000
+ * node.a2.host=10.0.0.2          # optional, defaults to localhost
+ * node.a2.dir=/var/lib/kv/a2     # optional, defaults to ./data-&lt;id&gt;
+ * </pre>
+ * A cluster can hold several independent leader/follower groups. To split the key space across
+ * groups, every leader declares where its range starts ({@code node.a1.rangeStart=}, one of them at
+ * the empty key) and clients go through a node with {@code role=router}.
+ */
+public final class ClusterConfig {
+
+    public static final String CLUSTER_FILE_PROPERTY = "cluster";
+    public static final String NODES_PROPERTY = "cluster.nodes";
+    //replication connections default to the http port shifted by this offset
+    public static final int REPLICATION_PORT_OFFSET = 1000;
+    private static final String DEFAULT_HOST = "localhost";
+
+    private final Map<String, NodeConfig> nodes;
+    //range start key -> owning leader id, empty when the key space is not partitioned
+    private final Map<String, String> partitionStarts;
+
+    private ClusterConfig(Map<String, NodeConfig> nodes, Map<String, String> partitionStarts) {
+        this.nodes = Collections.unmodifiableMap(nodes);
+        this.partitionStarts = Collections.unmodifiableMap(partitionStarts);
+        validate();
+    }
+
+    /**
+     * Loads the file named by {@code -Dcluster}, else the topology given directly as system
+     * properties, else the historical single group of a leader on 8080 and followers on 8081 and 8082.
+     */
+    public static ClusterConfig fromSystemProperties() throws IOException {
+        String file = System.getProperty(CLUSTER_FILE_PROPERTY);
+        if (file != null && !file.isBlank()) {
+            return load(new File(file));
+        }
+        if (System.getProperty(NODES_PROPERTY) != null) {
+            return fromProperties(System.getProperties());
+        }
+        return defaultLayout();
+    }
+
+    public static ClusterConfig load(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        return fromProperties(properties);
+    }
+
+    public static ClusterConfig fromProperties(Properties properties) {
+        String nodeList = properties.getProperty(NODES_PROPERTY);
+        if (nodeList == null || nodeList.isBlank()) {
+            throw new IllegalArgumentException("Cluster configuration needs " + NODES_PROPERTY);
+        }
+
+        Map<String, NodeConfig> nodes = new LinkedHashMap<>();
+        Map<String, String> partitionStarts = new LinkedHashMap<>();
+        for (String rawId : nodeList.split(",")) {
+            String id = rawId.trim();
+            if (id.isEmpty()) continue;
+            if (nodes.containsKey(id)) {
+                throw new IllegalArgumentException("Node " + id + " is listed twice");
+            }
+
+            String prefix = "node." + id + ".";
+            String role = required(properties, prefix + "role");
+            int httpPort = parsePort(required(properties, prefix + "httpPort"), prefix + "httpPort");
+            String replicationPort = properties.getProperty(prefix + "replicationPort");
+
+            nodes.put(id, new NodeConfig(
+                    id,
+                    NodeRole.parse(role),
+                    properties.getProperty(prefix + "host", DEFAULT_HOST).trim(),
+                    httpPort,
+                    replicationPort == null ? httpPort + REPLICATION_PORT_OFFSET : parsePort(replicationPort, prefix + "replicationPort"),
+                    properties.getProperty(prefix + "dir", "./data-" + id).trim(),
+                    trimToNull(properties.getProperty(prefix + "leader"))
+            ));
+
+            //an empty value is meaningful here, it is the start of the key space
+            String rangeStart = properties.getProperty(prefix + "rangeStart");
+            if (rangeStart != null) {
+                String previous = partitionStarts.put(rangeStart, id);
+                if (previous != null) {
+                    throw new IllegalArgumentException("Nodes " + previous + " and " + id + " both start their range at '" + rangeStart + "'");
+                }
+            }
+        }
+        return new ClusterConfig(nodes, partitionStarts);
+    }
+
+    /**
+     * The layout this project started with: leader on 8080 replicating to followers on 8081 and 8082.
+     */
+    public static ClusterConfig defaultLayout() {
+        Map<String, NodeConfig> nodes = new LinkedHashMap<>();
+        nodes.put("node-8080", new NodeConfig("node-8080", NodeRole.LEADER, DEFAULT_HOST, 8080, 9080, "./data-8080", null));
+        nodes.put("node-8081", new NodeConfig("node-8081", NodeRole.FOLLOWER, DEFAULT_HOST, 8081, 9081, "./data-8081", "node-8080"));
+        nodes.put("node-8082", new NodeConfig("node-8082", NodeRole.FOLLOWER, DEFAULT_HOST, 8082, 9082, "./data-8082", "node-8080"));
+        return new ClusterConfig(nodes, Map.of());
+    }
+
+    public Collection<NodeConfig> nodes() {
+        return nodes.values();
+    }
+
+    public NodeConfig node(String id) {
+        NodeConfig node = nodes.get(id);
+        if (node == null) {
+            throw new IllegalArgumentException("Unknown node " + id + ", configured nodes are " + nodes.keySet());
+        }
+        return node;
+    }
+
+    /**
+     * @return the configured key range partitioning across leaders, or null if the key space is not partitioned
+     */
+    public PartitionMap partitionMap() {
+        return partitionStarts.isEmpty() ? null : new PartitionMap(partitionStarts);
+    }
+
+    /**
+     * @return followers replicating from {@code leaderId}, in configuration order
+     */
+    public List<NodeConfig> followersOf(String leaderId) {
+        List<NodeConfig> followers = new ArrayList<>();
+        for (NodeConfig node : nodes.values()) {
+            if (node.role() == NodeRole.FOLLOWER && leaderId.equals(node.leaderId())) {
+                followers.add(node);
+            }
+        }
+        return followers;
+    }
+
+    /**
+     * Picks the node this process runs as: by id when given, else the node listening on {@code httpPort}.
+     * A port that is not part of the topology runs as a standalone node without replication.
+     */
+    public NodeConfig resolveLocalNode(String nodeId, int httpPort, String dirOverride) {
+        NodeConfig node = null;
+        if (nodeId != null && !nodeId.isBlank()) {
+            node = node(nodeId.trim());
+        } else {
+            for (NodeConfig candidate : nodes.values()) {
+                if (candidate.httpPort() == httpPort) {
+                    node = candidate;
+                    break;
+                }
+            }
+        }
+        if (node == null) {
+            node = new NodeConfig("node-" + httpPort, NodeRole.STANDALONE, DEFAULT_HOST, httpPort,
+                    httpPort + REPLICATION_PORT_OFFSET, "./data-" + httpPort, null);
+        }
+
+        if (dirOverride != null && !dirOverride.isBlank()) {
+            node = new NodeConfig(node.id(), node.role(), node.host(), node.httpPort(), node.replicationPort(),
+                    dirOverride, node.leaderId());
+        }
+        return node;
+    }
+
+    private void validate() {
+        validatePartitions();
+
+        //host:port -> node id, to catch two nodes bound to the same port
+        Map<String, String> boundPorts = new HashMap<>();
+
+        for (NodeConfig node : nodes.values()) {
+            if (node.role() == NodeRole.FOLLOWER) {
+                if (node.leaderId() == null) {
+                    throw new IllegalArgumentException("Follower " + node.id() + " needs a leader");
+                }
+                NodeConfig leader = nodes.get(node.leaderId());
+                if (leader == null || leader.role() != NodeRole.LEADER) {
+                    throw new IllegalArgumentException("Follower " + node.id() + " replicates from " + node.leaderId()
+                            + " which is not a configured leader");
+                }
+            } else if (node.leaderId() != null) {
+                throw new IllegalArgumentException("Only followers have a leader, but " + node.id() + " is a " + node.role());
+            }
+
+            if (node.role() == NodeRole.ROUTER && partitionStarts.isEmpty()) {
+                throw new IllegalArgumentException("Router " + node.id() + " needs leaders with a rangeStart to route to");
+            }
+
+            claimPort(boundPorts, node.host(), node.httpPort(), node.id());
+            if (node.role() == NodeRole.FOLLOWER) {
+                claimPort(boundPorts, node.host(), node.replicationPort(), node.id());
+            }
+        }
+    }
+
+    private void validatePartitions() {
+        if (partitionStarts.isEmpty()) return;
+        if (!partitionStarts.containsKey("")) {
+            throw new IllegalArgumentException("One leader needs an empty rangeStart so every key has an owner");
+        }
+        for (String ownerId : partitionStarts.values()) {
+            if (nodes.get(ownerId).role() != NodeRole.LEADER) {
+                throw new IllegalArgumentException("Only leaders own key ranges, but " + ownerId + " has a rangeStart");
+            }
+        }
+    }
+
+    private static void claimPort(Map<String, String> boundPorts, String host, int port, String nodeId) {
+        String previous = boundPorts.putIfAbsent(host + ":" + port, nodeId);
+        if (previous != null && !previous.equals(nodeId)) {
+            throw new IllegalArgumentException("Nodes " + previous + " and " + nodeId + " both use " + host + ":" + port);
+        }
+    }
+
+    private static String required(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException("Cluster configuration is missing " + key);
+        }
+        return value.trim();
+    }
+
+    private static int parsePort(String value, String key) {
+        try {
+            int port = Integer.parseInt(value.trim());
+            if (port <= 0 || port > 65535) {
+                throw new IllegalArgumentException(key + " is not a valid port: " + value);
+            }
+            return port;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " is not a valid port: " + value);
+        }
+    }
+
+    private static String trimToNull(String value) {
+        if (value == null || value.isBlank()) return null;
+        return value.trim();
+    }
+}
@@ -0,0 +1,30 @@
+package kv.cluster;
+
+/**
+ * One node of the cluster.
+ *
+ * @param id              unique node id
+ * @param role            leader, follower or standalone
+ * @param host            host other nodes use to reach this node
+ * @param httpPort        port of the client facing http api
+ * @param replicationPort port the node accepts the leader's replication connection on (followers only)
+ * @param dir             data directory
+ * @param leaderId        id of the leader a follower replicates from, null for other roles
+ */
+public record NodeConfig(String id, NodeRole role, String host, int httpPort, int replicationPort,
+                         String dir, String leaderId) {
+
+    /**
+     * @return {@code host:replicationPort}, the address the leader ships records to
+     */
+    public String replicationAddress() {
+        return host + ":" + replicationPort;
+    }
+
+    /**
+     * @return base url of the node's http api
+     */
+    public String httpAddress() {
+        return "http://" + host + ":" + httpPort;
+    }
+}
@@ -0,0 +1,21 @@
+package kv.cluster;
+
+import java.util.Locale;
+
+/**
+ * Part a node plays in its replication group.
+ */
+public enum NodeRole {
+    //accepts writes and ships them to the followers of its group
+    LEADER,
+    //applies the writes shipped by its leader and serves reads
+    FOLLOWER,
+    //no replication at all
+    STANDALONE,
+    //holds no data, forwards every request to the leader owning the key's partition
+    ROUTER;
+
+    public static NodeRole parse(String value) {
+        return NodeRole.valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+}
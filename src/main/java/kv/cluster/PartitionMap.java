@@ -0,0 +1,121 @@
+package kv.cluster;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Assigns contiguous key ranges to the leader nodes that own them.
+ *
+ * Each partition starts at its start key (inclusive) and ends at the next partition's start key
+ * (exclusive); the first partition starts at the empty key so every key has an owner. Keys compare
+ * as strings, the same order the storage engine sorts them in. Instances are immutable, a split
+ * returns a new map.
+ */
+public final class PartitionMap {
+
+    public record Partition(String startKey, String endKey, String ownerId) {
+
+        /**
+         * @return true if {@code key} is in [startKey, endKey), a null endKey being unbounded
+         */
+        public boolean contains(String key) {
+            return key.compareTo(startKey) >= 0 && (endKey == null || key.compareTo(endKey) < 0);
+        }
+    }
+
+    //start key -> owner node id
+    private final NavigableMap<String, String> ownersByStartKey;
+
+    public PartitionMap(Map<String, String> ownersByStartKey) {
+        if (!ownersByStartKey.containsKey("")) {
+            throw new IllegalArgumentException("A partition must start at the empty key, starts were " + ownersByStartKey.keySet());
+        }
+        this.ownersByStartKey = Collections.unmodifiableNavigableMap(new TreeMap<>(ownersByStartKey));
+    }
+
+    public Partition partitionFor(String key) {
+        Map.Entry<String, String> owner = ownersByStartKey.floorEntry(key);
+        return new Partition(owner.getKey(), ownersByStartKey.higherKey(owner.getKey()), owner.getValue());
+    }
+
+    /**
+     * @return partitions holding keys in [startKey, endKey] (both inclusive), in key order
+     */
+    public List<Partition> overlapping(String startKey, String endKey) {
+        List<Partition> result = new ArrayList<>();
+        if (startKey.compareTo(endKey) > 0) return result;
+
+        String from = ownersByStartKey.floorKey(startKey);
+        for (Map.Entry<String, String> owner : ownersByStartKey.subMap(from, true, endKey, true).entrySet()) {
+            result.add(new Partition(owner.getKey(), ownersByStartKey.higherKey(owner.getKey()), owner.getValue()));
+        }
+        return result;
+    }
+
+    public List<Partition> partitions() {
+        return overlapping("", ownersByStartKey.lastKey());
+    }
+
+    /**
+     * @return a new map where the keys from {@code splitKey} to the end of its partition belong to {@code newOwnerId}
+     */
+    public PartitionMap split(String splitKey, String newOwnerId) {
+        if (ownersByStartKey.containsKey(splitKey)) {
+            throw new IllegalArgumentException("A partition already starts at " + splitKey);
+        }
+        TreeMap<String, String> owners = new TreeMap<>(ownersByStartKey);
+        owners.put(splitKey, newOwnerId);
+        return new PartitionMap(owners);
+    }
+
+    public static PartitionMap load(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+
+        Map<String, String> owners = new TreeMap<>();
+        int count = Integer.parseInt(properties.getProperty("partitions", "0"));
+        for (int i = 0; i < count; i++) {
+            String start = properties.getProperty("partition." + i + ".start");
+            String owner = properties.getProperty("partition." + i + ".owner");
+            if (start == null || owner == null) {
+                throw new IOException("Partition " + i + " is incomplete in " + file.getAbsolutePath());
+            }
+            owners.put(start, owner);
+        }
+        return new PartitionMap(owners);
+    }
+
+    /**
+     * Writes the map to {@code file}, replacing it atomically.
+     */
+    public void store(File file) throws IOException {
+        Properties properties = new Properties();
+        List<Partition> partitions = partitions();
+        properties.setProperty("partitions", Integer.toString(partitions.size()));
+        for (int i = 0; i < partitions.size(); i++) {
+            properties.setProperty("partition." + i + ".start", partitions.get(i).startKey());
+            properties.setProperty("partition." + i + ".owner", partitions.get(i).ownerId());
+        }
+
+        File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "key range partitions");
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,40 @@
+package kv.core;
+
+import java.util.List;
+
+/**
+ * Point in time description of one LSM engine: its memtable, write ahead log, live tables and
+ * recent compactions. A sharded engine reports one of these per shard.
+ *
+ * @param name               e.g. {@code main} or {@code shard-3}
+ * @param walPendingSyncs    entries written to the write ahead log since its last fsync
+ * @param recentCompactions  most recent last
+ */
+public record EngineStats(String name, int memTableEntries, long memTableBytes, long walBytes, int walPendingSyncs,
+                          List<TableStats> tables, List<CompactionStats> recentCompactions) {
+
+    /**
+     * @param level      0 for flushed or imported tables, 1 for the output of a compaction
+     * @param rangeTombstones key ranges deleted by the table, shading the older tables
+     * @param firstKey   null for an empty table
+     * @param indexEntries keys held in the sparse in-memory index
+     */
+    public record TableStats(String file, int level, long sizeBytes, long entries, long tombstones, int rangeTombstones,
+                             int indexEntries, String firstKey, String lastKey) {
+    }
+
+    /**
+     * @param droppedExpired values whose time to live had run out, dropped without a tombstone
+     */
+    public record CompactionStats(long finishedAtMillis, long durationMillis, int inputTables, long inputBytes,
+                                  long outputBytes, long outputEntries, long droppedTombstones, long droppedExpired) {
+    }
+
+    public long totalTableBytes() {
+        long total = 0;
+        for (TableStats table : tables) {
+            total += table.sizeBytes();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,13 @@
+package kv.core;
+
+/**
+ * A value as {@link StorageEngine#readExpiring(byte[])} returns it.
+ *
+ * @param expiresAtMillis epoch millis from which the value reads as absent, 0 if it never expires
+ */
+public record ExpiringValue(byte[] value, long expiresAtMillis) {
+
+    public boolean expires() {
+        return expiresAtMillis > 0;
+    }
+}
@@ -1,16 +1,80 @@
 package kv.core;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 public interface StorageEngine extends AutoCloseable {
     void put(byte[] key, byte[] value) throws IOException;
 
+    /**
+     * Stores a value that reads as absent from {@code expiresAtMillis} (epoch millis) on. Compaction drops it
+     * once expired without writing a tombstone. The expiry time is absolute, so a replicated or replayed put
+     * expires at the same moment everywhere.
+     */
+    void put(byte[] key, byte[] value, long expiresAtMillis) throws IOException;
+
     byte[] read(byte[] key) throws IOException;
 
+    /**
+     * Reads the value along with when it expires, for callers that keep values, e.g. a cache.
+     *
+     * @return null if the key has no live value
+     */
+    ExpiringValue readExpiring(byte[] key) throws IOException;
+
     Map<byte[], byte[]> readRange(byte[] startKey, byte[] endKey) throws IOException;
 
     void batchPut(Map<byte[], byte[]> entries) throws IOException;
 
     void delete(byte[] key) throws IOException;
+
+    /**
+     * Deletes every key in [{@code startKey}, {@code endKey}) with a single range tombstone, however many keys
+     * the range holds.
+     *
+     * @throws IllegalArgumentException if {@code startKey} is not before {@code endKey}
+     */
+    void deleteRange(byte[] startKey, byte[] endKey) throws IOException;
+
+    /**
+     * Writes a consistent, self-contained copy of the engine's data files into {@code targetDir}
+     * (an empty directory on the same file system, so tables can be hard-linked).
+     */
+    void createCheckpoint(File targetDir) throws IOException;
+
+    /**
+     * Replaces the engine's whole contents with a checkpoint produced by {@link #createCheckpoint(File)}.
+     * The checkpoint files are moved, so {@code sourceDir} should be on the same file system.
+     */
+    void restoreCheckpoint(File sourceDir) throws IOException;
+
+    /**
+     * Writes the data files holding keys in [{@code startKey}, {@code endKey}) into {@code targetDir},
+     * tombstones included, so the range can be moved to another engine. A null {@code endKey} is unbounded.
+     */
+    void exportRange(byte[] startKey, byte[] endKey, File targetDir) throws IOException;
+
+    /**
+     * Adds files produced by {@link #exportRange(byte[], byte[], File)} as the newest data of this engine.
+     * The files are moved, so {@code sourceDir} should be on the same file system.
+     */
+    void importRange(File sourceDir) throws IOException;
+
+    /**
+     * Writes buffered writes out to data files, so the write ahead log can be truncated.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Flushes, then merges the data files holding keys in [{@code startKey}, {@code endKey}). Null bounds
+     * are unbounded, so two nulls compact everything.
+     */
+    void compact(byte[] startKey, byte[] endKey) throws IOException;
+
+    /**
+     * @return the state of every LSM engine behind this one, e.g. one per shard
+     */
+    List<EngineStats> stats() throws IOException;
 }
@@ -1,14 +1,25 @@
 package kv.core.facade;
 
 import kv.core.StorageEngine;
+import kv.metrics.Counter;
+import kv.metrics.LatencyHistogram;
+import kv.metrics.MetricsRegistry;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class DefaultKeyValueFacade implements KeyValueApi {
+    private static final LatencyHistogram PUT_LATENCY = MetricsRegistry.global().histogram("kv_put_duration_seconds", "Time to store one key");
+    private static final LatencyHistogram GET_LATENCY = MetricsRegistry.global().histogram("kv_get_duration_seconds", "Time to read one key");
+    private static final LatencyHistogram RANGE_LATENCY = MetricsRegistry.global().histogram("kv_range_duration_seconds", "Time to read a key range");
+    private static final LatencyHistogram BATCH_PUT_LATENCY = MetricsRegistry.global().histogram("kv_batch_put_duration_seconds", "Time to store a batch");
+    private static final LatencyHistogram DELETE_LATENCY = MetricsRegistry.global().histogram("kv_delete_duration_seconds", "Time to delete one key");
+    private static final LatencyHistogram DELETE_RANGE_LATENCY = MetricsRegistry.global().histogram("kv_delete_range_duration_seconds", "Time to delete a key range");
+    private static final Counter BYTES_WRITTEN = MetricsRegistry.global().counter("kv_bytes_written_total", "Key and value bytes accepted by writes");
+    private static final Counter BYTES_READ = MetricsRegistry.global().counter("kv_bytes_read_total", "Key and value bytes returned by reads");
+
     private final StorageEngine storageEngine;
 
     public DefaultKeyValueFacade(StorageEngine storageEngine) {
@@ -16,47 +27,89 @@ public class DefaultKeyValueFacade implements KeyValueApi {
     }
 
     public void put(String key, String value) throws IOException {
-        storageEngine.put(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        storageEngine.put(keyBytes, valueBytes);
+        BYTES_WRITTEN.add(keyBytes.length + valueBytes.length);
+        PUT_LATENCY.recordSince(start);
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMillis) throws IOException {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("TTL must be positive but was " + ttlMillis);
+        }
+        long start = System.nanoTime();
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        storageEngine.put(keyBytes, valueBytes, System.currentTimeMillis() + ttlMillis);
+        BYTES_WRITTEN.add(keyBytes.length + valueBytes.length);
+        PUT_LATENCY.recordSince(start);
     }
 
     @Override
     public String read(String key) throws IOException {
+        long start = System.nanoTime();
         byte[] value = storageEngine.read(key.getBytes(StandardCharsets.UTF_8));
+        GET_LATENCY.recordSince(start);
         if (value == null) {
             return null;
         }
+        BYTES_READ.add(value.length);
         return new String(value, StandardCharsets.UTF_8);
     }
 
     @Override
     public Map<String, String> readKeyRange(String startKey, String endKey) throws IOException {
+       long start = System.nanoTime();
        Map<byte[], byte[]> values = storageEngine.readRange(startKey.getBytes(StandardCharsets.UTF_8), endKey.getBytes(StandardCharsets.UTF_8));
 
-       Map<String, String> result = new HashMap<>();
+       Map<String, String> result = new LinkedHashMap<>();
+       long bytes = 0;
        for (Map.Entry<byte[], byte[]> entry : values.entrySet()) {
            String key = new String(entry.getKey(), StandardCharsets.UTF_8);
            byte[] value = entry.getValue();
            String valueString = value == null ? null : new String(value, StandardCharsets.UTF_8);
            result.put(key, valueString);
+           bytes += entry.getKey().length + (value == null ? 0 : value.length);
        }
 
+       BYTES_READ.add(bytes);
+       RANGE_LATENCY.recordSince(start);
        return result;
     }
 
     @Override
     public void batchPut(Map<String, String> entries) throws IOException {
         if (entries == null || entries.isEmpty()) return;
+        long start = System.nanoTime();
         Map<byte[], byte[]> values = new LinkedHashMap<>();
+        long bytes = 0;
         for (Map.Entry<String, String> entry : entries.entrySet()) {
             if (entry.getKey() == null || entry.getValue() == null) continue;
-            values.put(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue().getBytes(StandardCharsets.UTF_8));
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            values.put(key, value);
+            bytes += key.length + value.length;
         }
         storageEngine.batchPut(values);
+        BYTES_WRITTEN.add(bytes);
+        BATCH_PUT_LATENCY.recordSince(start);
     }
 
     @Override
     public void delete(String key) throws IOException {
         if (key == null) return;
+        long start = System.nanoTime();
         storageEngine.delete(key.getBytes(StandardCharsets.UTF_8));
+        DELETE_LATENCY.recordSince(start);
+    }
+
+    @Override
+    public void deleteRange(String startKey, String endKey) throws IOException {
+        long start = System.nanoTime();
+        storageEngine.deleteRange(startKey.getBytes(StandardCharsets.UTF_8), endKey.getBytes(StandardCharsets.UTF_8));
+        DELETE_RANGE_LATENCY.recordSince(start);
     }
 }
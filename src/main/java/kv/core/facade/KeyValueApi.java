@@ -2,11 +2,52 @@ package kv.core.facade;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface KeyValueApi {
     void put(String key, String value) throws IOException;
+
+    /**
+     * Stores a value that reads as absent once {@code ttlMillis} have passed.
+     */
+    void put(String key, String value, long ttlMillis) throws IOException;
     String read(String key) throws IOException;
     Map<String,String>  readKeyRange(String startKey, String endKey) throws IOException;
     void batchPut(Map<String, String> entries) throws IOException;
     void delete(String key) throws IOException;
+
+    /**
+     * Deletes every key in [{@code startKey}, {@code endKey}); unlike {@link #readKeyRange(String, String)} the
+     * end key itself is kept.
+     */
+    void deleteRange(String startKey, String endKey) throws IOException;
+
+    /**
+     * Non-blocking variants of the writes. Local failures are thrown straight away, the returned future
+     * completes once the write is as durable as the implementation promises (e.g. replicated).
+     */
+    default CompletableFuture<Void> putAsync(String key, String value) throws IOException {
+        put(key, value);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    default CompletableFuture<Void> putAsync(String key, String value, long ttlMillis) throws IOException {
+        put(key, value, ttlMillis);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    default CompletableFuture<Void> batchPutAsync(Map<String, String> entries) throws IOException {
+        batchPut(entries);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    default CompletableFuture<Void> deleteAsync(String key) throws IOException {
+        delete(key);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    default CompletableFuture<Void> deleteRangeAsync(String startKey, String endKey) throws IOException {
+        deleteRange(startKey, endKey);
+        return CompletableFuture.completedFuture(null);
+    }
 }
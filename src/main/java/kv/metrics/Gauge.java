@@ -0,0 +1,23 @@
+package kv.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Current level of something that goes up and down, e.g. live sstables. Every engine in the process
+ * adds its own changes, so the gauge reports the total across shards.
+ */
+public final class Gauge {
+
+    private final LongAdder value = new LongAdder();
+
+    Gauge() {
+    }
+
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    public long value() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,102 @@
+package kv.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency distribution with power of two buckets from 1 microsecond to about 34 seconds.
+ *
+ * Recording is one bit count and two striped adds, with no allocation and no lock, so it can sit on
+ * every request. Each bucket is at most twice as wide as the one before, which keeps percentiles
+ * within a factor of two of the true value over the whole range, the same trade an HDR histogram
+ * makes with one significant digit.
+ */
+public final class LatencyHistogram {
+
+    //bucket i holds values up to 2^(i + MIN_EXPONENT) nanoseconds, the last one everything above
+    private static final int MIN_EXPONENT = 10;
+    private static final int MAX_EXPONENT = 35;
+    static final int BUCKETS = MAX_EXPONENT - MIN_EXPONENT + 2;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sumNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts[bucketIndex(nanos)].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, a {@link System#nanoTime()} reading.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long sumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound in nanoseconds of the bucket holding that percentile, 0 if nothing was recorded
+     */
+    public long percentileNanos(double percentile) {
+        long[] snapshot = snapshot();
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(1, rank)) {
+                return upperBoundNanos(i);
+            }
+        }
+        return upperBoundNanos(BUCKETS - 1);
+    }
+
+    long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the bucket's upper bound, {@link Long#MAX_VALUE} for the overflow bucket
+     */
+    static long upperBoundNanos(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << (bucket + MIN_EXPONENT);
+    }
+
+    static double upperBoundSeconds(int bucket) {
+        return upperBoundNanos(bucket) / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private static int bucketIndex(long nanos) {
+        //ceil(log2(nanos)), so a value equal to a bound lands in that bound's bucket
+        int exponent = 64 - Long.numberOfLeadingZeros(Math.max(0, nanos - 1));
+        return Math.min(BUCKETS - 1, Math.max(0, exponent - MIN_EXPONENT));
+    }
+}
@@ -0,0 +1,108 @@
+package kv.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Named counters, gauges and latency histograms, rendered in the Prometheus text format.
+ *
+ * Components look their instruments up once, usually into a static field, and then only touch the
+ * instrument on the hot path. A process runs one node, so the storage, replication and http layers
+ * all record into {@link #global()}.
+ */
+public final class MetricsRegistry {
+
+    private static final MetricsRegistry GLOBAL = new MetricsRegistry();
+
+    //sorted so the exposition is stable between scrapes
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    private record Metric(String help, Object instrument) { }
+
+    public static MetricsRegistry global() {
+        return GLOBAL;
+    }
+
+    public Counter counter(String name, String help) {
+        return register(name, help, Counter.class, new Counter());
+    }
+
+    public Gauge gauge(String name, String help) {
+        return register(name, help, Gauge.class, new Gauge());
+    }
+
+    /**
+     * Registers a gauge read from {@code supplier} at scrape time, replacing any earlier one with that name.
+     */
+    public void gauge(String name, String help, DoubleSupplier supplier) {
+        validateName(name);
+        metrics.put(name, new Metric(help, supplier));
+    }
+
+    /**
+     * @param name base name, exposed in seconds as {@code <name>_bucket}, {@code <name>_sum} and {@code <name>_count}
+     */
+    public LatencyHistogram histogram(String name, String help) {
+        return register(name, help, LatencyHistogram.class, new LatencyHistogram());
+    }
+
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            String name = entry.getKey();
+            Metric metric = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(metric.help()).append('\n');
+
+            if (metric.instrument() instanceof Counter counter) {
+                out.append("# TYPE ").append(name).append(" counter\n");
+                out.append(name).append(' ').append(counter.value()).append('\n');
+            } else if (metric.instrument() instanceof Gauge gauge) {
+                out.append("# TYPE ").append(name).append(" gauge\n");
+                out.append(name).append(' ').append(gauge.value()).append('\n');
+            } else if (metric.instrument() instanceof DoubleSupplier supplier) {
+                out.append("# TYPE ").append(name).append(" gauge\n");
+                out.append(name).append(' ').append(formatDouble(supplier.getAsDouble())).append('\n');
+            } else if (metric.instrument() instanceof LatencyHistogram histogram) {
+                appendHistogram(out, name, histogram);
+            }
+        }
+        return out.toString();
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, LatencyHistogram histogram) {
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long[] counts = histogram.snapshot();
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String bound = i == counts.length - 1 ? "+Inf" : formatDouble(LatencyHistogram.upperBoundSeconds(i));
+            out.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(name).append("_sum ").append(formatDouble(histogram.sumNanos() / 1_000_000_000.0)).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    private <T> T register(String name, String help, Class<T> type, T candidate) {
+        validateName(name);
+        Metric metric = metrics.computeIfAbsent(name, ignored -> new Metric(help, candidate));
+        if (!type.isInstance(metric.instrument())) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a "
+                    + metric.instrument().getClass().getSimpleName());
+        }
+        return type.cast(metric.instrument());
+    }
+
+    private static void validateName(String name) {
+        if (name == null || !name.matches("[a-zA-Z_:][a-zA-Z0-9_:]*")) {
+            throw new IllegalArgumentException("Invalid metric name: " + name);
+        }
+    }
+
+    private static String formatDouble(double value) {
+        if (Double.isNaN(value)) return "NaN";
+        if (Double.isInfinite(value)) return value > 0 ? "+Inf" : "-Inf";
+        return String.format(Locale.ROOT, "%.9g", value).replaceFirst("\\.?0+(e|$)", "$1");
+    }
+}
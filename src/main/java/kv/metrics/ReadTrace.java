@@ -0,0 +1,141 @@
+package kv.metrics;
+
+import java.util.Locale;
+
+/**
+ * Where the time of one read went: lock wait, cache, memtable and how much sstable data was touched.
+ * Tables have no Bloom filters, so a table is only skipped when the key lies outside its key range.
+ *
+ * A trace is bound to the thread serving the request; the storage layers look it up with
+ * {@link #current()} and record into it only when one is active, so untraced reads pay a single
+ * thread local lookup.
+ */
+public final class ReadTrace {
+
+    private static final ThreadLocal<ReadTrace> CURRENT = new ThreadLocal<>();
+
+    private final long startNanos = System.nanoTime();
+    private long totalNanos = -1;
+    private long lockWaitNanos;
+    //null when no cache sits in front of the engine
+    private Boolean cacheHit;
+    private boolean memTableHit;
+    private int tablesProbed;
+    private int tablesSkipped;
+    private long entriesScanned;
+    private long bytesDecoded;
+    private int blocksRead;
+    private int blockCacheHits;
+
+    private ReadTrace() {
+    }
+
+    /**
+     * Starts tracing reads made by the calling thread until {@link #finish()}.
+     */
+    public static ReadTrace start() {
+        ReadTrace trace = new ReadTrace();
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * @return the calling thread's active trace, or null
+     */
+    public static ReadTrace current() {
+        return CURRENT.get();
+    }
+
+    public void finish() {
+        if (totalNanos < 0) {
+            totalNanos = System.nanoTime() - startNanos;
+        }
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+    }
+
+    public void lockWait(long nanos) {
+        lockWaitNanos += nanos;
+    }
+
+    public void cacheLookup(boolean hit) {
+        cacheHit = hit;
+    }
+
+    public void memTableHit() {
+        memTableHit = true;
+    }
+
+    public void tableProbed() {
+        tablesProbed++;
+    }
+
+    /**
+     * A table was ruled out without reading it, e.g. because the key sorts before its first key.
+     */
+    public void tableSkipped() {
+        tablesSkipped++;
+    }
+
+    /**
+     * A block was read from disk and, if compressed, decompressed.
+     */
+    public void blockRead() {
+        blocksRead++;
+    }
+
+    public void blockCacheHit() {
+        blockCacheHits++;
+    }
+
+    public void entryScanned(long bytes) {
+        entriesScanned++;
+        bytesDecoded += bytes;
+    }
+
+    public long totalNanos() {
+        return totalNanos < 0 ? System.nanoTime() - startNanos : totalNanos;
+    }
+
+    public long lockWaitNanos() {
+        return lockWaitNanos;
+    }
+
+    public int tablesProbed() {
+        return tablesProbed;
+    }
+
+    public int tablesSkipped() {
+        return tablesSkipped;
+    }
+
+    public long entriesScanned() {
+        return entriesScanned;
+    }
+
+    public long bytesDecoded() {
+        return bytesDecoded;
+    }
+
+    public int blocksRead() {
+        return blocksRead;
+    }
+
+    public int blockCacheHits() {
+        return blockCacheHits;
+    }
+
+    /**
+     * @return e.g. {@code total_us=412;lock_wait_us=3;cache=miss;memtable=miss;tables_probed=2;...}
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "total_us=%d;lock_wait_us=%d;cache=%s;memtable=%s;tables_probed=%d;tables_skipped=%d;entries_scanned=%d;bytes_decoded=%d"
+                        + ";blocks_read=%d;block_cache_hits=%d",
+                totalNanos() / 1000, lockWaitNanos / 1000, cacheHit == null ? "off" : cacheHit ? "hit" : "miss",
+                memTableHit ? "hit" : "miss", tablesProbed, tablesSkipped, entriesScanned, bytesDecoded,
+                blocksRead, blockCacheHits);
+    }
+}
@@ -0,0 +1,494 @@
+package kv.replication;
+
+import kv.core.StorageEngine;
+import kv.storage.CheckpointFiles;
+import kv.storage.WriteAheadLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leader side of log-shipping replication.
+ *
+ * Keeps one persistent connection per follower and streams {@link ReplicationLog} records to it in
+ * sequence order, starting from the position the follower reports when it connects. A follower that
+ * was down simply resumes from its last applied sequence. Log segments are truncated once every
+ * follower has acknowledged them.
+ *
+ * Records are shipped in batch frames bounded by count, bytes and a short linger window, with
+ * repeated writes to the same key inside a batch coalesced into the last one; a range delete closes its
+ * batch, since it also overwrites keys other than its own. Followers that keep up
+ * are fed from a bounded in-memory queue filled by the writers; when that queue is full the writer
+ * waits briefly (back-pressure) and, if the follower still does not drain it, the follower drops back
+ * to reading the log files so leader memory stays bounded.
+ *
+ * A follower whose position is no longer in the log (new, wiped, or down for longer than the log is
+ * retained) is bootstrapped from a checkpoint of the storage engine's SSTables, after which it
+ * continues with the records following the checkpoint.
+ */
+public class LogShippingReplicator implements AutoCloseable {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 200;
+    private static final long MAX_RECONNECT_BACKOFF_MILLIS = 5000;
+
+    private final ReplicationLog replicationLog;
+    private final ReplicationBatchSettings settings;
+    private final StorageEngine snapshotSource;
+    private final File checkpointDir;
+    private final List<FollowerShipper> shippers = new ArrayList<>();
+    private volatile boolean running = false;
+    private final ReplicationLog.AppendListener appendListener = this::onAppend;
+    //writes waiting for follower acknowledgements, by sequence
+    private final NavigableMap<Long, List<PendingAcknowledgement>> pendingAcknowledgements = new TreeMap<>();
+
+    private record PendingAcknowledgement(long sequence, int required, CompletableFuture<Void> future) {
+    }
+
+    /**
+     * @param followerAddresses replication addresses of the followers as {@code host:port}
+     */
+    public LogShippingReplicator(ReplicationLog replicationLog, List<String> followerAddresses) {
+        this(replicationLog, followerAddresses, ReplicationBatchSettings.DEFAULT);
+    }
+
+    public LogShippingReplicator(ReplicationLog replicationLog, List<String> followerAddresses, ReplicationBatchSettings settings) {
+        this(replicationLog, followerAddresses, settings, null, null);
+    }
+
+    /**
+     * @param snapshotSource engine checkpointed to bootstrap followers that are behind the log, or null to
+     *                       fail replication to such followers instead
+     * @param checkpointDir  directory the checkpoints are created in while they are being sent
+     */
+    public LogShippingReplicator(ReplicationLog replicationLog, List<String> followerAddresses, ReplicationBatchSettings settings,
+                                 StorageEngine snapshotSource, File checkpointDir) {
+        if (snapshotSource == null && replicationLog.dropsUnacknowledgedSegments()) {
+            throw new IllegalArgumentException("A replication log that drops unacknowledged segments needs a snapshot source");
+        }
+        this.replicationLog = replicationLog;
+        this.settings = settings;
+        this.snapshotSource = snapshotSource;
+        this.checkpointDir = checkpointDir;
+        for (String address : followerAddresses) {
+            shippers.add(new FollowerShipper(address));
+        }
+    }
+
+    public void start() {
+        if (checkpointDir != null) {
+            //leftovers of a snapshot interrupted by a crash
+            CheckpointFiles.deleteRecursively(checkpointDir);
+        }
+        running = true;
+        replicationLog.addAppendListener(appendListener);
+        for (FollowerShipper shipper : shippers) {
+            Thread thread = new Thread(shipper, "replication-shipper-" + shipper.address);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Makes every follower reconnect and bootstrap from a fresh snapshot, for changes made to the engine
+     * outside the replication log such as imported tables.
+     */
+    public void resyncFollowers() {
+        if (snapshotSource == null) {
+            throw new IllegalStateException("Followers can only be resynchronised from a snapshot source");
+        }
+        for (FollowerShipper shipper : shippers) {
+            shipper.snapshotRequested = true;
+            shipper.closeSocket();
+        }
+    }
+
+    public int followerCount() {
+        return shippers.size();
+    }
+
+    /**
+     * Completes once at least {@code required} followers have acknowledged {@code sequence}.
+     * The future never times out on its own, callers bound it with a deadline.
+     */
+    public CompletableFuture<Void> awaitAcknowledgements(long sequence, int required) {
+        if (required <= 0 || acknowledgedBy(sequence) >= required) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        PendingAcknowledgement pendingAcknowledgement = new PendingAcknowledgement(sequence, required, new CompletableFuture<>());
+        synchronized (pendingAcknowledgements) {
+            pendingAcknowledgements.computeIfAbsent(sequence, s -> new ArrayList<>()).add(pendingAcknowledgement);
+        }
+        //an acknowledgement may have arrived while registering
+        completeAcknowledged();
+        pendingAcknowledgement.future().whenComplete((ignored, error) -> {
+            if (error != null) {
+                removePending(pendingAcknowledgement);
+            }
+        });
+        return pendingAcknowledgement.future();
+    }
+
+    /**
+     * @return last acknowledged sequence per follower address, -1 if the follower has not connected yet
+     */
+    public Map<String, Long> acknowledgedSequences() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (FollowerShipper shipper : shippers) {
+            result.put(shipper.address, shipper.acknowledgedSequence);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        replicationLog.removeAppendListener(appendListener);
+        for (FollowerShipper shipper : shippers) {
+            shipper.closeSocket();
+        }
+    }
+
+    private void onAppend(ReplicationRecord record) {
+        for (FollowerShipper shipper : shippers) {
+            shipper.enqueue(record);
+        }
+    }
+
+    private int acknowledgedBy(long sequence) {
+        int count = 0;
+        for (FollowerShipper shipper : shippers) {
+            if (shipper.acknowledgedSequence >= sequence) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void completeAcknowledged() {
+        List<PendingAcknowledgement> completed = new ArrayList<>();
+        synchronized (pendingAcknowledgements) {
+            if (pendingAcknowledgements.isEmpty()) return;
+
+            long highestAcknowledged = -1;
+            for (FollowerShipper shipper : shippers) {
+                highestAcknowledged = Math.max(highestAcknowledged, shipper.acknowledgedSequence);
+            }
+
+            Iterator<List<PendingAcknowledgement>> iterator = pendingAcknowledgements.headMap(highestAcknowledged, true).values().iterator();
+            while (iterator.hasNext()) {
+                List<PendingAcknowledgement> atSequence = iterator.next();
+                atSequence.removeIf(pending -> {
+                    if (acknowledgedBy(pending.sequence()) >= pending.required()) {
+                        completed.add(pending);
+                        return true;
+                    }
+                    return false;
+                });
+                if (atSequence.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+        //complete outside the lock, callbacks run on this ack reader (the http server moves its responses off it)
+        for (PendingAcknowledgement pending : completed) {
+            pending.future().complete(null);
+        }
+    }
+
+    private void removePending(PendingAcknowledgement pendingAcknowledgement) {
+        synchronized (pendingAcknowledgements) {
+            List<PendingAcknowledgement> atSequence = pendingAcknowledgements.get(pendingAcknowledgement.sequence());
+            if (atSequence != null) {
+                atSequence.remove(pendingAcknowledgement);
+                if (atSequence.isEmpty()) {
+                    pendingAcknowledgements.remove(pendingAcknowledgement.sequence());
+                }
+            }
+        }
+    }
+
+    private void onAcknowledged() {
+        completeAcknowledged();
+
+        long minimum = Long.MAX_VALUE;
+        for (FollowerShipper shipper : shippers) {
+            //an unknown follower keeps the whole log
+            if (shipper.acknowledgedSequence < 0) return;
+            minimum = Math.min(minimum, shipper.acknowledgedSequence);
+        }
+        replicationLog.truncateUpTo(minimum);
+    }
+
+    private final class FollowerShipper implements Runnable {
+        private final String address;
+        private final String host;
+        private final int port;
+        private volatile long acknowledgedSequence = -1;
+        private volatile Socket socket;
+        private boolean reportedFailure = false;
+        private boolean established = false;
+        private volatile boolean snapshotRequested = false;
+
+        private final BlockingQueue<ReplicationRecord> pending;
+        //true while the writers feed this follower through the in-memory queue
+        private volatile boolean live = false;
+        private ReplicationLog.Reader reader;
+        //last sequence handed to the current batch
+        private long position;
+
+        private FollowerShipper(String address) {
+            this.address = address;
+            int separator = address.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Follower address must be host:port but was " + address);
+            }
+            this.host = address.substring(0, separator);
+            this.port = Integer.parseInt(address.substring(separator + 1));
+            this.pending = new ArrayBlockingQueue<>(settings.queueCapacity());
+        }
+
+        @Override
+        public void run() {
+            long backoffMillis = 100;
+
+            while (running) {
+                established = false;
+                try {
+                    ship();
+                } catch (IOException e) {
+                    if (!reportedFailure && running) {
+                        System.err.println("Replication to " + address + " failed: " + e.getMessage());
+                        reportedFailure = true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    closeSocket();
+                }
+
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoffMillis = established ? 100 : Math.min(backoffMillis * 2, MAX_RECONNECT_BACKOFF_MILLIS);
+            }
+        }
+
+        private void ship() throws IOException, InterruptedException {
+            Socket connection = new Socket();
+            socket = connection;
+            connection.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            connection.setTcpNoDelay(true);
+            connection.setKeepAlive(true);
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), 64 * 1024));
+
+            long followerPosition = in.readLong();
+            boolean behindLog = followerPosition + 1 < replicationLog.firstSequence();
+            boolean aheadOfLog = followerPosition > replicationLog.lastSequence();
+            boolean needsSnapshot = behindLog || aheadOfLog || snapshotRequested;
+            if (needsSnapshot && snapshotSource == null) {
+                throw new IOException("Follower " + address + " at sequence " + followerPosition
+                        + " is outside the leader log " + replicationLog.firstSequence() + ".." + replicationLog.lastSequence());
+            }
+            reportedFailure = false;
+            established = true;
+
+            Thread ackReader = new Thread(() -> readAcknowledgements(in), "replication-acks-" + address);
+            ackReader.setDaemon(true);
+
+            if (needsSnapshot) {
+                //the follower acknowledges the snapshot sequence once it has restored it
+                acknowledgedSequence = -1;
+                ackReader.start();
+                followerPosition = sendSnapshot(out);
+                snapshotRequested = false;
+            } else {
+                acknowledgedSequence = followerPosition;
+                ackReader.start();
+            }
+            position = followerPosition;
+            System.out.printf("Replicating to %s from sequence %d%n", address, followerPosition + 1);
+
+            try {
+                while (running) {
+                    ReplicationRecord first = poll(ReplicationProtocol.HEARTBEAT_INTERVAL_MILLIS);
+                    if (first == null) {
+                        //the clock is read first, so the leader had nothing beyond the sequence at that time
+                        long leaderTimeMillis = System.currentTimeMillis();
+                        ReplicationProtocol.writeHeartbeat(out, replicationLog.lastSequence(), leaderTimeMillis);
+                        out.flush();
+                        continue;
+                    }
+                    shipBatch(out, first);
+                }
+            } finally {
+                live = false;
+                pending.clear();
+                if (reader != null) {
+                    reader.close();
+                    reader = null;
+                }
+            }
+        }
+
+        /**
+         * Checkpoints the engine and streams its files to the follower.
+         * @return the log sequence the checkpoint covers
+         */
+        private long sendSnapshot(DataOutputStream out) throws IOException {
+            //read before checkpointing: the checkpoint holds at least these records, and replaying the
+            //ones it also holds is harmless because they are applied in order
+            long sequence = replicationLog.lastSequence();
+            File dir = new File(checkpointDir, "checkpoint-" + address.replace(':', '_') + "-" + System.nanoTime());
+            long start = System.currentTimeMillis();
+            try {
+                snapshotSource.createCheckpoint(dir);
+                ReplicationProtocol.writeSnapshot(out, sequence, dir);
+                out.flush();
+            } finally {
+                CheckpointFiles.deleteRecursively(dir);
+            }
+            System.out.printf("Sent snapshot at sequence %d to %s in %d ms%n", sequence, address, System.currentTimeMillis() - start);
+            return sequence;
+        }
+
+        //fills one batch starting with the given record, coalescing repeated writes to the same key
+        private void shipBatch(DataOutputStream out, ReplicationRecord first) throws IOException, InterruptedException {
+            Map<ByteBuffer, ReplicationRecord> coalesced = new LinkedHashMap<>();
+            long firstSequence = first.sequence();
+            long lastSequence = first.sequence();
+            int records = 0;
+            long bytes = 0;
+            long lingerDeadline = System.currentTimeMillis() + settings.lingerMillis();
+
+            ReplicationRecord record = first;
+            while (record != null) {
+                ByteBuffer key = ByteBuffer.wrap(record.key());
+                //re-inserting keeps the map ordered by each key's latest write
+                coalesced.remove(key);
+                coalesced.put(key, record);
+                lastSequence = record.sequence();
+                records++;
+                bytes += record.key().length + record.value().length;
+
+                //a range delete covers other keys, so nothing after it may be coalesced ahead of it
+                if (record.op() == WriteAheadLog.OP_DELETE_RANGE
+                        || records >= settings.maxBatchRecords() || bytes >= settings.maxBatchBytes()) {
+                    break;
+                }
+                record = poll(Math.max(0, lingerDeadline - System.currentTimeMillis()));
+            }
+
+            long leaderTimeMillis = System.currentTimeMillis();
+            ReplicationProtocol.writeBatch(out, replicationLog.lastSequence(), leaderTimeMillis, firstSequence, lastSequence, coalesced.values());
+            out.flush();
+        }
+
+        /**
+         * Returns the record after {@link #position}. A follower that is behind is fed from the log
+         * files; once it has caught up it switches to the in-memory queue filled by the writers, and
+         * falls back to the log again if that queue overflows.
+         */
+        private ReplicationRecord poll(long waitMillis) throws IOException, InterruptedException {
+            while (true) {
+                if (!live && reader == null) {
+                    pending.clear();
+                    reader = replicationLog.openReader(position);
+                }
+
+                if (reader != null) {
+                    ReplicationRecord record = reader.next();
+                    if (record != null) {
+                        position = record.sequence();
+                        return record;
+                    }
+                    if (!live) {
+                        //start queueing, then drain whatever was appended before the switch
+                        live = true;
+                        continue;
+                    }
+                    reader.close();
+                    reader = null;
+                }
+
+                ReplicationRecord record = pending.poll(waitMillis, TimeUnit.MILLISECONDS);
+                if (record == null) {
+                    if (!live) continue;
+                    return null;
+                }
+                if (record.sequence() <= position) {
+                    //already read from the log while switching over
+                    continue;
+                }
+                if (record.sequence() > position + 1) {
+                    live = false;
+                    continue;
+                }
+                position = record.sequence();
+                return record;
+            }
+        }
+
+        private void enqueue(ReplicationRecord record) {
+            if (!live) return;
+            try {
+                if (!pending.offer(record, settings.backpressureMillis(), TimeUnit.MILLISECONDS)) {
+                    //the follower is too slow for the in-memory queue, it catches up from the log instead
+                    live = false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                live = false;
+            }
+        }
+
+        private void readAcknowledgements(DataInputStream in) {
+            try {
+                while (running) {
+                    long applied = in.readLong();
+                    if (applied > acknowledgedSequence) {
+                        acknowledgedSequence = applied;
+                        onAcknowledged();
+                    }
+                }
+            } catch (IOException e) {
+                //the connection is gone, the shipper reconnects
+                closeSocket();
+            }
+        }
+
+        private void closeSocket() {
+            Socket current = socket;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
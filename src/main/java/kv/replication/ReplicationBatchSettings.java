@@ -0,0 +1,25 @@
+package kv.replication;
+
+/**
+ * Tuning for the leader's per-follower replication pipeline.
+ *
+ * @param maxBatchRecords    records (before coalescing) shipped in one batch frame
+ * @param maxBatchBytes      key and value bytes shipped in one batch frame
+ * @param lingerMillis       how long a batch waits for more records once the first one is queued
+ * @param queueCapacity      in-memory records buffered per follower before it falls back to reading the log
+ * @param backpressureMillis how long a write waits for space in a live follower's queue
+ */
+public record ReplicationBatchSettings(int maxBatchRecords, int maxBatchBytes, long lingerMillis,
+                                       int queueCapacity, long backpressureMillis) {
+
+    public static final ReplicationBatchSettings DEFAULT = new ReplicationBatchSettings(1000, 1024 * 1024, 2, 8192, 20);
+
+    public ReplicationBatchSettings {
+        if (maxBatchRecords <= 0 || maxBatchBytes <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Batch and queue limits must be positive");
+        }
+        if (lingerMillis < 0 || backpressureMillis < 0) {
+            throw new IllegalArgumentException("Linger and backpressure must not be negative");
+        }
+    }
+}
@@ -3,22 +3,86 @@ package kv.replication;
 import kv.core.facade.KeyValueApi;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Leader side of replication: applies every write locally, then appends it to the {@link ReplicationLog} the
+ * followers are fed from, and answers once the write concern is met.
+ *
+ * The local apply comes first so a write the engine rejects never reaches the followers. The cost is a window
+ * between the two steps: if the leader process dies there, the write is in its engine (and write ahead log) but
+ * not in the replication log, so no follower ever receives it and nothing repairs it short of a snapshot resync.
+ * The window is a single operation, since writes are serialized by {@link #writeOrderLock}, and a client that
+ * waited for a write concern never had that write acknowledged.
+ */
 public class ReplicationKeyValueApi implements kv.core.facade.KeyValueApi {
 
     private final KeyValueApi keyValueApi;
-    private final ReplicationClient replicationClient;
+    private final ReplicationLog replicationLog;
+    private final LogShippingReplicator replicator;
+    private final WriteConcern writeConcern;
+    private final int requiredAcknowledgements;
+    private final Duration writeConcernTimeout;
+    //keeps the local apply order and the replication log order identical, and the two steps of a write together
+    private final Object writeOrderLock = new Object();
 
-    public ReplicationKeyValueApi(KeyValueApi local, ReplicationClient replicationClient) {
+    public ReplicationKeyValueApi(KeyValueApi local, ReplicationLog replicationLog) {
+        this(local, replicationLog, null, WriteConcern.LEADER_ONLY, Duration.ZERO);
+    }
+
+    /**
+     * @param replicator          source of follower acknowledgements, may be null for {@link WriteConcern#LEADER_ONLY}
+     * @param writeConcern        follower acknowledgements a write waits for
+     * @param writeConcernTimeout how long a write waits for them before failing with {@link WriteConcernException}
+     */
+    public ReplicationKeyValueApi(KeyValueApi local, ReplicationLog replicationLog, LogShippingReplicator replicator,
+                                  WriteConcern writeConcern, Duration writeConcernTimeout) {
         this.keyValueApi = local;
-        this.replicationClient = replicationClient;
+        this.replicationLog = replicationLog;
+        this.replicator = replicator;
+        this.writeConcern = writeConcern;
+        this.requiredAcknowledgements = replicator == null ? 0 : writeConcern.requiredAcknowledgements(replicator.followerCount());
+        this.writeConcernTimeout = writeConcernTimeout;
+        if (replicator == null && writeConcern != WriteConcern.LEADER_ONLY) {
+            throw new IllegalArgumentException("Write concern " + writeConcern + " needs a replicator");
+        }
     }
 
     @Override
     public void put(String key, String value) throws IOException {
-        keyValueApi.put(key, value);
-        replicationClient.replicatePut(key, value);
+        await(putAsync(key, value));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, String value) throws IOException {
+        long sequence;
+        synchronized (writeOrderLock) {
+            keyValueApi.put(key, value);
+            sequence = replicationLog.appendPut(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+        }
+        return awaitWriteConcern(sequence);
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMillis) throws IOException {
+        await(putAsync(key, value, ttlMillis));
+    }
+
+    //the follower gets the leader's expiry, give or take the time between the two clock reads
+    @Override
+    public CompletableFuture<Void> putAsync(String key, String value, long ttlMillis) throws IOException {
+        long sequence;
+        synchronized (writeOrderLock) {
+            long expiresAtMillis = System.currentTimeMillis() + ttlMillis;
+            keyValueApi.put(key, value, ttlMillis);
+            sequence = replicationLog.appendPut(key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8), expiresAtMillis);
+        }
+        return awaitWriteConcern(sequence);
     }
 
     @Override
@@ -33,13 +97,82 @@ public class ReplicationKeyValueApi implements kv.core.facade.KeyValueApi {
 
     @Override
     public void batchPut(Map<String, String> entries) throws IOException {
-        keyValueApi.batchPut(entries);
-        replicationClient.replicateBatchPut(entries);
+        await(batchPutAsync(entries));
+    }
+
+    @Override
+    public CompletableFuture<Void> batchPutAsync(Map<String, String> entries) throws IOException {
+        if (entries == null || entries.isEmpty()) return CompletableFuture.completedFuture(null);
+        long sequence = -1;
+        synchronized (writeOrderLock) {
+            keyValueApi.batchPut(entries);
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                if (entry.getKey() == null || entry.getValue() == null) continue;
+                sequence = replicationLog.appendPut(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return sequence < 0 ? CompletableFuture.completedFuture(null) : awaitWriteConcern(sequence);
     }
 
     @Override
     public void delete(String key) throws IOException {
-        keyValueApi.delete(key);
-        replicationClient.replicateDelete(key);
+        await(deleteAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String key) throws IOException {
+        if (key == null) return CompletableFuture.completedFuture(null);
+        long sequence;
+        synchronized (writeOrderLock) {
+            keyValueApi.delete(key);
+            sequence = replicationLog.appendDelete(key.getBytes(StandardCharsets.UTF_8));
+        }
+        return awaitWriteConcern(sequence);
+    }
+
+    @Override
+    public void deleteRange(String startKey, String endKey) throws IOException {
+        await(deleteRangeAsync(startKey, endKey));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteRangeAsync(String startKey, String endKey) throws IOException {
+        long sequence;
+        synchronized (writeOrderLock) {
+            keyValueApi.deleteRange(startKey, endKey);
+            sequence = replicationLog.appendDeleteRange(startKey.getBytes(StandardCharsets.UTF_8), endKey.getBytes(StandardCharsets.UTF_8));
+        }
+        return awaitWriteConcern(sequence);
+    }
+
+    private CompletableFuture<Void> awaitWriteConcern(long sequence) {
+        if (requiredAcknowledgements == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        replicator.awaitAcknowledgements(sequence, requiredAcknowledgements)
+                .orTimeout(writeConcernTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((ignored, error) -> {
+                    if (error == null) {
+                        result.complete(null);
+                    } else {
+                        result.completeExceptionally(new WriteConcernException(String.format(
+                                "Write concern %s not satisfied within %d ms for sequence %d",
+                                writeConcern, writeConcernTimeout.toMillis(), sequence)));
+                    }
+                });
+        return result;
+    }
+
+    private static void await(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw e;
+        }
     }
 }
@@ -0,0 +1,361 @@
+package kv.replication;
+
+import kv.storage.WriteAheadLog;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Append-only, sequence-numbered log of every mutation accepted by the leader.
+ *
+ * The storage engine resets its write ahead log on every memtable flush, so it cannot be used to
+ * catch up followers that are behind. This log keeps the same records (plus a sequence number) in
+ * segment files named after their first sequence. Segments are deleted once every follower has
+ * acknowledged them. A log opened with a {@code maxRetainedSegments} cap also deletes the oldest segments
+ * beyond it, acknowledged or not, so it needs a replicator that can bootstrap the followers that fall
+ * behind from a snapshot.
+ *
+ * Record layout: [long sequence][byte op][int keyLength][int valueLength][key][value]
+ */
+public class ReplicationLog implements AutoCloseable {
+
+    private static final String SEGMENT_PREFIX = "replication_";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER_BYTES = 8 + 1 + 4 + 4;
+    public static final long DEFAULT_SEGMENT_MAX_BYTES = 16L * 1024 * 1024;
+    public static final int DEFAULT_SYNC_PERIOD = 100;
+    //cap for leaders that can fall back to snapshots
+    public static final int DEFAULT_MAX_RETAINED_SEGMENTS = 64;
+    public static final int RETAIN_UNTIL_ACKNOWLEDGED = 0;
+
+    private final File dir;
+    private final long segmentMaxBytes;
+    private final int syncPeriod;
+    private final int maxRetainedSegments;
+
+    //first sequence of a segment -> segment file
+    private final NavigableMap<Long, File> segments = new TreeMap<>();
+    private RandomAccessFile activeSegment;
+    private long activeSegmentLength;
+    private int pendingEntriesSinceLastSync = 0;
+    private volatile long lastSequence;
+    private final List<AppendListener> appendListeners = new CopyOnWriteArrayList<>();
+
+    public ReplicationLog(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_MAX_BYTES, DEFAULT_SYNC_PERIOD);
+    }
+
+    public ReplicationLog(File dir, long segmentMaxBytes, int syncPeriod) throws IOException {
+        this(dir, segmentMaxBytes, syncPeriod, RETAIN_UNTIL_ACKNOWLEDGED);
+    }
+
+    /**
+     * @param maxRetainedSegments segments kept even if not every follower acknowledged them, or
+     *                            {@link #RETAIN_UNTIL_ACKNOWLEDGED} to only delete acknowledged ones
+     */
+    public ReplicationLog(File dir, long segmentMaxBytes, int syncPeriod, int maxRetainedSegments) throws IOException {
+        this.dir = dir;
+        this.segmentMaxBytes = segmentMaxBytes;
+        this.syncPeriod = Math.max(1, syncPeriod);
+        this.maxRetainedSegments = Math.max(RETAIN_UNTIL_ACKNOWLEDGED, maxRetainedSegments);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create replication log directory " + dir.getAbsolutePath());
+        }
+        openSegments();
+    }
+
+    public long appendPut(byte[] key, byte[] value) throws IOException {
+        return append(WriteAheadLog.OP_PUT, key, value);
+    }
+
+    /**
+     * Carries the absolute expiry rather than the TTL, so a follower applying the record later expires the value
+     * at the same time as the leader.
+     */
+    public long appendPut(byte[] key, byte[] value, long expiresAtMillis) throws IOException {
+        return append(WriteAheadLog.OP_PUT_EXPIRING, key, WriteAheadLog.withExpiry(value, expiresAtMillis));
+    }
+
+    public long appendDelete(byte[] key) throws IOException {
+        return append(WriteAheadLog.OP_DELETE, key, new byte[0]);
+    }
+
+    public long appendDeleteRange(byte[] startKey, byte[] endKey) throws IOException {
+        return append(WriteAheadLog.OP_DELETE_RANGE, startKey, endKey);
+    }
+
+    public synchronized long append(byte op, byte[] key, byte[] value) throws IOException {
+        long sequence = lastSequence + 1;
+        byte[] record = encode(sequence, op, key, value);
+
+        if (activeSegmentLength > 0 && activeSegmentLength + record.length > segmentMaxBytes) {
+            rollSegment(sequence);
+        }
+
+        //single write so a concurrent reader never sees a record split across calls
+        activeSegment.write(record);
+        activeSegmentLength += record.length;
+        lastSequence = sequence;
+
+        pendingEntriesSinceLastSync++;
+        if (pendingEntriesSinceLastSync >= syncPeriod) {
+            activeSegment.getFD().sync();
+            pendingEntriesSinceLastSync = 0;
+        }
+
+        if (!appendListeners.isEmpty()) {
+            ReplicationRecord appended = new ReplicationRecord(sequence, op, key, value);
+            for (AppendListener listener : appendListeners) {
+                listener.onAppend(appended);
+            }
+        }
+
+        notifyAll();
+        return sequence;
+    }
+
+    /**
+     * Registers a listener that is called for every appended record, in sequence order, while the
+     * log lock is held. A listener that blocks therefore slows down (back-pressures) all writers.
+     */
+    public void addAppendListener(AppendListener listener) {
+        appendListeners.add(listener);
+    }
+
+    public void removeAppendListener(AppendListener listener) {
+        appendListeners.remove(listener);
+    }
+
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return true if segments may be deleted before every follower acknowledged them
+     */
+    public boolean dropsUnacknowledgedSegments() {
+        return maxRetainedSegments != RETAIN_UNTIL_ACKNOWLEDGED;
+    }
+
+    public synchronized long firstSequence() {
+        return segments.firstKey();
+    }
+
+    /**
+     * Deletes whole segments whose records are all at or below {@code sequence}.
+     * The active segment is always kept.
+     */
+    public synchronized void truncateUpTo(long sequence) {
+        while (segments.size() > 1) {
+            Map.Entry<Long, File> oldest = segments.firstEntry();
+            Long nextFirstSequence = segments.higherKey(oldest.getKey());
+            if (nextFirstSequence == null || nextFirstSequence - 1 > sequence) {
+                return;
+            }
+            segments.pollFirstEntry();
+            oldest.getValue().delete();
+        }
+    }
+
+    /**
+     * Opens a reader positioned after {@code sequence}.
+     * @throws IOException if the records following {@code sequence} have already been truncated
+     */
+    public Reader openReader(long sequence) throws IOException {
+        if (sequence + 1 < firstSequence()) {
+            throw new IOException("Replication log no longer contains sequence " + (sequence + 1)
+                    + ", first available is " + firstSequence());
+        }
+        return new Reader(sequence + 1);
+    }
+
+    public synchronized void forceSync() throws IOException {
+        if (pendingEntriesSinceLastSync > 0) {
+            activeSegment.getFD().sync();
+            pendingEntriesSinceLastSync = 0;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            forceSync();
+        } finally {
+            activeSegment.close();
+            notifyAll();
+        }
+    }
+
+    private void openSegments() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                long firstSequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(firstSequence, file);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            segments.put(1L, segmentFile(1L));
+        }
+
+        Map.Entry<Long, File> last = segments.lastEntry();
+        activeSegment = new RandomAccessFile(last.getValue(), "rw");
+        lastSequence = recoverActiveSegment(last.getKey());
+    }
+
+    //finds the last complete record and cuts off a torn tail left by a crash
+    private long recoverActiveSegment(long firstSequence) throws IOException {
+        long sequence = firstSequence - 1;
+        long validLength = 0;
+        activeSegment.seek(0);
+
+        while (true) {
+            try {
+                long recordSequence = activeSegment.readLong();
+                activeSegment.readByte();
+                int keyLength = activeSegment.readInt();
+                int valueLength = activeSegment.readInt();
+                if (keyLength < 0 || valueLength < 0
+                        || activeSegment.getFilePointer() + keyLength + valueLength > activeSegment.length()) {
+                    break;
+                }
+                activeSegment.seek(activeSegment.getFilePointer() + keyLength + valueLength);
+                sequence = recordSequence;
+                validLength = activeSegment.getFilePointer();
+            } catch (EOFException eof) {
+                break;
+            }
+        }
+
+        activeSegment.setLength(validLength);
+        activeSegment.seek(validLength);
+        activeSegmentLength = validLength;
+        return sequence;
+    }
+
+    private void rollSegment(long firstSequence) throws IOException {
+        activeSegment.getFD().sync();
+        activeSegment.close();
+        pendingEntriesSinceLastSync = 0;
+
+        File file = segmentFile(firstSequence);
+        segments.put(firstSequence, file);
+        activeSegment = new RandomAccessFile(file, "rw");
+        activeSegmentLength = 0;
+
+        while (dropsUnacknowledgedSegments() && segments.size() > maxRetainedSegments) {
+            segments.pollFirstEntry().getValue().delete();
+        }
+    }
+
+    private File segmentFile(long firstSequence) {
+        return new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+    }
+
+    @FunctionalInterface
+    public interface AppendListener {
+        void onAppend(ReplicationRecord record);
+    }
+
+    private synchronized Map.Entry<Long, File> segmentContaining(long sequence) {
+        return segments.floorEntry(sequence);
+    }
+
+    private synchronized Long segmentAfter(long firstSequence) {
+        return segments.higherKey(firstSequence);
+    }
+
+    private static byte[] encode(long sequence, byte op, byte[] key, byte[] value) {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + key.length + value.length);
+        buffer.putLong(sequence);
+        buffer.put(op);
+        buffer.putInt(key.length);
+        buffer.putInt(value.length);
+        buffer.put(key);
+        buffer.put(value);
+        return buffer.array();
+    }
+
+    /**
+     * Sequential reader over the log. Only records that were fully appended when {@link #next()}
+     * is called are returned, so it can safely tail the active segment.
+     */
+    public final class Reader implements Closeable {
+        private long nextSequence;
+        private long segmentFirstSequence = -1;
+        private Long nextSegmentFirstSequence;
+        private DataInputStream in;
+
+        private Reader(long nextSequence) {
+            this.nextSequence = nextSequence;
+        }
+
+        /**
+         * @return the next record, or null if the reader has caught up with the log
+         */
+        public ReplicationRecord next() throws IOException {
+            while (true) {
+                if (nextSequence > lastSequence) {
+                    return null;
+                }
+
+                if (in != null && nextSegmentFirstSequence == null) {
+                    //a segment may have been rolled since this one was opened
+                    nextSegmentFirstSequence = segmentAfter(segmentFirstSequence);
+                }
+                if (in == null || (nextSegmentFirstSequence != null && nextSequence >= nextSegmentFirstSequence)) {
+                    openSegmentFor(nextSequence);
+                }
+
+                long sequence = in.readLong();
+                byte op = in.readByte();
+                int keyLength = in.readInt();
+                int valueLength = in.readInt();
+                byte[] key = new byte[keyLength];
+                byte[] value = new byte[valueLength];
+                in.readFully(key);
+                in.readFully(value);
+
+                if (sequence < nextSequence) {
+                    //still seeking to the requested position
+                    continue;
+                }
+                nextSequence = sequence + 1;
+                return new ReplicationRecord(sequence, op, key, value);
+            }
+        }
+
+        private void openSegmentFor(long sequence) throws IOException {
+            close();
+            Map.Entry<Long, File> segment = segmentContaining(sequence);
+            if (segment == null) {
+                throw new IOException("Replication log no longer contains sequence " + sequence);
+            }
+            segmentFirstSequence = segment.getKey();
+            nextSegmentFirstSequence = segmentAfter(segmentFirstSequence);
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.getValue()), 64 * 1024));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package kv.replication;
+
+import kv.storage.CheckpointFiles;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Frames exchanged over the persistent leader -> follower replication connection.
+ *
+ * On connect the follower sends its applied sequence as a single long. The leader then streams
+ * frames starting with the record after that position:
+ * - BATCH: [byte frame][long leaderLastSequence][long leaderTimeMillis][long firstSequence][long lastSequence][int count]
+ *   followed by count entries of [byte op][int keyLength][int valueLength][key][value]. Entries are
+ *   the coalesced records of the sequence range, so applying them in order leaves the follower at
+ *   {@code lastSequence}.
+ * - HEARTBEAT: [byte frame][long leaderLastSequence][long leaderTimeMillis], sent when the leader has nothing to ship
+ * - SNAPSHOT: [byte frame][long sequence][int fileCount] followed by fileCount files of
+ *   [utf relativePath][long length][bytes]. Sent instead of records when the follower's position is no
+ *   longer in the leader's log; the follower replaces its data with the files and continues from
+ *   {@code sequence}.
+ * {@code leaderTimeMillis} is the leader's clock when it read {@code leaderLastSequence}: the leader had no write
+ * beyond that sequence at that time, which is what the follower measures its staleness against.
+ * The follower answers with its applied sequence (a single long) whenever it has drained its input, and
+ * at least every {@code ReplicationServer.ACKNOWLEDGE_MAX_RECORDS} records or
+ * {@code ReplicationServer.ACKNOWLEDGE_INTERVAL_MILLIS} while it has not.
+ */
+final class ReplicationProtocol {
+
+    static final byte FRAME_BATCH = 0x03;
+    static final byte FRAME_HEARTBEAT = 0x02;
+    static final byte FRAME_SNAPSHOT = 0x04;
+
+    static final long HEARTBEAT_INTERVAL_MILLIS = 1000;
+
+    private ReplicationProtocol() {
+    }
+
+    record Batch(long leaderLastSequence, long leaderTimeMillis, long firstSequence, long lastSequence, List<ReplicationRecord> records) {
+    }
+
+    static void writeBatch(DataOutputStream out, long leaderLastSequence, long leaderTimeMillis, long firstSequence,
+                           long lastSequence, Collection<ReplicationRecord> records) throws IOException {
+        out.writeByte(FRAME_BATCH);
+        out.writeLong(leaderLastSequence);
+        out.writeLong(leaderTimeMillis);
+        out.writeLong(firstSequence);
+        out.writeLong(lastSequence);
+        out.writeInt(records.size());
+        for (ReplicationRecord record : records) {
+            out.writeByte(record.op());
+            out.writeInt(record.key().length);
+            out.writeInt(record.value().length);
+            out.write(record.key());
+            out.write(record.value());
+        }
+    }
+
+    static Batch readBatch(DataInputStream in) throws IOException {
+        long leaderLastSequence = in.readLong();
+        long leaderTimeMillis = in.readLong();
+        long firstSequence = in.readLong();
+        long lastSequence = in.readLong();
+        int count = in.readInt();
+        if (count < 0 || firstSequence > lastSequence) {
+            throw new IOException("Invalid replication batch " + firstSequence + ".." + lastSequence + " of " + count);
+        }
+
+        List<ReplicationRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte op = in.readByte();
+            int keyLength = in.readInt();
+            int valueLength = in.readInt();
+            if (keyLength < 0 || valueLength < 0) {
+                throw new IOException("Invalid replication record lengths: " + keyLength + ", " + valueLength);
+            }
+            byte[] key = new byte[keyLength];
+            byte[] value = new byte[valueLength];
+            in.readFully(key);
+            in.readFully(value);
+            //entries of a coalesced batch carry the batch's last sequence
+            records.add(new ReplicationRecord(lastSequence, op, key, value));
+        }
+        return new Batch(leaderLastSequence, leaderTimeMillis, firstSequence, lastSequence, records);
+    }
+
+    static void writeSnapshot(DataOutputStream out, long sequence, File checkpointDir) throws IOException {
+        out.writeByte(FRAME_SNAPSHOT);
+        out.writeLong(sequence);
+        CheckpointFiles.write(out, checkpointDir);
+    }
+
+    /**
+     * Reads the files of a snapshot frame into {@code stagingDir}.
+     * @return the replication sequence the snapshot corresponds to
+     */
+    static long readSnapshot(DataInputStream in, File stagingDir) throws IOException {
+        long sequence = in.readLong();
+        CheckpointFiles.read(in, stagingDir);
+        return sequence;
+    }
+
+    static void writeHeartbeat(DataOutputStream out, long leaderLastSequence, long leaderTimeMillis) throws IOException {
+        out.writeByte(FRAME_HEARTBEAT);
+        out.writeLong(leaderLastSequence);
+        out.writeLong(leaderTimeMillis);
+    }
+}
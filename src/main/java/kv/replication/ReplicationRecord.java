@@ -0,0 +1,8 @@
+package kv.replication;
+
+/**
+ * A single mutation in the replication log, identified by a strictly increasing sequence number.
+ * {@code op} uses the write ahead log op codes.
+ */
+public record ReplicationRecord(long sequence, byte op, byte[] key, byte[] value) {
+}
@@ -0,0 +1,305 @@
+package kv.replication;
+
+import kv.core.StorageEngine;
+import kv.storage.CheckpointFiles;
+import kv.storage.WriteAheadLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Follower side of log-shipping replication.
+ *
+ * Accepts the leader's connection, reports the last applied sequence and then applies batches
+ * strictly in sequence order. The applied position is written after the records it covers have
+ * been applied to the engine, so a restart re-applies at most the records since the last acknowledgement,
+ * which is harmless because puts and deletes are idempotent when replayed in order. It is not fsynced:
+ * the engine's write ahead log syncs on its own period, and a position synced ahead of it would make
+ * records lost in a machine crash look applied. Left to the OS, it can only fall behind them.
+ *
+ * A leader that no longer has the follower's position in its log sends a snapshot instead. The files
+ * are staged next to the position file and then swapped into the engine, replacing its contents.
+ *
+ * Every frame carries the leader's last sequence and the leader's clock when it read it. The follower keeps
+ * these pairs until it has applied their sequence, and is then known to hold everything the leader had at that
+ * time; its staleness is the time since the newest such point. Batches are stamped with the leader's latest
+ * sequence rather than their own, so under steady writes this trails by about one batch instead of waiting for
+ * the leader to go idle. It is measured across the two clocks, so it includes any difference between them.
+ */
+public class ReplicationServer implements ReplicationStatus, AutoCloseable {
+
+    //a leader streaming back to back never lets the input drain, so acknowledge at least this often
+    static final int ACKNOWLEDGE_MAX_RECORDS = 1024;
+    static final long ACKNOWLEDGE_INTERVAL_MILLIS = 20;
+    //past this many unapplied leader positions the newest ones are merged, which only overstates staleness
+    private static final int MAX_PENDING_LEADER_POSITIONS = 1024;
+
+    private final StorageEngine storageEngine;
+    private final int port;
+    private final RandomAccessFile positionFile;
+    private final File snapshotStagingDir;
+
+    private volatile long appliedSequence;
+    private volatile long leaderSequence;
+    //leader time up to which this follower holds every write, 0 until known
+    private volatile long caughtUpAtMillis = 0;
+    //[leaderLastSequence, leaderTimeMillis] pairs not applied yet, in sequence order
+    private final ArrayDeque<long[]> pendingLeaderPositions = new ArrayDeque<>();
+    private volatile boolean running = false;
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    //accepted leader connections and the threads serving them, guarded by itself
+    private final Map<Socket, Thread> sessions = new HashMap<>();
+
+    public ReplicationServer(StorageEngine storageEngine, int port, File positionFile) throws IOException {
+        this.storageEngine = storageEngine;
+        this.port = port;
+        this.positionFile = new RandomAccessFile(positionFile, "rw");
+        this.snapshotStagingDir = new File(positionFile.getAbsoluteFile().getParentFile(), "replication-snapshot");
+        this.appliedSequence = this.positionFile.length() >= Long.BYTES ? this.positionFile.readLong() : 0L;
+        this.leaderSequence = appliedSequence;
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+        running = true;
+
+        acceptor = new Thread(this::acceptLoop, "replication-server-" + port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.printf("ReplicationServer listening on port %d, applied sequence %d%n", port, appliedSequence);
+    }
+
+    @Override
+    public String role() {
+        return "follower";
+    }
+
+    @Override
+    public long appliedSequence() {
+        return appliedSequence;
+    }
+
+    @Override
+    public long stalenessMillis() {
+        //never caught up with a live leader since start
+        if (caughtUpAtMillis == 0) return Long.MAX_VALUE;
+        return Math.max(0, System.currentTimeMillis() - caughtUpAtMillis);
+    }
+
+    /**
+     * @return the leader's last sequence as of the most recent frame received from it
+     */
+    public long leaderSequence() {
+        return leaderSequence;
+    }
+
+    /**
+     * Stops accepting, closes every leader connection and waits for their threads, so the port and the position
+     * file are released when this returns.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        List<Thread> threads = new ArrayList<>();
+        if (acceptor != null) {
+            threads.add(acceptor);
+        }
+        synchronized (sessions) {
+            sessions.keySet().forEach(ReplicationServer::closeQuietly);
+            threads.addAll(sessions.values());
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stopping replication threads on port " + port);
+        } finally {
+            synchronized (this) {
+                positionFile.close();
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                synchronized (sessions) {
+                    //accepted while closing, close() has already taken its list of sessions
+                    if (!running) {
+                        closeQuietly(socket);
+                        break;
+                    }
+                    //a reconnecting leader replaces any stale session
+                    sessions.keySet().forEach(ReplicationServer::closeQuietly);
+                    Thread session = new Thread(() -> handleLeader(socket), "replication-session-" + port);
+                    session.setDaemon(true);
+                    sessions.put(socket, session);
+                    session.start();
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Replication accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handleLeader(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout((int) (ReplicationProtocol.HEARTBEAT_INTERVAL_MILLIS * 5));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            out.writeLong(appliedSequence);
+            out.flush();
+            long acknowledgedSequence = appliedSequence;
+            long acknowledgedAtMillis = System.currentTimeMillis();
+
+            while (running) {
+                byte frame = in.readByte();
+                if (frame == ReplicationProtocol.FRAME_BATCH) {
+                    ReplicationProtocol.Batch batch = ReplicationProtocol.readBatch(in);
+                    apply(batch);
+                    onLeaderPosition(batch.leaderLastSequence(), batch.leaderTimeMillis());
+                } else if (frame == ReplicationProtocol.FRAME_SNAPSHOT) {
+                    restoreSnapshot(in);
+                } else if (frame == ReplicationProtocol.FRAME_HEARTBEAT) {
+                    long leaderLastSequence = in.readLong();
+                    onLeaderPosition(leaderLastSequence, in.readLong());
+                } else {
+                    throw new IOException("Unknown replication frame " + frame);
+                }
+
+                //acknowledge once the buffered frames are drained rather than per record, or when too much is unacknowledged
+                long now = System.currentTimeMillis();
+                if (in.available() == 0
+                        || appliedSequence - acknowledgedSequence >= ACKNOWLEDGE_MAX_RECORDS
+                        || now - acknowledgedAtMillis >= ACKNOWLEDGE_INTERVAL_MILLIS) {
+                    acknowledgedSequence = acknowledge(out);
+                    acknowledgedAtMillis = now;
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Replication session ended: " + e);
+            }
+        } finally {
+            synchronized (sessions) {
+                sessions.remove(socket);
+            }
+        }
+    }
+
+    private synchronized void apply(ReplicationProtocol.Batch batch) throws IOException {
+        long expected = appliedSequence + 1;
+        if (batch.lastSequence() < expected) {
+            //already applied, e.g. replayed after a reconnect
+            return;
+        }
+        if (batch.firstSequence() > expected) {
+            throw new IOException("Replication gap: expected sequence " + expected + " but got " + batch.firstSequence());
+        }
+
+        //a coalesced batch holds the last write per key, so re-applying an overlapping one is harmless
+        for (ReplicationRecord record : batch.records()) {
+            if (record.op() == WriteAheadLog.OP_PUT) {
+                storageEngine.put(record.key(), record.value());
+            } else if (record.op() == WriteAheadLog.OP_PUT_EXPIRING) {
+                storageEngine.put(record.key(), WriteAheadLog.valueOf(record.value()), WriteAheadLog.expiryOf(record.value()));
+            } else if (record.op() == WriteAheadLog.OP_DELETE) {
+                storageEngine.delete(record.key());
+            } else if (record.op() == WriteAheadLog.OP_DELETE_RANGE) {
+                storageEngine.deleteRange(record.key(), record.value());
+            } else {
+                throw new IOException("Unknown replication op " + record.op());
+            }
+        }
+
+        appliedSequence = batch.lastSequence();
+    }
+
+    private void restoreSnapshot(DataInputStream in) throws IOException {
+        long start = System.currentTimeMillis();
+        CheckpointFiles.deleteRecursively(snapshotStagingDir);
+        try {
+            long sequence = ReplicationProtocol.readSnapshot(in, snapshotStagingDir);
+            synchronized (this) {
+                storageEngine.restoreCheckpoint(snapshotStagingDir);
+                appliedSequence = sequence;
+                //persist right away, the old position no longer matches the engine's contents
+                positionFile.seek(0);
+                positionFile.writeLong(appliedSequence);
+                positionFile.getFD().sync();
+            }
+            System.out.printf("Restored snapshot at sequence %d in %d ms%n", sequence, System.currentTimeMillis() - start);
+        } finally {
+            CheckpointFiles.deleteRecursively(snapshotStagingDir);
+        }
+    }
+
+    /**
+     * Records that the leader had no write beyond {@code leaderLastSequence} at {@code leaderTimeMillis} and moves
+     * the caught-up time to the newest such point this follower has applied.
+     */
+    private synchronized void onLeaderPosition(long leaderLastSequence, long leaderTimeMillis) {
+        leaderSequence = Math.max(leaderSequence, leaderLastSequence);
+
+        long[] newest = pendingLeaderPositions.peekLast();
+        if (newest != null && (newest[0] >= leaderLastSequence || pendingLeaderPositions.size() >= MAX_PENDING_LEADER_POSITIONS)) {
+            //holding the newer sequence still means holding everything the leader had at the later time
+            newest[0] = Math.max(newest[0], leaderLastSequence);
+            newest[1] = Math.max(newest[1], leaderTimeMillis);
+        } else {
+            pendingLeaderPositions.addLast(new long[]{leaderLastSequence, leaderTimeMillis});
+        }
+
+        long caughtUpAt = caughtUpAtMillis;
+        while (!pendingLeaderPositions.isEmpty() && pendingLeaderPositions.peekFirst()[0] <= appliedSequence) {
+            caughtUpAt = Math.max(caughtUpAt, pendingLeaderPositions.pollFirst()[1]);
+        }
+        caughtUpAtMillis = caughtUpAt;
+    }
+
+    /**
+     * @return the sequence acknowledged
+     */
+    private synchronized long acknowledge(DataOutputStream out) throws IOException {
+        positionFile.seek(0);
+        positionFile.writeLong(appliedSequence);
+
+        out.writeLong(appliedSequence);
+        out.flush();
+        return appliedSequence;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package kv.replication;
+
+/**
+ * How far this node's data is along the leader's replication log.
+ */
+public interface ReplicationStatus {
+
+    String role();
+
+    /**
+     * @return last replication sequence applied on this node
+     */
+    long appliedSequence();
+
+    /**
+     * @return milliseconds since this node was last known to hold every write the leader had, 0 on the leader
+     */
+    long stalenessMillis();
+
+    static ReplicationStatus leader(ReplicationLog replicationLog) {
+        return new ReplicationStatus() {
+            @Override
+            public String role() {
+                return "leader";
+            }
+
+            @Override
+            public long appliedSequence() {
+                return replicationLog.lastSequence();
+            }
+
+            @Override
+            public long stalenessMillis() {
+                return 0;
+            }
+        };
+    }
+}
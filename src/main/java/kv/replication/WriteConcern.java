@@ -0,0 +1,36 @@
+package kv.replication;
+
+import java.util.Locale;
+
+/**
+ * How many followers must acknowledge a write before the leader reports it as successful.
+ */
+public enum WriteConcern {
+    LEADER_ONLY,
+    ONE,
+    MAJORITY,
+    ALL;
+
+    /**
+     * @param followerCount number of configured followers
+     * @return follower acknowledgements needed, the leader's own write always counts as one vote
+     */
+    public int requiredAcknowledgements(int followerCount) {
+        return switch (this) {
+            case LEADER_ONLY -> 0;
+            case ONE -> Math.min(1, followerCount);
+            //majority of leader + followers, minus the leader itself
+            case MAJORITY -> (followerCount + 1) / 2;
+            case ALL -> followerCount;
+        };
+    }
+
+    public static WriteConcern parse(String value) {
+        String normalized = value.trim().toUpperCase(Locale.ROOT).replace('-', '_');
+        return switch (normalized) {
+            case "LEADER", "0" -> LEADER_ONLY;
+            case "1" -> ONE;
+            default -> WriteConcern.valueOf(normalized);
+        };
+    }
+}
@@ -0,0 +1,14 @@
+package kv.replication;
+
+import java.io.IOException;
+
+/**
+ * The write was applied on the leader but not acknowledged by enough followers before the deadline.
+ */
+public class WriteConcernException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public WriteConcernException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,211 @@
+package kv.routing;
+
+import kv.api.http.ResponseEncoding;
+import kv.core.facade.KeyValueApi;
+import kv.storage.CheckpointFiles;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link KeyValueApi} backed by another node's http api.
+ *
+ * Range reads ask for the length-prefixed binary format, batches are sent in it, and the range
+ * transfer endpoints are used to move a partition's tables between nodes.
+ */
+public class RemoteKeyValueApi implements KeyValueApi {
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(2);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private final String baseUrl;
+    private final HttpClient httpClient;
+
+    /**
+     * @param baseUrl e.g. {@code http://localhost:8080}
+     */
+    public RemoteKeyValueApi(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.httpClient = HttpClient.newBuilder().connectTimeout(CONNECT_TIMEOUT).build();
+    }
+
+    public String baseUrl() {
+        return baseUrl;
+    }
+
+    @Override
+    public void put(String key, String value) throws IOException {
+        HttpRequest request = request("/keyvalue?key=" + encode(key))
+                .PUT(HttpRequest.BodyPublishers.ofString(value, StandardCharsets.UTF_8))
+                .build();
+        expectOk(send(request, HttpResponse.BodyHandlers.ofString()));
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMillis) throws IOException {
+        HttpRequest request = request("/keyvalue?key=" + encode(key) + "&ttlMs=" + ttlMillis)
+                .PUT(HttpRequest.BodyPublishers.ofString(value, StandardCharsets.UTF_8))
+                .build();
+        expectOk(send(request, HttpResponse.BodyHandlers.ofString()));
+    }
+
+    @Override
+    public String read(String key) throws IOException {
+        HttpResponse<String> response = send(request("/keyvalue?key=" + encode(key)).GET().build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() == 404) {
+            return null;
+        }
+        expectOk(response);
+        return response.body();
+    }
+
+    /**
+     * @return entries in key order
+     */
+    @Override
+    public Map<String, String> readKeyRange(String startKey, String endKey) throws IOException {
+        HttpRequest request = request("/keyvalue/range?startKey=" + encode(startKey) + "&endKey=" + encode(endKey))
+                .header("Accept", ResponseEncoding.BINARY_CONTENT_TYPE)
+                .GET()
+                .build();
+        HttpResponse<InputStream> response = send(request, HttpResponse.BodyHandlers.ofInputStream());
+
+        try (InputStream body = response.body()) {
+            if (response.statusCode() != 200) {
+                throw new IOException(baseUrl + " answered " + response.statusCode() + ": "
+                        + new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+
+            Map<String, String> entries = new LinkedHashMap<>();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(body));
+            while (true) {
+                int keyLength;
+                try {
+                    keyLength = in.readInt();
+                } catch (EOFException endOfEntries) {
+                    break;
+                }
+                int valueLength = in.readInt();
+                byte[] key = new byte[keyLength];
+                byte[] value = new byte[valueLength];
+                in.readFully(key);
+                in.readFully(value);
+                entries.put(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8));
+            }
+            return entries;
+        }
+    }
+
+    @Override
+    public void batchPut(Map<String, String> entries) throws IOException {
+        if (entries == null || entries.isEmpty()) return;
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) continue;
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(key.length);
+            out.writeInt(value.length);
+            out.write(key);
+            out.write(value);
+        }
+
+        HttpRequest request = request("/keyvalue/batch")
+                .header("Content-Type", ResponseEncoding.BINARY_CONTENT_TYPE)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+                .build();
+        expectOk(send(request, HttpResponse.BodyHandlers.ofString()));
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        expectOk(send(request("/keyvalue?key=" + encode(key)).DELETE().build(), HttpResponse.BodyHandlers.ofString()));
+    }
+
+    @Override
+    public void deleteRange(String startKey, String endKey) throws IOException {
+        HttpRequest request = request("/keyvalue/range?startKey=" + encode(startKey) + "&endKey=" + encode(endKey)).DELETE().build();
+        expectOk(send(request, HttpResponse.BodyHandlers.ofString()));
+    }
+
+    /**
+     * Downloads the node's tables for keys in [startKey, endKey) into {@code targetDir}.
+     * A null {@code endKey} is unbounded.
+     */
+    public void exportRange(String startKey, String endKey, File targetDir) throws IOException {
+        String path = "/admin/range/export?startKey=" + encode(startKey) + (endKey == null ? "" : "&endKey=" + encode(endKey));
+        HttpResponse<InputStream> response = send(request(path).GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+
+        try (InputStream body = response.body()) {
+            if (response.statusCode() != 200) {
+                throw new IOException(baseUrl + " answered " + response.statusCode() + ": "
+                        + new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            CheckpointFiles.read(new DataInputStream(new BufferedInputStream(body, 64 * 1024)), targetDir);
+        }
+    }
+
+    /**
+     * Uploads tables produced by {@link #exportRange(String, String, File)} to the node, which adds
+     * them as its newest data.
+     */
+    public void importRange(File sourceDir) throws IOException {
+        //the bundle is staged in a file so the upload has a known length and is not held in memory
+        File bundle = File.createTempFile("range-import", ".bundle");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bundle), 64 * 1024))) {
+                CheckpointFiles.write(out, sourceDir);
+            }
+            HttpRequest request = request("/admin/range/import")
+                    .header("Content-Type", ResponseEncoding.BINARY_CONTENT_TYPE)
+                    .POST(HttpRequest.BodyPublishers.ofFile(bundle.toPath()))
+                    .build();
+            expectOk(send(request, HttpResponse.BodyHandlers.ofString()));
+        } finally {
+            bundle.delete();
+        }
+    }
+
+    private HttpRequest.Builder request(String pathAndQuery) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + pathAndQuery)).timeout(REQUEST_TIMEOUT);
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+        try {
+            return httpClient.send(request, bodyHandler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while calling " + request.uri(), e);
+        }
+    }
+
+    private void expectOk(HttpResponse<String> response) throws IOException {
+        if (response.statusCode() != 200) {
+            throw new IOException(baseUrl + " answered " + response.statusCode() + ": " + response.body());
+        }
+    }
+
+    //the server decodes %XX escapes but not '+', so spaces must be sent as %20
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+}
@@ -0,0 +1,238 @@
+package kv.routing;
+
+import kv.cluster.PartitionMap;
+import kv.core.facade.KeyValueApi;
+import kv.storage.CheckpointFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link KeyValueApi} that spreads the key space over several leader nodes by key range.
+ *
+ * Point operations go to the owner of the key's partition. Range reads are sent to every partition
+ * overlapping the range in parallel, each clipped to its partition, and merged in key order; range deletes
+ * are clipped the same way.
+ *
+ * A hot partition can be split: writes are paused, the tables holding the moved keys are exported
+ * from the current owner and imported by the new one, and the new map is persisted before writes
+ * resume. Reads keep being served from the old owner until the switch, after which the moved keys are
+ * range-deleted there, so they neither take up its disk nor come back if the range is ever moved back.
+ * Every answer is clipped to the partition the node owns, so reads are right even if that delete fails.
+ */
+public class RoutingKeyValueApi implements KeyValueApi, AutoCloseable {
+
+    //sorts after every key not led by U+FFFF, a noncharacter; range deletes need an end, the last partition has none
+    private static final String AFTER_LAST_KEY = "\uFFFF";
+
+    private final Map<String, RemoteKeyValueApi> nodes;
+    private final File partitionMapFile;
+    private final ExecutorService fanOutExecutor;
+    //writes share it, a split takes it exclusively while it moves data
+    private final ReentrantReadWriteLock splitLock = new ReentrantReadWriteLock();
+    private volatile PartitionMap partitionMap;
+
+    /**
+     * @param nodes            owner node id -> api of that node
+     * @param partitionMapFile where the map is persisted after a split, may be null
+     */
+    public RoutingKeyValueApi(PartitionMap partitionMap, Map<String, RemoteKeyValueApi> nodes, File partitionMapFile) {
+        for (PartitionMap.Partition partition : partitionMap.partitions()) {
+            if (!nodes.containsKey(partition.ownerId())) {
+                throw new IllegalArgumentException("No address for " + partition.ownerId() + " which owns '" + partition.startKey() + "'");
+            }
+        }
+        this.partitionMap = partitionMap;
+        this.nodes = Map.copyOf(nodes);
+        this.partitionMapFile = partitionMapFile;
+        this.fanOutExecutor = Executors.newFixedThreadPool(Math.max(2, nodes.size()), runnable -> {
+            Thread thread = new Thread(runnable, "range-fan-out");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public PartitionMap partitionMap() {
+        return partitionMap;
+    }
+
+    @Override
+    public void put(String key, String value) throws IOException {
+        splitLock.readLock().lock();
+        try {
+            ownerOf(key).put(key, value);
+        } finally {
+            splitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMillis) throws IOException {
+        splitLock.readLock().lock();
+        try {
+            ownerOf(key).put(key, value, ttlMillis);
+        } finally {
+            splitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String read(String key) throws IOException {
+        return ownerOf(key).read(key);
+    }
+
+    @Override
+    public Map<String, String> readKeyRange(String startKey, String endKey) throws IOException {
+        List<PartitionMap.Partition> partitions = partitionMap.overlapping(startKey, endKey);
+        List<CompletableFuture<Map<String, String>>> parts = new ArrayList<>();
+        for (PartitionMap.Partition partition : partitions) {
+            parts.add(CompletableFuture.supplyAsync(() -> readPartition(partition, startKey, endKey), fanOutExecutor));
+        }
+
+        Map<String, String> merged = new TreeMap<>();
+        try {
+            for (CompletableFuture<Map<String, String>> part : parts) {
+                merged.putAll(part.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException unchecked) {
+                throw unchecked.getCause();
+            }
+            throw e;
+        }
+        return merged;
+    }
+
+    @Override
+    public void batchPut(Map<String, String> entries) throws IOException {
+        if (entries == null || entries.isEmpty()) return;
+
+        splitLock.readLock().lock();
+        try {
+            Map<String, Map<String, String>> byOwner = new LinkedHashMap<>();
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                if (entry.getKey() == null || entry.getValue() == null) continue;
+                byOwner.computeIfAbsent(partitionMap.partitionFor(entry.getKey()).ownerId(), id -> new LinkedHashMap<>())
+                        .put(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, Map<String, String>> slice : byOwner.entrySet()) {
+                nodes.get(slice.getKey()).batchPut(slice.getValue());
+            }
+        } finally {
+            splitLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        splitLock.readLock().lock();
+        try {
+            ownerOf(key).delete(key);
+        } finally {
+            splitLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sends every partition overlapping the range the part of it inside the partition, one after another.
+     */
+    @Override
+    public void deleteRange(String startKey, String endKey) throws IOException {
+        splitLock.readLock().lock();
+        try {
+            for (PartitionMap.Partition partition : partitionMap.overlapping(startKey, endKey)) {
+                String from = startKey.compareTo(partition.startKey()) > 0 ? startKey : partition.startKey();
+                String to = partition.endKey() != null && partition.endKey().compareTo(endKey) < 0 ? partition.endKey() : endKey;
+                //the partition starting at the end key itself holds nothing of the range
+                if (from.compareTo(to) >= 0) continue;
+                nodes.get(partition.ownerId()).deleteRange(from, to);
+            }
+        } finally {
+            splitLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the keys from {@code splitKey} to the end of its partition to {@code newOwnerId}.
+     */
+    public void split(String splitKey, String newOwnerId) throws IOException {
+        RemoteKeyValueApi target = nodes.get(newOwnerId);
+        if (target == null) {
+            throw new IllegalArgumentException("Unknown node " + newOwnerId);
+        }
+
+        splitLock.writeLock().lock();
+        try {
+            PartitionMap.Partition partition = partitionMap.partitionFor(splitKey);
+            PartitionMap split = partitionMap.split(splitKey, newOwnerId);
+            long start = System.currentTimeMillis();
+            boolean moved = !partition.ownerId().equals(newOwnerId);
+
+            if (moved) {
+                File staging = Files.createTempDirectory("range-split").toFile();
+                try {
+                    nodes.get(partition.ownerId()).exportRange(splitKey, partition.endKey(), staging);
+                    target.importRange(staging);
+                } finally {
+                    CheckpointFiles.deleteRecursively(staging);
+                }
+            }
+
+            if (partitionMapFile != null) {
+                split.store(partitionMapFile);
+            }
+            partitionMap = split;
+
+            //still under the lock, so the range cannot have been moved back to the old owner in between
+            if (moved) {
+                String end = partition.endKey() == null ? AFTER_LAST_KEY : partition.endKey();
+                try {
+                    nodes.get(partition.ownerId()).deleteRange(splitKey, end);
+                } catch (IOException e) {
+                    System.out.printf("Could not delete the moved keys [%s, %s) from %s, they stay on its disk: %s%n",
+                            splitKey, partition.endKey() == null ? "" : partition.endKey(), partition.ownerId(), e.getMessage());
+                }
+            }
+            System.out.printf("Split [%s, %s) at '%s', moved to %s in %d ms%n", partition.startKey(),
+                    partition.endKey() == null ? "" : partition.endKey(), splitKey, newOwnerId, System.currentTimeMillis() - start);
+        } finally {
+            splitLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        fanOutExecutor.shutdownNow();
+    }
+
+    private RemoteKeyValueApi ownerOf(String key) {
+        return nodes.get(partitionMap.partitionFor(key).ownerId());
+    }
+
+    //asks the owner for the part of the range inside its partition and drops anything outside it
+    private Map<String, String> readPartition(PartitionMap.Partition partition, String startKey, String endKey) {
+        String from = startKey.compareTo(partition.startKey()) > 0 ? startKey : partition.startKey();
+        //partition ends are exclusive, the range api is inclusive, so the end key itself is filtered below
+        String to = partition.endKey() != null && partition.endKey().compareTo(endKey) < 0 ? partition.endKey() : endKey;
+
+        try {
+            Map<String, String> entries = nodes.get(partition.ownerId()).readKeyRange(from, to);
+            entries.keySet().removeIf(key -> !partition.contains(key));
+            return entries;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
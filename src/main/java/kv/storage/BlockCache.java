@@ -0,0 +1,70 @@
+package kv.storage;
+
+import kv.metrics.Counter;
+import kv.metrics.MetricsRegistry;
+import kv.metrics.ReadTrace;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decompressed sstable blocks of one engine, the least recently used evicted first once the cache is full.
+ */
+final class BlockCache {
+    private static final Counter HITS = MetricsRegistry.global().counter("kv_block_cache_hits_total", "Sstable block reads served from memory");
+    private static final Counter MISSES = MetricsRegistry.global().counter("kv_block_cache_misses_total", "Sstable block reads that went to disk");
+
+    record Key(File table, long offset) {
+    }
+
+    private final long capacityBytes;
+    //access ordered, so iteration starts at the least recently used block
+    private final LinkedHashMap<Key, byte[]> blocks = new LinkedHashMap<>(64, 0.75f, true);
+    private long sizeBytes = 0;
+
+    BlockCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    synchronized byte[] get(Key key) {
+        byte[] block = blocks.get(key);
+        if (block == null) {
+            MISSES.increment();
+        } else {
+            HITS.increment();
+            ReadTrace trace = ReadTrace.current();
+            if (trace != null) {
+                trace.blockCacheHit();
+            }
+        }
+        return block;
+    }
+
+    synchronized void put(Key key, byte[] block) {
+        if (block.length > capacityBytes) return;
+
+        byte[] previous = blocks.put(key, block);
+        sizeBytes += block.length - (previous == null ? 0 : previous.length);
+        Iterator<byte[]> leastRecentlyUsed = blocks.values().iterator();
+        while (sizeBytes > capacityBytes) {
+            sizeBytes -= leastRecentlyUsed.next().length;
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    /**
+     * Drops the blocks of a table that is no longer live.
+     */
+    synchronized void invalidate(File table) {
+        Iterator<Map.Entry<Key, byte[]>> entries = blocks.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, byte[]> entry = entries.next();
+            if (entry.getKey().table().equals(table)) {
+                sizeBytes -= entry.getValue().length;
+                entries.remove();
+            }
+        }
+    }
+}
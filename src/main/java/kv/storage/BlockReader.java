@@ -0,0 +1,208 @@
+package kv.storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Steps through the records of an uncompressed sstable block in key order.
+ */
+final class BlockReader {
+
+    private final byte[] block;
+    private final int formatVersion;
+    //records end where the restart offsets begin
+    private final int recordsEnd;
+    private final int restartsStart;
+    private final int restartCount;
+    private int position = 0;
+
+    //prefix compressed keys are rebuilt from the key before, so the current key is kept as bytes too
+    private byte[] keyBytes = new byte[64];
+    private int keyLength = 0;
+    private String key;
+    private int valueOffset;
+    //-1 for a tombstone
+    private int valueLength;
+    //the value is a pointer into the value log
+    private boolean separated;
+    //0 if the value never expires
+    private long expiresAtMillis;
+    private int recordLength;
+
+    BlockReader(byte[] block, int formatVersion) throws IOException {
+        this.block = block;
+        this.formatVersion = formatVersion;
+        if (formatVersion >= SsTableFormat.PREFIX_BLOCKS) {
+            if (block.length < 4) {
+                throw new IOException("Block of " + block.length + " bytes has no restart points");
+            }
+            restartCount = SsTableFormat.readInt(block, block.length - 4);
+            restartsStart = block.length - 4 - 4 * restartCount;
+            if (restartCount <= 0 || restartsStart < 0) {
+                throw new IOException("Block has a corrupt restart count " + restartCount);
+            }
+            recordsEnd = restartsStart;
+        } else {
+            restartCount = 0;
+            restartsStart = block.length;
+            recordsEnd = block.length;
+        }
+    }
+
+    /**
+     * Moves to the last restart point whose key is not after {@code target}, so the following calls to
+     * {@link #next()} reach {@code target} or the first key after it. Blocks without restart points are
+     * scanned from the start.
+     */
+    void seek(String target) throws IOException {
+        if (restartCount == 0) return;
+
+        int low = 0;
+        int high = restartCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (restartKey(middle).compareTo(target) <= 0) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        position = restartOffset(low);
+        keyLength = 0;
+    }
+
+    /**
+     * @return false once every record has been read
+     */
+    boolean next() throws IOException {
+        if (position >= recordsEnd) return false;
+        if (formatVersion >= SsTableFormat.PREFIX_BLOCKS) {
+            readPrefixedRecord();
+        } else {
+            readPlainRecord();
+        }
+        key = new String(keyBytes, 0, keyLength, StandardCharsets.UTF_8);
+        return true;
+    }
+
+    String key() {
+        return key;
+    }
+
+    Entry entry() {
+        if (valueLength < 0) {
+            return new Entry(null, true);
+        }
+        if (separated) {
+            return Entry.separated(new ValueLog.Pointer(SsTableFormat.readLong(block, valueOffset),
+                    SsTableFormat.readLong(block, valueOffset + 8), SsTableFormat.readInt(block, valueOffset + 16)), expiresAtMillis);
+        }
+        return new Entry(Arrays.copyOfRange(block, valueOffset, valueOffset + valueLength), false, null, expiresAtMillis);
+    }
+
+    /**
+     * @return bytes of the current record, for tracing
+     */
+    int recordLength() {
+        return recordLength;
+    }
+
+    private void readPlainRecord() throws IOException {
+        if (recordsEnd - position < 8) {
+            throw new IOException("Truncated record at " + position + " of a block");
+        }
+        int length = SsTableFormat.readInt(block, position);
+        int storedValueLength = SsTableFormat.readInt(block, position + 4);
+        int start = position + 8;
+        if (length < 0 || (long) start + length + Math.max(0, storedValueLength) > recordsEnd) {
+            throw new IOException("Invalid record at " + position + " of a block");
+        }
+        setKey(0, block, start, length);
+        separated = false;
+        expiresAtMillis = 0;
+        valueOffset = start + length;
+        valueLength = storedValueLength;
+        recordLength = 8 + length + Math.max(0, storedValueLength);
+        position += recordLength;
+    }
+
+    private void readPrefixedRecord() throws IOException {
+        int start = position;
+        int shared = readVarint();
+        int unshared = readVarint();
+        int tag = readVarint();
+        int storedValueLength;
+        separated = false;
+        int expiryLength = 0;
+        if (formatVersion >= SsTableFormat.EXPIRING_VALUES && tag != 0) {
+            expiryLength = (tag & 1) * 8;
+            tag >>>= 1;
+            if (tag == 0) {
+                throw new IOException("Invalid value tag at " + start + " of a block");
+            }
+        }
+        if (formatVersion < SsTableFormat.VALUE_POINTERS) {
+            storedValueLength = tag - 1;
+        } else if (tag == 1) {
+            separated = true;
+            storedValueLength = ValueLog.Pointer.SIZE;
+        } else {
+            storedValueLength = tag == 0 ? -1 : tag - 2;
+        }
+        if (shared > keyLength || unshared < 0 || (long) position + unshared + expiryLength + Math.max(0, storedValueLength) > recordsEnd) {
+            throw new IOException("Invalid record at " + start + " of a block");
+        }
+        setKey(shared, block, position, unshared);
+        expiresAtMillis = expiryLength == 0 ? 0 : SsTableFormat.readLong(block, position + unshared);
+        valueOffset = position + unshared + expiryLength;
+        valueLength = storedValueLength;
+        position = valueOffset + Math.max(0, storedValueLength);
+        recordLength = position - start;
+    }
+
+    private String restartKey(int restart) throws IOException {
+        int at = restartOffset(restart);
+        int saved = position;
+        position = at;
+        int shared = readVarint();
+        int unshared = readVarint();
+        readVarint();
+        if (shared != 0 || (long) position + unshared > recordsEnd) {
+            throw new IOException("Invalid restart point at " + at + " of a block");
+        }
+        String restartKey = new String(block, position, unshared, StandardCharsets.UTF_8);
+        position = saved;
+        return restartKey;
+    }
+
+    private int restartOffset(int restart) throws IOException {
+        int offset = SsTableFormat.readInt(block, restartsStart + 4 * restart);
+        if (offset < 0 || offset >= recordsEnd) {
+            throw new IOException("Restart point " + restart + " of a block is outside it");
+        }
+        return offset;
+    }
+
+    //keeps the first {@code shared} bytes of the current key and appends {@code length} bytes of {@code source}
+    private void setKey(int shared, byte[] source, int from, int length) {
+        if (shared + length > keyBytes.length) {
+            keyBytes = Arrays.copyOf(keyBytes, Math.max(keyBytes.length * 2, shared + length));
+        }
+        System.arraycopy(source, from, keyBytes, shared, length);
+        keyLength = shared + length;
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position >= recordsEnd) {
+                throw new IOException("Truncated record at " + position + " of a block");
+            }
+            byte b = block[position++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("Varint too long at " + position + " of a block");
+    }
+}
@@ -0,0 +1,78 @@
+package kv.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Streams a directory of engine files (a checkpoint or an exported range) over a connection.
+ *
+ * Layout: [int fileCount] followed by fileCount files of [utf relativePath][long length][bytes].
+ */
+public final class CheckpointFiles {
+
+    private CheckpointFiles() {
+    }
+
+    public static void write(DataOutputStream out, File dir) throws IOException {
+        Path root = dir.toPath();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).sorted().toList();
+        }
+
+        out.writeInt(files.size());
+        for (Path path : files) {
+            out.writeUTF(root.relativize(path).toString().replace(File.separatorChar, '/'));
+            out.writeLong(Files.size(path));
+            Files.copy(path, out);
+        }
+    }
+
+    /**
+     * Reads the files written by {@link #write(DataOutputStream, File)} into {@code dir}.
+     */
+    public static void read(DataInputStream in, File dir) throws IOException {
+        int fileCount = in.readInt();
+        Path root = dir.toPath().toAbsolutePath().normalize();
+        Files.createDirectories(root);
+        byte[] buffer = new byte[64 * 1024];
+
+        for (int i = 0; i < fileCount; i++) {
+            Path target = root.resolve(in.readUTF()).normalize();
+            if (!target.startsWith(root)) {
+                throw new IOException("File escapes the target directory: " + target);
+            }
+            Files.createDirectories(target.getParent());
+
+            long remaining = in.readLong();
+            try (OutputStream fileOut = Files.newOutputStream(target)) {
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("File stream truncated");
+                    }
+                    fileOut.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        }
+    }
+
+    public static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
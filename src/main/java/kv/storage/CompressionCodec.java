@@ -0,0 +1,261 @@
+package kv.storage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of sstable blocks. The codec of every block is stored in front of it, so tables written
+ * with different codecs can be read side by side and an engine can change codec at any time.
+ */
+public enum CompressionCodec {
+
+    NONE(0) {
+        @Override
+        byte[] compress(byte[] raw, int length) {
+            return Arrays.copyOf(raw, length);
+        }
+
+        @Override
+        void decompress(byte[] stored, int offset, int storedLength, byte[] target) throws IOException {
+            if (storedLength != target.length) {
+                throw new IOException("Uncompressed block of " + storedLength + " bytes, expected " + target.length);
+            }
+            System.arraycopy(stored, offset, target, 0, storedLength);
+        }
+    },
+
+    /**
+     * The JDK's zlib, slower but smaller.
+     */
+    DEFLATE(1) {
+        @Override
+        byte[] compress(byte[] raw, int length) {
+            Deflater deflater = DEFLATERS.get();
+            deflater.reset();
+            deflater.setInput(raw, 0, length);
+            deflater.finish();
+            byte[] out = new byte[length + length / 1000 + 64];
+            int written = 0;
+            while (!deflater.finished()) {
+                if (written == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                written += deflater.deflate(out, written, out.length - written);
+            }
+            return Arrays.copyOf(out, written);
+        }
+
+        @Override
+        void decompress(byte[] stored, int offset, int storedLength, byte[] target) throws IOException {
+            Inflater inflater = INFLATERS.get();
+            inflater.reset();
+            inflater.setInput(stored, offset, storedLength);
+            try {
+                int read = 0;
+                while (read < target.length && !inflater.finished()) {
+                    int inflated = inflater.inflate(target, read, target.length - read);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    read += inflated;
+                }
+                if (read != target.length) {
+                    throw new IOException("Deflated block holds " + read + " bytes, expected " + target.length);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflated block", e);
+            }
+        }
+    },
+
+    /**
+     * Byte oriented LZ77 in the style of LZ4: no entropy coding, so it is several times faster than
+     * deflate in both directions and still shrinks repetitive values such as JSON well.
+     */
+    LZ(2) {
+        @Override
+        byte[] compress(byte[] raw, int length) {
+            return LzBlock.compress(raw, length);
+        }
+
+        @Override
+        void decompress(byte[] stored, int offset, int storedLength, byte[] target) throws IOException {
+            LzBlock.decompress(stored, offset, storedLength, target);
+        }
+    };
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private final int id;
+
+    CompressionCodec(int id) {
+        this.id = id;
+    }
+
+    int id() {
+        return id;
+    }
+
+    /**
+     * @return the first {@code length} bytes of {@code raw} compressed
+     */
+    abstract byte[] compress(byte[] raw, int length);
+
+    /**
+     * Fills {@code target}, whose length is the uncompressed size, from {@code storedLength} bytes of {@code stored}.
+     */
+    abstract void decompress(byte[] stored, int offset, int storedLength, byte[] target) throws IOException;
+
+    static CompressionCodec byId(int id) throws IOException {
+        for (CompressionCodec codec : values()) {
+            if (codec.id == id) return codec;
+        }
+        throw new IOException("Unknown block compression " + id);
+    }
+
+    /**
+     * @param name none, deflate or lz, in any case
+     */
+    public static CompressionCodec parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown compression '" + name + "', expected none, deflate or lz");
+        }
+    }
+
+    /**
+     * The LZ block format: sequences of [token][literal length bytes][literals][2 byte offset][match length bytes],
+     * the token holding the literal length in its high and the match length minus 4 in its low four bits, 15
+     * meaning more length bytes follow (each adds up to 255). The last sequence has literals only.
+     */
+    private static final class LzBlock {
+        private static final int MIN_MATCH = 4;
+        private static final int HASH_LOG = 14;
+        private static final int MAX_OFFSET = 65535;
+        //the last bytes are always literals, which lets the decoder stop on the end of input
+        private static final int LAST_LITERALS = 5;
+        private static final int MATCH_FIND_LIMIT = 12;
+
+        static byte[] compress(byte[] src, int length) {
+            byte[] out = new byte[length + length / 255 + 16];
+            int[] table = new int[1 << HASH_LOG];
+            Arrays.fill(table, -1);
+
+            int op = 0;
+            int anchor = 0;
+            int ip = 0;
+            int matchLimit = length - LAST_LITERALS;
+            int searchLimit = length - MATCH_FIND_LIMIT;
+            while (ip <= searchLimit) {
+                int sequence = readIntLittleEndian(src, ip);
+                int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int ref = table[hash];
+                table[hash] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readIntLittleEndian(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                    matchLength++;
+                }
+
+                int tokenAt = op++;
+                int literals = ip - anchor;
+                op = writeLength(out, op, literals);
+                System.arraycopy(src, anchor, out, op, literals);
+                op += literals;
+                int offset = ip - ref;
+                out[op++] = (byte) offset;
+                out[op++] = (byte) (offset >>> 8);
+                op = writeLength(out, op, matchLength - MIN_MATCH);
+                out[tokenAt] = (byte) ((Math.min(literals, 15) << 4) | Math.min(matchLength - MIN_MATCH, 15));
+
+                ip += matchLength;
+                anchor = ip;
+            }
+
+            int literals = length - anchor;
+            out[op++] = (byte) (Math.min(literals, 15) << 4);
+            op = writeLength(out, op, literals);
+            System.arraycopy(src, anchor, out, op, literals);
+            op += literals;
+            return Arrays.copyOf(out, op);
+        }
+
+        static void decompress(byte[] src, int offset, int srcLength, byte[] dst) throws IOException {
+            int ip = offset;
+            int end = offset + srcLength;
+            int op = 0;
+            try {
+                while (true) {
+                    int token = src[ip++] & 0xFF;
+                    int literals = token >>> 4;
+                    if (literals == 15) {
+                        int more;
+                        do {
+                            more = src[ip++] & 0xFF;
+                            literals += more;
+                        } while (more == 255);
+                    }
+                    if (ip + literals > end || op + literals > dst.length) {
+                        throw new IOException("Corrupt lz block: literals run past its end");
+                    }
+                    System.arraycopy(src, ip, dst, op, literals);
+                    ip += literals;
+                    op += literals;
+                    if (ip == end) break;
+                    if (ip + 2 > end) {
+                        throw new IOException("Corrupt lz block: truncated");
+                    }
+
+                    int distance = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                    ip += 2;
+                    int matchLength = token & 0x0F;
+                    if (matchLength == 15) {
+                        int more;
+                        do {
+                            more = src[ip++] & 0xFF;
+                            matchLength += more;
+                        } while (more == 255);
+                    }
+                    matchLength += MIN_MATCH;
+                    int ref = op - distance;
+                    if (distance == 0 || ref < 0 || op + matchLength > dst.length) {
+                        throw new IOException("Corrupt lz block: match outside the decoded bytes");
+                    }
+                    //byte by byte, a match may overlap the bytes it produces
+                    for (int i = 0; i < matchLength; i++) {
+                        dst[op++] = dst[ref++];
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Corrupt lz block: truncated", e);
+            }
+            if (op != dst.length) {
+                throw new IOException("Lz block holds " + op + " bytes, expected " + dst.length);
+            }
+        }
+
+        //the extra length bytes after a nibble of 15
+        private static int writeLength(byte[] out, int op, int length) {
+            if (length < 15) return op;
+            length -= 15;
+            while (length >= 255) {
+                out[op++] = (byte) 255;
+                length -= 255;
+            }
+            out[op++] = (byte) length;
+            return op;
+        }
+
+        private static int readIntLittleEndian(byte[] bytes, int at) {
+            return (bytes[at] & 0xFF) | (bytes[at + 1] & 0xFF) << 8 | (bytes[at + 2] & 0xFF) << 16 | (bytes[at + 3] & 0xFF) << 24;
+        }
+    }
+}
@@ -1,4 +1,28 @@
 package kv.storage;
 
-public record Entry(byte[] value, boolean deleted) {
+/**
+ * @param pointer         where the value lies in the value log if the table it was read from only holds a pointer to it,
+ *                        in which case {@code value} is null; null otherwise
+ * @param expiresAtMillis epoch millis from which the value reads as absent, 0 if it never expires
+ */
+public record Entry(byte[] value, boolean deleted, ValueLog.Pointer pointer, long expiresAtMillis) {
+
+    public Entry(byte[] value, boolean deleted) {
+        this(value, deleted, null, 0);
+    }
+
+    static Entry separated(ValueLog.Pointer pointer, long expiresAtMillis) {
+        return new Entry(null, false, pointer, expiresAtMillis);
+    }
+
+    boolean expired(long nowMillis) {
+        return expiresAtMillis > 0 && expiresAtMillis <= nowMillis;
+    }
+
+    /**
+     * @return false for a tombstone or an expired value, which both read as absent
+     */
+    boolean isLive(long nowMillis) {
+        return !deleted && !expired(nowMillis);
+    }
 }
@@ -1,86 +1,227 @@
 package kv.storage;
 
+import kv.core.EngineStats;
+import kv.core.ExpiringValue;
 import kv.core.StorageEngine;
+import kv.metrics.Counter;
+import kv.metrics.LatencyHistogram;
+import kv.metrics.MetricsRegistry;
+import kv.metrics.ReadTrace;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 public class LsmStorageEngine implements StorageEngine {
+    private static final Counter FLUSHES = MetricsRegistry.global().counter("kv_memtable_flushes_total", "Memtables written out as sstables");
+    private static final LatencyHistogram FLUSH_LATENCY = MetricsRegistry.global().histogram("kv_memtable_flush_duration_seconds", "Time to write a memtable out");
+
     private final MemTable memTable;
     private final WriteAheadLog writeAheadLog;
     private final ReentrantReadWriteLock readWriteLock= new ReentrantReadWriteLock(true);
+    //one compaction, checkpoint or export at a time: they read tables without the lock above, so nothing else
+    //may replace them meanwhile. Taken before that lock, never while holding it
+    private final ReentrantLock maintenanceLock = new ReentrantLock();
     private final SsTableHandler ssTableHandler;
 
     private final List<File> sstableFiles = new ArrayList<>();
     private final File dataFile;
 
     private final int memtableMaxLimit = 1000;
+    static final String WRITE_AHEAD_LOG_FILE = "writeAheadLog.log";
+    //replays write ahead logs while the sstables of the same engine are opened
+    private static final ExecutorService STARTUP_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "wal-replay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //collects value log garbage of every engine that separates values, one engine at a time
+    private static final ScheduledExecutorService VALUE_LOG_GC = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "value-log-gc");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final long VALUE_LOG_GC_INTERVAL_SECONDS = 60;
+    //null unless values are separated
+    private final ScheduledFuture<?> valueLogGc;
+    private boolean closed = false;
+
+    /**
+     * @return true if {@code dir} holds the tables, write ahead log, manifest or value log of an engine
+     */
+    static boolean holdsEngineFiles(File dir) {
+        String[] names = dir.list((d, name) -> name.equals(WRITE_AHEAD_LOG_FILE) || name.equals(Manifest.FILE_NAME)
+                || name.startsWith(SsTableHandler.SSTABLE_PREFIX) || name.startsWith(ValueLog.SEGMENT_PREFIX));
+        return names != null && names.length > 0;
+    }
 
     public LsmStorageEngine(File dataFile) throws IOException {
+        this(dataFile, SsTableOptions.DEFAULT);
+    }
+
+    public LsmStorageEngine(File dataFile, SsTableOptions options) throws IOException {
         this.dataFile = dataFile;
         if (!dataFile.exists() && !dataFile.mkdirs()) {
             throw new IOException("File " + dataFile.getAbsolutePath() + " does not exist");
         }
+        //its data lives in the shard directories, a single engine here would start empty
+        if (new File(dataFile, ShardedStorageEngine.SHARD_COUNT_FILE).exists()) {
+            throw new IOException("Data in " + dataFile.getAbsolutePath() + " was written by a sharded engine, open it with "
+                    + ShardedStorageEngine.class.getSimpleName() + " and the same shard count");
+        }
+        long start = System.nanoTime();
         this.memTable = new MemTable();
-        this.ssTableHandler = new SsTableHandler(dataFile);
-        this.writeAheadLog = new WriteAheadLog(new File(dataFile, "writeAheadLog.log"));
+        this.writeAheadLog = new WriteAheadLog(new File(dataFile, WRITE_AHEAD_LOG_FILE));
+
+        //the log only feeds the memtable, so it is replayed while the sstables are opened
+        CompletableFuture<long[]> replay = CompletableFuture.supplyAsync(() -> {
+            long replayStart = System.nanoTime();
+            try {
+                return new long[] {replayWriteAheadLogIntoMemTable(), System.nanoTime() - replayStart};
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, STARTUP_EXECUTOR);
 
-        replayWriteAheadLogIntoMemTable();
+        long tablesStart = System.nanoTime();
+        SsTableHandler handler;
+        try {
+            handler = new SsTableHandler(dataFile, options);
+        } catch (IOException | RuntimeException e) {
+            replay.handle((ignored, failure) -> null).join();
+            writeAheadLog.close();
+            throw e;
+        }
+        this.ssTableHandler = handler;
+        long tablesNanos = System.nanoTime() - tablesStart;
+
+        long[] replayed;
+        try {
+            replayed = replay.join();
+        } catch (CompletionException e) {
+            ssTableHandler.close();
+            writeAheadLog.close();
+            if (e.getCause() instanceof UncheckedIOException unchecked) {
+                throw unchecked.getCause();
+            }
+            throw e;
+        }
+        System.out.printf("Opened %s in %d ms: %d sstables indexed in %d ms, %d write ahead log entries replayed in %d ms%n",
+                dataFile.getPath(), (System.nanoTime() - start) / 1_000_000, ssTableHandler.getSsTableFile().size(),
+                tablesNanos / 1_000_000, replayed[0], replayed[1] / 1_000_000);
+
+        //tables may still point into the value log after separation is turned off, then segments are only
+        //dropped as compactions stop referencing them
+        valueLogGc = options.valueSeparationBytes() <= 0 ? null : VALUE_LOG_GC.scheduleWithFixedDelay(() -> {
+            try {
+                collectValueLogGarbage();
+            } catch (IOException | RuntimeException e) {
+                System.out.printf("Value log garbage collection of %s failed: %s%n", dataFile.getPath(), e);
+            }
+        }, VALUE_LOG_GC_INTERVAL_SECONDS, VALUE_LOG_GC_INTERVAL_SECONDS, TimeUnit.SECONDS);
     }
     @Override
     public void put(byte[] key, byte[] value) throws IOException {
+        put(key, value, 0, false);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, long expiresAtMillis) throws IOException {
+        if (expiresAtMillis <= 0) {
+            throw new IllegalArgumentException("Expiry time must be positive but was " + expiresAtMillis);
+        }
+        put(key, value, expiresAtMillis, true);
+    }
+
+    private void put(byte[] key, byte[] value, long expiresAtMillis, boolean expiring) throws IOException {
         Objects.requireNonNull(key, "key must not be null");
         Objects.requireNonNull(value, "value must not be null");
 
         String keyString = new String(key, StandardCharsets.UTF_8);
+        boolean flushed = false;
         readWriteLock.writeLock().lock();
 
         try{
             //first append to write ahead log
-            writeAheadLog.appendPut(key, value);
+            if (expiring) {
+                writeAheadLog.appendPut(key, value, expiresAtMillis);
+            } else {
+                writeAheadLog.appendPut(key, value);
+            }
             //then put to memtable
-            memTable.put(keyString, value);
+            memTable.put(keyString, value, expiresAtMillis);
             //flush if the threshold is exceeded
             if (memTable.size() >= memtableMaxLimit) {
+                System.out.printf("Memtable (%d entries, %.2f kb) reached its limit of %d entries, flushing\n",
+                        memTable.size(), memTable.getSizeInBytes() / 1024.0, memtableMaxLimit);
                 //flush memtable to sstable
                 flushMemTableToSsTable();
-                //todo add logging in here
-                System.out.printf("Memtable size (%.2f kb) exceeded limit (%.2f kb)\n", memTable.getSizeInBytes() / 1024.0, memtableMaxLimit / 1024.0);
                 writeAheadLog.reset();
+                flushed = true;
             }
 
         } finally {
             readWriteLock.writeLock().unlock();
         }
+        if (flushed) {
+            compactIfDue();
+        }
     }
 
     @Override
     public byte[] read(byte[] keyInBytes) throws IOException {
+        ExpiringValue value = readExpiring(keyInBytes);
+        return value == null ? null : value.value();
+    }
+
+    @Override
+    public ExpiringValue readExpiring(byte[] keyInBytes) throws IOException {
         Objects.requireNonNull(keyInBytes, "key must not be null");
         String key = new String(keyInBytes, StandardCharsets.UTF_8);
 
+        ReadTrace trace = ReadTrace.current();
+        long lockRequested = trace == null ? 0 : System.nanoTime();
         readWriteLock.readLock().lock();
+        if (trace != null) {
+            trace.lockWait(System.nanoTime() - lockRequested);
+        }
         try {
             //read from Memtable first
             Entry inMemTable = memTable.get(key);
             if (inMemTable != null) {
-                return inMemTable.deleted() ? null : inMemTable.value();
+                if (trace != null) {
+                    trace.memTableHit();
+                }
+                return live(inMemTable);
             }
 
             // then from SStables
-            Entry inSsTable = ssTableHandler.get(key);
-            if (inSsTable == null || inSsTable.deleted()) {
-                return null;
-            }
-            return inSsTable.value();
+            return live(ssTableHandler.get(key));
         } finally {
             readWriteLock.readLock().unlock();
         }
     }
 
+    //an expired value still ends the lookup, it shadows older versions until compaction drops them together
+    private static ExpiringValue live(Entry entry) {
+        if (entry == null || !entry.isLive(System.currentTimeMillis())) {
+            return null;
+        }
+        return new ExpiringValue(entry.value(), entry.expiresAtMillis());
+    }
+
     @Override
     public Map<byte[], byte[]> readRange(byte[] startKeyInBytes, byte[] endKeyInBytes) throws IOException {
         Objects.requireNonNull(startKeyInBytes, "startKey must not be null");
@@ -96,13 +237,15 @@ public class LsmStorageEngine implements StorageEngine {
             NavigableMap<String, Entry> fromSsTable = ssTableHandler.getRange(startKey, endKey);
             merged.putAll(fromSsTable);
 
-            // overwrite older entries
+            // overwrite older entries, after dropping those the memtable's deleted ranges cover
+            memTable.rangeTombstones().removeCovered(merged);
             merged.putAll(memTable.readKeyRange(startKey, endKey));
 
             Map<byte[], byte[]> result = new LinkedHashMap<>();
+            long now = System.currentTimeMillis();
             for (Map.Entry<String, Entry> entry : merged.entrySet()) {
                 Entry value = entry.getValue();
-                if (value.deleted()) continue;
+                if (!value.isLive(now)) continue;
                 result.put(
                         entry.getKey().getBytes(StandardCharsets.UTF_8),
                         value.value()
@@ -133,6 +276,7 @@ public class LsmStorageEngine implements StorageEngine {
         Objects.requireNonNull(key, "key must not be null");
         String keyString = new String(key, StandardCharsets.UTF_8);
 
+        boolean flushed = false;
         readWriteLock.writeLock().lock();
         try{
             writeAheadLog.appendDelete(key);
@@ -141,16 +285,177 @@ public class LsmStorageEngine implements StorageEngine {
             if (memTable.size() >= memtableMaxLimit) {
                 flushMemTableToSsTable();
                 writeAheadLog.reset();
+                flushed = true;
+            }
+        } finally {
+            readWriteLock.writeLock().unlock();
+        }
+        if (flushed) {
+            compactIfDue();
+        }
+    }
+
+    @Override
+    public void deleteRange(byte[] startKey, byte[] endKey) throws IOException {
+        Objects.requireNonNull(startKey, "startKey must not be null");
+        Objects.requireNonNull(endKey, "endKey must not be null");
+        String startKeyString = new String(startKey, StandardCharsets.UTF_8);
+        String endKeyString = new String(endKey, StandardCharsets.UTF_8);
+        if (startKeyString.compareTo(endKeyString) >= 0) {
+            throw new IllegalArgumentException("Range ['" + startKeyString + "', '" + endKeyString + "') is empty");
+        }
+
+        boolean flushed = false;
+        readWriteLock.writeLock().lock();
+        try{
+            writeAheadLog.appendDeleteRange(startKey, endKey);
+            memTable.deleteRange(startKeyString, endKeyString);
+
+            if (memTable.size() >= memtableMaxLimit) {
+                flushMemTableToSsTable();
+                writeAheadLog.reset();
+                flushed = true;
             }
         } finally {
             readWriteLock.writeLock().unlock();
         }
+        if (flushed) {
+            compactIfDue();
+        }
+    }
+
+    @Override
+    public void createCheckpoint(File targetDir) throws IOException {
+        maintenanceLock.lock();
+        try {
+            //flush first so the checkpoint is made of sstables only and needs no write ahead log
+            SsTableHandler.Snapshot snapshot = flushAndSnapshot();
+            ssTableHandler.checkpointTo(snapshot, targetDir);
+            runCompaction(plan(ssTableHandler::planCompaction));
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    @Override
+    public void restoreCheckpoint(File sourceDir) throws IOException {
+        maintenanceLock.lock();
+        readWriteLock.writeLock().lock();
+        try {
+            memTable.clear();
+            writeAheadLog.reset();
+            ssTableHandler.replaceWithCheckpoint(sourceDir);
+        } finally {
+            readWriteLock.writeLock().unlock();
+            maintenanceLock.unlock();
+        }
+    }
+
+    @Override
+    public void exportRange(byte[] startKey, byte[] endKey, File targetDir) throws IOException {
+        Objects.requireNonNull(startKey, "startKey must not be null");
+        maintenanceLock.lock();
+        try {
+            //flush first so the exported tables hold every write accepted so far
+            SsTableHandler.Snapshot snapshot = flushAndSnapshot();
+            ssTableHandler.exportRange(snapshot, new String(startKey, StandardCharsets.UTF_8),
+                    endKey == null ? null : new String(endKey, StandardCharsets.UTF_8), targetDir);
+            runCompaction(plan(ssTableHandler::planCompaction));
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    @Override
+    public void importRange(File sourceDir) throws IOException {
+        maintenanceLock.lock();
+        try {
+            readWriteLock.writeLock().lock();
+            try {
+                //flush first so the imported tables are newer than anything held in memory
+                if (!memTable.isEmpty()) {
+                    flushMemTableToSsTable();
+                    writeAheadLog.reset();
+                }
+                ssTableHandler.importTables(sourceDir);
+            } finally {
+                readWriteLock.writeLock().unlock();
+            }
+            runCompaction(plan(ssTableHandler::planCompaction));
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushAndSnapshot();
+        compactIfDue();
+    }
+
+    /**
+     * Merges the tables overlapping [{@code startKey}, {@code endKey}), or every table when both are null.
+     * Reads and writes go on while the tables are merged; they only wait for the new table to be swapped in.
+     */
+    @Override
+    public void compact(byte[] startKey, byte[] endKey) throws IOException {
+        String start = startKey == null ? null : new String(startKey, StandardCharsets.UTF_8);
+        String end = endKey == null ? null : new String(endKey, StandardCharsets.UTF_8);
+        maintenanceLock.lock();
+        try {
+            flushAndSnapshot();
+            runCompaction(plan(() -> start == null && end == null
+                    ? ssTableHandler.planFullCompaction() : ssTableHandler.planRangeCompaction(start, end)));
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    @Override
+    public List<EngineStats> stats() throws IOException {
+        readWriteLock.readLock().lock();
+        try {
+            return List.of(new EngineStats(dataFile.getName(), memTable.size(), memTable.getSizeInBytes(),
+                    writeAheadLog.sizeInBytes(), writeAheadLog.pendingSyncCount(),
+                    ssTableHandler.tableStats(), ssTableHandler.compactionHistory()));
+        } finally {
+            readWriteLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes value log segments no table points into and moves the live values out of those that are mostly
+     * garbage. Runs in the background every minute when values are separated.
+     */
+    public void collectValueLogGarbage() throws IOException {
+        maintenanceLock.lock();
+        try {
+            SsTableHandler.Compaction relocation;
+            readWriteLock.writeLock().lock();
+            try {
+                if (closed) return;
+                relocation = ssTableHandler.planValueLogGarbageCollection();
+            } finally {
+                readWriteLock.writeLock().unlock();
+            }
+            runCompaction(relocation);
+        } finally {
+            maintenanceLock.unlock();
+        }
     }
 
     public void close() throws IOException {
+        if (valueLogGc != null) {
+            valueLogGc.cancel(false);
+        }
         readWriteLock.writeLock().lock();
         try{
+            if (closed) return;
+            closed = true;
             writeAheadLog.close();
+            //unflushed writes stay in the write ahead log, drop them from the memory gauges
+            memTable.clear();
+            ssTableHandler.close();
         } finally {
             readWriteLock.writeLock().unlock();
         }
@@ -159,28 +464,87 @@ public class LsmStorageEngine implements StorageEngine {
     private void flushMemTableToSsTable() throws IOException {
         if (memTable.isEmpty()) return;
 
-        File sstableFile = ssTableHandler.newSsTableFile();
-        try (SsTableWriter ssTableWriter = new SsTableWriter(sstableFile)) {
-
+        long start = System.nanoTime();
+        SsTableWriter ssTableWriter = ssTableHandler.newSsTableWriter();
+        try (ssTableWriter) {
             ssTableWriter.writeFromMemTable(memTable);
-            ssTableHandler.registerSsTable(sstableFile, ssTableWriter.getOffsetIndex());
         }
+        //registered once closed, when the table is complete and synced
+        ssTableHandler.registerSsTable(ssTableWriter.getFile(), ssTableWriter.getOffsetIndex());
 
         memTable.clear();
 
-        ssTableHandler.compact();
+        FLUSHES.increment();
+        FLUSH_LATENCY.recordSince(start);
+    }
+
+    //flushes under the lock, returning the tables that then hold every write accepted so far
+    private SsTableHandler.Snapshot flushAndSnapshot() throws IOException {
+        readWriteLock.writeLock().lock();
+        try {
+            if (!memTable.isEmpty()) {
+                flushMemTableToSsTable();
+                writeAheadLog.reset();
+            }
+            return ssTableHandler.snapshot();
+        } finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
+    //under the read lock, which keeps flushes from changing the tables while they are picked
+    private SsTableHandler.Compaction plan(Supplier<SsTableHandler.Compaction> planner) {
+        readWriteLock.readLock().lock();
+        try {
+            return closed ? null : planner.get();
+        } finally {
+            readWriteLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Merges {@code compaction} without holding the lock, then swaps the new table in under it. The caller holds
+     * the maintenance lock, so the inputs stay live until then.
+     */
+    private void runCompaction(SsTableHandler.Compaction compaction) throws IOException {
+        if (compaction == null) return;
+        ssTableHandler.merge(compaction);
+        readWriteLock.writeLock().lock();
+        try {
+            if (closed) {
+                ssTableHandler.abandon(compaction);
+                return;
+            }
+            ssTableHandler.install(compaction);
+        } finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
+    //after a flush; skipped while a compaction, checkpoint or export runs, the next flush checks again
+    private void compactIfDue() throws IOException {
+        if (!maintenanceLock.tryLock()) return;
+        try {
+            runCompaction(plan(ssTableHandler::planCompaction));
+        } finally {
+            maintenanceLock.unlock();
+        }
     }
 
-    private void replayWriteAheadLogIntoMemTable() throws IOException {
+    private long replayWriteAheadLogIntoMemTable() throws IOException {
         readWriteLock.writeLock().lock();
         try {
-            writeAheadLog.replay((outputByte, keyBytes, valueBytes) -> {
+            return writeAheadLog.replay((outputByte, keyBytes, valueBytes) -> {
                 String key = new String(keyBytes, StandardCharsets.UTF_8);
 
                 if (outputByte == WriteAheadLog.OP_PUT) {
                     memTable.put(key, valueBytes);
+                } else if (outputByte == WriteAheadLog.OP_PUT_EXPIRING) {
+                    memTable.put(key, WriteAheadLog.valueOf(valueBytes), WriteAheadLog.expiryOf(valueBytes));
                 } else if (outputByte == WriteAheadLog.OP_DELETE) {
                     memTable.delete(key);
+                } else if (outputByte == WriteAheadLog.OP_DELETE_RANGE) {
+                    memTable.deleteRange(key, new String(valueBytes, StandardCharsets.UTF_8));
                 }
 
                 //otherwise we ignore for now
@@ -0,0 +1,283 @@
+package kv.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes to an engine's set of sstables, and the source of truth for which tables are live.
+ *
+ * Every change (a flush, a compaction, an import) is one record that is fsynced before the files it
+ * replaces are deleted, so a crash leaves either the old or the new set and files the manifest does not
+ * list are leftovers. Once enough records have been appended the log is rewritten as a snapshot of the
+ * live set and renamed into place.
+ *
+ * Record layout: [int payloadLength][int crc32][payload], the payload being [long nextFileNumber][int editCount]
+ * and the edits, each [byte type] followed by, for an added table, [long fileNumber][long sequence][int level]
+ * [long sizeBytes][long entries][long tombstones][key firstKey][key lastKey], and for a removed table
+ * [long fileNumber]. Keys are written as in {@link SsTableFormat}.
+ *
+ * Compactions take file numbers while flushes record tables, so every method synchronizes on the manifest.
+ */
+final class Manifest implements Closeable {
+
+    static final String FILE_NAME = "MANIFEST";
+    private static final String REWRITE_SUFFIX = ".tmp";
+    private static final byte ADD_TABLE = 1;
+    private static final byte REMOVE_TABLE = 2;
+    //records appended since the last snapshot before the log is rewritten
+    private static final int MAX_RECORDS_BEFORE_REWRITE = 256;
+
+    /**
+     * A live table. Tables are ordered by {@code sequence}, oldest first; a compaction's output takes the
+     * sequence of the newest table it replaces so it keeps that table's place.
+     */
+    record Table(long fileNumber, long sequence, int level, long sizeBytes, long entries, long tombstones,
+                 String firstKey, String lastKey) {
+    }
+
+    private final File file;
+    private final boolean existed;
+    private final Map<Long, Table> tables = new HashMap<>();
+    private long nextFileNumber = 1;
+    private int recordsSinceSnapshot = 0;
+    private RandomAccessFile log;
+
+    private Manifest(File file) {
+        this.file = file;
+        this.existed = file.exists();
+    }
+
+    /**
+     * Replays {@code dir/MANIFEST}, or starts an empty manifest if there is none.
+     */
+    static Manifest open(File dir) throws IOException {
+        Manifest manifest = new Manifest(new File(dir, FILE_NAME));
+        //a rewrite that did not get renamed into place
+        new File(dir, FILE_NAME + REWRITE_SUFFIX).delete();
+
+        //a new manifest only appears with its first snapshot, so a crash before that cannot leave an empty
+        //one that would disown the tables of a directory written before manifests existed
+        if (manifest.existed) {
+            manifest.replay();
+            manifest.log = new RandomAccessFile(manifest.file, "rw");
+            manifest.log.seek(manifest.log.length());
+            if (manifest.recordsSinceSnapshot >= MAX_RECORDS_BEFORE_REWRITE) {
+                manifest.rewrite();
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * @return false if the manifest was created by {@link #open(File)}, e.g. for a directory written before manifests existed
+     */
+    boolean existed() {
+        return existed;
+    }
+
+    /**
+     * @return live tables, oldest first
+     */
+    synchronized List<Table> tables() {
+        List<Table> live = new ArrayList<>(tables.values());
+        live.sort(Comparator.comparingLong(Table::sequence));
+        return live;
+    }
+
+    /**
+     * Hands out a number for a new table file; it is recorded with the next change.
+     */
+    synchronized long newFileNumber() {
+        return nextFileNumber++;
+    }
+
+    /**
+     * Durably records that {@code added} became live and the tables numbered {@code removed} did not survive.
+     */
+    synchronized void apply(Collection<Table> added, Collection<Long> removed) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        for (Table table : added) {
+            nextFileNumber = Math.max(nextFileNumber, table.fileNumber() + 1);
+        }
+        out.writeLong(nextFileNumber);
+        out.writeInt(added.size() + removed.size());
+        for (Long fileNumber : removed) {
+            out.writeByte(REMOVE_TABLE);
+            out.writeLong(fileNumber);
+        }
+        for (Table table : added) {
+            writeTable(out, table);
+        }
+
+        if (log != null) {
+            append(payload.toByteArray());
+        }
+        for (Long fileNumber : removed) {
+            tables.remove(fileNumber);
+        }
+        for (Table table : added) {
+            tables.put(table.fileNumber(), table);
+        }
+
+        if (log == null || ++recordsSinceSnapshot >= MAX_RECORDS_BEFORE_REWRITE) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Atomically replaces the whole live set with {@code live}.
+     */
+    synchronized void replaceAll(Collection<Table> live) throws IOException {
+        tables.clear();
+        for (Table table : live) {
+            tables.put(table.fileNumber(), table);
+            nextFileNumber = Math.max(nextFileNumber, table.fileNumber() + 1);
+        }
+        rewrite();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    private void replay() throws IOException {
+        long length = file.length();
+        long offset = 0;
+        int records = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            while (length - offset >= 8) {
+                int payloadLength = in.readInt();
+                int checksum = in.readInt();
+                if (payloadLength < 0 || offset + 8 + payloadLength > length) {
+                    break;
+                }
+                byte[] payload = new byte[payloadLength];
+                in.readFully(payload);
+                if (crc(payload) != checksum) {
+                    break;
+                }
+
+                applyRecord(new DataInputStream(new ByteArrayInputStream(payload)));
+                offset += 8 + payloadLength;
+                records++;
+            }
+        } catch (EOFException e) {
+            throw new IOException("Manifest " + file.getAbsolutePath() + " is corrupt", e);
+        }
+
+        if (offset < length) {
+            //a record cut short by a crash while it was appended, the change it described never happened
+            System.out.printf("Ignoring %d bytes after the last complete record of %s%n", length - offset, file.getAbsolutePath());
+            try (RandomAccessFile truncate = new RandomAccessFile(file, "rw")) {
+                truncate.setLength(offset);
+            }
+        }
+        recordsSinceSnapshot = records;
+    }
+
+    private void applyRecord(DataInputStream in) throws IOException {
+        nextFileNumber = Math.max(nextFileNumber, in.readLong());
+        int edits = in.readInt();
+        for (int i = 0; i < edits; i++) {
+            byte type = in.readByte();
+            if (type == ADD_TABLE) {
+                Table table = new Table(in.readLong(), in.readLong(), in.readInt(), in.readLong(), in.readLong(),
+                        in.readLong(), SsTableFormat.readKey(in), SsTableFormat.readKey(in));
+                tables.put(table.fileNumber(), table);
+            } else if (type == REMOVE_TABLE) {
+                tables.remove(in.readLong());
+            } else {
+                throw new IOException("Unknown manifest edit " + type + " in " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    //writes the live set as a single record next to the log and renames it over the log
+    private void rewrite() throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        List<Table> live = tables();
+        out.writeLong(nextFileNumber);
+        out.writeInt(live.size());
+        for (Table table : live) {
+            writeTable(out, table);
+        }
+        byte[] bytes = payload.toByteArray();
+
+        File temp = new File(file.getParentFile(), FILE_NAME + REWRITE_SUFFIX);
+        try (RandomAccessFile snapshot = new RandomAccessFile(temp, "rw")) {
+            snapshot.setLength(0);
+            snapshot.writeInt(bytes.length);
+            snapshot.writeInt(crc(bytes));
+            snapshot.write(bytes);
+            snapshot.getFD().sync();
+        }
+
+        close();
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(file.getParentFile());
+        log = new RandomAccessFile(file, "rw");
+        log.seek(log.length());
+        recordsSinceSnapshot = 1;
+    }
+
+    private void append(byte[] payload) throws IOException {
+        log.writeInt(payload.length);
+        log.writeInt(crc(payload));
+        log.write(payload);
+        log.getFD().sync();
+    }
+
+    private static void writeTable(DataOutputStream out, Table table) throws IOException {
+        out.writeByte(ADD_TABLE);
+        out.writeLong(table.fileNumber());
+        out.writeLong(table.sequence());
+        out.writeInt(table.level());
+        out.writeLong(table.sizeBytes());
+        out.writeLong(table.entries());
+        out.writeLong(table.tombstones());
+        SsTableFormat.writeKey(out, table.firstKey());
+        SsTableFormat.writeKey(out, table.lastKey());
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    //makes the rename durable; not every platform can open a directory, there it is left to the file system
+    private static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            //best effort
+        }
+    }
+}
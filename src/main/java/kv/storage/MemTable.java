@@ -1,22 +1,43 @@
 package kv.storage;
 
+import kv.metrics.Gauge;
+import kv.metrics.MetricsRegistry;
+
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
 
 public class MemTable {
+    private static final Gauge MEMTABLE_BYTES = MetricsRegistry.global().gauge("kv_memtable_bytes", "Approximate bytes held in memtables");
 
     private final NavigableMap<String, Entry> storageMap = new TreeMap<>();
+    //deleted ranges, older than every entry of storageMap since a range delete drops the entries it covers
+    private final RangeTombstones rangeTombstones = new RangeTombstones();
     private volatile long sizeInBytes = 0;
 
     public void put(String key, byte[] value)  {
+        put(key, value, 0);
+    }
+
+    /**
+     * @param expiresAtMillis epoch millis from which the value reads as absent, 0 if it never expires
+     */
+    public void put(String key, byte[] value, long expiresAtMillis)  {
         long entrySizeInBytes = key.length() + (value != null ? value.length : 0) + 32;
-        storageMap.put(key, new Entry(value, false));
+        storageMap.put(key, new Entry(value, false, null, expiresAtMillis));
         sizeInBytes += entrySizeInBytes;
+        MEMTABLE_BYTES.add(entrySizeInBytes);
     }
 
+    /**
+     * @return the key's entry, a tombstone if a range delete covers it, or null if the memtable knows nothing of it
+     */
     public Entry get(String key) {
-        return storageMap.get(key);
+        Entry entry = storageMap.get(key);
+        if (entry == null && rangeTombstones.covers(key)) {
+            return new Entry(null, true);
+        }
+        return entry;
     }
 
     public NavigableMap<String, Entry> readKeyRange(String startKey, String endKey) {
@@ -24,11 +45,33 @@ public class MemTable {
     }
 
     public void delete(String key) {
+        long entrySizeInBytes = key.length() + 32;
         storageMap.put(key, new Entry(null, true));
+        sizeInBytes += entrySizeInBytes;
+        MEMTABLE_BYTES.add(entrySizeInBytes);
+    }
+
+    /**
+     * Deletes every key in [{@code startKey}, {@code endKey}): the entries held here are dropped and the range is
+     * kept to shade the keys of older tables.
+     */
+    public void deleteRange(String startKey, String endKey) {
+        rangeTombstones.add(startKey, endKey);
+        storageMap.subMap(startKey, true, endKey, false).clear();
+        long entrySizeInBytes = startKey.length() + endKey.length() + 32;
+        sizeInBytes += entrySizeInBytes;
+        MEMTABLE_BYTES.add(entrySizeInBytes);
+    }
+
+    RangeTombstones rangeTombstones() {
+        return rangeTombstones;
     }
 
+    /**
+     * @return entries and deleted ranges held
+     */
     public int size() {
-        return storageMap.size();
+        return storageMap.size() + rangeTombstones.size();
     }
 
     public long getSizeInBytes() {
@@ -36,11 +79,14 @@ public class MemTable {
     }
 
     public boolean isEmpty() {
-        return storageMap.isEmpty();
+        return storageMap.isEmpty() && rangeTombstones.isEmpty();
     }
 
     public void clear() {
         storageMap.clear();
+        rangeTombstones.clear();
+        MEMTABLE_BYTES.add(-sizeInBytes);
+        sizeInBytes = 0;
     }
 
     public Iterable<Map.Entry<String, Entry>> getEntries() {
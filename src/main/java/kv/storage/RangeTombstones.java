@@ -0,0 +1,111 @@
+package kv.storage;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Key ranges [start, end) deleted at once, as {@link LsmStorageEngine#deleteRange(byte[], byte[])} records them in
+ * a memtable or a table. Overlapping and touching ranges are merged, so a key is looked up with a single floor
+ * search. A range only shades older data: the point entries of the same memtable or table are newer than its ranges.
+ */
+final class RangeTombstones {
+
+    static final RangeTombstones NONE = new RangeTombstones(Collections.emptyNavigableMap());
+
+    //start -> end, disjoint
+    private final NavigableMap<String, String> ranges;
+
+    RangeTombstones() {
+        this(new TreeMap<>());
+    }
+
+    private RangeTombstones(NavigableMap<String, String> ranges) {
+        this.ranges = ranges;
+    }
+
+    void add(String start, String end) {
+        if (start.compareTo(end) >= 0) {
+            throw new IllegalArgumentException("Range ['" + start + "', '" + end + "') is empty");
+        }
+        String from = start;
+        String to = end;
+        Map.Entry<String, String> before = ranges.floorEntry(start);
+        if (before != null && before.getValue().compareTo(start) >= 0) {
+            from = before.getKey();
+            to = max(to, before.getValue());
+        }
+        for (Iterator<Map.Entry<String, String>> absorbed = ranges.subMap(from, true, to, true).entrySet().iterator(); absorbed.hasNext(); ) {
+            to = max(to, absorbed.next().getValue());
+            absorbed.remove();
+        }
+        ranges.put(from, to);
+    }
+
+    void addAll(RangeTombstones other) {
+        for (Map.Entry<String, String> range : other.ranges.entrySet()) {
+            add(range.getKey(), range.getValue());
+        }
+    }
+
+    boolean covers(String key) {
+        Map.Entry<String, String> floor = ranges.floorEntry(key);
+        return floor != null && key.compareTo(floor.getValue()) < 0;
+    }
+
+    /**
+     * Removes the keys of {@code entries} that a range covers, i.e. the older versions it deletes.
+     */
+    void removeCovered(NavigableMap<String, ?> entries) {
+        if (entries.isEmpty() || ranges.isEmpty()) return;
+        //only the ranges from the one around the first key to the one around the last can cover anything
+        String from = ranges.floorKey(entries.firstKey());
+        for (Map.Entry<String, String> range : ranges.subMap(from == null ? entries.firstKey() : from, true, entries.lastKey(), true).entrySet()) {
+            entries.subMap(range.getKey(), true, range.getValue(), false).clear();
+        }
+    }
+
+    /**
+     * @return the parts of the ranges inside [{@code start}, {@code end}), a null {@code end} being unbounded
+     */
+    RangeTombstones clip(String start, String end) {
+        RangeTombstones clipped = new RangeTombstones();
+        for (Map.Entry<String, String> range : ranges.entrySet()) {
+            String from = max(range.getKey(), start);
+            String to = end == null ? range.getValue() : min(range.getValue(), end);
+            if (from.compareTo(to) < 0) {
+                clipped.ranges.put(from, to);
+            }
+        }
+        return clipped;
+    }
+
+    /**
+     * @return start -> end of every range, in key order
+     */
+    NavigableMap<String, String> asMap() {
+        return Collections.unmodifiableNavigableMap(ranges);
+    }
+
+    int size() {
+        return ranges.size();
+    }
+
+    boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    void clear() {
+        ranges.clear();
+    }
+
+    private static String max(String a, String b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    private static String min(String a, String b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+}
@@ -0,0 +1,341 @@
+package kv.storage;
+
+import kv.core.EngineStats;
+import kv.core.ExpiringValue;
+import kv.core.StorageEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Hash-partitions keys over N independent {@link LsmStorageEngine}s stored in {@code dir/shard-<i>}.
+ *
+ * Every shard has its own write ahead log, memtable, sstables and lock, so writes to different
+ * shards do not contend and flushes and compactions are spread out. Range reads ask every shard
+ * and merge the results, which are disjoint because a key lives in exactly one shard.
+ *
+ * The shard count is recorded in {@code dir/SHARDS} and cannot change afterwards, since that would
+ * route existing keys to the wrong shard. A directory written by a single {@link LsmStorageEngine}
+ * is refused, as is opening a sharded directory with a single engine.
+ */
+public class ShardedStorageEngine implements StorageEngine {
+
+    static final String SHARD_COUNT_FILE = "SHARDS";
+    private static final String SHARD_DIR_PREFIX = "shard-";
+
+    private final List<LsmStorageEngine> shards = new ArrayList<>();
+    private final SsTableOptions options;
+
+    public ShardedStorageEngine(File dir, int shardCount) throws IOException {
+        this(dir, shardCount, SsTableOptions.DEFAULT);
+    }
+
+    /**
+     * @param options applied to every shard, the block cache being split evenly between them
+     */
+    public ShardedStorageEngine(File dir, int shardCount, SsTableOptions options) throws IOException {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Shard count must be positive but was " + shardCount);
+        }
+        this.options = options;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("File " + dir.getAbsolutePath() + " does not exist");
+        }
+
+        Integer existing = readShardCount(dir);
+        if (existing == null) {
+            //an unsharded engine wrote here, its keys would never be looked up in the shard directories
+            if (LsmStorageEngine.holdsEngineFiles(dir)) {
+                throw new IOException("Data in " + dir.getAbsolutePath() + " was written by a single engine, open it with 1 shard");
+            }
+            writeShardCount(dir, shardCount);
+        } else if (existing != shardCount) {
+            throw new IOException("Data in " + dir.getAbsolutePath() + " was written with " + existing
+                    + " shards, cannot open it with " + shardCount);
+        }
+
+        //shards share nothing, so they are opened side by side
+        SsTableOptions shardOptions = options.withBlockCacheBytes(options.blockCacheBytes() / shardCount);
+        List<CompletableFuture<LsmStorageEngine>> opening = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            File shardDir = shardDir(dir, i);
+            opening.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return new LsmStorageEngine(shardDir, shardOptions);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+
+        Throwable failure = null;
+        for (CompletableFuture<LsmStorageEngine> shard : opening) {
+            try {
+                shards.add(shard.join());
+            } catch (CompletionException e) {
+                if (failure == null) failure = e.getCause();
+            }
+        }
+        if (failure != null) {
+            //do not leave the shards that did open holding their files
+            for (LsmStorageEngine shard : shards) {
+                shard.close();
+            }
+            if (failure instanceof UncheckedIOException unchecked) {
+                throw unchecked.getCause();
+            }
+            throw new IOException("Could not open " + dir.getAbsolutePath(), failure);
+        }
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws IOException {
+        Objects.requireNonNull(key, "key must not be null");
+        shardFor(key).put(key, value);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value, long expiresAtMillis) throws IOException {
+        Objects.requireNonNull(key, "key must not be null");
+        shardFor(key).put(key, value, expiresAtMillis);
+    }
+
+    @Override
+    public byte[] read(byte[] key) throws IOException {
+        Objects.requireNonNull(key, "key must not be null");
+        return shardFor(key).read(key);
+    }
+
+    @Override
+    public ExpiringValue readExpiring(byte[] key) throws IOException {
+        Objects.requireNonNull(key, "key must not be null");
+        return shardFor(key).readExpiring(key);
+    }
+
+    @Override
+    public Map<byte[], byte[]> readRange(byte[] startKey, byte[] endKey) throws IOException {
+        Objects.requireNonNull(startKey, "startKey must not be null");
+        Objects.requireNonNull(endKey, "endKey must not be null");
+
+        //same ordering as a single engine, which sorts by the string form of the key
+        NavigableMap<String, Map.Entry<byte[], byte[]>> merged = new TreeMap<>();
+        for (LsmStorageEngine shard : shards) {
+            for (Map.Entry<byte[], byte[]> entry : shard.readRange(startKey, endKey).entrySet()) {
+                merged.put(new String(entry.getKey(), StandardCharsets.UTF_8), entry);
+            }
+        }
+
+        Map<byte[], byte[]> result = new LinkedHashMap<>();
+        for (Map.Entry<byte[], byte[]> entry : merged.values()) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public void batchPut(Map<byte[], byte[]> entries) throws IOException {
+        if (entries == null || entries.isEmpty()) return;
+
+        //one call per shard, so each shard takes its lock once per batch slice
+        Map<Integer, Map<byte[], byte[]>> byShard = new HashMap<>();
+        for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) continue;
+            byShard.computeIfAbsent(shardIndex(entry.getKey()), i -> new LinkedHashMap<>())
+                    .put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<Integer, Map<byte[], byte[]>> slice : byShard.entrySet()) {
+            shards.get(slice.getKey()).batchPut(slice.getValue());
+        }
+    }
+
+    @Override
+    public void delete(byte[] key) throws IOException {
+        Objects.requireNonNull(key, "key must not be null");
+        shardFor(key).delete(key);
+    }
+
+    //keys are spread by hash, so every shard may hold part of the range
+    @Override
+    public void deleteRange(byte[] startKey, byte[] endKey) throws IOException {
+        Objects.requireNonNull(startKey, "startKey must not be null");
+        Objects.requireNonNull(endKey, "endKey must not be null");
+        for (LsmStorageEngine shard : shards) {
+            shard.deleteRange(startKey, endKey);
+        }
+    }
+
+    /**
+     * Checkpoints every shard into {@code targetDir/shard-<i>}. Shards are checkpointed one after
+     * another, so the result is not a single point in time across shards; each shard is consistent
+     * on its own, which is enough when the writes after the checkpoint are replayed in order.
+     */
+    @Override
+    public void createCheckpoint(File targetDir) throws IOException {
+        if (!targetDir.exists() && !targetDir.mkdirs()) {
+            throw new IOException("Could not create checkpoint directory " + targetDir.getAbsolutePath());
+        }
+        writeShardCount(targetDir, shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            shards.get(i).createCheckpoint(shardDir(targetDir, i));
+        }
+    }
+
+    @Override
+    public void restoreCheckpoint(File sourceDir) throws IOException {
+        Integer checkpointShards = readShardCount(sourceDir);
+        if (checkpointShards == null || checkpointShards != shards.size()) {
+            throw new IOException("Checkpoint in " + sourceDir.getAbsolutePath() + " has " + checkpointShards
+                    + " shards, this engine has " + shards.size());
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            shards.get(i).restoreCheckpoint(shardDir(sourceDir, i));
+        }
+    }
+
+    /**
+     * Exports every shard's part of the range into one flat directory, so it can be imported by an
+     * engine with any number of shards.
+     */
+    @Override
+    public void exportRange(byte[] startKey, byte[] endKey, File targetDir) throws IOException {
+        if (!targetDir.exists() && !targetDir.mkdirs()) {
+            throw new IOException("Could not create export directory " + targetDir.getAbsolutePath());
+        }
+
+        int nextTable = 1;
+        for (int i = 0; i < shards.size(); i++) {
+            File shardExport = new File(targetDir, SHARD_DIR_PREFIX + i);
+            try {
+                shards.get(i).exportRange(startKey, endKey, shardExport);
+                File[] tables = shardExport.listFiles();
+                if (tables == null) continue;
+                Arrays.sort(tables);
+                //shards hold disjoint keys, so only the order within a shard matters
+                for (File table : tables) {
+                    Files.move(table.toPath(), new File(targetDir, String.format("sstable_%020d.dat", nextTable++)).toPath());
+                }
+            } finally {
+                CheckpointFiles.deleteRecursively(shardExport);
+            }
+        }
+    }
+
+    /**
+     * Splits every imported table by shard and imports the parts into their shards.
+     */
+    @Override
+    public void importRange(File sourceDir) throws IOException {
+        File[] tables = sourceDir.listFiles((d, name) -> name.startsWith("sstable_") && name.endsWith(".dat"));
+        if (tables == null || tables.length == 0) return;
+        Arrays.sort(tables);
+
+        File staging = new File(sourceDir, "by-shard");
+        try {
+            for (File table : tables) {
+                List<SsTableWriter> writers = new ArrayList<>();
+                try {
+                    for (int i = 0; i < shards.size(); i++) {
+                        File shardStaging = shardDir(staging, i);
+                        shardStaging.mkdirs();
+                        writers.add(new SsTableWriter(new File(shardStaging, table.getName()), options));
+                    }
+                    SsTableHandler.scanTable(table, (key, entry) ->
+                            writers.get(shardIndex(key.getBytes(StandardCharsets.UTF_8))).write(key, entry));
+                } finally {
+                    for (SsTableWriter writer : writers) {
+                        writer.close();
+                    }
+                }
+            }
+
+            for (int i = 0; i < shards.size(); i++) {
+                File shardStaging = shardDir(staging, i);
+                File[] parts = shardStaging.listFiles();
+                if (parts != null) {
+                    for (File part : parts) {
+                        if (part.length() == 0) part.delete();
+                    }
+                }
+                shards.get(i).importRange(shardStaging);
+            }
+        } finally {
+            CheckpointFiles.deleteRecursively(staging);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (LsmStorageEngine shard : shards) {
+            shard.flush();
+        }
+    }
+
+    //one shard at a time, so a single merge competes with the traffic for the disk
+    @Override
+    public void compact(byte[] startKey, byte[] endKey) throws IOException {
+        for (LsmStorageEngine shard : shards) {
+            shard.compact(startKey, endKey);
+        }
+    }
+
+    @Override
+    public List<EngineStats> stats() throws IOException {
+        List<EngineStats> stats = new ArrayList<>();
+        for (LsmStorageEngine shard : shards) {
+            stats.addAll(shard.stats());
+        }
+        return stats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (LsmStorageEngine shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private LsmStorageEngine shardFor(byte[] key) {
+        return shards.get(shardIndex(key));
+    }
+
+    private int shardIndex(byte[] key) {
+        //Arrays.hashCode is fully specified, so routing is stable across restarts and JVMs
+        int hash = Arrays.hashCode(key);
+        hash ^= (hash >>> 16);
+        return Math.floorMod(hash, shards.size());
+    }
+
+    private static File shardDir(File parent, int index) {
+        return new File(parent, SHARD_DIR_PREFIX + index);
+    }
+
+    private static Integer readShardCount(File dir) throws IOException {
+        File file = new File(dir, SHARD_COUNT_FILE);
+        if (!file.exists()) return null;
+        try {
+            return Integer.parseInt(Files.readString(file.toPath(), StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt shard count file " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private static void writeShardCount(File dir, int shardCount) throws IOException {
+        Files.writeString(new File(dir, SHARD_COUNT_FILE).toPath(), Integer.toString(shardCount), StandardCharsets.UTF_8);
+    }
+}
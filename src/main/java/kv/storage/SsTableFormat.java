@@ -0,0 +1,157 @@
+package kv.storage;
+
+import kv.metrics.ReadTrace;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Layout of an sstable:
+ * <pre>
+ * [block]...[index][footer]
+ * block:  [byte codec][int uncompressedLength][int storedLength][stored bytes], the uncompressed bytes being
+ *         records in key order followed by [int restartOffset]...[int restartCount]
+ * record: [varint sharedKeyBytes][varint unsharedKeyBytes][varint valueTag][unshared key bytes][long expiresAt]
+ *         [value], the tag being 0 for a tombstone and otherwise kind << 1 | expiring, where the expiry time is
+ *         only stored if the expiring bit is set and kind is 1 for a value kept in the {@link ValueLog}, the
+ *         value then being the pointer [long segment][long offset][int length], and valueLength + 2 otherwise
+ * index:  the table summary, its deleted key ranges and the first key and position of every block, as
+ *         {@link SsTableKeyOffsetIndex} lays them out
+ * footer: [long indexOffset][int indexLength][int version][long magic]
+ * </pre>
+ * A record shares its first bytes with the key before it, except at restart points (every
+ * {@link #RESTART_INTERVAL} records) where the key is stored whole, so a block is searched by a binary
+ * search over its restart points and a short scan from there. Keys in the index are [int length][utf-8 bytes],
+ * length -1 for none.
+ *
+ * Older tables are still read: versions 4 and 5 store the kind alone as the tag, their values never expiring;
+ * versions 2 and 3 store valueLength + 1 as the tag, 0 for a tombstone;
+ * versions 1 and 2 store the index as [int blockCount], per block [key firstKey]
+ * [long offset][int length], then [long entries][long tombstones][key firstKey][key lastKey]; version 1 blocks
+ * hold plain records [int keyLength][int valueLength, -1 for a tombstone][key][value] without restart points;
+ * and tables written before blocks existed are such records alone, without a footer, read as uncompressed
+ * blocks found by scanning them.
+ */
+final class SsTableFormat {
+
+    static final long MAGIC = 0x6b767373_74626c31L; //"kvsstbl1"
+    //tables written before blocks existed
+    static final int UNFRAMED = 0;
+    static final int PLAIN_BLOCKS = 1;
+    static final int PREFIX_BLOCKS = 2;
+    //prefix blocks, and an index searched where it lies instead of loaded into a map
+    static final int SECTIONED_INDEX = 3;
+    //values may be pointers into the value log
+    static final int VALUE_POINTERS = 4;
+    //the index summary lists the table's range tombstones
+    static final int RANGE_TOMBSTONES = 5;
+    //values may carry an expiry time, flagged in the lowest bit of the record's value tag
+    static final int EXPIRING_VALUES = 6;
+    static final int VERSION = EXPIRING_VALUES;
+    static final int RESTART_INTERVAL = 16;
+    static final int FOOTER_SIZE = 24;
+    static final int BLOCK_HEADER_SIZE = 9;
+
+    private SsTableFormat() {
+    }
+
+    /**
+     * @return the index stored in the table's footer, mapped from the file, or null for a table written
+     * before blocks existed
+     */
+    static SsTableKeyOffsetIndex readIndex(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = in.length();
+            if (length < FOOTER_SIZE) return null;
+
+            byte[] footer = new byte[FOOTER_SIZE];
+            in.seek(length - FOOTER_SIZE);
+            in.readFully(footer);
+            DataInputStream footerIn = new DataInputStream(new ByteArrayInputStream(footer));
+            long indexOffset = footerIn.readLong();
+            int indexLength = footerIn.readInt();
+            int version = footerIn.readInt();
+            if (footerIn.readLong() != MAGIC) return null;
+
+            if (version < PLAIN_BLOCKS || version > VERSION) {
+                throw new IOException("Sstable " + file.getAbsolutePath() + " has format version " + version + ", this build reads up to " + VERSION);
+            }
+            if (indexOffset < 0 || indexLength < 0 || indexOffset + indexLength + FOOTER_SIZE != length) {
+                throw new IOException("Sstable " + file.getAbsolutePath() + " has a corrupt footer");
+            }
+
+            if (version >= SECTIONED_INDEX) {
+                //the mapping outlives the file handle, and the table is never written again
+                return SsTableKeyOffsetIndex.read(version, in.getChannel().map(FileChannel.MapMode.READ_ONLY, indexOffset, indexLength));
+            }
+
+            byte[] indexBytes = new byte[indexLength];
+            in.seek(indexOffset);
+            in.readFully(indexBytes);
+            DataInputStream index = new DataInputStream(new ByteArrayInputStream(indexBytes));
+            SsTableKeyOffsetIndex.Builder offsetIndex = new SsTableKeyOffsetIndex.Builder();
+            int blocks = index.readInt();
+            for (int i = 0; i < blocks; i++) {
+                offsetIndex.add(readKey(index), index.readLong(), index.readInt());
+            }
+            offsetIndex.setSummary(index.readLong(), index.readLong(), readKey(index), readKey(index));
+            return offsetIndex.build(version);
+        }
+    }
+
+    /**
+     * @return the uncompressed records of the block
+     */
+    static byte[] readBlock(RandomAccessFile in, SsTableKeyOffsetIndex.BlockHandle handle, int formatVersion) throws IOException {
+        ReadTrace trace = ReadTrace.current();
+        if (trace != null) {
+            trace.blockRead();
+        }
+        byte[] stored = new byte[handle.length()];
+        in.seek(handle.offset());
+        in.readFully(stored);
+        if (formatVersion == UNFRAMED) return stored;
+
+        CompressionCodec codec = CompressionCodec.byId(stored[0]);
+        int uncompressedLength = readInt(stored, 1);
+        int storedLength = readInt(stored, 5);
+        if (uncompressedLength < 0 || storedLength != stored.length - BLOCK_HEADER_SIZE) {
+            throw new IOException("Corrupt block header at " + handle.offset());
+        }
+        byte[] block = new byte[uncompressedLength];
+        codec.decompress(stored, BLOCK_HEADER_SIZE, storedLength, block);
+        return block;
+    }
+
+    static void writeKey(DataOutputStream out, String key) throws IOException {
+        if (key == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readKey(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static int readInt(byte[] bytes, int at) {
+        return (bytes[at] & 0xFF) << 24 | (bytes[at + 1] & 0xFF) << 16 | (bytes[at + 2] & 0xFF) << 8 | (bytes[at + 3] & 0xFF);
+    }
+
+    static long readLong(byte[] bytes, int at) {
+        return (long) readInt(bytes, at) << 32 | (readInt(bytes, at + 4) & 0xFFFFFFFFL);
+    }
+}
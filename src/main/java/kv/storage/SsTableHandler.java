@@ -1,58 +1,460 @@
 package kv.storage;
 
+import kv.core.EngineStats;
+import kv.metrics.Counter;
+import kv.metrics.Gauge;
+import kv.metrics.LatencyHistogram;
+import kv.metrics.MetricsRegistry;
+import kv.metrics.ReadTrace;
+
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 public class SsTableHandler {
+    private static final Gauge SSTABLES = MetricsRegistry.global().gauge("kv_sstables", "Live sstables across all engines");
+    private static final Counter COMPACTIONS = MetricsRegistry.global().counter("kv_compactions_total", "Compactions completed");
+    private static final LatencyHistogram COMPACTION_LATENCY = MetricsRegistry.global().histogram("kv_compaction_duration_seconds", "Time to merge sstables");
+    private static final Counter VALUE_LOG_RECLAIMED = MetricsRegistry.global().counter("kv_value_log_reclaimed_bytes_total", "Bytes of value log segments deleted once no sstable pointed into them");
 
     private final File file;
     private final List<File> sstableFiles = new ArrayList<>();
     private final Map<File, SsTableKeyOffsetIndex> storageMapIndex = new HashMap<>();
     private static final int MAX_SSTABLES_BEFORE_COMPACTION = 4;
+    static final String SSTABLE_PREFIX = "sstable_";
+    private static final String SSTABLE_SUFFIX = ".dat";
+    //which tables are live, their age order and level
+    private final Manifest manifest;
+    private final SsTableOptions options;
+    //null when disabled
+    private final BlockCache blockCache;
+    private final Map<File, Manifest.Table> tableMetadata = new HashMap<>();
+    //large values the tables point to, when separated
+    private final ValueLog valueLog;
+    //a sealed segment whose live values are less than this share of it is rewritten by the garbage collector
+    private static final double VALUE_LOG_MIN_LIVE_RATIO = 0.5;
+    //a table at least this dense with tombstones, and holding enough of them, is merged with every older table
+    //right away, since only a compaction that reaches the oldest table can drop them
+    private static final double TOMBSTONE_COMPACTION_DENSITY = 0.5;
+    private static final long TOMBSTONE_COMPACTION_MIN_TOMBSTONES = 500;
+    //a table whose deleted ranges shade at least this many bytes of older tables, making up at least the density
+    //above of the tables from the oldest one they reach, is merged with those tables right away
+    private static final long RANGE_TOMBSTONE_COMPACTION_MIN_BYTES = 64 * 1024;
+    //table count last added to the gauge, so every change is reported as a delta
+    private int reportedSsTables = 0;
+    private static final int COMPACTION_HISTORY_SIZE = 20;
+    //opens tables in parallel at startup; shared by every engine, e.g. the shards of a sharded engine
+    private static final ForkJoinPool OPEN_POOL = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private final Deque<EngineStats.CompactionStats> compactionHistory = new ArrayDeque<>();
 
     public SsTableHandler(File file) throws IOException {
+        this(file, SsTableOptions.DEFAULT);
+    }
+
+    public SsTableHandler(File file, SsTableOptions options) throws IOException {
         this.file = file;
-        loadExistingSsTable();
+        this.options = options;
+        this.blockCache = options.blockCacheBytes() > 0 ? new BlockCache(options.blockCacheBytes()) : null;
+        this.manifest = Manifest.open(file);
+        this.valueLog = ValueLog.open(file);
+        try {
+            loadExistingSsTable();
+            //values appended for a table that never made it into the manifest
+            deleteUnreferencedValueSegments();
+        } catch (IOException | RuntimeException e) {
+            valueLog.close();
+            manifest.close();
+            throw e;
+        }
     }
 
     private void loadExistingSsTable() throws IOException {
-        File[] files = file.listFiles(new  FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.startsWith("sstable_") && name.endsWith(".dat");
+        List<Manifest.Table> tables = manifest.tables();
+        File[] files;
+        if (manifest.existed()) {
+            files = new File[tables.size()];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = tableFile(tables.get(i).fileNumber());
+                if (!files[i].exists()) {
+                    throw new IOException("Manifest of " + file.getAbsolutePath() + " lists missing sstable " + files[i].getName());
+                }
+            }
+        } else {
+            //written before the manifest existed, the names give the age order
+            files = listSsTableFiles(file);
+            if (files == null) {
+                files = new File[0];
             }
-        });
-
-        if (files != null) {
             Arrays.sort(files);
-            for (File file : files) {
-                sstableFiles.add(file);
-                storageMapIndex.put(file, buildIndexForExistingFile(file));
+        }
+        deleteUnlistedTables(files);
+
+        List<SsTableKeyOffsetIndex> indexes = buildIndexesInParallel(files);
+        if (!manifest.existed()) {
+            tables = new ArrayList<>();
+            for (int i = 0; i < files.length; i++) {
+                long id = parseSsTableId(files[i]);
+                tables.add(describe(files[i], id, id, 0, indexes.get(i)));
+            }
+            manifest.replaceAll(tables);
+            if (!tables.isEmpty()) {
+                System.out.printf("Recorded %d existing sstables of %s in a new manifest%n", tables.size(), file.getAbsolutePath());
+            }
+        }
+
+        for (int i = 0; i < files.length; i++) {
+            sstableFiles.add(files[i]);
+            storageMapIndex.put(files[i], indexes.get(i));
+            tableMetadata.put(files[i], tables.get(i));
+        }
+        reportSsTableCount();
+    }
+
+    //leftovers of a flush or compaction that was not recorded, or of tables replaced before a crash
+    private void deleteUnlistedTables(File[] live) {
+        Set<String> liveNames = new HashSet<>();
+        for (File table : live) {
+            liveNames.add(table.getName());
+        }
+        File[] candidates = file.listFiles((dir, name) -> name.startsWith(SSTABLE_PREFIX) && !liveNames.contains(name));
+        if (candidates == null) return;
+        for (File leftover : candidates) {
+            System.out.printf("Deleting %s, it is not a live sstable%n", leftover.getAbsolutePath());
+            leftover.delete();
+        }
+    }
+
+    //every table is scanned to rebuild its index, which is IO bound and independent per table
+    private static List<SsTableKeyOffsetIndex> buildIndexesInParallel(File[] files) throws IOException {
+        if (files.length == 0) {
+            return List.of();
+        }
+        if (files.length == 1) {
+            return List.of(buildIndexForExistingFile(files[0]));
+        }
+        try {
+            return OPEN_POOL.submit(() -> Arrays.stream(files).parallel().map(table -> {
+                try {
+                    return buildIndexForExistingFile(table);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).toList()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while opening sstables", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException unchecked) {
+                throw unchecked.getCause();
             }
+            throw new IOException("Could not open sstables", e.getCause());
         }
     }
 
     public File newSsTableFile() {
-        return new File(file.getParentFile(), file.getName() + ".sstable");
+        return tableFile(manifest.newFileNumber());
+    }
+
+    /**
+     * @return a writer for a new table, separating large values into this handler's value log
+     */
+    public SsTableWriter newSsTableWriter() throws IOException {
+        return new SsTableWriter(newSsTableFile(), options, valueLog, Set.of());
+    }
+
+    private File tableFile(long fileNumber) {
+        return new File(file, tableFileName(fileNumber));
+    }
+
+    //zero padded so that sorting the names of a checkpoint or export sorts its tables from oldest to newest
+    private static String tableFileName(long id) {
+        return String.format("%s%020d%s", SSTABLE_PREFIX, id, SSTABLE_SUFFIX);
+    }
+
+    private static Manifest.Table describe(File table, long fileNumber, long sequence, int level, SsTableKeyOffsetIndex index) {
+        return new Manifest.Table(fileNumber, sequence, level, table.length(), index.entryCount(), index.tombstoneCount(),
+                index.firstKey(), index.lastKey());
+    }
+
+    /**
+     * The live tables at one moment, oldest first. They can be read without holding off flushes, and stay on
+     * disk until the next compaction is installed.
+     */
+    record Snapshot(List<File> tables, List<SsTableKeyOffsetIndex> indexes) {
+    }
+
+    Snapshot snapshot() {
+        List<SsTableKeyOffsetIndex> indexes = new ArrayList<>();
+        for (File sstableFile : sstableFiles) {
+            indexes.add(storageMapIndex.get(sstableFile));
+        }
+        return new Snapshot(List.copyOf(sstableFiles), indexes);
+    }
+
+    /**
+     * Hard-links (or copies, where links are not supported) every table of {@code snapshot} into {@code targetDir}.
+     * Tables are immutable, so the links stay a consistent image even after later compactions delete them.
+     * They are named by age, which after a compaction is not the order of the file numbers. Tables that
+     * point into the value log are rewritten with their values, so a checkpoint needs nothing else.
+     */
+    List<File> checkpointTo(Snapshot snapshot, File targetDir) throws IOException {
+        if (!targetDir.exists() && !targetDir.mkdirs()) {
+            throw new IOException("Could not create checkpoint directory " + targetDir.getAbsolutePath());
+        }
+
+        List<File> checkpointed = new ArrayList<>();
+        for (int i = 0; i < snapshot.tables().size(); i++) {
+            File sstableFile = snapshot.tables().get(i);
+            File target = new File(targetDir, tableFileName(i + 1));
+            SsTableKeyOffsetIndex index = snapshot.indexes().get(i);
+            if (!index.valueReferences().isEmpty()) {
+                try (SsTableWriter writer = new SsTableWriter(target, options)) {
+                    writer.writeRangeTombstones(index.rangeTombstones());
+                    scanTable(sstableFile, (key, entry) -> writer.write(key, valueLog.resolve(entry)));
+                }
+                checkpointed.add(target);
+                continue;
+            }
+            try {
+                Files.createLink(target.toPath(), sstableFile.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(sstableFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            checkpointed.add(target);
+        }
+        return checkpointed;
+    }
+
+    /**
+     * Replaces every live sstable with the tables found in {@code sourceDir}, which are moved into place.
+     */
+    public void replaceWithCheckpoint(File sourceDir) throws IOException {
+        File[] sources = listSsTableFiles(sourceDir);
+        if (sources == null) {
+            sources = new File[0];
+        }
+        Arrays.sort(sources);
+
+        File[] restored = new File[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            restored[i] = newSsTableFile();
+            Files.move(sources[i].toPath(), restored[i].toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        List<SsTableKeyOffsetIndex> indexes = buildIndexesInParallel(restored);
+        List<Manifest.Table> tables = new ArrayList<>();
+        for (int i = 0; i < restored.length; i++) {
+            long id = parseSsTableId(restored[i]);
+            tables.add(describe(restored[i], id, id, 0, indexes.get(i)));
+        }
+
+        //until the manifest is rewritten the restored files are leftovers and the old tables stay live
+        manifest.replaceAll(tables);
+        for (File oldFile : sstableFiles) {
+            dropTable(oldFile);
+        }
+        sstableFiles.clear();
+        storageMapIndex.clear();
+        tableMetadata.clear();
+        for (int i = 0; i < restored.length; i++) {
+            sstableFiles.add(restored[i]);
+            storageMapIndex.put(restored[i], indexes.get(i));
+            tableMetadata.put(restored[i], tables.get(i));
+        }
+        reportSsTableCount();
+        deleteUnreferencedValueSegments();
+    }
+
+    /**
+     * Writes the records of every table of {@code snapshot} with keys in [{@code startKey}, {@code endKey}) into
+     * {@code targetDir}, tombstones included, keeping the tables' age order. A null {@code endKey} is unbounded.
+     * Tables that lie entirely inside the range are linked as they are; others, and tables that point into
+     * the value log, are rewritten with only the records and deleted ranges in range and every value.
+     */
+    List<File> exportRange(Snapshot snapshot, String startKey, String endKey, File targetDir) throws IOException {
+        if (!targetDir.exists() && !targetDir.mkdirs()) {
+            throw new IOException("Could not create export directory " + targetDir.getAbsolutePath());
+        }
+
+        List<File> exported = new ArrayList<>();
+        for (int i = 0; i < snapshot.tables().size(); i++) {
+            File sstableFile = snapshot.tables().get(i);
+            File target = new File(targetDir, tableFileName(exported.size() + 1));
+            SsTableKeyOffsetIndex index = snapshot.indexes().get(i);
+            RangeTombstones ranges = index.rangeTombstones().clip(startKey, endKey);
+            boolean[] allInRange = {ranges.asMap().equals(index.rangeTombstones().asMap())};
+            int written;
+            try (SsTableWriter writer = new SsTableWriter(target, options)) {
+                writer.writeRangeTombstones(ranges);
+                int[] count = {0};
+                scanTable(sstableFile, (key, entry) -> {
+                    if (key.compareTo(startKey) >= 0 && (endKey == null || key.compareTo(endKey) < 0)) {
+                        writer.write(key, valueLog.resolve(entry));
+                        count[0]++;
+                    } else {
+                        allInRange[0] = false;
+                    }
+                });
+                written = count[0];
+            }
+
+            if (written == 0 && ranges.isEmpty()) {
+                target.delete();
+                continue;
+            }
+            if (allInRange[0] && index.valueReferences().isEmpty()) {
+                //the rewrite is byte for byte the same table, link the original instead
+                target.delete();
+                try {
+                    Files.createLink(target.toPath(), sstableFile.toPath());
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(sstableFile.toPath(), target.toPath());
+                }
+            }
+            exported.add(target);
+        }
+        return exported;
+    }
+
+    /**
+     * Moves the tables in {@code sourceDir} in as the newest tables, oldest first. Compacting them is left
+     * to the caller.
+     */
+    public void importTables(File sourceDir) throws IOException {
+        File[] files = listSsTableFiles(sourceDir);
+        if (files == null || files.length == 0) return;
+
+        Arrays.sort(files);
+        for (File source : files) {
+            File target = newSsTableFile();
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            registerSsTable(target, buildIndexForExistingFile(target));
+        }
+    }
+
+    /**
+     * Calls {@code consumer} for every record of {@code sstableFile} in key order.
+     * Tombstones are passed as deleted entries.
+     */
+    static void scanTable(File sstableFile, RecordConsumer consumer) throws IOException {
+        SsTableKeyOffsetIndex index = SsTableFormat.readIndex(sstableFile);
+        if (index == null) {
+            scanUnframedTable(sstableFile, consumer);
+            return;
+        }
+
+        try (RandomAccessFile in = new RandomAccessFile(sstableFile, "r")) {
+            for (SsTableKeyOffsetIndex.BlockHandle block : index.blocks()) {
+                BlockReader records = new BlockReader(SsTableFormat.readBlock(in, block, index.formatVersion()), index.formatVersion());
+                while (records.next()) {
+                    consumer.accept(records.key(), records.entry());
+                }
+            }
+        }
+    }
+
+    //a table written before blocks existed: nothing but records, possibly ending in one cut short
+    private static void scanUnframedTable(File sstableFile, RecordConsumer consumer) throws IOException {
+        try (DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(sstableFile)))) {
+            while (true) {
+                String key;
+                byte[] valueBytes = null;
+                try {
+                    int keyLength = dataInputStream.readInt();
+                    int valueLength = dataInputStream.readInt();
+                    if (keyLength < 0) {
+                        throw new IOException("Invalid key length: " + keyLength);
+                    }
+
+                    byte[] keyBytes = new byte[keyLength];
+                    dataInputStream.readFully(keyBytes);
+                    key = new String(keyBytes, StandardCharsets.UTF_8);
+                    if (valueLength >= 0) {
+                        valueBytes = new byte[valueLength];
+                        dataInputStream.readFully(valueBytes);
+                    }
+                } catch (EOFException eofException) {
+                    break;
+                }
+                consumer.accept(key, new Entry(valueBytes, valueBytes == null));
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface RecordConsumer {
+        void accept(String key, Entry entry) throws IOException;
+    }
+
+    private static File[] listSsTableFiles(File dir) {
+        return dir.listFiles(new  FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SSTABLE_PREFIX) && name.endsWith(SSTABLE_SUFFIX);
+            }
+        });
+    }
+
+    private static long parseSsTableId(File sstableFile) {
+        String name = sstableFile.getName();
+        try {
+            return Long.parseLong(name.substring(SSTABLE_PREFIX.length(), name.length() - SSTABLE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     public List<File> getSsTableFile() {
         return Collections.unmodifiableList(sstableFiles);
     }
 
-    public void registerSsTable(File file, SsTableKeyOffsetIndex ssTableKeyOffsetIndex) {
+    /**
+     * Records {@code file}, named by {@link #newSsTableFile()}, as the newest table.
+     */
+    public void registerSsTable(File file, SsTableKeyOffsetIndex ssTableKeyOffsetIndex) throws IOException {
+        long id = parseSsTableId(file);
+        Manifest.Table table = describe(file, id, id, 0, ssTableKeyOffsetIndex);
+        manifest.apply(List.of(table), List.of());
+
         sstableFiles.add(file);
         storageMapIndex.put(file, ssTableKeyOffsetIndex);
+        tableMetadata.put(file, table);
+        reportSsTableCount();
+    }
+
+    /**
+     * Closes the manifest and stops counting this handler's tables in the process wide metrics.
+     */
+    public void close() throws IOException {
+        SSTABLES.add(-reportedSsTables);
+        reportedSsTables = 0;
+        try {
+            valueLog.close();
+        } finally {
+            manifest.close();
+        }
+    }
+
+    private void reportSsTableCount() {
+        SSTABLES.add(sstableFiles.size() - reportedSsTables);
+        reportedSsTables = sstableFiles.size();
     }
 
     public Entry get(String key)  throws IOException {
+        ReadTrace trace = ReadTrace.current();
         for (int i = sstableFiles.size() - 1; i >= 0; i--) {
             File file = sstableFiles.get(i);
             SsTableKeyOffsetIndex offsetIndex = storageMapIndex.get(file);
-            Entry entry = getFromFile(file, offsetIndex, key);
+            Entry entry = getFromFile(file, offsetIndex, key, trace);
             if (entry != null) {
-                return entry;
+                return valueLog.resolve(entry);
+            }
+            //the table's own records are newer than its deleted ranges, the older tables are not
+            if (offsetIndex.rangeTombstones().covers(key)) {
+                return new Entry(null, true);
             }
         }
         return null;
@@ -60,206 +462,529 @@ public class SsTableHandler {
 
     public NavigableMap<String, Entry> getRange(String startKey, String endKey)  throws IOException {
         NavigableMap<String, Entry> ranges = new TreeMap<>();
-        for (int i = sstableFiles.size() - 1; i >= 0; i--) {
-            File file = sstableFiles.get(i);
+        //oldest to newest so that newer versions and tombstones overwrite older ones
+        for (File file : sstableFiles) {
             SsTableKeyOffsetIndex offsetIndex = storageMapIndex.get(file);
 
             NavigableMap<String, Entry> partialRange = rangeFromFile(file, offsetIndex, startKey, endKey);
 
+            offsetIndex.rangeTombstones().removeCovered(ranges);
             ranges.putAll(partialRange);
         }
+        //only the newest version of a key is read from the value log
+        for (Map.Entry<String, Entry> entry : ranges.entrySet()) {
+            entry.setValue(valueLog.resolve(entry.getValue()));
+        }
         return ranges;
     }
 
+    /**
+     * Merges every table once there are too many. Otherwise the newest table that is mostly tombstones is merged
+     * with every older table, and the newest table whose deleted ranges shade enough of the older tables is merged
+     * with the older tables from the oldest one they reach. That drops the deleted data, and the tombstones when
+     * the oldest table takes part, instead of leaving both on disk until the table count forces a full compaction.
+     */
     public void compact() throws IOException {
-        if  (sstableFiles.size() <= MAX_SSTABLES_BEFORE_COMPACTION) return;
-        compactAllTables();
+        runNow(planCompaction());
     }
 
-    private void compactAllTables() throws IOException {
-        if (sstableFiles.isEmpty()) return;
-
-        Map<String, Entry> merged = new TreeMap<>();
+    /**
+     * @return the compaction {@link #compact()} would run, null if none is due
+     */
+    Compaction planCompaction() {
+        if (sstableFiles.size() > MAX_SSTABLES_BEFORE_COMPACTION) {
+            return plan(0, sstableFiles.size() - 1, Set.of());
+        }
 
-        for (File file : sstableFiles) {
-            Map<String, Entry> allEntries = readAllEntries(file);
-            for (Map.Entry<String, Entry> e : allEntries.entrySet()) {
-                merged.put(e.getKey(), e.getValue());
+        for (int i = sstableFiles.size() - 1; i > 0; i--) {
+            SsTableKeyOffsetIndex index = storageMapIndex.get(sstableFiles.get(i));
+            boolean deleteHeavy = index.tombstoneCount() >= TOMBSTONE_COMPACTION_MIN_TOMBSTONES
+                    && index.tombstoneDensity() >= TOMBSTONE_COMPACTION_DENSITY;
+            if (deleteHeavy) {
+                System.out.printf("Compacting %s, %.0f%% tombstones, with the %d tables before it%n",
+                        sstableFiles.get(i).getName(), index.tombstoneDensity() * 100, i);
+                return plan(0, i, Set.of());
+            }
+            if (index.rangeTombstones().isEmpty()) continue;
+
+            //only worth it when the ranges shade a good part of what the merge rewrites
+            long shaded = 0;
+            int oldest = -1;
+            for (int older = 0; older < i; older++) {
+                long bytes = 0;
+                for (Map.Entry<String, String> range : index.rangeTombstones().asMap().entrySet()) {
+                    bytes += storageMapIndex.get(sstableFiles.get(older)).bytesBetween(range.getKey(), range.getValue());
+                }
+                if (bytes > 0 && oldest < 0) oldest = older;
+                shaded += bytes;
+            }
+            if (oldest < 0) continue;
+            long rewritten = 0;
+            for (int merged = oldest; merged <= i; merged++) {
+                rewritten += tableMetadata.get(sstableFiles.get(merged)).sizeBytes();
+            }
+            if (shaded >= RANGE_TOMBSTONE_COMPACTION_MIN_BYTES && shaded >= rewritten * TOMBSTONE_COMPACTION_DENSITY) {
+                System.out.printf("Compacting %s, whose %d deleted ranges shade %.1f kb of older tables, with the %d tables before it%n",
+                        sstableFiles.get(i).getName(), index.rangeTombstones().size(), shaded / 1024.0, i - oldest);
+                return plan(oldest, i, Set.of());
             }
         }
+        return null;
+    }
 
-        File compactedFile = newSsTableFile();
-        SsTableKeyOffsetIndex newIndex;
-        try (SsTableWriter writer = new SsTableWriter(compactedFile)) {
-            writer.writeFromMapSkippingDeletes(merged);
-            newIndex = writer.getOffsetIndex();
-        }
+    /**
+     * Merges every table.
+     */
+    public void compactAll() throws IOException {
+        runNow(planFullCompaction());
+    }
 
-        for (File oldFile : sstableFiles) {
-            oldFile.delete();
+    Compaction planFullCompaction() {
+        if (sstableFiles.isEmpty()) return null;
+        return plan(0, sstableFiles.size() - 1, Set.of());
+    }
+
+    /**
+     * Merges the tables whose keys overlap [{@code startKey}, {@code endKey}), null bounds being unbounded,
+     * together with every table between them in age so newer versions keep shadowing older ones.
+     */
+    public void compactRange(String startKey, String endKey) throws IOException {
+        runNow(planRangeCompaction(startKey, endKey));
+    }
+
+    Compaction planRangeCompaction(String startKey, String endKey) {
+        int oldest = -1;
+        int newest = -1;
+        for (int i = 0; i < sstableFiles.size(); i++) {
+            SsTableKeyOffsetIndex index = storageMapIndex.get(sstableFiles.get(i));
+            boolean overlaps = index.entryCount() > 0 && (endKey == null || index.firstKey().compareTo(endKey) < 0)
+                    && (startKey == null || index.lastKey().compareTo(startKey) >= 0);
+            for (Map.Entry<String, String> range : index.rangeTombstones().asMap().entrySet()) {
+                overlaps |= (endKey == null || range.getKey().compareTo(endKey) < 0)
+                        && (startKey == null || range.getValue().compareTo(startKey) > 0);
+            }
+            if (overlaps) {
+                if (oldest < 0) oldest = i;
+                newest = i;
+            }
         }
-        sstableFiles.clear();
+        if (oldest < 0) return null;
+        //a lone table only changes if it is the oldest and has tombstones to drop
+        SsTableKeyOffsetIndex lone = storageMapIndex.get(sstableFiles.get(oldest));
+        if (oldest == newest && (oldest != 0 || (lone.tombstoneCount() == 0 && lone.rangeTombstones().isEmpty()))) return null;
 
-        registerSsTable(compactedFile, newIndex);
+        return plan(oldest, newest, Set.of());
     }
 
-    private Map<String, Entry> readAllEntries(File sstableFile) throws IOException {
-        Map<String, Entry> allEntries = new HashMap<>();
+    /**
+     * Deletes the value log segments no live table points into, then moves the live values out of sealed
+     * segments that are mostly garbage: the tables pointing into them are compacted, copying those values to
+     * the head of the log, after which nothing points into the segments and they are deleted too.
+     */
+    public void collectValueLogGarbage() throws IOException {
+        runNow(planValueLogGarbageCollection());
+    }
 
-        try (DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(sstableFile)))) {
-            while (true) {
-                try{
-                    int keyLength = dataInputStream.readInt();
-                    int valueLength = dataInputStream.readInt();
+    /**
+     * Deletes the value log segments no live table points into, so it needs the same exclusive access as
+     * {@link #install(Compaction)}.
+     *
+     * @return the compaction moving the live values out of segments that are mostly garbage, null if there are none
+     */
+    Compaction planValueLogGarbageCollection() throws IOException {
+        deleteUnreferencedValueSegments();
+
+        //values only, the record headers and keys around them count as garbage
+        Map<Long, Long> live = liveValueBytes();
+        Set<Long> victims = new HashSet<>();
+        for (Map.Entry<Long, Long> segment : valueLog.sealedSegments().entrySet()) {
+            if (live.getOrDefault(segment.getKey(), 0L) < segment.getValue() * VALUE_LOG_MIN_LIVE_RATIO) {
+                victims.add(segment.getKey());
+            }
+        }
+        if (victims.isEmpty()) return null;
+
+        int oldest = -1;
+        int newest = -1;
+        for (int i = 0; i < sstableFiles.size(); i++) {
+            Set<Long> referenced = storageMapIndex.get(sstableFiles.get(i)).valueReferences().keySet();
+            if (!Collections.disjoint(referenced, victims)) {
+                if (oldest < 0) oldest = i;
+                newest = i;
+            }
+        }
+        System.out.printf("Moving the live values out of %d value log segments of %s that are mostly garbage%n",
+                victims.size(), file.getAbsolutePath());
+        return plan(oldest, newest, victims);
+    }
 
-                    if (keyLength < 0) {
-                        throw new IOException("Invalid key length: " + keyLength);
-                    }
+    /**
+     * Tables picked to be merged, from index {@code from} to {@code to} (inclusive, oldest first), with what the
+     * merge needs to know about them copied out, so {@link #merge(Compaction)} can run while newer tables are
+     * flushed and registered. Only one compaction may be between planning and {@link #install(Compaction)} at a time.
+     */
+    static final class Compaction {
+        private final List<File> inputs;
+        private final List<SsTableKeyOffsetIndex> indexes = new ArrayList<>();
+        private final List<Long> fileNumbers = new ArrayList<>();
+        private final long sequence;
+        private final boolean dropTombstones;
+        private final Set<Long> relocatedSegments;
+        //set by merge
+        private File target;
+        private SsTableKeyOffsetIndex output;
+        private long started;
+        private long inputBytes;
+        private long tombstones;
+        private long expired;
+
+        private Compaction(List<File> inputs, long sequence, boolean dropTombstones, Set<Long> relocatedSegments) {
+            this.inputs = inputs;
+            this.sequence = sequence;
+            this.dropTombstones = dropTombstones;
+            this.relocatedSegments = relocatedSegments;
+        }
+    }
 
-                    byte[] keyBytes = new byte[keyLength];
-                    dataInputStream.readFully(keyBytes);
-                    String key = new String(keyBytes, StandardCharsets.UTF_8);
+    private Compaction plan(int from, int to, Set<Long> relocatedSegments) {
+        List<File> inputs = new ArrayList<>(sstableFiles.subList(from, to + 1));
+        Compaction compaction = new Compaction(inputs, tableMetadata.get(inputs.get(inputs.size() - 1)).sequence(),
+                from == 0, relocatedSegments);
+        for (File input : inputs) {
+            compaction.indexes.add(storageMapIndex.get(input));
+            compaction.fileNumbers.add(tableMetadata.get(input).fileNumber());
+        }
+        return compaction;
+    }
 
-                    byte[] valueBytes = null;
-                    boolean deleted = false;
+    //plans, merges and installs in one go, for a caller that holds off reads and writes meanwhile
+    private void runNow(Compaction compaction) throws IOException {
+        if (compaction == null) return;
+        merge(compaction);
+        install(compaction);
+    }
 
-                    if (valueLength < 0) {
-                        deleted = true;
-                    } else {
-                        valueBytes = new byte[valueLength];
-                        dataInputStream.readFully(valueBytes);
-                    }
+    /**
+     * Merges the inputs of {@code compaction} into a new table, which is not live until {@link #install(Compaction)}.
+     * It only reads the inputs, which are immutable and stay on disk until then, so it needs no lock against
+     * reads and flushes.
+     * A table's deleted ranges remove the older versions merged before it, and are kept in the output like the
+     * point tombstones. Tombstones of either kind, and expired values, can only be dropped when the oldest table
+     * takes part; otherwise they still have to shadow older tables. Expired values are dropped as they are, no
+     * tombstone is written for them. Separated values are carried over as pointers, except those in
+     * relocated segments, which are copied to the head of the value log.
+     */
+    void merge(Compaction compaction) throws IOException {
+        compaction.started = System.nanoTime();
+
+        NavigableMap<String, Entry> merged = new TreeMap<>();
+        RangeTombstones ranges = new RangeTombstones();
+        for (int i = 0; i < compaction.inputs.size(); i++) {
+            File input = compaction.inputs.get(i);
+            compaction.inputBytes += input.length();
+            RangeTombstones inputRanges = compaction.indexes.get(i).rangeTombstones();
+            //oldest to newest so newer versions overwrite older ones, and a table's ranges delete what came before it
+            inputRanges.removeCovered(merged);
+            ranges.addAll(inputRanges);
+            merged.putAll(readAllEntries(input));
+        }
 
-                    Entry entry = new Entry(valueBytes, deleted);
-                    allEntries.put(key, entry);
-                } catch (EOFException eofException) {
-                    break;
+        File target = newSsTableFile();
+        SsTableWriter writer = new SsTableWriter(target, options, valueLog, compaction.relocatedSegments);
+        long now = System.currentTimeMillis();
+        try (writer) {
+            if (compaction.dropTombstones) {
+                writer.writeFromMapSkippingDeletes(merged, now);
+            } else {
+                writer.writeRangeTombstones(ranges);
+                for (Map.Entry<String, Entry> entry : merged.entrySet()) {
+                    writer.write(entry.getKey(), entry.getValue());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            target.delete();
+            throw e;
+        }
+        compaction.target = target;
+        compaction.output = writer.getOffsetIndex();
+
+        if (compaction.dropTombstones) {
+            for (Entry entry : merged.values()) {
+                if (entry.deleted()) {
+                    compaction.tombstones++;
+                } else if (entry.expired(now)) {
+                    compaction.expired++;
                 }
             }
+            compaction.tombstones += ranges.size();
+        }
+    }
+
+    /**
+     * Swaps the output of a merged {@code compaction} in for its inputs with a single manifest record.
+     * The output takes the place of the newest input, below any table registered during the merge.
+     */
+    void install(Compaction compaction) throws IOException {
+        List<File> inputs = compaction.inputs;
+        int from = sstableFiles.indexOf(inputs.get(0));
+        if (from < 0 || from + inputs.size() > sstableFiles.size() || !sstableFiles.subList(from, from + inputs.size()).equals(inputs)) {
+            abandon(compaction);
+            throw new IllegalStateException("Tables of " + file.getAbsolutePath() + " changed while they were compacted");
+        }
+
+        File target = compaction.target;
+        SsTableKeyOffsetIndex newIndex = compaction.output;
+        Manifest.Table output = null;
+        if (newIndex.entryCount() == 0 && newIndex.rangeTombstones().isEmpty()) {
+            //everything was deleted
+            manifest.apply(List.of(), compaction.fileNumbers);
+            target.delete();
+        } else {
+            output = describe(target, parseSsTableId(target), compaction.sequence, 1, newIndex);
+            manifest.apply(List.of(output), compaction.fileNumbers);
         }
 
-       return allEntries;
+        //the inputs are no longer live, a crash from here on leaves files that are deleted at startup
+        for (File input : inputs) {
+            storageMapIndex.remove(input);
+            tableMetadata.remove(input);
+            dropTable(input);
+        }
+        sstableFiles.subList(from, from + inputs.size()).clear();
+        if (output != null) {
+            sstableFiles.add(from, target);
+            storageMapIndex.put(target, newIndex);
+            tableMetadata.put(target, output);
+        }
+        reportSsTableCount();
+        deleteUnreferencedValueSegments();
+        COMPACTIONS.increment();
+        COMPACTION_LATENCY.recordSince(compaction.started);
+
+        recordCompaction(new EngineStats.CompactionStats(System.currentTimeMillis(), (System.nanoTime() - compaction.started) / 1_000_000,
+                inputs.size(), compaction.inputBytes, output == null ? 0 : output.sizeBytes(), newIndex.entryCount(),
+                compaction.tombstones, compaction.expired), target);
     }
 
+    /**
+     * Deletes the output of a merged {@code compaction} that will not be installed.
+     */
+    void abandon(Compaction compaction) {
+        if (compaction.target != null) {
+            compaction.target.delete();
+        }
+    }
 
-    private SsTableKeyOffsetIndex buildIndexForExistingFile(File file) throws IOException {
-        SsTableKeyOffsetIndex offsetIndex = new SsTableKeyOffsetIndex();
-        final int INDEX_SPARSE_RATE = 128;
-        int counter = 0;
+    /**
+     * @return one entry per live table, oldest first
+     */
+    public List<EngineStats.TableStats> tableStats() {
+        List<EngineStats.TableStats> tables = new ArrayList<>();
+        for (File sstableFile : sstableFiles) {
+            Manifest.Table table = tableMetadata.get(sstableFile);
+            tables.add(new EngineStats.TableStats(sstableFile.getName(), table.level(), table.sizeBytes(), table.entries(),
+                    table.tombstones(), storageMapIndex.get(sstableFile).rangeTombstones().size(),
+                    storageMapIndex.get(sstableFile).size(), table.firstKey(), table.lastKey()));
+        }
+        return tables;
+    }
 
-        try(RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
-            while (true) {
-                long offset = randomAccessFile.getFilePointer();
-                try {
-                    int keyLength = randomAccessFile.readInt();
-                    int valueLength = randomAccessFile.readInt();
+    /**
+     * @return the most recent compactions of this process, oldest first
+     */
+    public List<EngineStats.CompactionStats> compactionHistory() {
+        return new ArrayList<>(compactionHistory);
+    }
 
-                    byte[] keyBytes = new byte[keyLength];
-                    randomAccessFile.readFully(keyBytes);
-                    String key = new String(keyBytes, StandardCharsets.UTF_8);
+    private void recordCompaction(EngineStats.CompactionStats compaction, File output) {
+        if (compactionHistory.size() == COMPACTION_HISTORY_SIZE) {
+            compactionHistory.removeFirst();
+        }
+        compactionHistory.addLast(compaction);
+        System.out.printf("Compacted %d tables (%.1f kb) into %s (%.1f kb, %d entries) in %d ms%n", compaction.inputTables(),
+                compaction.inputBytes() / 1024.0, output.getName(),
+                compaction.outputBytes() / 1024.0, compaction.outputEntries(), compaction.durationMillis());
+    }
 
-                    if (valueLength > 0) {
-                        randomAccessFile.skipBytes(valueLength);
-                    }
+    private Map<String, Entry> readAllEntries(File sstableFile) throws IOException {
+        Map<String, Entry> allEntries = new HashMap<>();
+        scanTable(sstableFile, allEntries::put);
+        return allEntries;
+    }
 
-                    if (counter % INDEX_SPARSE_RATE == 0) {
-                        offsetIndex.add(key, offset);
-                    }
-                    counter++;
-                } catch (EOFException e) {
-                    break;
-                }
+    public SsTableOptions options() {
+        return options;
+    }
+
+    //bytes of values the live tables point to, per value log segment
+    private Map<Long, Long> liveValueBytes() {
+        Map<Long, Long> live = new HashMap<>();
+        for (SsTableKeyOffsetIndex index : storageMapIndex.values()) {
+            for (Map.Entry<Long, Long> reference : index.valueReferences().entrySet()) {
+                live.merge(reference.getKey(), reference.getValue(), Long::sum);
             }
         }
-        return offsetIndex;
+        return live;
     }
 
-    private Entry getFromFile(File file, SsTableKeyOffsetIndex offsetIndex, String key) throws IOException {
-        long startOffset = 0L;
+    //called once the manifest no longer lists the tables that pointed into them
+    private void deleteUnreferencedValueSegments() throws IOException {
+        Map<Long, Long> live = liveValueBytes();
+        for (Map.Entry<Long, Long> segment : valueLog.sealedSegments().entrySet()) {
+            if (live.containsKey(segment.getKey())) continue;
+            valueLog.delete(segment.getKey());
+            VALUE_LOG_RECLAIMED.add(segment.getValue());
+            System.out.printf("Deleted value log segment %d of %s (%.1f kb), no live sstable points into it%n",
+                    segment.getKey(), file.getAbsolutePath(), segment.getValue() / 1024.0);
+        }
+    }
 
-        if (offsetIndex != null && !offsetIndex.isEmpty()) {
-            Map.Entry<String, Long> floorEntry = offsetIndex.get(key);
-            if (floorEntry != null) {
-                startOffset = floorEntry.getValue();
-            }
+    //deletes a table that is no longer live
+    private void dropTable(File table) {
+        if (blockCache != null) {
+            blockCache.invalidate(table);
         }
+        table.delete();
+    }
 
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
-            randomAccessFile.seek(startOffset);
+    private static SsTableKeyOffsetIndex buildIndexForExistingFile(File file) throws IOException {
+        SsTableKeyOffsetIndex stored = SsTableFormat.readIndex(file);
+        return stored != null ? stored : buildIndexForUnframedFile(file);
+    }
 
-            while (true) {
-                try {
-                    int keyLength = randomAccessFile.readInt();
-                    int valueLength = randomAccessFile.readInt();
+    //tables written before blocks existed are scanned, every run of 128 records becoming an uncompressed block
+    private static SsTableKeyOffsetIndex buildIndexForUnframedFile(File file) throws IOException {
+        SsTableKeyOffsetIndex.Builder offsetIndex = new SsTableKeyOffsetIndex.Builder();
+        final int INDEX_SPARSE_RATE = 128;
+        int counter = 0;
+        long length = file.length();
+        long offset = 0;
+        String blockFirstKey = null;
+        long blockStart = 0;
+
+        //buffered, since a read per field straight from the file costs a system call each
+        try (DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            while (offset < length) {
+                if (length - offset < 8) {
+                    break;
+                }
+                int keyLength = dataInputStream.readInt();
+                int valueLength = dataInputStream.readInt();
+                long recordLength = 8L + keyLength + Math.max(0, valueLength);
+                if (keyLength < 0 || offset + recordLength > length) {
+                    break;
+                }
 
-                    byte[] keyBytes = new byte[keyLength];
-                    randomAccessFile.readFully(keyBytes);
+                byte[] keyBytes = new byte[keyLength];
+                dataInputStream.readFully(keyBytes);
+                String key = new String(keyBytes, StandardCharsets.UTF_8);
 
-                    String entryKey = new String(keyBytes, StandardCharsets.UTF_8);
+                if (valueLength > 0) {
+                    dataInputStream.skipNBytes(valueLength);
+                }
 
-                    if (valueLength <  0) {
-                        throw new IOException("Invalid key length: " + valueLength);
-                    }
-                    byte[] valueBytes = new byte[valueLength];
-                    randomAccessFile.readFully(valueBytes);
-
-                    int keyCompare  = entryKey.compareTo(key);
-                    if (keyCompare == 0) {
-                        return new Entry(valueBytes, false);
-                    } else if (keyCompare > 0) {
-                        break;
+                if (counter % INDEX_SPARSE_RATE == 0) {
+                    if (blockFirstKey != null) {
+                        offsetIndex.add(blockFirstKey, blockStart, (int) (offset - blockStart));
                     }
-                } catch (EOFException e) {
-                    break;
+                    blockFirstKey = key;
+                    blockStart = offset;
                 }
+                offsetIndex.countRecord(key, valueLength < 0);
+                counter++;
+                offset += recordLength;
             }
+        }
+        if (blockFirstKey != null) {
+            offsetIndex.add(blockFirstKey, blockStart, (int) (offset - blockStart));
+        }
+
+        if (offset < length) {
+            //a table cut short, e.g. by a crash while it was written; everything before the damage is still served
+            System.out.printf("Ignoring %d bytes after the last complete record of %s%n", length - offset, file.getAbsolutePath());
+        }
+        return offsetIndex.build(SsTableFormat.UNFRAMED);
+    }
+
+    private Entry getFromFile(File file, SsTableKeyOffsetIndex offsetIndex, String key, ReadTrace trace) throws IOException {
+        SsTableKeyOffsetIndex.BlockHandle floorBlock = offsetIndex.get(key);
+        //every block's first key is indexed, so below the first one or past the last key the table cannot hold it
+        if (floorBlock == null || key.compareTo(offsetIndex.lastKey()) > 0) {
+            if (trace != null) {
+                trace.tableSkipped();
+            }
+            return null;
+        }
+        if (trace != null) {
+            trace.tableProbed();
+        }
 
+        BlockReader records = new BlockReader(readBlock(file, offsetIndex, floorBlock, null), offsetIndex.formatVersion());
+        //binary search over the block's restart points instead of decoding it from the start
+        records.seek(key);
+        while (records.next()) {
+            if (trace != null) {
+                trace.entryScanned(records.recordLength());
+            }
+            int keyCompare = records.key().compareTo(key);
+            if (keyCompare == 0) {
+                return records.entry();
+            } else if (keyCompare > 0) {
+                break;
+            }
         }
         return null;
     }
 
     private NavigableMap<String, Entry> rangeFromFile(File file, SsTableKeyOffsetIndex offsetIndex, String startKey, String endKey) throws IOException {
         NavigableMap<String, Entry> ranges = new TreeMap<>();
-
-        long startOffset = 0L;
-        if (offsetIndex != null && offsetIndex.isEmpty()) {
-            Map.Entry<String, Long> floorEntry = offsetIndex.get(startKey);
-            if (floorEntry != null) {
-                startOffset = floorEntry.getValue();
-            }
+        if (offsetIndex.isEmpty() || startKey.compareTo(offsetIndex.lastKey()) > 0 || endKey.compareTo(offsetIndex.firstKey()) < 0) {
+            return ranges;
         }
 
         try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
-            randomAccessFile.seek(startOffset);
-
-            while (true) {
-                try {
-                    int keyLength = randomAccessFile.readInt();
-                    int valueLength = randomAccessFile.readInt();
-
-                    byte[] keyBytes = new byte[keyLength];
-                    randomAccessFile.readFully(keyBytes);
-
-                    String entryKey = new String(keyBytes, StandardCharsets.UTF_8);
-
-                    if (valueLength <  0) {
-                        throw new IOException("Invalid key length: " + valueLength);
-                    }
-                    byte[] valueBytes = new byte[valueLength];
-                    randomAccessFile.readFully(valueBytes);
-
+            boolean firstBlock = true;
+            for (SsTableKeyOffsetIndex.BlockHandle handle : offsetIndex.from(startKey)) {
+                BlockReader records = new BlockReader(readBlock(file, offsetIndex, handle, randomAccessFile), offsetIndex.formatVersion());
+                if (firstBlock) {
+                    records.seek(startKey);
+                    firstBlock = false;
+                }
+                while (records.next()) {
+                    String entryKey = records.key();
                     if (entryKey.compareTo(endKey) > 0) {
-                        break;
+                        return ranges;
                     }
-
                     if (entryKey.compareTo(startKey) >= 0) {
-                        ranges.put(entryKey, new Entry(valueBytes, false));
+                        //tombstones are kept so they shadow older tables
+                        ranges.put(entryKey, records.entry());
                     }
-                } catch (EOFException e) {
-                    break;
                 }
             }
         }
         return ranges;
     }
+
+    //uncompressed block from the cache, or read from {@code in} (opened here when null) and cached
+    private byte[] readBlock(File table, SsTableKeyOffsetIndex offsetIndex, SsTableKeyOffsetIndex.BlockHandle handle,
+                             RandomAccessFile in) throws IOException {
+        BlockCache.Key cacheKey = blockCache == null ? null : new BlockCache.Key(table, handle.offset());
+        if (cacheKey != null) {
+            byte[] cached = blockCache.get(cacheKey);
+            if (cached != null) return cached;
+        }
+
+        byte[] block;
+        if (in != null) {
+            block = SsTableFormat.readBlock(in, handle, offsetIndex.formatVersion());
+        } else {
+            try (RandomAccessFile opened = new RandomAccessFile(table, "r")) {
+                block = SsTableFormat.readBlock(opened, handle, offsetIndex.formatVersion());
+            }
+        }
+        if (cacheKey != null) {
+            blockCache.put(cacheKey, block);
+        }
+        return block;
+    }
 }
@@ -1,22 +1,431 @@
 package kv.storage;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
 
+/**
+ * Where the blocks of a table are: the first key of every block and its position in the file, kept in the
+ * serialized form the table stores it in and binary searched in place, so a table's index costs no objects
+ * per block. Indexes read from a table are mapped from the file rather than copied onto the heap.
+ *
+ * Layout: [long entries][long tombstones][key firstKey][key lastKey][int segments], per value log segment the
+ * table points into [long segment][long valueBytes], [int rangeTombstones], per deleted range [key start][key end],
+ * then [int levels][int topSectionOffset] and the sections; version 4 tables have no range tombstones and version 3
+ * tables no segment list either. A section is [int count], per entry [int keyOffset][int keyLength][long offset][int length], then
+ * the keys, key offsets counting from the section's start. With one level the top section's entries are the
+ * blocks; with two, large tables split their block entries into partitions of {@link #PARTITION_ENTRIES}
+ * and the top section's entries are the partitions, their offsets counting from the start of the index.
+ */
 public class SsTableKeyOffsetIndex {
 
-    private final NavigableMap<String, Long> storageMapIndex = new TreeMap<>();
+    /**
+     * @param length bytes on disk, header included
+     */
+    record BlockHandle(long offset, int length) {
+    }
+
+    static final int PARTITION_ENTRIES = 256;
+    private static final int ENTRY_SIZE = 20;
+
+    //how the blocks are laid out, one of the SsTableFormat versions
+    private final int formatVersion;
+    private final ByteBuffer index;
+    private final int levels;
+    private final int topSection;
+    private final int blockCount;
+    private final long entryCount;
+    private final long tombstoneCount;
+    private final String firstKey;
+    private final String lastKey;
+    //value log segment to bytes of values this table points to there
+    private final Map<Long, Long> valueReferences;
+    private final RangeTombstones rangeTombstones;
+
+    /**
+     * @param summaryVersion the table format version the summary was written in, which for an index rebuilt
+     *                       on the heap is the current one whatever {@code formatVersion} is
+     */
+    private SsTableKeyOffsetIndex(int formatVersion, ByteBuffer index, int summaryVersion) throws IOException {
+        this.formatVersion = formatVersion;
+        this.index = index;
+        try {
+            int at = 0;
+            entryCount = index.getLong(at);
+            tombstoneCount = index.getLong(at + 8);
+            at += 16;
+            firstKey = readKey(index, at);
+            at += 4 + Math.max(0, index.getInt(at));
+            lastKey = readKey(index, at);
+            at += 4 + Math.max(0, index.getInt(at));
+            Map<Long, Long> references = new TreeMap<>();
+            if (summaryVersion >= SsTableFormat.VALUE_POINTERS) {
+                int segments = index.getInt(at);
+                at += 4;
+                for (int i = 0; i < segments; i++, at += 16) {
+                    references.put(index.getLong(at), index.getLong(at + 8));
+                }
+            }
+            valueReferences = Collections.unmodifiableMap(references);
+            RangeTombstones ranges = RangeTombstones.NONE;
+            if (summaryVersion >= SsTableFormat.RANGE_TOMBSTONES) {
+                int count = index.getInt(at);
+                at += 4;
+                if (count > 0) {
+                    ranges = new RangeTombstones();
+                }
+                for (int i = 0; i < count; i++) {
+                    String start = readKey(index, at);
+                    at += 4 + Math.max(0, index.getInt(at));
+                    String end = readKey(index, at);
+                    at += 4 + Math.max(0, index.getInt(at));
+                    if (start == null || end == null || start.compareTo(end) >= 0) {
+                        throw new IOException("Corrupt sstable index: deleted range " + start + " to " + end);
+                    }
+                    ranges.add(start, end);
+                }
+            }
+            rangeTombstones = ranges;
+            levels = index.getInt(at);
+            topSection = index.getInt(at + 4);
+            if (levels < 1 || levels > 2 || topSection < 0 || topSection + 4 > index.limit()) {
+                throw new IOException("Corrupt sstable index: " + levels + " levels, top section at " + topSection);
+            }
+            int count = 0;
+            for (int i = 0, sections = levels == 1 ? 1 : sectionCount(topSection); i < sections; i++) {
+                count += sectionCount(levels == 1 ? topSection : partition(i));
+            }
+            blockCount = count;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt sstable index", e);
+        }
+    }
+
+    /**
+     * @param index the serialized index, as {@link Builder#toBytes()} writes it
+     */
+    static SsTableKeyOffsetIndex read(int formatVersion, ByteBuffer index) throws IOException {
+        return new SsTableKeyOffsetIndex(formatVersion, index, formatVersion);
+    }
 
-    void add(String key, long offset) {
-        storageMapIndex.put(key, offset);
+    /**
+     * @return the block that holds {@code key} if the table has it, null if the key sorts before the table
+     */
+    BlockHandle get(String key) {
+        byte[] target = key.getBytes(StandardCharsets.UTF_8);
+        int section = topSection;
+        int position = floor(section, target);
+        if (position < 0) return null;
+        if (levels == 2) {
+            section = partition(position);
+            //the partition's first key is the one the top section indexed, so it has a floor too
+            position = floor(section, target);
+        }
+        return handle(section, position);
     }
 
-    Map.Entry<String,Long> get(String key) {
-        return storageMapIndex.floorEntry(key);
+    /**
+     * @return blocks that may hold keys from {@code key} on, in key order
+     */
+    Iterable<BlockHandle> from(String key) {
+        byte[] target = key.getBytes(StandardCharsets.UTF_8);
+        int top = Math.max(0, floor(topSection, target));
+        if (levels == 1) {
+            return () -> new Blocks(-1, top);
+        }
+        int partitionPosition = floor(partition(top), target);
+        return () -> new Blocks(top, Math.max(0, partitionPosition));
+    }
+
+    /**
+     * @return every block, in key order
+     */
+    Iterable<BlockHandle> blocks() {
+        return () -> new Blocks(levels == 1 ? -1 : 0, 0);
+    }
+
+    int formatVersion() {
+        return formatVersion;
     }
 
     boolean isEmpty() {
-        return storageMapIndex.isEmpty();
+        return blockCount == 0;
+    }
+
+    int size() {
+        return blockCount;
+    }
+
+    long entryCount() {
+        return entryCount;
+    }
+
+    long tombstoneCount() {
+        return tombstoneCount;
+    }
+
+    String firstKey() {
+        return firstKey;
+    }
+
+    String lastKey() {
+        return lastKey;
+    }
+
+    /**
+     * @return bytes of values this table keeps in each value log segment, empty if it holds every value itself
+     */
+    Map<Long, Long> valueReferences() {
+        return valueReferences;
+    }
+
+    /**
+     * @return key ranges deleted by the time the table was written, which shade older tables only
+     */
+    RangeTombstones rangeTombstones() {
+        return rangeTombstones;
+    }
+
+    /**
+     * @return share of the table's records that are point tombstones; what its deleted ranges shade is
+     * measured on the older tables, see {@link #bytesBetween(String, String)}
+     */
+    double tombstoneDensity() {
+        return entryCount == 0 ? 0 : (double) tombstoneCount / entryCount;
+    }
+
+    /**
+     * @return bytes of the blocks that may hold keys in [{@code startKey}, {@code endKey}), 0 if the table has none
+     */
+    long bytesBetween(String startKey, String endKey) {
+        if (isEmpty() || startKey.compareTo(lastKey) > 0) return 0;
+        BlockHandle last = get(endKey);
+        if (last == null) return 0;
+        long bytes = 0;
+        for (BlockHandle block : from(startKey)) {
+            bytes += block.length();
+            if (block.equals(last)) break;
+        }
+        return bytes;
+    }
+
+    private int sectionCount(int section) {
+        return index.getInt(section);
+    }
+
+    private int partition(int topPosition) {
+        return (int) index.getLong(topSection + 4 + topPosition * ENTRY_SIZE + 8);
+    }
+
+    private BlockHandle handle(int section, int position) {
+        int entry = section + 4 + position * ENTRY_SIZE;
+        return new BlockHandle(index.getLong(entry + 8), index.getInt(entry + 16));
+    }
+
+    //position of the last entry whose key is not after {@code target}, -1 if the first one already is
+    private int floor(int section, byte[] target) {
+        int low = 0;
+        int high = sectionCount(section) - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (compareKey(section, middle, target) <= 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    //compares the entry's key to {@code target} in String order without decoding it
+    private int compareKey(int section, int position, byte[] target) {
+        int entry = section + 4 + position * ENTRY_SIZE;
+        int keyAt = section + index.getInt(entry);
+        int keyLength = index.getInt(entry + 4);
+        int common = Math.min(keyLength, target.length);
+        for (int i = 0; i < common; i++) {
+            int a = index.get(keyAt + i) & 0xFF;
+            int b = target[i] & 0xFF;
+            if (a == b) continue;
+            if (a >= 0xEE && b >= 0xEE) {
+                //utf-8 puts characters above U+FFFF after U+E000..U+FFFF, utf-16 and so String put them before
+                byte[] key = new byte[keyLength];
+                index.get(keyAt, key);
+                return new String(key, StandardCharsets.UTF_8).compareTo(new String(target, StandardCharsets.UTF_8));
+            }
+            return a - b;
+        }
+        return keyLength - target.length;
+    }
+
+    private static String readKey(ByteBuffer buffer, int at) {
+        int length = buffer.getInt(at);
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(at + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //walks the block entries of one section, or of every partition from one on
+    private final class Blocks implements Iterator<BlockHandle> {
+        private int topPosition;
+        private int section;
+        private int position;
+
+        Blocks(int topPosition, int position) {
+            this.topPosition = topPosition;
+            this.section = topPosition < 0 ? topSection : partition(topPosition);
+            this.position = position;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (position >= sectionCount(section)) {
+                if (topPosition < 0 || topPosition + 1 >= sectionCount(topSection)) return false;
+                section = partition(++topPosition);
+                position = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public BlockHandle next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return handle(section, position++);
+        }
+    }
+
+    /**
+     * Collects the blocks and summary of a table in key order and serializes them.
+     */
+    static final class Builder {
+        private final List<byte[]> keys = new ArrayList<>();
+        private final List<BlockHandle> handles = new ArrayList<>();
+        private long entryCount = 0;
+        private long tombstoneCount = 0;
+        private String firstKey;
+        private String lastKey;
+        private final Map<Long, Long> valueReferences = new TreeMap<>();
+        private final RangeTombstones rangeTombstones = new RangeTombstones();
+
+        void add(String key, long offset, int length) {
+            keys.add(key.getBytes(StandardCharsets.UTF_8));
+            handles.add(new BlockHandle(offset, length));
+        }
+
+        /**
+         * Counts a record of the table; records arrive in key order.
+         */
+        void countRecord(String key, boolean tombstone) {
+            if (firstKey == null) {
+                firstKey = key;
+            }
+            lastKey = key;
+            entryCount++;
+            if (tombstone) {
+                tombstoneCount++;
+            }
+        }
+
+        //restores the summary stored with an older table's index
+        void setSummary(long entryCount, long tombstoneCount, String firstKey, String lastKey) {
+            this.entryCount = entryCount;
+            this.tombstoneCount = tombstoneCount;
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+        }
+
+        long entryCount() {
+            return entryCount;
+        }
+
+        void referenceValue(ValueLog.Pointer pointer) {
+            valueReferences.merge(pointer.segment(), (long) pointer.length(), Long::sum);
+        }
+
+        void addRangeTombstones(RangeTombstones ranges) {
+            rangeTombstones.addAll(ranges);
+        }
+
+        byte[] toBytes() {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeLong(entryCount);
+                out.writeLong(tombstoneCount);
+                SsTableFormat.writeKey(out, firstKey);
+                SsTableFormat.writeKey(out, lastKey);
+                out.writeInt(valueReferences.size());
+                for (Map.Entry<Long, Long> reference : valueReferences.entrySet()) {
+                    out.writeLong(reference.getKey());
+                    out.writeLong(reference.getValue());
+                }
+                out.writeInt(rangeTombstones.size());
+                for (Map.Entry<String, String> range : rangeTombstones.asMap().entrySet()) {
+                    SsTableFormat.writeKey(out, range.getKey());
+                    SsTableFormat.writeKey(out, range.getValue());
+                }
+
+                if (keys.size() <= PARTITION_ENTRIES) {
+                    out.writeInt(1);
+                    out.writeInt(bytes.size() + 4);
+                    writeSection(out, keys, handles);
+                    return bytes.toByteArray();
+                }
+
+                //partitions first, so the top section knows where each starts
+                ByteArrayOutputStream partitions = new ByteArrayOutputStream();
+                DataOutputStream partitionsOut = new DataOutputStream(partitions);
+                int sectionsStart = bytes.size() + 8;
+                List<byte[]> partitionKeys = new ArrayList<>();
+                List<BlockHandle> partitionHandles = new ArrayList<>();
+                for (int from = 0; from < keys.size(); from += PARTITION_ENTRIES) {
+                    int to = Math.min(keys.size(), from + PARTITION_ENTRIES);
+                    int start = partitions.size();
+                    writeSection(partitionsOut, keys.subList(from, to), handles.subList(from, to));
+                    partitionKeys.add(keys.get(from));
+                    partitionHandles.add(new BlockHandle(sectionsStart + start, partitions.size() - start));
+                }
+                out.writeInt(2);
+                out.writeInt(sectionsStart + partitions.size());
+                partitions.writeTo(out);
+                writeSection(out, partitionKeys, partitionHandles);
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                //in memory only
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        SsTableKeyOffsetIndex build(int formatVersion) throws IOException {
+            return new SsTableKeyOffsetIndex(formatVersion, ByteBuffer.wrap(toBytes()), SsTableFormat.VERSION);
+        }
+
+        private static void writeSection(DataOutputStream out, List<byte[]> keys, List<BlockHandle> handles) throws IOException {
+            out.writeInt(keys.size());
+            int keyOffset = 4 + keys.size() * ENTRY_SIZE;
+            for (int i = 0; i < keys.size(); i++) {
+                out.writeInt(keyOffset);
+                out.writeInt(keys.get(i).length);
+                out.writeLong(handles.get(i).offset());
+                out.writeInt(handles.get(i).length());
+                keyOffset += keys.get(i).length;
+            }
+            for (byte[] key : keys) {
+                out.write(key);
+            }
+        }
     }
 }
@@ -0,0 +1,42 @@
+package kv.storage;
+
+/**
+ * How an engine writes and caches its sstables.
+ *
+ * @param compression     codec of newly written blocks; existing tables keep the codec they were written with
+ * @param blockSize       uncompressed bytes gathered into one block before it is compressed and written
+ * @param blockCacheBytes decompressed blocks kept in memory, 0 disables the cache
+ * @param valueSeparationBytes values of at least this many bytes are written to the value log and the tables keep
+ *                             a pointer to them, 0 keeps every value in the tables
+ */
+public record SsTableOptions(CompressionCodec compression, int blockSize, long blockCacheBytes, int valueSeparationBytes) {
+
+    public static final SsTableOptions DEFAULT = new SsTableOptions(CompressionCodec.NONE, 16 * 1024, 8L * 1024 * 1024, 0);
+
+    public SsTableOptions(CompressionCodec compression, int blockSize, long blockCacheBytes) {
+        this(compression, blockSize, blockCacheBytes, 0);
+    }
+
+    public SsTableOptions {
+        if (compression == null) {
+            throw new IllegalArgumentException("Compression must not be null, use NONE");
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive but was " + blockSize);
+        }
+        if (blockCacheBytes < 0) {
+            throw new IllegalArgumentException("Block cache size must not be negative but was " + blockCacheBytes);
+        }
+        if (valueSeparationBytes < 0) {
+            throw new IllegalArgumentException("Value separation threshold must not be negative but was " + valueSeparationBytes);
+        }
+    }
+
+    public SsTableOptions withBlockCacheBytes(long blockCacheBytes) {
+        return new SsTableOptions(compression, blockSize, blockCacheBytes, valueSeparationBytes);
+    }
+
+    public SsTableOptions withValueSeparationBytes(int valueSeparationBytes) {
+        return new SsTableOptions(compression, blockSize, blockCacheBytes, valueSeparationBytes);
+    }
+}
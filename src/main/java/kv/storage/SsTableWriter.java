@@ -2,20 +2,59 @@ package kv.storage;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+/**
+ * Writes a table in the layout described by {@link SsTableFormat}: records are gathered into blocks of about
+ * {@link SsTableOptions#blockSize()} bytes, their keys stored as the difference to the key before, each block
+ * compressed on its own, and the index goes after the last block. Given a {@link ValueLog}, values of at
+ * least {@link SsTableOptions#valueSeparationBytes()} go to the log and the table keeps a pointer.
+ */
 public class SsTableWriter implements Closeable {
 
     private final File file;
+    private final CompressionCodec compression;
+    private final int blockSize;
+    private final int valueSeparationBytes;
+    //null for a table that holds every value itself
+    private final ValueLog valueLog;
+    //segments being garbage collected, whose values are copied to the head of the log
+    private final Set<Long> relocatedSegments;
+    private final FileOutputStream fileOutputStream;
     private final DataOutputStream dataOutputStream;
-    private final SsTableKeyOffsetIndex offsetIndex = new SsTableKeyOffsetIndex();
+    private final SsTableKeyOffsetIndex.Builder offsetIndex = new SsTableKeyOffsetIndex.Builder();
+    private SsTableKeyOffsetIndex writtenIndex;
 
-    private static final int INDEX_SPARSE_RATE = 128;
-    private int counter = 0;
+    //records of the block being filled
+    private final BlockBuffer block = new BlockBuffer();
+    private final DataOutputStream blockOutputStream = new DataOutputStream(block);
+    private String blockFirstKey;
+    private final List<Integer> restarts = new ArrayList<>();
+    private int blockRecords = 0;
+    private byte[] previousKey = new byte[0];
+    private long position = 0;
+    private boolean closed = false;
 
     public SsTableWriter(File file) throws IOException {
+        this(file, SsTableOptions.DEFAULT);
+    }
+
+    public SsTableWriter(File file, SsTableOptions options) throws IOException {
+        this(file, options, null, Set.of());
+    }
+
+    SsTableWriter(File file, SsTableOptions options, ValueLog valueLog, Set<Long> relocatedSegments) throws IOException {
         this.file = file;
-        this.dataOutputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        this.compression = options.compression();
+        this.blockSize = options.blockSize();
+        this.valueSeparationBytes = options.valueSeparationBytes();
+        this.valueLog = valueLog;
+        this.relocatedSegments = relocatedSegments;
+        this.fileOutputStream = new FileOutputStream(file);
+        this.dataOutputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 64 * 1024));
     }
 
     public File getFile() {
@@ -23,47 +62,181 @@ public class SsTableWriter implements Closeable {
     }
 
     public void write(String key, Entry entry) throws IOException {
-        long offset = dataOutputStream.size();
-
-        if (counter % INDEX_SPARSE_RATE == 0) {
-            offsetIndex.add(key, offset);
+        if (blockFirstKey == null) {
+            blockFirstKey = key;
         }
-        counter++;
+        offsetIndex.countRecord(key, entry.deleted());
 
         byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
         byte[] valueBytes = entry.value();
+        ValueLog.Pointer pointer = entry.pointer();
+        if (pointer != null && valueLog == null) {
+            throw new IllegalArgumentException("Value of " + key + " lies in a value log " + file.getName() + " cannot point into");
+        }
+        if (pointer != null && relocatedSegments.contains(pointer.segment())) {
+            valueBytes = valueLog.read(pointer);
+            pointer = null;
+        }
+        if (pointer == null && valueBytes != null && valueLog != null && valueSeparationBytes > 0
+                && valueBytes.length >= valueSeparationBytes) {
+            pointer = valueLog.append(keyBytes, valueBytes);
+        }
 
-        dataOutputStream.writeInt(keyBytes.length);
-        dataOutputStream.writeInt(valueBytes == null ? -1 : valueBytes.length);
-        dataOutputStream.write(keyBytes);
+        int shared = 0;
+        if (blockRecords++ % SsTableFormat.RESTART_INTERVAL == 0) {
+            //a restart point stores the whole key, so a reader can start decoding there
+            restarts.add(block.size());
+        } else {
+            int limit = Math.min(previousKey.length, keyBytes.length);
+            while (shared < limit && previousKey[shared] == keyBytes[shared]) {
+                shared++;
+            }
+        }
 
-        if (valueBytes != null) {
-            dataOutputStream.write(valueBytes);
+        writeVarint(shared);
+        writeVarint(keyBytes.length - shared);
+        int expiring = entry.expiresAtMillis() > 0 && !entry.deleted() ? 1 : 0;
+        if (pointer != null) {
+            writeVarint(1 << 1 | expiring);
+            blockOutputStream.write(keyBytes, shared, keyBytes.length - shared);
+            writeExpiry(entry, expiring);
+            blockOutputStream.writeLong(pointer.segment());
+            blockOutputStream.writeLong(pointer.offset());
+            blockOutputStream.writeInt(pointer.length());
+            offsetIndex.referenceValue(pointer);
+        } else {
+            writeVarint(valueBytes == null ? 0 : (valueBytes.length + 2) << 1 | expiring);
+            blockOutputStream.write(keyBytes, shared, keyBytes.length - shared);
+            writeExpiry(entry, expiring);
+            if (valueBytes != null) {
+                blockOutputStream.write(valueBytes);
+            }
         }
+        previousKey = keyBytes;
+
+        if (block.size() >= blockSize) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Records key ranges deleted before any record of this table was written; they go into the index.
+     */
+    void writeRangeTombstones(RangeTombstones ranges) {
+        offsetIndex.addRangeTombstones(ranges);
     }
 
     public void writeFromMemTable(MemTable memTable) throws IOException {
+        writeRangeTombstones(memTable.rangeTombstones());
         for (Map.Entry<String, Entry> entry : memTable.getEntries()) {
             write(entry.getKey(), entry.getValue());
         }
     }
 
     public void writeFromMapSkippingDeletes(Map<String, Entry> entries) throws IOException {
+        writeFromMapSkippingDeletes(entries, System.currentTimeMillis());
+    }
+
+    /**
+     * Writes the live entries only: tombstones and values expired at {@code nowMillis} are left out.
+     */
+    public void writeFromMapSkippingDeletes(Map<String, Entry> entries, long nowMillis) throws IOException {
         for (Map.Entry<String, Entry> e : entries.entrySet()) {
             Entry entry = e.getValue();
             if (entry == null) continue;
-            if (entry.deleted()) continue;
+            if (!entry.isLive(nowMillis)) continue;
             write(e.getKey(), entry);
         }
     }
 
+    /**
+     * @return the table's index, read back from the table once the writer is closed
+     */
     public SsTableKeyOffsetIndex getOffsetIndex() {
-        return offsetIndex;
+        if (writtenIndex == null) {
+            throw new IllegalStateException("Index of " + file.getAbsolutePath() + " is written when the writer closes");
+        }
+        return writtenIndex;
     }
 
     @Override
     public void close() throws IOException {
-        dataOutputStream.flush();
-        dataOutputStream.close();
+        if (closed) return;
+        closed = true;
+
+        try {
+            writeBlock();
+            writeIndexAndFooter();
+            dataOutputStream.flush();
+            if (valueLog != null) {
+                //the values before the table that points to them
+                valueLog.sync();
+            }
+            //durable before the manifest can list it
+            fileOutputStream.getFD().sync();
+        } finally {
+            dataOutputStream.close();
+        }
+        writtenIndex = SsTableFormat.readIndex(file);
+    }
+
+    private void writeBlock() throws IOException {
+        if (block.size() == 0) return;
+
+        for (int restart : restarts) {
+            blockOutputStream.writeInt(restart);
+        }
+        blockOutputStream.writeInt(restarts.size());
+
+        byte[] stored = compression.compress(block.buffer(), block.size());
+        CompressionCodec codec = compression;
+        if (stored.length >= block.size()) {
+            //incompressible, e.g. already compressed values
+            codec = CompressionCodec.NONE;
+            stored = CompressionCodec.NONE.compress(block.buffer(), block.size());
+        }
+
+        dataOutputStream.writeByte(codec.id());
+        dataOutputStream.writeInt(block.size());
+        dataOutputStream.writeInt(stored.length);
+        dataOutputStream.write(stored);
+
+        int length = SsTableFormat.BLOCK_HEADER_SIZE + stored.length;
+        offsetIndex.add(blockFirstKey, position, length);
+        position += length;
+        block.reset();
+        blockFirstKey = null;
+        restarts.clear();
+        blockRecords = 0;
+    }
+
+    private void writeExpiry(Entry entry, int expiring) throws IOException {
+        if (expiring != 0) {
+            blockOutputStream.writeLong(entry.expiresAtMillis());
+        }
+    }
+
+    private void writeVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            block.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        block.write(value);
+    }
+
+    private void writeIndexAndFooter() throws IOException {
+        byte[] index = offsetIndex.toBytes();
+        dataOutputStream.write(index);
+        dataOutputStream.writeLong(position);
+        dataOutputStream.writeInt(index.length);
+        dataOutputStream.writeInt(SsTableFormat.VERSION);
+        dataOutputStream.writeLong(SsTableFormat.MAGIC);
+    }
+
+    //exposes its array so a block is compressed without another copy
+    private static final class BlockBuffer extends ByteArrayOutputStream {
+        byte[] buffer() {
+            return buf;
+        }
     }
 }
@@ -0,0 +1,216 @@
+package kv.storage;
+
+import kv.metrics.Gauge;
+import kv.metrics.MetricsRegistry;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Large values kept out of the sstables, so that compactions rewrite keys and pointers instead of the values.
+ *
+ * Values are appended to segment files {@code vlog_<number>.log}, each [int keyLength][int valueLength][key][value]
+ * per record, and the tables store a {@link Pointer} to them. A new segment is started on open and whenever
+ * the current one reaches {@link #SEGMENT_BYTES}; only that head segment is ever appended to. Which segments are
+ * still needed is known from the tables, see {@link SsTableHandler#collectValueLogGarbage()}.
+ *
+ * A compaction may append while a flush does, so the head and the segment sizes are guarded by the log itself.
+ */
+final class ValueLog implements Closeable {
+
+    private static final Gauge BYTES = MetricsRegistry.global().gauge("kv_value_log_bytes", "Bytes of value log segments across all engines");
+
+    static final String SEGMENT_PREFIX = "vlog_";
+    static final String SEGMENT_SUFFIX = ".log";
+    static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Where a value lies: {@code offset} is the first byte of the value itself, not of its record.
+     */
+    record Pointer(long segment, long offset, int length) {
+        static final int SIZE = 20;
+    }
+
+    private final File dir;
+    //sealed and head segments and their sizes
+    private final SortedMap<Long, Long> segments = new TreeMap<>();
+    private final Map<Long, FileChannel> readers = new ConcurrentHashMap<>();
+    private long nextSegment = 1;
+    private long headSegment = -1;
+    private FileOutputStream headFile;
+    private DataOutputStream head;
+    private boolean unsynced = false;
+    private boolean closed = false;
+
+    private ValueLog(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Lists the segments of {@code dir}; every one of them is sealed, new values go to a new segment.
+     */
+    static ValueLog open(File dir) {
+        ValueLog valueLog = new ValueLog(dir);
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File segment : files) {
+                long number = parseSegment(segment.getName());
+                if (number <= 0) continue;
+                valueLog.segments.put(number, segment.length());
+                valueLog.nextSegment = Math.max(valueLog.nextSegment, number + 1);
+                BYTES.add(segment.length());
+            }
+        }
+        return valueLog;
+    }
+
+    /**
+     * Appends a value at the head of the log; it is durable after the next {@link #sync()}.
+     */
+    synchronized Pointer append(byte[] key, byte[] value) throws IOException {
+        if (closed) {
+            throw new IOException("Value log of " + dir.getAbsolutePath() + " is closed");
+        }
+        if (head == null || segments.get(headSegment) >= SEGMENT_BYTES) {
+            startSegment();
+        }
+        long position = segments.get(headSegment);
+        head.writeInt(key.length);
+        head.writeInt(value.length);
+        head.write(key);
+        head.write(value);
+        long recordLength = 8L + key.length + value.length;
+        segments.put(headSegment, position + recordLength);
+        BYTES.add(recordLength);
+        unsynced = true;
+        return new Pointer(headSegment, position + 8 + key.length, value.length);
+    }
+
+    /**
+     * Makes every appended value durable, before a table pointing to them is recorded in the manifest.
+     */
+    synchronized void sync() throws IOException {
+        if (!unsynced) return;
+        head.flush();
+        headFile.getFD().sync();
+        unsynced = false;
+    }
+
+    byte[] read(Pointer pointer) throws IOException {
+        FileChannel channel = reader(pointer.segment());
+        ByteBuffer value = ByteBuffer.allocate(pointer.length());
+        while (value.hasRemaining()) {
+            if (channel.read(value, pointer.offset() + value.position()) < 0) {
+                throw new IOException("Value log segment " + segmentName(pointer.segment()) + " ends before the value at "
+                        + pointer.offset() + " of " + pointer.length() + " bytes");
+            }
+        }
+        return value.array();
+    }
+
+    /**
+     * @return {@code entry} with its value read from the log if the table only held a pointer
+     */
+    Entry resolve(Entry entry) throws IOException {
+        if (entry == null || entry.pointer() == null) return entry;
+        return new Entry(read(entry.pointer()), false, null, entry.expiresAtMillis());
+    }
+
+    /**
+     * @return segments no longer appended to and their sizes, oldest first
+     */
+    synchronized SortedMap<Long, Long> sealedSegments() {
+        SortedMap<Long, Long> sealed = new TreeMap<>(segments);
+        sealed.remove(headSegment);
+        return sealed;
+    }
+
+    /**
+     * Deletes a sealed segment no live table points into.
+     */
+    synchronized void delete(long segment) throws IOException {
+        if (segment == headSegment) {
+            throw new IllegalArgumentException("Value log segment " + segment + " is still appended to");
+        }
+        FileChannel reader = readers.remove(segment);
+        if (reader != null) {
+            reader.close();
+        }
+        Long size = segments.remove(segment);
+        if (size != null) {
+            BYTES.add(-size);
+        }
+        new File(dir, segmentName(segment)).delete();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        try {
+            if (head != null) {
+                sync();
+                head.close();
+                head = null;
+            }
+        } finally {
+            for (FileChannel reader : readers.values()) {
+                reader.close();
+            }
+            readers.clear();
+            for (long size : segments.values()) {
+                BYTES.add(-size);
+            }
+            segments.clear();
+        }
+    }
+
+    private void startSegment() throws IOException {
+        if (head != null) {
+            sync();
+            head.close();
+        }
+        headSegment = nextSegment++;
+        headFile = new FileOutputStream(new File(dir, segmentName(headSegment)));
+        head = new DataOutputStream(new BufferedOutputStream(headFile, 64 * 1024));
+        segments.put(headSegment, 0L);
+    }
+
+    private FileChannel reader(long segment) throws IOException {
+        try {
+            return readers.computeIfAbsent(segment, number -> {
+                File file = new File(dir, segmentName(number));
+                try {
+                    return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw new IOException("Value log segment " + segmentName(segment) + " of " + dir.getAbsolutePath() + " cannot be read", e.getCause());
+        }
+    }
+
+    private static String segmentName(long segment) {
+        return String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX);
+    }
+
+    private static long parseSegment(String name) {
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package kv.storage;
 
+import kv.metrics.LatencyHistogram;
+import kv.metrics.MetricsRegistry;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
 
 public class WriteAheadLog implements AutoCloseable{
+    private static final LatencyHistogram FSYNC_LATENCY = MetricsRegistry.global().histogram("kv_wal_fsync_duration_seconds", "Time to fsync the write ahead log");
     private final RandomAccessFile randomAccessFile;
     private static final int DEFAULT_SYNC_PERIOD = 100;
     private final int syncPeriod;
@@ -13,6 +22,10 @@ public class WriteAheadLog implements AutoCloseable{
 
     public static final byte OP_PUT = 0x01;
     public static final byte OP_DELETE = 0x02;
+    //the key is the first key deleted, the value the end of the range, exclusive
+    public static final byte OP_DELETE_RANGE = 0x03;
+    //a put whose value is prefixed by [long expiresAtMillis]
+    public static final byte OP_PUT_EXPIRING = 0x04;
 
     public WriteAheadLog(File writeAheadLogFile) throws IOException {
         this(writeAheadLogFile, DEFAULT_SYNC_PERIOD);
@@ -35,6 +48,36 @@ public class WriteAheadLog implements AutoCloseable{
         onEntryAppended();
     }
 
+    public void appendPut(byte[] key, byte[] value, long expiresAtMillis) throws IOException {
+        byte[] expiring = withExpiry(value, expiresAtMillis);
+        randomAccessFile.seek(randomAccessFile.length());
+        randomAccessFile.writeByte(OP_PUT_EXPIRING);
+        randomAccessFile.writeInt(key.length);
+        randomAccessFile.writeInt(expiring.length);
+        randomAccessFile.write(key);
+        randomAccessFile.write(expiring);
+
+        onEntryAppended();
+    }
+
+    /**
+     * @return the value of an {@link #OP_PUT_EXPIRING} entry, [long expiresAtMillis][value]
+     */
+    public static byte[] withExpiry(byte[] value, long expiresAtMillis) {
+        return ByteBuffer.allocate(8 + value.length).putLong(expiresAtMillis).put(value).array();
+    }
+
+    public static long expiryOf(byte[] expiringValue) throws IOException {
+        if (expiringValue.length < 8) {
+            throw new IOException("Expiring value of " + expiringValue.length + " bytes has no expiry time");
+        }
+        return ByteBuffer.wrap(expiringValue).getLong();
+    }
+
+    public static byte[] valueOf(byte[] expiringValue) {
+        return Arrays.copyOfRange(expiringValue, 8, expiringValue.length);
+    }
+
     public void appendDelete(byte[] key) throws IOException {
         randomAccessFile.seek(randomAccessFile.length());
         randomAccessFile.writeByte(OP_DELETE);
@@ -46,15 +89,34 @@ public class WriteAheadLog implements AutoCloseable{
         onEntryAppended();
     }
 
-    public void replay(WriteAheadLogReplayHandler handler) throws IOException {
+    public void appendDeleteRange(byte[] startKey, byte[] endKey) throws IOException {
+        randomAccessFile.seek(randomAccessFile.length());
+        randomAccessFile.writeByte(OP_DELETE_RANGE);
+        randomAccessFile.writeInt(startKey.length);
+        randomAccessFile.writeInt(endKey.length);
+        randomAccessFile.write(startKey);
+        randomAccessFile.write(endKey);
+
+        onEntryAppended();
+    }
+
+    /**
+     * Calls {@code handler} for every complete entry in the log, oldest first.
+     *
+     * @return number of entries replayed
+     */
+    public long replay(WriteAheadLogReplayHandler handler) throws IOException {
         long originalPos = randomAccessFile.getFilePointer();
         randomAccessFile.seek(0);
+        long replayed = 0;
 
         try {
+            //buffered through the file's channel, since a read per field straight from the file costs a system call each
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(randomAccessFile.getChannel()), 64 * 1024));
             while (true) {
                 byte outputByte;
                 try {
-                    outputByte = randomAccessFile.readByte();
+                    outputByte = in.readByte();
                 } catch (EOFException eof) {
                     break;
                 }
@@ -62,8 +124,8 @@ public class WriteAheadLog implements AutoCloseable{
                 int keyLength;
                 int valueLength;
                 try {
-                    keyLength = randomAccessFile.readInt();
-                    valueLength = randomAccessFile.readInt();
+                    keyLength = in.readInt();
+                    valueLength = in.readInt();
                 } catch (EOFException eof) {
                     break;
                 }
@@ -74,26 +136,26 @@ public class WriteAheadLog implements AutoCloseable{
 
                 byte[] key = new byte[keyLength];
                 try {
-                    randomAccessFile.readFully(key);
+                    in.readFully(key);
                 } catch (EOFException eof) {
                     break;
                 }
 
                 byte[] value = null;
-                if (outputByte == OP_PUT) {
+                if (outputByte == OP_PUT || outputByte == OP_PUT_EXPIRING || outputByte == OP_DELETE_RANGE) {
                     if (valueLength < 0) {
-                        throw new IOException("Invalid write ahead log valueLength for PUT");
+                        throw new IOException("Invalid write ahead log valueLength for op " + outputByte);
                     }
                     value = new byte[valueLength];
                     try {
-                        randomAccessFile.readFully(value);
+                        in.readFully(value);
                     } catch (EOFException eof) {
                         break;
                     }
                 } else if (outputByte == OP_DELETE) {
                     if (valueLength > 0) {
                         try {
-                            randomAccessFile.skipBytes(valueLength);
+                            in.skipNBytes(valueLength);
                         } catch (EOFException eof) {
                             break;
                         }
@@ -103,10 +165,12 @@ public class WriteAheadLog implements AutoCloseable{
                 }
 
                 handler.onEntry(outputByte, key, value);
+                replayed++;
             }
         } finally {
             randomAccessFile.seek(originalPos);
         }
+        return replayed;
     }
 
     public void reset() throws IOException {
@@ -133,17 +197,34 @@ public class WriteAheadLog implements AutoCloseable{
         randomAccessFile.getFD().sync();
     }
 
+    private void timedSync() throws IOException {
+        long start = System.nanoTime();
+        doSync();
+        FSYNC_LATENCY.recordSince(start);
+    }
+
     private void onEntryAppended() throws IOException {
         pendingEntriesSinceLastSync++;
         if (pendingEntriesSinceLastSync >= syncPeriod) {
-            doSync();
+            timedSync();
             pendingEntriesSinceLastSync = 0;
         }
     }
 
+    public long sizeInBytes() throws IOException {
+        return randomAccessFile.length();
+    }
+
+    /**
+     * @return entries appended since the last fsync, lost if the machine crashes now
+     */
+    public int pendingSyncCount() {
+        return pendingEntriesSinceLastSync;
+    }
+
     public void forceSync() throws IOException {
         if (pendingEntriesSinceLastSync > 0) {
-            doSync();
+            timedSync();
             pendingEntriesSinceLastSync = 0;
         }
     }
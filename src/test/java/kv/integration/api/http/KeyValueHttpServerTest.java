@@ -1,20 +1,32 @@
 package kv.integration.api.http;
 
 import kv.api.http.KeyValueHttpServer;
+import kv.api.http.StorageAdminHandler;
 import kv.api.KeyValueServer;
 import kv.core.facade.DefaultKeyValueFacade;
 import kv.core.facade.KeyValueApi;
 import kv.core.StorageEngine;
+import kv.replication.ReplicationStatus;
 import kv.storage.LsmStorageEngine;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -27,10 +39,14 @@ class KeyValueHttpServerTest {
     private KeyValueServer server;
 
     private void setupServer() throws Exception {
+        setupServer(null);
+    }
+
+    private void setupServer(ReplicationStatus replicationStatus) throws Exception {
         tempDir = Files.createTempDirectory("keyvalue-integration-data").toFile();
         storageEngine = new LsmStorageEngine(tempDir);
         KeyValueApi api = new DefaultKeyValueFacade(storageEngine);
-        server = new KeyValueHttpServer(api, PORT);
+        server = new KeyValueHttpServer(api, PORT, replicationStatus);
         server.start();
     }
 
@@ -115,6 +131,64 @@ class KeyValueHttpServerTest {
         assertFalse(body.contains("\"key\":\"c\""));
     }
 
+    @Test
+    void testReadKeyRangeGzipOverHttp() throws Exception {
+        setupServer();
+        HttpClient client = HttpClient.newHttpClient();
+
+        sendPut(client, "a", "value1");
+        sendPut(client, "b", "value2");
+
+        HttpRequest rangeReq = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + PORT + "/keyvalue/range?startKey=a&endKey=b"))
+                .header("Accept-Encoding", "deflate;q=0.5, gzip")
+                .GET()
+                .build();
+
+        HttpResponse<byte[]> rangeResp =
+                client.send(rangeReq, HttpResponse.BodyHandlers.ofByteArray());
+
+        assertEquals(200, rangeResp.statusCode());
+        assertEquals("gzip", rangeResp.headers().firstValue("Content-Encoding").orElse(null));
+
+        String body;
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(rangeResp.body()))) {
+            body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(body.contains("\"key\":\"a\""));
+        assertTrue(body.contains("\"value\":\"value2\""));
+    }
+
+    @Test
+    void testReadKeyRangeBinaryOverHttp() throws Exception {
+        setupServer();
+        HttpClient client = HttpClient.newHttpClient();
+
+        sendPut(client, "a", "value1");
+
+        HttpRequest rangeReq = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + PORT + "/keyvalue/range?startKey=a&endKey=b"))
+                .header("Accept", "application/octet-stream")
+                .GET()
+                .build();
+
+        HttpResponse<byte[]> rangeResp =
+                client.send(rangeReq, HttpResponse.BodyHandlers.ofByteArray());
+
+        assertEquals(200, rangeResp.statusCode());
+        assertFalse(rangeResp.headers().firstValue("Content-Encoding").isPresent());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(rangeResp.body()));
+        byte[] key = new byte[in.readInt()];
+        byte[] value = new byte[in.readInt()];
+        in.readFully(key);
+        in.readFully(value);
+        assertEquals("a", new String(key, StandardCharsets.UTF_8));
+        assertEquals("value1", new String(value, StandardCharsets.UTF_8));
+        assertEquals(0, in.available());
+    }
+
+
     @Test
     void testGetNonExistingKeyReturns404() throws Exception {
         setupServer();
@@ -193,6 +267,109 @@ class KeyValueHttpServerTest {
     }
 
 
+    @Test
+    void testLengthPrefixedBatchPutOverHttp() throws Exception {
+        setupServer();
+        HttpClient client = HttpClient.newHttpClient();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        //more than one sub-batch worth of entries
+        for (int i = 0; i < 1200; i++) {
+            byte[] key = ("key" + i).getBytes(StandardCharsets.UTF_8);
+            byte[] value = ("line1\nline2=" + i).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(key.length);
+            out.writeInt(value.length);
+            out.write(key);
+            out.write(value);
+        }
+        out.flush();
+
+        HttpRequest batchReq = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + PORT + "/keyvalue/batch"))
+                .header("Content-Type", "application/octet-stream")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(bytes.toByteArray()))
+                .build();
+
+        HttpResponse<String> batchResp =
+                client.send(batchReq, HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, batchResp.statusCode());
+
+        HttpRequest getReq = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + PORT + "/keyvalue?key=key1100"))
+                .GET()
+                .build();
+        HttpResponse<String> getResp =
+                client.send(getReq, HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, getResp.statusCode());
+        assertEquals("line1\nline2=1100", getResp.body());
+    }
+
+    @Test
+    void testTruncatedLengthPrefixedBatchPutReturns400() throws Exception {
+        setupServer();
+        HttpClient client = HttpClient.newHttpClient();
+
+        HttpRequest batchReq = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + PORT + "/keyvalue/batch"))
+                .header("Content-Type", "application/octet-stream")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(new byte[]{0, 0, 0, 3, 0, 0, 0, 5, 'k'}))
+                .build();
+
+        HttpResponse<String> batchResp =
+                client.send(batchReq, HttpResponse.BodyHandlers.ofString());
+        assertEquals(400, batchResp.statusCode());
+    }
+
+
+    @Test
+    void followerReadsAreRejectedWhenBehindRequestedSequenceOrStaleness() throws Exception {
+        setupServer(new ReplicationStatus() {
+            @Override
+            public String role() {
+                return "follower";
+            }
+
+            @Override
+            public long appliedSequence() {
+                return 5;
+            }
+
+            @Override
+            public long stalenessMillis() {
+                return 2000;
+            }
+        });
+        HttpClient client = HttpClient.newHttpClient();
+        sendPut(client, "key", "value");
+
+        HttpResponse<String> caughtUp = client.send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + PORT + "/keyvalue?key=key&minSequence=5&maxStalenessMs=5000"))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, caughtUp.statusCode());
+        assertEquals("5", caughtUp.headers().firstValue("X-Replication-Sequence").orElse(null));
+
+        HttpResponse<String> behind = client.send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + PORT + "/keyvalue?key=key&minSequence=6"))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(503, behind.statusCode());
+
+        HttpResponse<String> stale = client.send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + PORT + "/keyvalue/range?startKey=a&endKey=z&maxStalenessMs=1000"))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(503, stale.statusCode());
+
+        HttpResponse<String> status = client.send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + PORT + "/replication/status"))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, status.statusCode());
+        assertTrue(status.body().contains("\"appliedSequence\":5"));
+    }
+
     @Test
     void deleteRemovesKey() throws Exception {
         setupServer();
@@ -223,6 +400,130 @@ class KeyValueHttpServerTest {
 
 
 
+    @Test
+    void readTraceIsReturnedWhenRequested() throws Exception {
+        setupServer();
+        HttpClient client = HttpClient.newHttpClient();
+        //the first 1000 keys are flushed to an sstable, the rest stay in the memtable
+        for (int i = 0; i < 1200; i++) {
+            storageEngine.put(String.format("k%04d", i).getBytes(StandardCharsets.UTF_8), "v".getBytes(StandardCharsets.UTF_8));
+        }
+
+        HttpResponse<String> fromTable = client.send(tracedGet("k0005"), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, fromTable.statusCode());
+        String trace = fromTable.headers().firstValue("X-Read-Trace").orElseThrow();
+        assertTrue(trace.contains("memtable=miss"), trace);
+        assertTrue(trace.contains("tables_probed=1"), trace);
+        assertTrue(trace.contains("cache=off"), trace);
+        assertTrue(trace.contains("blocks_read=1;block_cache_hits=0"), trace);
+
+        //the block is cached by now
+        String again = client.send(tracedGet("k0005"), HttpResponse.BodyHandlers.ofString()).headers().firstValue("X-Read-Trace").orElseThrow();
+        assertTrue(again.contains("blocks_read=0;block_cache_hits=1"), again);
+
+        HttpResponse<String> fromMemTable = client.send(tracedGet("k1100"), HttpResponse.BodyHandlers.ofString());
+        assertTrue(fromMemTable.headers().firstValue("X-Read-Trace").orElseThrow().contains("memtable=hit"));
+
+        //sorts before the table's first key, so the table is not opened
+        HttpResponse<String> beforeTable = client.send(tracedGet("a"), HttpResponse.BodyHandlers.ofString());
+        assertEquals(404, beforeTable.statusCode());
+        String skipped = beforeTable.headers().firstValue("X-Read-Trace").orElseThrow();
+        assertTrue(skipped.contains("tables_probed=0;tables_skipped=1"), skipped);
+
+        HttpResponse<String> untraced = client.send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + PORT + "/keyvalue?key=k0005")).GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertTrue(untraced.headers().firstValue("X-Read-Trace").isEmpty());
+    }
+
+    @Test
+    void adminCompactionIsAcceptedQueuedOnceAndPolledUntilItSucceeds() throws Exception {
+        tempDir = Files.createTempDirectory("keyvalue-integration-data").toFile();
+        CountDownLatch release = new CountDownLatch(1);
+        storageEngine = new LsmStorageEngine(tempDir) {
+            @Override
+            public void compact(byte[] startKey, byte[] endKey) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.compact(startKey, endKey);
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            storageEngine.put(("k" + i).getBytes(StandardCharsets.UTF_8), "v".getBytes(StandardCharsets.UTF_8));
+            storageEngine.flush();
+        }
+        KeyValueHttpServer httpServer = new KeyValueHttpServer(new DefaultKeyValueFacade(storageEngine), PORT);
+        try (StorageAdminHandler admin = new StorageAdminHandler(storageEngine, new File(tempDir, "backups"))) {
+            for (String path : StorageAdminHandler.PATHS) {
+                httpServer.addContext(path, admin);
+            }
+            server = httpServer;
+            server.start();
+            HttpClient client = HttpClient.newHttpClient();
+
+            HttpResponse<String> running = adminPost(client, "/admin/compact");
+            assertEquals(202, running.statusCode());
+            long runningId = taskId(running.body());
+            assertEquals("/admin/tasks?id=" + runningId, running.headers().firstValue("Location").orElseThrow());
+            awaitState(client, runningId, "running");
+
+            //the first one is held up, so the second waits and a third is folded into it
+            long queuedId = taskId(adminPost(client, "/admin/compact").body());
+            assertNotEquals(runningId, queuedId);
+            assertEquals(queuedId, taskId(adminPost(client, "/admin/compact").body()));
+            String queued = adminGet(client, "/admin/tasks?id=" + queuedId).body();
+            assertTrue(queued.contains("\"state\":\"queued\""), queued);
+            assertTrue(queued.contains("\"progress\":\"waiting for 1 task(s)\""), queued);
+            String progress = adminGet(client, "/admin/tasks?id=" + runningId).body();
+            assertTrue(progress.contains("0 of 1 engine(s) compacted, 3 tables"), progress);
+
+            release.countDown();
+            String done = awaitState(client, runningId, "succeeded");
+            assertTrue(done.contains("3 tables") && done.contains("-> 1 tables"), done);
+            awaitState(client, queuedId, "succeeded");
+            assertEquals(404, adminGet(client, "/admin/tasks?id=999").statusCode());
+        }
+    }
+
+    private HttpResponse<String> adminPost(HttpClient client, String path) throws Exception {
+        return client.send(HttpRequest.newBuilder().uri(URI.create("http://localhost:" + PORT + path))
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<String> adminGet(HttpClient client, String path) throws Exception {
+        return client.send(HttpRequest.newBuilder().uri(URI.create("http://localhost:" + PORT + path)).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static long taskId(String taskJson) {
+        Matcher id = Pattern.compile("\"id\":(\\d+)").matcher(taskJson);
+        assertTrue(id.find(), taskJson);
+        return Long.parseLong(id.group(1));
+    }
+
+    private String awaitState(HttpClient client, long id, String state) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            HttpResponse<String> task = adminGet(client, "/admin/tasks?id=" + id);
+            assertEquals(200, task.statusCode());
+            if (task.body().contains("\"state\":\"" + state + "\"")) {
+                return task.body();
+            }
+            assertTrue(System.currentTimeMillis() < deadline, task.body());
+            Thread.sleep(20);
+        }
+    }
+
+    private HttpRequest tracedGet(String key) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + PORT + "/keyvalue?key=" + key))
+                .header("X-Trace", "true")
+                .GET()
+                .build();
+    }
+
     private void sendPut(HttpClient client, String key, String value) throws Exception {
         HttpRequest putReq = HttpRequest.newBuilder()
                 .uri(URI.create("http://localhost:" + PORT + "/keyvalue?key=" + key))
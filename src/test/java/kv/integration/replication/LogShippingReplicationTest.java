@@ -0,0 +1,262 @@
+package kv.integration.replication;
+
+import kv.core.StorageEngine;
+import kv.core.facade.DefaultKeyValueFacade;
+import kv.core.facade.KeyValueApi;
+import kv.replication.LogShippingReplicator;
+import kv.replication.ReplicationBatchSettings;
+import kv.replication.ReplicationKeyValueApi;
+import kv.replication.ReplicationLog;
+import kv.replication.ReplicationServer;
+import kv.replication.WriteConcern;
+import kv.replication.WriteConcernException;
+import kv.storage.LsmStorageEngine;
+import kv.storage.WriteAheadLog;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogShippingReplicationTest {
+
+    private static final int FOLLOWER_REPLICATION_PORT = 19081;
+
+    private File leaderDir;
+    private File followerDir;
+    private StorageEngine leaderEngine;
+    private StorageEngine followerEngine;
+    private ReplicationLog replicationLog;
+    private LogShippingReplicator replicator;
+    private ReplicationServer replicationServer;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (replicator != null) replicator.close();
+        if (replicationServer != null) replicationServer.close();
+        if (replicationLog != null) replicationLog.close();
+        if (leaderEngine != null) leaderEngine.close();
+        if (followerEngine != null) followerEngine.close();
+        deleteRecursively(leaderDir);
+        deleteRecursively(followerDir);
+    }
+
+    private void deleteRecursively(File f) {
+        if (f == null) return;
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File k : files) {
+                deleteRecursively(k);
+            }
+        }
+        f.delete();
+    }
+
+    @Test
+    void followerAppliesWritesInOrderAndResumesAfterRestart() throws Exception {
+        leaderDir = Files.createTempDirectory("replication-leader").toFile();
+        followerDir = Files.createTempDirectory("replication-follower").toFile();
+
+        leaderEngine = new LsmStorageEngine(leaderDir);
+        replicationLog = new ReplicationLog(new File(leaderDir, "replication"));
+        KeyValueApi leader = new ReplicationKeyValueApi(new DefaultKeyValueFacade(leaderEngine), replicationLog);
+
+        followerEngine = new LsmStorageEngine(followerDir);
+        File positionFile = new File(followerDir, "replication.position");
+        replicationServer = new ReplicationServer(followerEngine, FOLLOWER_REPLICATION_PORT, positionFile);
+        replicationServer.start();
+
+        replicator = new LogShippingReplicator(replicationLog, List.of("localhost:" + FOLLOWER_REPLICATION_PORT));
+        replicator.start();
+
+        leader.put("a", "1");
+        leader.put("a", "2");
+        leader.put("b", "3");
+        leader.delete("b");
+
+        awaitApplied(replicationServer, replicationLog.lastSequence());
+        assertEquals("2", read(followerEngine, "a"));
+        assertNull(read(followerEngine, "b"));
+
+        //follower goes away, leader keeps writing, follower comes back and catches up
+        replicationServer.close();
+        leader.put("c", "4");
+        leader.put("a", "5");
+
+        replicationServer = new ReplicationServer(followerEngine, FOLLOWER_REPLICATION_PORT, positionFile);
+        assertEquals(4, replicationServer.appliedSequence(), "applied position should survive a restart");
+        replicationServer.start();
+
+        awaitApplied(replicationServer, replicationLog.lastSequence());
+        assertEquals("4", read(followerEngine, "c"));
+        assertEquals("5", read(followerEngine, "a"));
+    }
+
+    @Test
+    void followerConvergesWhenInMemoryQueueOverflows() throws Exception {
+        leaderDir = Files.createTempDirectory("replication-leader").toFile();
+        followerDir = Files.createTempDirectory("replication-follower").toFile();
+
+        leaderEngine = new LsmStorageEngine(leaderDir);
+        replicationLog = new ReplicationLog(new File(leaderDir, "replication"));
+        KeyValueApi leader = new ReplicationKeyValueApi(new DefaultKeyValueFacade(leaderEngine), replicationLog);
+
+        followerEngine = new LsmStorageEngine(followerDir);
+        replicationServer = new ReplicationServer(followerEngine, FOLLOWER_REPLICATION_PORT, new File(followerDir, "replication.position"));
+        replicationServer.start();
+
+        //tiny queue and no back-pressure wait, so the follower keeps falling back to the log files
+        ReplicationBatchSettings settings = new ReplicationBatchSettings(50, 1024 * 1024, 1, 4, 0);
+        replicator = new LogShippingReplicator(replicationLog, List.of("localhost:" + FOLLOWER_REPLICATION_PORT), settings);
+        replicator.start();
+
+        for (int i = 0; i < 3000; i++) {
+            leader.put("key" + (i % 10), "value" + i);
+        }
+
+        awaitApplied(replicationServer, replicationLog.lastSequence());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("value" + (2990 + i), read(followerEngine, "key" + i));
+        }
+    }
+
+    @Test
+    void writeConcernWaitsForFollowerAcknowledgement() throws Exception {
+        leaderDir = Files.createTempDirectory("replication-leader").toFile();
+        followerDir = Files.createTempDirectory("replication-follower").toFile();
+
+        leaderEngine = new LsmStorageEngine(leaderDir);
+        replicationLog = new ReplicationLog(new File(leaderDir, "replication"));
+        replicator = new LogShippingReplicator(replicationLog, List.of("localhost:" + FOLLOWER_REPLICATION_PORT));
+        replicator.start();
+        KeyValueApi leader = new ReplicationKeyValueApi(new DefaultKeyValueFacade(leaderEngine), replicationLog,
+                replicator, WriteConcern.MAJORITY, Duration.ofMillis(300));
+
+        //no follower running, the write is applied locally but never acknowledged
+        CompletableFuture<Void> unacknowledged = leader.putAsync("a", "1");
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> unacknowledged.get(5, TimeUnit.SECONDS));
+        assertTrue(failure.getCause() instanceof WriteConcernException);
+        assertEquals("1", read(leaderEngine, "a"));
+
+        followerEngine = new LsmStorageEngine(followerDir);
+        replicationServer = new ReplicationServer(followerEngine, FOLLOWER_REPLICATION_PORT, new File(followerDir, "replication.position"));
+        replicationServer.start();
+
+        leader = new ReplicationKeyValueApi(new DefaultKeyValueFacade(leaderEngine), replicationLog,
+                replicator, WriteConcern.MAJORITY, Duration.ofSeconds(10));
+        leader.putAsync("b", "2").get(10, TimeUnit.SECONDS);
+
+        //acknowledged, so the follower has applied it already
+        assertEquals("2", read(followerEngine, "b"));
+    }
+
+    @Test
+    void stalenessStaysBoundedWhileTheLeaderIsAlwaysAhead() throws Exception {
+        followerDir = Files.createTempDirectory("replication-follower").toFile();
+        followerEngine = new LsmStorageEngine(followerDir);
+        replicationServer = new ReplicationServer(followerEngine, FOLLOWER_REPLICATION_PORT, new File(followerDir, "replication.position"));
+        replicationServer.start();
+
+        //a leader under steady writes: every batch it ships is already behind its latest sequence
+        try (Socket socket = new Socket("localhost", FOLLOWER_REPLICATION_PORT)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            assertEquals(0, in.readLong());
+
+            long deadline = System.currentTimeMillis() + 1500;
+            for (long sequence = 1; System.currentTimeMillis() < deadline; sequence++) {
+                writeBatch(out, sequence + 1, System.currentTimeMillis(), sequence, "key" + sequence, "value");
+                out.flush();
+                Thread.sleep(5);
+                if (sequence > 2) {
+                    long staleness = replicationServer.stalenessMillis();
+                    assertTrue(staleness < 500, "staleness " + staleness + " ms while the follower trails by one record");
+                }
+            }
+        }
+        assertEquals("value", read(followerEngine, "key1"));
+    }
+
+    //the batch frame as the leader writes it, with a single put
+    private static void writeBatch(DataOutputStream out, long leaderLastSequence, long leaderTimeMillis, long sequence,
+                                   String key, String value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(0x03);
+        out.writeLong(leaderLastSequence);
+        out.writeLong(leaderTimeMillis);
+        out.writeLong(sequence);
+        out.writeLong(sequence);
+        out.writeInt(1);
+        out.writeByte(WriteAheadLog.OP_PUT);
+        out.writeInt(keyBytes.length);
+        out.writeInt(valueBytes.length);
+        out.write(keyBytes);
+        out.write(valueBytes);
+    }
+
+    @Test
+    void followerBehindTruncatedLogIsBootstrappedFromSnapshot() throws Exception {
+        leaderDir = Files.createTempDirectory("replication-leader").toFile();
+        followerDir = Files.createTempDirectory("replication-follower").toFile();
+
+        leaderEngine = new LsmStorageEngine(leaderDir);
+        //tiny segments and retention, so the early records are gone before the follower connects
+        replicationLog = new ReplicationLog(new File(leaderDir, "replication"), 1024, 1, 2);
+        KeyValueApi leader = new ReplicationKeyValueApi(new DefaultKeyValueFacade(leaderEngine), replicationLog);
+
+        for (int i = 0; i < 2500; i++) {
+            leader.put("key" + i, "value" + i);
+        }
+        leader.delete("key5");
+        assertTrue(replicationLog.firstSequence() > 1);
+
+        followerEngine = new LsmStorageEngine(followerDir);
+        followerEngine.put("stale".getBytes(StandardCharsets.UTF_8), "x".getBytes(StandardCharsets.UTF_8));
+        replicationServer = new ReplicationServer(followerEngine, FOLLOWER_REPLICATION_PORT, new File(followerDir, "replication.position"));
+        replicationServer.start();
+
+        replicator = new LogShippingReplicator(replicationLog, List.of("localhost:" + FOLLOWER_REPLICATION_PORT),
+                ReplicationBatchSettings.DEFAULT, leaderEngine, new File(leaderDir, "checkpoints"));
+        replicator.start();
+
+        awaitApplied(replicationServer, replicationLog.lastSequence());
+        assertEquals("value0", read(followerEngine, "key0"));
+        assertEquals("value2499", read(followerEngine, "key2499"));
+        assertNull(read(followerEngine, "key5"));
+        assertNull(read(followerEngine, "stale"), "snapshot replaces the follower's previous contents");
+
+        //after the snapshot the follower continues from the log
+        leader.put("key0", "updated");
+        awaitApplied(replicationServer, replicationLog.lastSequence());
+        assertEquals("updated", read(followerEngine, "key0"));
+        assertFalse(new File(leaderDir, "checkpoints").exists()
+                && new File(leaderDir, "checkpoints").list().length > 0, "checkpoint should be removed once sent");
+    }
+
+    private static void awaitApplied(ReplicationServer server, long sequence) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (server.appliedSequence() < sequence && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(sequence, server.appliedSequence(), "follower did not catch up in time");
+    }
+
+    private static String read(StorageEngine engine, String key) throws Exception {
+        byte[] value = engine.read(key.getBytes(StandardCharsets.UTF_8));
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+}
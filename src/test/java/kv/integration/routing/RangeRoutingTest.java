@@ -0,0 +1,149 @@
+package kv.integration.routing;
+
+import kv.api.http.KeyValueHttpServer;
+import kv.api.http.RangeTransferHandler;
+import kv.cluster.PartitionMap;
+import kv.core.StorageEngine;
+import kv.core.facade.DefaultKeyValueFacade;
+import kv.routing.RemoteKeyValueApi;
+import kv.routing.RoutingKeyValueApi;
+import kv.storage.LsmStorageEngine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RangeRoutingTest {
+
+    private static final int FIRST_PORT = 18181;
+    private static final int SECOND_PORT = 18182;
+
+    private final List<KeyValueHttpServer> servers = new ArrayList<>();
+    private final List<StorageEngine> engines = new ArrayList<>();
+    private final List<File> dirs = new ArrayList<>();
+    private RoutingKeyValueApi router;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (router != null) router.close();
+        for (KeyValueHttpServer server : servers) server.stop();
+        for (StorageEngine engine : engines) engine.close();
+        for (File dir : dirs) deleteRecursively(dir);
+    }
+
+    private void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteRecursively(c);
+            }
+        }
+        f.delete();
+    }
+
+    private StorageEngine setupNode(int port) throws Exception {
+        File dir = Files.createTempDirectory("routing-node-" + port).toFile();
+        dirs.add(dir);
+        StorageEngine engine = new LsmStorageEngine(dir);
+        engines.add(engine);
+
+        KeyValueHttpServer server = new KeyValueHttpServer(new DefaultKeyValueFacade(engine), port);
+        RangeTransferHandler rangeTransfer = new RangeTransferHandler(engine, new File(dir, "transfers"), null);
+        server.addContext(RangeTransferHandler.EXPORT_PATH, rangeTransfer);
+        server.addContext(RangeTransferHandler.IMPORT_PATH, rangeTransfer);
+        server.start();
+        servers.add(server);
+        return engine;
+    }
+
+    private File setupRouter() throws Exception {
+        File routerDir = Files.createTempDirectory("routing-router").toFile();
+        dirs.add(routerDir);
+        Map<String, RemoteKeyValueApi> nodes = Map.of(
+                "first", new RemoteKeyValueApi("http://localhost:" + FIRST_PORT),
+                "second", new RemoteKeyValueApi("http://localhost:" + SECOND_PORT));
+        File partitionMapFile = new File(routerDir, "partitions.properties");
+        router = new RoutingKeyValueApi(new PartitionMap(Map.of("", "first", "m", "second")), nodes, partitionMapFile);
+        return partitionMapFile;
+    }
+
+    @Test
+    void pointOperationsAndRangesFollowThePartitionMap() throws Exception {
+        StorageEngine first = setupNode(FIRST_PORT);
+        StorageEngine second = setupNode(SECOND_PORT);
+        setupRouter();
+
+        router.put("apple", "1");
+        router.put("zebra", "2");
+        Map<String, String> batch = new LinkedHashMap<>();
+        batch.put("lemon", "3");
+        batch.put("mango", "4");
+        batch.put("key with space", "5");
+        router.batchPut(batch);
+        router.delete("zebra");
+
+        assertEquals("1", read(first, "apple"));
+        assertEquals("3", read(first, "lemon"));
+        assertEquals("5", read(first, "key with space"));
+        assertNull(read(second, "apple"));
+        assertEquals("4", read(second, "mango"));
+
+        assertEquals("4", router.read("mango"));
+        assertNull(router.read("zebra"));
+
+        List<String> keys = new ArrayList<>(router.readKeyRange("a", "n").keySet());
+        assertEquals(List.of("apple", "key with space", "lemon", "mango"), keys);
+    }
+
+    @Test
+    void splitMovesTablesToTheNewOwner() throws Exception {
+        StorageEngine first = setupNode(FIRST_PORT);
+        StorageEngine second = setupNode(SECOND_PORT);
+        File partitionMapFile = setupRouter();
+
+        Map<String, String> batch = new LinkedHashMap<>();
+        for (int i = 0; i < 2500; i++) {
+            batch.put(String.format("h%05d", i), "value" + i);
+        }
+        router.batchPut(batch);
+        router.put("a", "stays");
+        router.delete("h00007");
+
+        router.split("h01000", "second");
+
+        assertEquals("second", router.partitionMap().partitionFor("h01500").ownerId());
+        assertEquals("first", PartitionMap.load(partitionMapFile).partitionFor("h00999").ownerId());
+        assertEquals("second", PartitionMap.load(partitionMapFile).partitionFor("h01000").ownerId());
+
+        //the moved keys are served by the new owner
+        assertEquals("value1500", read(second, "h01500"));
+        assertEquals("value1500", router.read("h01500"));
+        assertNull(read(second, "a"));
+        assertNull(router.read("h00007"));
+        //and dropped by the old owner, which keeps the rest of its partition
+        assertNull(read(first, "h01500"));
+        assertEquals("value999", read(first, "h00999"));
+        assertEquals("stays", read(first, "a"));
+
+        router.put("h02000", "updated");
+        assertEquals("updated", read(second, "h02000"));
+
+        Map<String, String> range = router.readKeyRange("h00995", "h01004");
+        assertEquals(List.of("h00995", "h00996", "h00997", "h00998", "h00999",
+                "h01000", "h01001", "h01002", "h01003", "h01004"), new ArrayList<>(range.keySet()));
+        assertEquals(2499, router.readKeyRange("h", "h99999").size());
+    }
+
+    private static String read(StorageEngine engine, String key) throws Exception {
+        byte[] value = engine.read(key.getBytes(StandardCharsets.UTF_8));
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+}
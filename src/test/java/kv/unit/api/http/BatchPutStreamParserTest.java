@@ -0,0 +1,59 @@
+package kv.unit.api.http;
+
+import kv.api.http.BatchPutStreamParser;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchPutStreamParserTest {
+
+    private final BatchPutStreamParser parser = new BatchPutStreamParser(2);
+
+    @Test
+    void parsesLinesInSubBatchesAndRejectsLinesWithoutAKey() throws Exception {
+        Map<String, String> parsed = new LinkedHashMap<>();
+        long total = parser.parseLines(body("a=1\n\nb=2\nc=x=y\n"), parsed::putAll);
+        assertEquals(3, total);
+        assertEquals(Map.of("a", "1", "b", "2", "c", "x=y"), parsed);
+
+        assertThrows(BatchPutStreamParser.MalformedBatchException.class, () -> parser.parseLines(body("a=1\nnot a pair\n"), subBatch -> { }));
+        assertThrows(BatchPutStreamParser.MalformedBatchException.class, () -> parser.parseLines(body("=1\n"), subBatch -> { }));
+    }
+
+    @Test
+    void rejectsBinaryRecordsCutOffAnywhereInTheirHeader() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (String key : new String[]{"a", "b", "c"}) {
+            out.writeInt(1);
+            out.writeInt(1);
+            out.writeBytes(key);
+            out.writeBytes("v");
+        }
+        byte[] records = bytes.toByteArray();
+
+        Map<String, String> parsed = new LinkedHashMap<>();
+        assertEquals(3, parser.parseLengthPrefixed(new ByteArrayInputStream(records), parsed::putAll));
+        assertEquals(Map.of("a", "v", "b", "v", "c", "v"), parsed);
+
+        //every cut inside the last record: its key length, its value length, its key or its value
+        int recordLength = 10;
+        for (int cut = 1; cut < recordLength; cut++) {
+            byte[] truncated = Arrays.copyOf(records, records.length - recordLength + cut);
+            assertThrows(BatchPutStreamParser.MalformedBatchException.class,
+                    () -> parser.parseLengthPrefixed(new ByteArrayInputStream(truncated), subBatch -> { }), "cut after " + cut + " bytes");
+        }
+    }
+
+    private static ByteArrayInputStream body(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,36 @@
+package kv.unit.api.http;
+
+import kv.api.http.ResponseEncoding;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseEncodingTest {
+
+    @Test
+    void negotiateEncodingHonoursQualities() {
+        assertEquals(ResponseEncoding.IDENTITY, ResponseEncoding.negotiateEncoding(null));
+        assertEquals(ResponseEncoding.GZIP, ResponseEncoding.negotiateEncoding("deflate;q=0.5, gzip"));
+        assertEquals(ResponseEncoding.DEFLATE, ResponseEncoding.negotiateEncoding("gzip;q=0.2, deflate"));
+        assertEquals(ResponseEncoding.GZIP, ResponseEncoding.negotiateEncoding("*"));
+        assertEquals(ResponseEncoding.IDENTITY, ResponseEncoding.negotiateEncoding("gzip;q=0"));
+    }
+
+    @Test
+    void wildcardDoesNotBringBackAnExcludedCoding() {
+        assertEquals(ResponseEncoding.DEFLATE, ResponseEncoding.negotiateEncoding("gzip;q=0, *"));
+        assertEquals(ResponseEncoding.GZIP, ResponseEncoding.negotiateEncoding("deflate;q=0, *"));
+        assertEquals(ResponseEncoding.IDENTITY, ResponseEncoding.negotiateEncoding("gzip;q=0, deflate;q=0, *"));
+        assertEquals(ResponseEncoding.IDENTITY, ResponseEncoding.negotiateEncoding("gzip;q=0, *;q=0"));
+    }
+
+    @Test
+    void acceptsBinaryParsesMediaRangesAndQualities() {
+        assertFalse(ResponseEncoding.acceptsBinary(null));
+        assertTrue(ResponseEncoding.acceptsBinary("application/octet-stream"));
+        assertTrue(ResponseEncoding.acceptsBinary("application/json;q=0.5, application/octet-stream"));
+        assertFalse(ResponseEncoding.acceptsBinary("application/octet-stream;q=0, application/json"));
+        assertFalse(ResponseEncoding.acceptsBinary("application/octet-stream;q=0.5, application/json"));
+        assertFalse(ResponseEncoding.acceptsBinary("*/*"));
+    }
+}
@@ -0,0 +1,122 @@
+package kv.unit.cache;
+
+import kv.cache.CachingStorageEngine;
+import kv.cache.SegmentedLruCache;
+import kv.storage.LsmStorageEngine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingStorageEngineTest {
+
+    private File tempDir;
+    private LsmStorageEngine backingEngine;
+    private CachingStorageEngine storageEngine;
+
+    private void setupEngine(long cacheBytes) throws Exception {
+        tempDir = Files.createTempDirectory("keyvalue-cache-test").toFile();
+        backingEngine = new LsmStorageEngine(tempDir);
+        storageEngine = new CachingStorageEngine(backingEngine, cacheBytes);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (storageEngine != null) {
+            storageEngine.close();
+        }
+        if (tempDir != null && tempDir.exists()) {
+            deleteRecursively(tempDir);
+        }
+    }
+
+    private void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteRecursively(c);
+            }
+        }
+        f.delete();
+    }
+
+    @Test
+    void repeatedReadsAreServedFromCache() throws Exception {
+        setupEngine(1024 * 1024);
+        storageEngine.put(bytes("fx:USD"), bytes("1550"));
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("1550", string(storageEngine.read(bytes("fx:USD"))));
+        }
+
+        SegmentedLruCache.Stats stats = storageEngine.cacheStats();
+        assertEquals(1, stats.misses());
+        assertEquals(9, stats.hits());
+        assertEquals(0.9, stats.hitRatio(), 0.0001);
+    }
+
+    @Test
+    void missingKeysAreCachedAsNegativeLookups() throws Exception {
+        setupEngine(1024 * 1024);
+
+        assertNull(storageEngine.read(bytes("absent")));
+        assertNull(storageEngine.read(bytes("absent")));
+        assertEquals(1, storageEngine.cacheStats().negativeHits());
+
+        //a write must replace the cached "missing"
+        storageEngine.put(bytes("absent"), bytes("present"));
+        assertEquals("present", string(storageEngine.read(bytes("absent"))));
+    }
+
+    @Test
+    void writesInvalidateCachedValues() throws Exception {
+        setupEngine(1024 * 1024);
+        storageEngine.put(bytes("config"), bytes("v1"));
+        assertEquals("v1", string(storageEngine.read(bytes("config"))));
+
+        storageEngine.put(bytes("config"), bytes("v2"));
+        assertEquals("v2", string(storageEngine.read(bytes("config"))));
+
+        storageEngine.batchPut(Map.of(bytes("config"), bytes("v3")));
+        assertEquals("v3", string(storageEngine.read(bytes("config"))));
+
+        storageEngine.delete(bytes("config"));
+        assertNull(storageEngine.read(bytes("config")));
+    }
+
+    @Test
+    void cacheStaysWithinItsByteBudgetAndKeepsHotKeys() throws Exception {
+        setupEngine(64 * 1024);
+        storageEngine.put(bytes("hot"), bytes("value"));
+        //two reads promote the hot key out of probation
+        storageEngine.read(bytes("hot"));
+        storageEngine.read(bytes("hot"));
+
+        byte[] value = new byte[200];
+        for (int i = 0; i < 2000; i++) {
+            storageEngine.put(bytes("cold" + i), value);
+            storageEngine.read(bytes("cold" + i));
+        }
+
+        SegmentedLruCache.Stats stats = storageEngine.cacheStats();
+        assertTrue(stats.bytes() <= 64 * 1024, "cache uses " + stats.bytes() + " bytes");
+        assertTrue(stats.evictions() > 0);
+
+        long hitsBefore = stats.hits();
+        assertEquals("value", string(storageEngine.read(bytes("hot"))));
+        assertEquals(hitsBefore + 1, storageEngine.cacheStats().hits(), "a scan of cold keys should not evict the hot key");
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+}
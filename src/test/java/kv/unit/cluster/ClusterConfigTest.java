@@ -0,0 +1,97 @@
+package kv.unit.cluster;
+
+import kv.cluster.ClusterConfig;
+import kv.cluster.NodeConfig;
+import kv.cluster.NodeRole;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterConfigTest {
+
+    private Properties twoGroups() {
+        Properties properties = new Properties();
+        properties.setProperty("cluster.nodes", "a1, a2, b1, b2, solo");
+        properties.setProperty("node.a1.role", "leader");
+        properties.setProperty("node.a1.httpPort", "8080");
+        properties.setProperty("node.a2.role", "follower");
+        properties.setProperty("node.a2.leader", "a1");
+        properties.setProperty("node.a2.httpPort", "8081");
+        properties.setProperty("node.b1.role", "LEADER");
+        properties.setProperty("node.b1.httpPort", "8090");
+        properties.setProperty("node.b2.role", "follower");
+        properties.setProperty("node.b2.leader", "b1");
+        properties.setProperty("node.b2.host", "10.0.0.2");
+        properties.setProperty("node.b2.httpPort", "8091");
+        properties.setProperty("node.b2.replicationPort", "7000");
+        properties.setProperty("node.b2.dir", "/tmp/kv-b2");
+        properties.setProperty("node.solo.role", "standalone");
+        properties.setProperty("node.solo.httpPort", "8100");
+        return properties;
+    }
+
+    @Test
+    void buildsGroupsWithDefaults() {
+        ClusterConfig cluster = ClusterConfig.fromProperties(twoGroups());
+
+        NodeConfig a2 = cluster.node("a2");
+        assertEquals(NodeRole.FOLLOWER, a2.role());
+        assertEquals("localhost:9081", a2.replicationAddress());
+        assertEquals("./data-a2", a2.dir());
+
+        List<NodeConfig> followersOfB = cluster.followersOf("b1");
+        assertEquals(1, followersOfB.size());
+        assertEquals("10.0.0.2:7000", followersOfB.get(0).replicationAddress());
+        assertEquals("/tmp/kv-b2", followersOfB.get(0).dir());
+
+        assertEquals(List.of("a2"), cluster.followersOf("a1").stream().map(NodeConfig::id).toList());
+        assertTrue(cluster.followersOf("solo").isEmpty());
+    }
+
+    @Test
+    void resolvesLocalNodeByIdPortOrAsStandalone() {
+        ClusterConfig cluster = ClusterConfig.fromProperties(twoGroups());
+
+        assertEquals("b1", cluster.resolveLocalNode("b1", 1234, null).id());
+        assertEquals("a2", cluster.resolveLocalNode(null, 8081, null).id());
+        assertEquals("/data/override", cluster.resolveLocalNode(null, 8081, "/data/override").dir());
+
+        NodeConfig unknownPort = cluster.resolveLocalNode(null, 8555, null);
+        assertEquals(NodeRole.STANDALONE, unknownPort.role());
+        assertEquals(8555, unknownPort.httpPort());
+
+        assertThrows(IllegalArgumentException.class, () -> cluster.resolveLocalNode("missing", 8080, null));
+    }
+
+    @Test
+    void defaultLayoutMatchesOriginalThreeNodes() {
+        ClusterConfig cluster = ClusterConfig.defaultLayout();
+
+        NodeConfig leader = cluster.resolveLocalNode(null, 8080, null);
+        assertEquals(NodeRole.LEADER, leader.role());
+        assertEquals(List.of("localhost:9081", "localhost:9082"),
+                cluster.followersOf(leader.id()).stream().map(NodeConfig::replicationAddress).toList());
+    }
+
+    @Test
+    void rejectsInvalidTopologies() {
+        Properties followerWithoutLeader = twoGroups();
+        followerWithoutLeader.remove("node.a2.leader");
+        assertThrows(IllegalArgumentException.class, () -> ClusterConfig.fromProperties(followerWithoutLeader));
+
+        Properties followerOfFollower = twoGroups();
+        followerOfFollower.setProperty("node.b2.leader", "a2");
+        assertThrows(IllegalArgumentException.class, () -> ClusterConfig.fromProperties(followerOfFollower));
+
+        Properties portClash = twoGroups();
+        portClash.setProperty("node.b1.httpPort", "8080");
+        assertThrows(IllegalArgumentException.class, () -> ClusterConfig.fromProperties(portClash));
+
+        Properties missingRole = twoGroups();
+        missingRole.remove("node.solo.role");
+        assertThrows(IllegalArgumentException.class, () -> ClusterConfig.fromProperties(missingRole));
+    }
+}
@@ -0,0 +1,69 @@
+package kv.unit.metrics;
+
+import kv.metrics.Counter;
+import kv.metrics.Gauge;
+import kv.metrics.LatencyHistogram;
+import kv.metrics.MetricsRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsRegistryTest {
+
+    @Test
+    void countersAndGaugesAreSharedByName() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter counter = registry.counter("test_events_total", "Events");
+        counter.increment();
+        registry.counter("test_events_total", "Events").add(2);
+
+        Gauge gauge = registry.gauge("test_level", "Level");
+        gauge.add(5);
+        gauge.add(-2);
+
+        assertEquals(3, counter.value());
+        assertEquals(3, gauge.value());
+        assertThrows(IllegalArgumentException.class, () -> registry.gauge("test_events_total", "Events"));
+        assertThrows(IllegalArgumentException.class, () -> registry.counter("test-events", "Bad name"));
+    }
+
+    @Test
+    void histogramPercentilesAreWithinOneBucket() {
+        MetricsRegistry registry = new MetricsRegistry();
+        LatencyHistogram histogram = registry.histogram("test_duration_seconds", "Duration");
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+        assertEquals(100, histogram.count());
+        long p50 = histogram.percentileNanos(50);
+        assertTrue(p50 >= TimeUnit.MICROSECONDS.toNanos(100) && p50 < TimeUnit.MICROSECONDS.toNanos(200), "p50 was " + p50);
+        long p100 = histogram.percentileNanos(100);
+        assertTrue(p100 >= TimeUnit.MILLISECONDS.toNanos(50) && p100 < TimeUnit.MILLISECONDS.toNanos(100), "p100 was " + p100);
+        assertEquals(0, registry.histogram("test_empty_seconds", "Empty").percentileNanos(99));
+    }
+
+    @Test
+    void scrapeUsesPrometheusTextFormat() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_writes_total", "Writes").add(7);
+        registry.gauge("test_lag_seconds", "Lag", () -> 1.5);
+        LatencyHistogram histogram = registry.histogram("test_put_duration_seconds", "Put");
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+        histogram.record(TimeUnit.SECONDS.toNanos(100));
+
+        String text = registry.scrape();
+
+        assertTrue(text.contains("# TYPE test_writes_total counter\ntest_writes_total 7\n"), text);
+        assertTrue(text.contains("# TYPE test_lag_seconds gauge\ntest_lag_seconds 1.5\n"), text);
+        assertTrue(text.contains("# TYPE test_put_duration_seconds histogram\n"), text);
+        //cumulative buckets: 3 ms falls under the 4.19 ms bound, 100 s only under +Inf
+        assertTrue(text.contains("test_put_duration_seconds_bucket{le=\"0.004194304\"} 1\n"), text);
+        assertTrue(text.contains("test_put_duration_seconds_bucket{le=\"+Inf\"} 2\n"), text);
+        assertTrue(text.contains("test_put_duration_seconds_count 2\n"), text);
+        assertTrue(text.contains("test_put_duration_seconds_sum 100.003\n"), text);
+    }
+}
@@ -0,0 +1,142 @@
+package kv.unit.replication;
+
+import kv.replication.LogShippingReplicator;
+import kv.replication.ReplicationLog;
+import kv.replication.ReplicationRecord;
+import kv.storage.WriteAheadLog;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicationLogTest {
+
+    private File tempDir;
+
+    @AfterEach
+    void tearDown() {
+        if (tempDir != null && tempDir.exists()) {
+            deleteRecursively(tempDir);
+        }
+    }
+
+    private void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteRecursively(c);
+            }
+        }
+        f.delete();
+    }
+
+    @Test
+    void appendAssignsIncreasingSequencesAndReaderResumesFromPosition() throws Exception {
+        tempDir = Files.createTempDirectory("replication-log-test").toFile();
+
+        try (ReplicationLog log = new ReplicationLog(tempDir)) {
+            assertEquals(1, log.appendPut(bytes("a"), bytes("1")));
+            assertEquals(2, log.appendPut(bytes("b"), bytes("2")));
+            assertEquals(3, log.appendDelete(bytes("a")));
+
+            try (ReplicationLog.Reader reader = log.openReader(1)) {
+                ReplicationRecord second = reader.next();
+                assertEquals(2, second.sequence());
+                assertEquals("b", new String(second.key(), StandardCharsets.UTF_8));
+
+                ReplicationRecord third = reader.next();
+                assertEquals(3, third.sequence());
+                assertEquals(WriteAheadLog.OP_DELETE, third.op());
+
+                assertNull(reader.next(), "reader should be caught up");
+
+                log.appendPut(bytes("c"), bytes("3"));
+                assertEquals(4, reader.next().sequence(), "reader should tail new appends");
+            }
+        }
+    }
+
+    @Test
+    void reopenRecoversLastSequenceAndDropsTornTail() throws Exception {
+        tempDir = Files.createTempDirectory("replication-log-reopen-test").toFile();
+
+        try (ReplicationLog log = new ReplicationLog(tempDir)) {
+            log.appendPut(bytes("a"), bytes("1"));
+            log.appendPut(bytes("b"), bytes("2"));
+        }
+
+        File segment = tempDir.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            //half written record
+            file.seek(file.length());
+            file.writeLong(3);
+            file.writeByte(WriteAheadLog.OP_PUT);
+        }
+
+        try (ReplicationLog log = new ReplicationLog(tempDir)) {
+            assertEquals(2, log.lastSequence());
+            assertEquals(3, log.appendPut(bytes("c"), bytes("3")));
+
+            try (ReplicationLog.Reader reader = log.openReader(2)) {
+                assertEquals("c", new String(reader.next().key(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    void truncateRemovesAcknowledgedSegmentsOnly() throws Exception {
+        tempDir = Files.createTempDirectory("replication-log-truncate-test").toFile();
+
+        //tiny segments so every record rolls a new one
+        try (ReplicationLog log = new ReplicationLog(tempDir, 32, 1)) {
+            for (int i = 0; i < 5; i++) {
+                log.appendPut(bytes("key" + i), bytes("value" + i));
+            }
+            assertEquals(1, log.firstSequence());
+
+            log.truncateUpTo(3);
+            assertEquals(4, log.firstSequence());
+            assertThrows(IOException.class, () -> log.openReader(1));
+
+            try (ReplicationLog.Reader reader = log.openReader(3)) {
+                assertEquals(4, reader.next().sequence());
+                assertEquals(5, reader.next().sequence());
+                assertNull(reader.next());
+            }
+        }
+    }
+
+    @Test
+    void unacknowledgedSegmentsAreOnlyDroppedWhenCapped() throws Exception {
+        tempDir = Files.createTempDirectory("replication-log-retention-test").toFile();
+
+        try (ReplicationLog log = new ReplicationLog(new File(tempDir, "uncapped"), 32, 1)) {
+            for (int i = 0; i < 10; i++) {
+                log.appendPut(bytes("key" + i), bytes("value" + i));
+            }
+            assertFalse(log.dropsUnacknowledgedSegments());
+            assertEquals(1, log.firstSequence());
+        }
+
+        try (ReplicationLog log = new ReplicationLog(new File(tempDir, "capped"), 32, 1, 2)) {
+            for (int i = 0; i < 10; i++) {
+                log.appendPut(bytes("key" + i), bytes("value" + i));
+            }
+            assertTrue(log.dropsUnacknowledgedSegments());
+            assertTrue(log.firstSequence() > 1);
+            //a lagging follower would lose records without a snapshot to fall back to
+            assertThrows(IllegalArgumentException.class, () -> new LogShippingReplicator(log, List.of("localhost:1")));
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
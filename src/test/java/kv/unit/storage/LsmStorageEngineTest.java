@@ -1,16 +1,23 @@
 package kv.unit.storage;
 
+import kv.storage.CompressionCodec;
 import kv.storage.LsmStorageEngine;
+import kv.storage.SsTableOptions;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
+import kv.core.EngineStats;
 import kv.core.StorageEngine;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -217,4 +224,569 @@ class LsmStorageEngineTest {
             deleteRecursively(dir);
         }
     }
+
+    @Test
+    void flushedTablesSurviveRestartWithNewestVersionWinning() throws Exception {
+        setupEngine();
+
+        //enough writes for several memtable flushes and a compaction
+        for (int i = 0; i < 5500; i++) {
+            storageEngine.put(("key" + (i % 2000)).getBytes(StandardCharsets.UTF_8),
+                    ("value" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        storageEngine.delete("key7".getBytes(StandardCharsets.UTF_8));
+        storageEngine.close();
+
+        storageEngine = new LsmStorageEngine(tempDir);
+
+        assertEquals("value5005", new String(storageEngine.read("key1005".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+        assertEquals("value4999", new String(storageEngine.read("key999".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+        assertNull(storageEngine.read("key7".getBytes(StandardCharsets.UTF_8)));
+
+        Map<byte[], byte[]> range = storageEngine.readRange("key1000".getBytes(StandardCharsets.UTF_8),
+                "key1002".getBytes(StandardCharsets.UTF_8));
+        Map<String, String> values = new LinkedHashMap<>();
+        range.forEach((k, v) -> values.put(new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+        assertEquals("value5000", values.get("key1000"));
+        assertEquals("value5002", values.get("key1002"));
+    }
+
+    @Test
+    void restoreCheckpointReplacesContents() throws Exception {
+        setupEngine();
+        File checkpointDir = new File(tempDir, "checkpoint");
+        File otherDir = Files.createTempDirectory("keyvalue-engine-restore").toFile();
+
+        try {
+            storageEngine.put("a".getBytes(StandardCharsets.UTF_8), "1".getBytes(StandardCharsets.UTF_8));
+            storageEngine.put("b".getBytes(StandardCharsets.UTF_8), "2".getBytes(StandardCharsets.UTF_8));
+            storageEngine.delete("b".getBytes(StandardCharsets.UTF_8));
+            storageEngine.createCheckpoint(checkpointDir);
+
+            //writes after the checkpoint are not part of it
+            storageEngine.put("c".getBytes(StandardCharsets.UTF_8), "3".getBytes(StandardCharsets.UTF_8));
+
+            try (LsmStorageEngine other = new LsmStorageEngine(otherDir)) {
+                other.put("stale".getBytes(StandardCharsets.UTF_8), "x".getBytes(StandardCharsets.UTF_8));
+                other.restoreCheckpoint(checkpointDir);
+
+                assertEquals("1", new String(other.read("a".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+                assertNull(other.read("b".getBytes(StandardCharsets.UTF_8)));
+                assertNull(other.read("c".getBytes(StandardCharsets.UTF_8)));
+                assertNull(other.read("stale".getBytes(StandardCharsets.UTF_8)));
+            }
+
+            //the restored contents are durable
+            try (LsmStorageEngine reopened = new LsmStorageEngine(otherDir)) {
+                assertEquals("1", new String(reopened.read("a".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+                assertNull(reopened.read("stale".getBytes(StandardCharsets.UTF_8)));
+            }
+        } finally {
+            deleteRecursively(otherDir);
+        }
+    }
+
+    @Test
+    void statsDescribeTablesMemTableAndCompactions() throws Exception {
+        setupEngine();
+        //five flushes of 1000 keys, the fifth triggers a compaction, then a few keys stay in the memtable
+        for (int i = 0; i < 5000; i++) {
+            storageEngine.put(String.format("key-%05d", i % 2500).getBytes(StandardCharsets.UTF_8), "v".getBytes(StandardCharsets.UTF_8));
+        }
+        storageEngine.delete("key-00001".getBytes(StandardCharsets.UTF_8));
+        storageEngine.put("key-09999".getBytes(StandardCharsets.UTF_8), "v".getBytes(StandardCharsets.UTF_8));
+
+        List<EngineStats> stats = storageEngine.stats();
+        assertEquals(1, stats.size());
+        EngineStats engine = stats.get(0);
+
+        assertEquals(2, engine.memTableEntries());
+        assertTrue(engine.walBytes() > 0);
+        assertEquals(1, engine.tables().size());
+        EngineStats.TableStats table = engine.tables().get(0);
+        assertEquals(1, table.level());
+        assertEquals(2500, table.entries());
+        assertEquals(0, table.tombstones());
+        assertEquals("key-00000", table.firstKey());
+        assertEquals("key-02499", table.lastKey());
+        //2500 records of about 5 bytes once their keys share a prefix, one block of 16 kb
+        assertEquals(1, table.indexEntries());
+        assertEquals(table.sizeBytes(), new File(tempDir, table.file()).length());
+
+        assertEquals(1, engine.recentCompactions().size());
+        assertEquals(5, engine.recentCompactions().get(0).inputTables());
+        assertEquals(2500, engine.recentCompactions().get(0).outputEntries());
+    }
+
+    @Test
+    void compactRangeMergesOverlappingTablesAndKeepsAgeOrderAcrossRestart() throws Exception {
+        setupEngine();
+        put("a1", "v1");
+        put("a2", "v1");
+        storageEngine.flush();
+        put("b1", "v1");
+        storageEngine.flush();
+        put("a1", "v2");
+        storageEngine.delete(bytes("a2"));
+        storageEngine.flush();
+        put("c1", "v1");
+        storageEngine.flush();
+        assertEquals(4, storageEngine.stats().get(0).tables().size());
+
+        //the a* tables are the oldest and third, so the b1 table between them is merged too
+        storageEngine.compact(bytes("a"), bytes("b"));
+
+        List<EngineStats.TableStats> tables = storageEngine.stats().get(0).tables();
+        assertEquals(2, tables.size());
+        assertEquals("a1", tables.get(0).firstKey());
+        assertEquals("b1", tables.get(0).lastKey());
+        //the oldest table took part, so the tombstone is gone
+        assertEquals(0, tables.get(0).tombstones());
+
+        storageEngine.close();
+        storageEngine = new LsmStorageEngine(tempDir);
+        assertEquals("v2", new String(storageEngine.read(bytes("a1"))));
+        assertNull(storageEngine.read(bytes("a2")));
+        assertEquals("v1", new String(storageEngine.read(bytes("b1"))));
+        assertEquals("v1", new String(storageEngine.read(bytes("c1"))));
+    }
+
+    @Test
+    void writesDuringACompactionSurviveItAndShadowTheMergedTables() throws Exception {
+        setupEngine();
+        for (int i = 0; i < 20000; i++) {
+            put("key" + i, "old" + i);
+        }
+
+        Exception[] failure = new Exception[1];
+        Thread compaction = new Thread(() -> {
+            try {
+                storageEngine.compact(null, null);
+            } catch (Exception e) {
+                failure[0] = e;
+            }
+        });
+        compaction.start();
+        for (int i = 0; i < 20000; i += 7) {
+            put("key" + i, "new" + i);
+            assertEquals("new" + i, new String(storageEngine.read(bytes("key" + i))));
+        }
+        for (int i = 3; i < 20000; i += 7) {
+            storageEngine.delete(bytes("key" + i));
+        }
+        compaction.join();
+        assertNull(failure[0]);
+        storageEngine.flush();
+
+        storageEngine.close();
+        storageEngine = new LsmStorageEngine(tempDir);
+        for (int i = 0; i < 20000; i++) {
+            byte[] value = storageEngine.read(bytes("key" + i));
+            if (i % 7 == 0) {
+                assertEquals("new" + i, new String(value));
+            } else if (i % 7 == 3) {
+                assertNull(value);
+            } else {
+                assertEquals("old" + i, new String(value));
+            }
+        }
+    }
+
+    @Test
+    void compactRangeKeepsTombstonesWhenOlderTablesRemain() throws Exception {
+        setupEngine();
+        put("a", "v1");
+        storageEngine.flush();
+        put("x", "v1");
+        storageEngine.flush();
+        storageEngine.delete(bytes("x"));
+        storageEngine.flush();
+
+        storageEngine.compact(bytes("x"), null);
+
+        List<EngineStats.TableStats> tables = storageEngine.stats().get(0).tables();
+        assertEquals(2, tables.size());
+        assertEquals(1, tables.get(1).tombstones());
+        assertNull(storageEngine.read(bytes("x")));
+
+        storageEngine.compact(null, null);
+        tables = storageEngine.stats().get(0).tables();
+        assertEquals(1, tables.size());
+        assertEquals(1, tables.get(0).entries());
+        assertEquals("v1", new String(storageEngine.read(bytes("a"))));
+    }
+
+    @Test
+    void deleteRangeShadesOlderTablesUntilCompactionDropsThem() throws Exception {
+        setupEngine();
+        //a table keeps its deleted ranges in its index until a compaction reaching the oldest table drops them
+        storageEngine.deleteRange(bytes("b"), bytes("c"));
+        put("b1", "v1");
+        storageEngine.flush();
+        storageEngine.close();
+        storageEngine = new LsmStorageEngine(tempDir);
+        assertEquals(1, storageEngine.stats().get(0).tables().get(0).rangeTombstones());
+        assertEquals("v1", new String(storageEngine.read(bytes("b1"))));
+        storageEngine.compact(null, null);
+        assertEquals(0, storageEngine.stats().get(0).tables().get(0).rangeTombstones());
+
+        put("a", "v1");
+        put("m:1:a", "v1");
+        put("m:1:b", "v1");
+        put("m:2:a", "v1");
+        storageEngine.flush();
+        put("m:1:c", "v1");
+        storageEngine.flush();
+
+        storageEngine.deleteRange(bytes("m:1:"), bytes("m:2:"));
+        //written after the range delete, so it survives it
+        put("m:1:b", "v2");
+        assertThrows(IllegalArgumentException.class, () -> storageEngine.deleteRange(bytes("m:2:"), bytes("m:1:")));
+
+        for (int round = 0; round < 2; round++) {
+            assertNull(storageEngine.read(bytes("m:1:a")));
+            assertEquals("v2", new String(storageEngine.read(bytes("m:1:b"))));
+            assertNull(storageEngine.read(bytes("m:1:c")));
+            assertEquals("v1", new String(storageEngine.read(bytes("m:2:a"))));
+            Set<String> keys = new LinkedHashSet<>();
+            storageEngine.readRange(bytes("a"), bytes("z")).keySet().forEach(key -> keys.add(new String(key, StandardCharsets.UTF_8)));
+            assertEquals(List.of("a", "b1", "m:1:b", "m:2:a"), List.copyOf(keys));
+
+            //the range delete comes back from the write ahead log
+            storageEngine.close();
+            storageEngine = new LsmStorageEngine(tempDir);
+        }
+
+        //the range shades too few bytes to be worth a merge on flush, so only a compaction drops it
+        storageEngine.flush();
+        assertEquals(4, storageEngine.stats().get(0).tables().size());
+        storageEngine.compact(null, null);
+        EngineStats engine = storageEngine.stats().get(0);
+        assertEquals(1, engine.tables().size());
+        assertEquals(4, engine.tables().get(0).entries());
+        assertEquals(0, engine.tables().get(0).rangeTombstones());
+        assertEquals(1, engine.recentCompactions().get(engine.recentCompactions().size() - 1).droppedTombstones());
+        assertNull(storageEngine.read(bytes("m:1:c")));
+        assertEquals("v2", new String(storageEngine.read(bytes("m:1:b"))));
+    }
+
+    @Test
+    void flushedDeletedRangesOnlyMergeTheTablesTheyShadeEnoughOf() throws Exception {
+        setupEngine();
+        String value = "v".repeat(100);
+        put("x", value);
+        storageEngine.flush();
+        for (int i = 0; i < 3000; i++) {
+            put(String.format("a%05d", i), value);
+        }
+        storageEngine.compact(bytes("a"), bytes("b"));
+        assertEquals(2, storageEngine.stats().get(0).tables().size());
+        int compactions = storageEngine.stats().get(0).recentCompactions().size();
+
+        //one block of the large table: left for a regular compaction
+        storageEngine.deleteRange(bytes("a00000"), bytes("a00030"));
+        storageEngine.flush();
+        assertEquals(3, storageEngine.stats().get(0).tables().size());
+        assertEquals(compactions, storageEngine.stats().get(0).recentCompactions().size());
+
+        //most of it: merged with the large table, the older x table it does not reach is left alone
+        storageEngine.deleteRange(bytes("a00030"), bytes("a02900"));
+        storageEngine.flush();
+        EngineStats engine = storageEngine.stats().get(0);
+        assertEquals(compactions + 1, engine.recentCompactions().size());
+        assertEquals(3, engine.recentCompactions().get(compactions).inputTables());
+        assertEquals(2, engine.tables().size());
+        assertEquals(1, engine.tables().get(0).entries());
+        assertEquals(100, engine.tables().get(1).entries());
+        //the x table is older, so the two adjoining ranges, now one, still have to shade it
+        assertEquals(1, engine.tables().get(1).rangeTombstones());
+        assertNull(storageEngine.read(bytes("a00010")));
+        assertNull(storageEngine.read(bytes("a02000")));
+        assertEquals(value, new String(storageEngine.read(bytes("a02950"))));
+        assertEquals(value, new String(storageEngine.read(bytes("x"))));
+
+        //the kept ranges reach nothing older, so further flushes do not merge again
+        put("y", value);
+        storageEngine.flush();
+        assertEquals(compactions + 1, storageEngine.stats().get(0).recentCompactions().size());
+    }
+
+    @Test
+    void expiredValuesShadeOlderVersionsUntilCompactionDropsThem() throws Exception {
+        setupEngine();
+        long later = System.currentTimeMillis() + 3_600_000;
+        put("k", "old");
+        storageEngine.flush();
+        storageEngine.put(bytes("k"), bytes("new"), 1);
+        storageEngine.put(bytes("live"), bytes("v1"), later);
+        assertThrows(IllegalArgumentException.class, () -> storageEngine.put(bytes("k"), bytes("v"), 0));
+
+        //from the memtable, the write ahead log and then the flushed table
+        for (int round = 0; round < 3; round++) {
+            assertNull(storageEngine.read(bytes("k")));
+            assertNull(storageEngine.readExpiring(bytes("k")));
+            assertEquals(later, storageEngine.readExpiring(bytes("live")).expiresAtMillis());
+            assertEquals("v1", new String(storageEngine.read(bytes("live"))));
+            Set<String> keys = new LinkedHashSet<>();
+            storageEngine.readRange(bytes("a"), bytes("z")).keySet().forEach(key -> keys.add(new String(key, StandardCharsets.UTF_8)));
+            assertEquals(List.of("live"), List.copyOf(keys));
+
+            if (round == 1) {
+                storageEngine.flush();
+            }
+            storageEngine.close();
+            storageEngine = new LsmStorageEngine(tempDir);
+        }
+
+        storageEngine.compact(null, null);
+        EngineStats engine = storageEngine.stats().get(0);
+        assertEquals(1, engine.tables().size());
+        assertEquals(1, engine.tables().get(0).entries());
+        EngineStats.CompactionStats compaction = engine.recentCompactions().get(engine.recentCompactions().size() - 1);
+        assertEquals(0, compaction.droppedTombstones());
+        assertEquals(1, compaction.droppedExpired());
+        assertNull(storageEngine.read(bytes("k")));
+        assertEquals(later, storageEngine.readExpiring(bytes("live")).expiresAtMillis());
+    }
+
+    @Test
+    void reopenReadsTablesWrittenBeforeBlocksAndIgnoresATornTail() throws Exception {
+        tempDir = Files.createTempDirectory("keyvalue-engine-test").toFile();
+        //plain records without blocks, index or manifest, ending in a record cut short by a crash
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(tempDir, String.format("sstable_%020d.dat", 1))))) {
+            for (int i = 0; i < 300; i++) {
+                byte[] key = bytes(String.format("key%03d", i));
+                byte[] value = bytes("value" + i);
+                out.writeInt(key.length);
+                out.writeInt(i == 7 ? -1 : value.length);
+                out.write(key);
+                if (i != 7) {
+                    out.write(value);
+                }
+            }
+            out.writeInt(4);
+            out.writeInt(100);
+            out.write(bytes("torn"));
+        }
+
+        storageEngine = new LsmStorageEngine(tempDir);
+        assertEquals("value0", new String(storageEngine.read(bytes("key000"))));
+        assertEquals("value299", new String(storageEngine.read(bytes("key299"))));
+        assertNull(storageEngine.read(bytes("key007")));
+        assertNull(storageEngine.read(bytes("torn")));
+        assertEquals(3, storageEngine.readRange(bytes("key127"), bytes("key129")).size());
+
+        //the next compaction rewrites it in blocks
+        storageEngine.compact(null, null);
+        assertEquals("value128", new String(storageEngine.read(bytes("key128"))));
+        assertEquals(299, storageEngine.stats().get(0).tables().get(0).entries());
+    }
+
+    @Test
+    void tablesTheManifestDoesNotListAreDeletedOnReopen() throws Exception {
+        setupEngine();
+        for (int i = 0; i < 1500; i++) {
+            put("key" + i, "value" + i);
+        }
+        storageEngine.close();
+        assertTrue(new File(tempDir, "MANIFEST").exists());
+
+        //a newer looking table that never got recorded, e.g. a compaction output when the process died
+        File leftover = new File(tempDir, String.format("sstable_%020d.dat", 99));
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(leftover))) {
+            out.writeInt(4);
+            out.writeInt(5);
+            out.write(bytes("key0"));
+            out.write(bytes("stale"));
+        }
+
+        storageEngine = new LsmStorageEngine(tempDir);
+        assertFalse(leftover.exists());
+        assertEquals("value0", new String(storageEngine.read(bytes("key0"))));
+        assertEquals(1, storageEngine.stats().get(0).tables().size());
+    }
+
+    @Test
+    void compressedTablesReadBackAfterRestartAndAreSmaller() throws Exception {
+        Map<CompressionCodec, Long> tableBytes = new LinkedHashMap<>();
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            tempDir = Files.createTempDirectory("keyvalue-engine-test").toFile();
+            SsTableOptions options = new SsTableOptions(codec, 4096, 0);
+            storageEngine = new LsmStorageEngine(tempDir, options);
+
+            Random random = new Random(7);
+            for (int i = 0; i < 3000; i++) {
+                //mostly json documents, some incompressible values
+                String value = i % 10 == 0
+                        ? Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong())
+                        : "{\"merchant\":\"m-" + (i % 40) + "\",\"amount\":" + i + ",\"currency\":\"NGN\",\"status\":\"settled\"}";
+                put(String.format("txn:%06d", i), value);
+            }
+            storageEngine.close();
+
+            storageEngine = new LsmStorageEngine(tempDir, options);
+            assertEquals("{\"merchant\":\"m-1\",\"amount\":2961,\"currency\":\"NGN\",\"status\":\"settled\"}",
+                    new String(storageEngine.read(bytes("txn:002961"))), codec.name());
+            assertEquals(32, new String(storageEngine.read(bytes("txn:001230"))).length(), codec.name());
+            assertEquals(101, storageEngine.readRange(bytes("txn:000950"), bytes("txn:001050")).size(), codec.name());
+
+            long bytes = 0;
+            for (EngineStats.TableStats table : storageEngine.stats().get(0).tables()) {
+                bytes += table.sizeBytes();
+            }
+            tableBytes.put(codec, bytes);
+            storageEngine.close();
+            storageEngine = null;
+            deleteRecursively(tempDir);
+        }
+
+        assertTrue(tableBytes.get(CompressionCodec.LZ) < tableBytes.get(CompressionCodec.NONE) / 2, tableBytes.toString());
+        assertTrue(tableBytes.get(CompressionCodec.DEFLATE) < tableBytes.get(CompressionCodec.LZ), tableBytes.toString());
+    }
+
+    @Test
+    void prefixCompressedKeysAreFoundFromAnyRestartPoint() throws Exception {
+        tempDir = Files.createTempDirectory("keyvalue-engine-test").toFile();
+        SsTableOptions options = new SsTableOptions(CompressionCodec.NONE, 1024, 0);
+        storageEngine = new LsmStorageEngine(tempDir, options);
+        //even keys only, so every odd key falls between two records of a block
+        for (int i = 0; i < 2000; i += 2) {
+            if (i != 500) {
+                put(String.format("merchant:00042:txn:%06d", i), "v" + i);
+            }
+        }
+        //the thousandth entry, a tombstone, fills the memtable and is flushed with the rest into one table
+        storageEngine.delete(bytes("merchant:00042:txn:000500"));
+        storageEngine.close();
+
+        storageEngine = new LsmStorageEngine(tempDir, options);
+        assertEquals(1, storageEngine.stats().get(0).tables().size());
+        for (int i = 0; i < 2000; i++) {
+            byte[] value = storageEngine.read(bytes(String.format("merchant:00042:txn:%06d", i)));
+            if (i % 2 == 1 || i == 500) {
+                assertNull(value, "key " + i);
+            } else {
+                assertEquals("v" + i, new String(value), "key " + i);
+            }
+        }
+        assertNull(storageEngine.read(bytes("merchant:00042:txn:")));
+        assertNull(storageEngine.read(bytes("merchant:00042:txn:999999")));
+
+        Set<String> keys = new LinkedHashSet<>();
+        for (Map.Entry<byte[], byte[]> entry : storageEngine.readRange(bytes("merchant:00042:txn:000481"), bytes("merchant:00042:txn:000521")).entrySet()) {
+            keys.add(new String(entry.getKey()));
+        }
+        assertEquals(19, keys.size());
+        assertTrue(keys.contains("merchant:00042:txn:000482"));
+        assertTrue(keys.contains("merchant:00042:txn:000520"));
+        assertFalse(keys.contains("merchant:00042:txn:000500"));
+    }
+
+    @Test
+    void largeTablesAreFoundThroughATwoLevelIndex() throws Exception {
+        tempDir = Files.createTempDirectory("keyvalue-engine-test").toFile();
+        //a block or two per record, so one flush indexes several partitions
+        SsTableOptions options = new SsTableOptions(CompressionCodec.NONE, 32, 0);
+        storageEngine = new LsmStorageEngine(tempDir, options);
+        for (int i = 0; i < 1996; i += 2) {
+            put(String.format("merchant:00042:txn:%06d", i), "v" + i);
+        }
+        //String order puts characters above U+FFFF first, utf-8 bytes put them last
+        put("unicode:\uFF01", "fullwidth");
+        put("unicode:\uD83D\uDE00", "emoji");
+        storageEngine.close();
+
+        storageEngine = new LsmStorageEngine(tempDir, options);
+        EngineStats.TableStats table = storageEngine.stats().get(0).tables().get(0);
+        assertEquals(1000, table.entries());
+        assertTrue(table.indexEntries() > 512, "blocks: " + table.indexEntries());
+
+        for (int i = 0; i < 1996; i++) {
+            byte[] value = storageEngine.read(bytes(String.format("merchant:00042:txn:%06d", i)));
+            if (i % 2 == 1) {
+                assertNull(value, "key " + i);
+            } else {
+                assertEquals("v" + i, new String(value), "key " + i);
+            }
+        }
+        assertEquals("fullwidth", new String(storageEngine.read(bytes("unicode:\uFF01"))));
+        assertEquals("emoji", new String(storageEngine.read(bytes("unicode:\uD83D\uDE00"))));
+        assertNull(storageEngine.read(bytes("a")));
+
+        //crosses from the first partition into the second
+        assertEquals(100, storageEngine.readRange(bytes("merchant:00042:txn:000401"), bytes("merchant:00042:txn:000600")).size());
+        assertEquals(2, storageEngine.readRange(bytes("unicode:"), bytes("unicode:\uFFFF")).size());
+    }
+
+    @Test
+    void largeValuesLiveInTheValueLogAndSurviveGarbageCollection() throws Exception {
+        tempDir = Files.createTempDirectory("keyvalue-engine-test").toFile();
+        SsTableOptions options = new SsTableOptions(CompressionCodec.NONE, 16 * 1024, 0, 1024);
+        LsmStorageEngine engine = new LsmStorageEngine(tempDir, options);
+        storageEngine = engine;
+        for (int i = 0; i < 1000; i++) {
+            put(String.format("doc:%04d", i), largeValue("first", i));
+        }
+        long tableBytes = storageEngine.stats().get(0).tables().get(0).sizeBytes();
+        assertTrue(tableBytes < 64 * 1024, "table of pointers: " + tableBytes);
+        assertEquals(1, valueLogSegments().length);
+        storageEngine.close();
+
+        //a reopened engine appends to a new segment; the first 600 documents are rewritten, small values stay inline
+        engine = new LsmStorageEngine(tempDir, options);
+        storageEngine = engine;
+        for (int i = 0; i < 600; i++) {
+            put(String.format("doc:%04d", i), largeValue("second", i));
+        }
+        for (int i = 0; i < 400; i++) {
+            put(String.format("small:%04d", i), "s" + i);
+        }
+        storageEngine.compact(null, null);
+        assertEquals(2, valueLogSegments().length);
+
+        //only 400 of the first segment's 1000 values are still pointed to
+        engine.collectValueLogGarbage();
+        assertEquals(1, valueLogSegments().length);
+        for (int i = 0; i < 1000; i++) {
+            String expected = largeValue(i < 600 ? "second" : "first", i);
+            assertEquals(expected, new String(storageEngine.read(bytes(String.format("doc:%04d", i)))), "doc " + i);
+        }
+        assertEquals(100, storageEngine.readRange(bytes("doc:0550"), bytes("doc:0649")).size());
+        assertEquals("s7", new String(storageEngine.read(bytes("small:0007"))));
+        storageEngine.close();
+
+        storageEngine = new LsmStorageEngine(tempDir, options);
+        assertEquals(largeValue("first", 999), new String(storageEngine.read(bytes("doc:0999"))));
+
+        //a checkpoint holds the values themselves
+        File checkpointDir = Files.createTempDirectory("keyvalue-engine-checkpoint").toFile();
+        File otherDir = Files.createTempDirectory("keyvalue-engine-restore").toFile();
+        try {
+            storageEngine.createCheckpoint(checkpointDir);
+            try (LsmStorageEngine other = new LsmStorageEngine(otherDir)) {
+                other.restoreCheckpoint(checkpointDir);
+                assertEquals(largeValue("second", 3), new String(other.read(bytes("doc:0003"))));
+                assertEquals(largeValue("first", 700), new String(other.read(bytes("doc:0700"))));
+            }
+        } finally {
+            deleteRecursively(checkpointDir);
+            deleteRecursively(otherDir);
+        }
+    }
+
+    private File[] valueLogSegments() {
+        return tempDir.listFiles((dir, name) -> name.startsWith("vlog_"));
+    }
+
+    private static String largeValue(String version, int i) {
+        return (version + ":" + i + ":").repeat(2048 / (version.length() + 8));
+    }
+
+    private void put(String key, String value) throws Exception {
+        storageEngine.put(bytes(key), bytes(value));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
 }
@@ -0,0 +1,161 @@
+package kv.unit.storage;
+
+import kv.core.StorageEngine;
+import kv.storage.LsmStorageEngine;
+import kv.storage.ShardedStorageEngine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedStorageEngineTest {
+
+    private File tempDir;
+    private StorageEngine storageEngine;
+
+    private void setupEngine(int shards) throws Exception {
+        tempDir = Files.createTempDirectory("keyvalue-sharded-test").toFile();
+        storageEngine = new ShardedStorageEngine(tempDir, shards);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (storageEngine != null) {
+            storageEngine.close();
+        }
+        if (tempDir != null && tempDir.exists()) {
+            deleteRecursively(tempDir);
+        }
+    }
+
+    private void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteRecursively(c);
+            }
+        }
+        f.delete();
+    }
+
+    @Test
+    void pointOperationsAreRoutedToTheOwningShard() throws Exception {
+        setupEngine(4);
+
+        for (int i = 0; i < 200; i++) {
+            storageEngine.put(bytes("key" + i), bytes("value" + i));
+        }
+        storageEngine.delete(bytes("key42"));
+
+        assertEquals("value7", string(storageEngine.read(bytes("key7"))));
+        assertEquals("value199", string(storageEngine.read(bytes("key199"))));
+        assertNull(storageEngine.read(bytes("key42")));
+
+        //every shard received some keys
+        for (int i = 0; i < 4; i++) {
+            assertTrue(new File(tempDir, "shard-" + i + "/writeAheadLog.log").length() > 0, "shard " + i + " is empty");
+        }
+    }
+
+    @Test
+    void rangeMergesAllShardsInKeyOrder() throws Exception {
+        setupEngine(3);
+
+        Map<byte[], byte[]> batch = new LinkedHashMap<>();
+        for (char c = 'a'; c <= 'z'; c++) {
+            batch.put(bytes(String.valueOf(c)), bytes("v" + c));
+        }
+        storageEngine.batchPut(batch);
+        storageEngine.delete(bytes("e"));
+
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<byte[], byte[]> entry : storageEngine.readRange(bytes("c"), bytes("h")).entrySet()) {
+            keys.add(string(entry.getKey()));
+        }
+        assertEquals(List.of("c", "d", "f", "g", "h"), keys);
+    }
+
+    @Test
+    void dataSurvivesRestartAndShardCountIsFixed() throws Exception {
+        setupEngine(4);
+
+        for (int i = 0; i < 5000; i++) {
+            storageEngine.put(bytes("key" + i), bytes("value" + i));
+        }
+        storageEngine.close();
+
+        assertThrows(IOException.class, () -> new ShardedStorageEngine(tempDir, 8));
+
+        storageEngine = new ShardedStorageEngine(tempDir, 4);
+        assertEquals("value0", string(storageEngine.read(bytes("key0"))));
+        assertEquals("value4999", string(storageEngine.read(bytes("key4999"))));
+    }
+
+    @Test
+    void singleEngineDirectoryCannotBeOpenedSharded() throws Exception {
+        tempDir = Files.createTempDirectory("keyvalue-sharded-test").toFile();
+        storageEngine = new LsmStorageEngine(tempDir);
+        storageEngine.put(bytes("a"), bytes("1"));
+        storageEngine.close();
+
+        assertThrows(IOException.class, () -> new ShardedStorageEngine(tempDir, 4));
+        assertFalse(new File(tempDir, "SHARDS").exists());
+
+        storageEngine = new LsmStorageEngine(tempDir);
+        assertEquals("1", string(storageEngine.read(bytes("a"))));
+    }
+
+    @Test
+    void shardedDirectoryCannotBeOpenedAsASingleEngine() throws Exception {
+        setupEngine(4);
+        storageEngine.put(bytes("a"), bytes("1"));
+        storageEngine.close();
+
+        assertThrows(IOException.class, () -> new LsmStorageEngine(tempDir));
+        assertFalse(new File(tempDir, "writeAheadLog.log").exists());
+
+        storageEngine = new ShardedStorageEngine(tempDir, 4);
+        assertEquals("1", string(storageEngine.read(bytes("a"))));
+    }
+
+    @Test
+    void checkpointRestoresIntoAnotherShardedEngine() throws Exception {
+        setupEngine(2);
+        File checkpointDir = new File(tempDir, "checkpoint");
+        File otherDir = Files.createTempDirectory("keyvalue-sharded-restore").toFile();
+
+        try {
+            storageEngine.put(bytes("a"), bytes("1"));
+            storageEngine.put(bytes("b"), bytes("2"));
+            storageEngine.createCheckpoint(checkpointDir);
+
+            try (ShardedStorageEngine other = new ShardedStorageEngine(otherDir, 2)) {
+                other.put(bytes("stale"), bytes("x"));
+                other.restoreCheckpoint(checkpointDir);
+
+                assertEquals("1", string(other.read(bytes("a"))));
+                assertEquals("2", string(other.read(bytes("b"))));
+                assertNull(other.read(bytes("stale")));
+            }
+        } finally {
+            deleteRecursively(otherDir);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+}